@@ -5,7 +5,7 @@
 //
 //-----Hardware specification
 //port 2-7 used for 6bit DA1. The port 2 is top bit and 7 is lowest.
-//port 8-13 is DA2 (R2-R ladder was constructed. output line is not connected, so cant use for now.)
+//port 8-13 is DA2 (R2-R ladder was constructed. connect its output line to drive a second light.)
 //each DA1 DA2 output is connected to analog4 and 2 so that can sense of output volatages.
 //(not implemented in this code)
 //To output 5V at DA1 anytime, toggle switch connect 5V-2k resistor-ground.
@@ -19,7 +19,10 @@
 //eg. B00111111 is DA1 with max (63) strength.
 //B11000000 is chage cyclelength and triggerlength to 0.
 //In this case, lower 3 bits set triggerlength, next 3 are for cycletength
+//B11111xxx (cycle index 7 does not exist) are batch commands, see below
 
+//ver7 batch protocol, a whole stimulation protocol uploaded and timed here
+//ver6 DA2 driven too. both channels can be set in one serial write, one byte each
 //ver4 add toggle switch as force on switch. analog0 port sense it.
 //ver3 modify for leonardo and 6bit 2ch
 //ver2 try serial communication to set output value
@@ -64,6 +67,196 @@ unsigned long time;//put micros(). 4 bytes
 boolean forceswitch=false;
 
 boolean testflag=true;
+
+//-----Batch protocol (ver7)
+//a whole stimulation protocol is uploaded once and timed here with micros(), so serial latency
+//does not move the signals. one cycle of level changes is kept and repeated. numbers are little endian
+//host->arduino
+//  0xF8 upload: u16 events, u32 prestim(us), u32 cycle(us), u16 cycles, events x (u32 time in cycle(us), u8 order byte), u8 sum of bytes after 0xF8
+//  0xF9 start, 0xFA abort (DA1 goes to 0)
+//arduino->host
+//  0xF8 u16 events (upload taken), 0xF9 u16 cycle u16 event u32 us from start (order set)
+//  0xFB u32 us (finished or aborted), 0xFC u8 error (1 checksum, 2 too many events, 3 no upload)
+//the once a second status is not sent while a batch is uploading or loaded, so it cannot mix with the replies
+//an upload is played once, it is unloaded when it ends or is aborted and the status comes back
+//times are u32 us from start, so prestim+cycles*cycle must stay below 2^32 (71.6 min), the host checks it
+//see StimulatorBatch.java
+#define BATCH_UPLOAD 0xF8
+#define BATCH_START 0xF9
+#define BATCH_ABORT 0xFA
+#define BATCH_DONE 0xFB
+#define BATCH_ERROR 0xFC
+#define BATCH_MAX_EVENTS 160
+
+unsigned long batchtime[BATCH_MAX_EVENTS];
+byte batchorder[BATCH_MAX_EVENTS];
+unsigned int batchevents=0;
+unsigned long batchprestim=0;
+unsigned long batchcycle=0;
+unsigned int batchcycles=0;
+boolean batchloaded=false;
+
+//upload being received
+boolean batchreceiving=false;
+unsigned int batchreceived=0;//bytes after 0xF8
+unsigned int batchlength=0;//known after the event count
+byte batchsum=0;
+unsigned long batchvalue=0;//number being assembled
+boolean batchbad=false;
+
+//playing
+boolean batchplaying=false;
+unsigned long batchstart=0;
+unsigned int batchcyclenow=0;
+unsigned int batcheventnow=0;
+
+void sendNumber(unsigned long value, int size)
+{
+  for(int i=0;i<size;i++)
+  {
+    Serial.write(lowByte(value>>(8*i)));
+  }
+}
+
+//one byte of an upload. header fields then events, the value is assembled little endian
+void receiveBatch(byte data)
+{
+  unsigned int n=batchreceived;
+  batchreceived++;
+  if(batchlength!=0 && batchreceived==batchlength)//checksum
+  {
+    batchreceiving=false;
+    if(data!=batchsum)
+    {
+      batchloaded=false;
+      Serial.write(BATCH_ERROR);
+      Serial.write((byte)1);
+    }
+    else if(batchbad)
+    {
+      batchloaded=false;
+      Serial.write(BATCH_ERROR);
+      Serial.write((byte)2);
+    }
+    else
+    {
+      batchloaded=true;
+      Serial.write(BATCH_UPLOAD);
+      sendNumber(batchevents,2);
+    }
+    return;
+  }
+  batchsum+=data;
+
+  if(n<12)//header
+  {
+    int offset=n<2 ? n : (n<6 ? n-2 : (n<10 ? n-6 : n-10));
+    if(offset==0)
+    {
+      batchvalue=0;
+    }
+    batchvalue|=((unsigned long)data)<<(8*offset);
+    if(n==1)
+    {
+      batchevents=batchvalue;
+      batchlength=12+5*batchevents+1;
+      batchbad=batchevents>BATCH_MAX_EVENTS;
+    }
+    else if(n==5){ batchprestim=batchvalue; }
+    else if(n==9){ batchcycle=batchvalue; }
+    else if(n==11){ batchcycles=batchvalue; }
+    return;
+  }
+
+  unsigned int e=(n-12)/5;
+  int offset=(n-12)%5;
+  if(batchbad)
+  {
+    return;//skip the events, the error goes out with the checksum
+  }
+  if(offset==0)
+  {
+    batchvalue=0;
+  }
+  if(offset<4)
+  {
+    batchvalue|=((unsigned long)data)<<(8*offset);
+    if(offset==3){ batchtime[e]=batchvalue; }
+  }
+  else
+  {
+    batchorder[e]=data;
+  }
+}
+
+void batchCommand(byte data)
+{
+  if(data==BATCH_UPLOAD)
+  {
+    batchplaying=false;
+    batchloaded=false;
+    batchreceiving=true;
+    batchreceived=0;
+    batchlength=0;
+    batchsum=0;
+  }
+  else if(data==BATCH_START)
+  {
+    if(!batchloaded)
+    {
+      Serial.write(BATCH_ERROR);
+      Serial.write((byte)3);
+      return;
+    }
+    batchstart=micros();
+    batchcyclenow=0;
+    batcheventnow=0;
+    batchplaying=true;
+  }
+  else if(data==BATCH_ABORT && batchplaying)
+  {
+    batchplaying=false;
+    batchloaded=false;
+    ordervalue=0;
+    Serial.write(BATCH_DONE);
+    sendNumber(micros()-batchstart,4);
+  }
+}
+
+//set the order of the next event if it is due. the DAC code in loop() applies it like a serial order,
+//so only one is set per pass and events of both channels at the same time go out one loop apart
+void playBatch()
+{
+  if(batchplaying)
+  {
+    unsigned long elapsed=micros()-batchstart;//unsigned, so fine across the micros() overflow
+    if(batchcyclenow>=batchcycles || batchevents==0)
+    {
+      batchplaying=false;
+      batchloaded=false;
+      Serial.write(BATCH_DONE);
+      sendNumber(batchprestim+batchcycles*batchcycle,4);
+      return;
+    }
+    unsigned long due=batchprestim+batchcyclenow*batchcycle+batchtime[batcheventnow];
+    if(elapsed<due)
+    {
+      return;
+    }
+    ordervalue=batchorder[batcheventnow];
+    Serial.write(BATCH_START);
+    sendNumber(batchcyclenow,2);
+    sendNumber(batcheventnow,2);
+    sendNumber(due,4);
+    batcheventnow++;
+    if(batcheventnow==batchevents)
+    {
+      batcheventnow=0;
+      batchcyclenow++;
+    }
+  }
+}
+
 void setup()
 {
   //sendingdata = new byte[8];
@@ -101,12 +294,25 @@ void loop()
   //serial order. read any time. use when trigger is off
   if(Serial.available()>0)
   {
-    ordervalue = Serial.read();
-    if((ordervalue&(MASK<<6)))
+    int data = Serial.read();
+    if(batchreceiving)
+    {
+      receiveBatch(data);
+    }
+    else if(data>=BATCH_UPLOAD)
     {
-      setCycleprop();
+      batchCommand(data);
+    }
+    else
+    {
+      ordervalue = data;
+      if((ordervalue&(MASK<<6)))
+      {
+        setCycleprop();
+      }
     }
   }
+  playBatch();
 
   //checking A1 pin
   /*
@@ -224,7 +430,7 @@ void loop()
           {
             for(int i=0;i<6;i++)
             {
-              //digitalWrite(i+8, ordervalue&(MASK<<5-i));
+              digitalWrite(i+8, ordervalue&(MASK<<5-i));
             }
           }
         }
@@ -248,7 +454,7 @@ void loop()
 
   //sending analog read every 10 msec
   //if(millis()-beforetime >= 10)
-  if(millis()-beforetime >= 1000)
+  if(millis()-beforetime >= 1000 && !batchreceiving && !batchloaded)
   {
     beforetime=millis();
     //time=millis();
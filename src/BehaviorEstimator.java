@@ -0,0 +1,88 @@
+import java.util.ArrayDeque;
+
+// turns the tracker's worm measurements into speed, heading and reversals
+//
+// the worm's position on the plate is the stage position plus its offset from the image center, so it
+// does not depend on how well the stage keeps up. positions of the last REVERSAL_WINDOW_MS are kept,
+// which bounds the work per tracking task to a few dozen points whatever the job length
+class BehaviorEstimator {
+    static final long SPEED_WINDOW_MS = 500;      // speed is the displacement over this long
+    static final long REVERSAL_WINDOW_MS = 1000;  // heading before and after a reversal is measured over half of this each
+    static final double MIN_MOVING_SPEED = 20.0;  // um/s, slower than this the heading is noise
+    static final double REVERSAL_ANGLE = 120.0;   // degrees the heading has to turn to count as a reversal
+
+    // time (ns), x, y of recent positions, oldest first
+    private ArrayDeque<double[]> history;
+
+    BehaviorEstimator(){
+        history = new ArrayDeque<double[]>();
+    }
+
+    public void reset(){
+        history.clear();
+    }
+
+    // the state at this tracking task, xUm and yUm are NaN if the worm was not found
+    public BehaviorState update(int index, long frameNanos, double xUm, double yUm){
+        BehaviorState s = new BehaviorState();
+        s.index = index;
+        s.frameNanos = frameNanos;
+        s.heading = Double.NaN;
+        if( Double.isNaN(xUm) || Double.isNaN(yUm) ){
+            // a gap in the track, speeds across it would be made up
+            history.clear();
+            return s;
+        }
+
+        s.found = true;
+        s.x = xUm;
+        s.y = yUm;
+        history.addLast(new double[]{ frameNanos, xUm, yUm });
+        while( frameNanos - history.peekFirst()[0] > REVERSAL_WINDOW_MS * 1.0e6 ){
+            history.removeFirst();
+        }
+
+        // a speed over a few frames is mostly measurement noise, wait until the window is half full
+        double[] speedStart = oldestWithin(frameNanos, SPEED_WINDOW_MS);
+        double[] velocity = velocity(speedStart, history.peekLast());
+        s.speed = Double.NaN;
+        if( velocity != null && frameNanos - speedStart[0] >= SPEED_WINDOW_MS * 0.5e6 ){
+            s.speed = Math.hypot(velocity[0], velocity[1]);
+            if( s.speed >= MIN_MOVING_SPEED ){
+                s.heading = Math.toDegrees(Math.atan2(velocity[1], velocity[0]));
+            }
+        }
+
+        // compare the heading of the older and the newer half of the window
+        double[] middle = oldestWithin(frameNanos, REVERSAL_WINDOW_MS / 2);
+        double[] before = velocity(history.peekFirst(), middle);
+        double[] after = velocity(middle, history.peekLast());
+        if( before != null && after != null && history.peekFirst()[0] < frameNanos - REVERSAL_WINDOW_MS * 0.9e6 ){
+            double speedBefore = Math.hypot(before[0], before[1]);
+            double speedAfter = Math.hypot(after[0], after[1]);
+            if( speedBefore >= MIN_MOVING_SPEED && speedAfter >= MIN_MOVING_SPEED ){
+                double cos = (before[0] * after[0] + before[1] * after[1]) / (speedBefore * speedAfter);
+                s.reversal = Math.toDegrees(Math.acos(Math.max(-1.0, Math.min(1.0, cos)))) >= REVERSAL_ANGLE;
+            }
+        }
+        return s;
+    }
+
+    private double[] oldestWithin(long nowNanos, long windowMs){
+        for(double[] p : history){
+            if( nowNanos - p[0] <= windowMs * 1.0e6 ){
+                return p;
+            }
+        }
+        return history.peekLast();
+    }
+
+    // microns per second between two positions, null if they are the same point in time
+    private static double[] velocity(double[] from, double[] to){
+        double dt = (to[0] - from[0]) / 1.0e9;
+        if( dt <= 0 ){
+            return null;
+        }
+        return new double[]{ (to[1] - from[1]) / dt, (to[2] - from[2]) / dt };
+    }
+}
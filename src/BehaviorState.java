@@ -0,0 +1,19 @@
+// what the worm is doing at one tracking task, worked out from its positions in stage coordinates
+// the input of the closed loop stimulation rules
+class BehaviorState {
+    int index;            // tracking task
+    long frameNanos;      // System.nanoTime() when the frame was read from the source
+    boolean found;        // false if the tracker had no worm in this frame, nothing else is valid then
+    double x;             // worm position in stage coordinates, microns
+    double y;
+    double speed;         // microns per second over the last BehaviorEstimator.SPEED_WINDOW_MS, NaN until the worm was seen that long
+    double heading;       // direction of travel in degrees, NaN while the worm is too slow to tell
+    boolean reversal;     // the direction of travel turned around in the last BehaviorEstimator.REVERSAL_WINDOW_MS
+
+    // "x (um), y (um), speed (um/s), heading (deg), reversal"
+    String toCSV(){
+        return String.valueOf(Math.round(x * 10.0) / 10.0) + ", " + String.valueOf(Math.round(y * 10.0) / 10.0) + ", " +
+            (Double.isNaN(speed) ? "NaN" : String.valueOf(Math.round(speed * 10.0) / 10.0)) + ", " +
+            (Double.isNaN(heading) ? "NaN" : String.valueOf(Math.round(heading))) + ", " + String.valueOf(reversal);
+    }
+}
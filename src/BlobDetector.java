@@ -0,0 +1,131 @@
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+
+// finds the connected foreground regions (blobs) of a binarized image
+// each blob is a candidate worm for the tracker
+// the moments describing each blob's position and shape are accumulated while it is labelled, and the
+// foreground test reads the image's own pixel array, so the labelling is the only pass over the image
+class BlobDetector {
+
+    // moments of all foreground pixels of the image taken as a single region, in one pass
+    // returns null if there are no foreground pixels
+    public static WormBlob measureForeground(ImagePlus binarizedImage){
+        ImageProcessor ip = binarizedImage.getProcessor();
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        Object pixels = ip.getPixels();
+        byte[] bytes = pixels instanceof byte[] ? (byte[]) pixels : null;
+        short[] shorts = pixels instanceof short[] ? (short[]) pixels : null;
+
+        int area = 0;
+        long sumX = 0;
+        long sumY = 0;
+        long sumXX = 0;
+        long sumYY = 0;
+        long sumXY = 0;
+
+        for(int py = 0; py < height; py++){
+            int offset = py * width;
+            for(int px = 0; px < width; px++){
+                if( isForeground(bytes, shorts, ip, offset + px) ){
+                    area++;
+                    sumX += px;
+                    sumY += py;
+                    sumXX += (long) px * px;
+                    sumYY += (long) py * py;
+                    sumXY += (long) px * py;
+                }
+            }
+        }
+
+        if( area == 0 ){
+            return null;
+        }
+        return new WormBlob(area, sumX, sumY, sumXX, sumYY, sumXY);
+    }
+
+    // label every 8-connected region of non zero pixels and return the ones with at least minArea pixels
+    // pixels are visited with an explicit stack so large worms do not overflow the call stack
+    public static ArrayList<WormBlob> detectBlobs(ImagePlus binarizedImage, int minArea){
+        ImageProcessor ip = binarizedImage.getProcessor();
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        int numPixels = width * height;
+
+        Object pixels = ip.getPixels();
+        byte[] bytes = pixels instanceof byte[] ? (byte[]) pixels : null;
+        short[] shorts = pixels instanceof short[] ? (short[]) pixels : null;
+        boolean[] visited = new boolean[numPixels];
+        int[] stack = new int[numPixels];
+
+        ArrayList<WormBlob> blobs = new ArrayList<WormBlob>();
+
+        for(int start = 0; start < numPixels; start++){
+            if( visited[start] || !isForeground(bytes, shorts, ip, start) ){
+                continue;
+            }
+
+            // flood fill the region containing this pixel and accumulate its moments up to second order
+            int area = 0;
+            long sumX = 0;
+            long sumY = 0;
+            long sumXX = 0;
+            long sumYY = 0;
+            long sumXY = 0;
+
+            int stackSize = 0;
+            stack[stackSize++] = start;
+            visited[start] = true;
+
+            while(stackSize > 0){
+                int p = stack[--stackSize];
+                int px = p % width;
+                int py = p / width;
+
+                area++;
+                sumX += px;
+                sumY += py;
+                sumXX += (long) px * px;
+                sumYY += (long) py * py;
+                sumXY += (long) px * py;
+
+                for(int dy = -1; dy <= 1; dy++){
+                    int ny = py + dy;
+                    if( ny < 0 || ny >= height ){
+                        continue;
+                    }
+                    for(int dx = -1; dx <= 1; dx++){
+                        int nx = px + dx;
+                        if( nx < 0 || nx >= width ){
+                            continue;
+                        }
+                        int n = ny * width + nx;
+                        if( !visited[n] && isForeground(bytes, shorts, ip, n) ){
+                            visited[n] = true;
+                            stack[stackSize++] = n;
+                        }
+                    }
+                }
+            }
+
+            if( area >= minArea ){
+                blobs.add(new WormBlob(area, sumX, sumY, sumXX, sumYY, sumXY));
+            }
+        }
+
+        return blobs;
+    }
+
+    // whether pixel i is non zero, straight from the pixel array of an 8 or 16 bit image instead of ip.get()
+    private static boolean isForeground(byte[] bytes, short[] shorts, ImageProcessor ip, int i){
+        if( bytes != null ){
+            return bytes[i] != 0;
+        }
+        if( shorts != null ){
+            return shorts[i] != 0;
+        }
+        return ip.get(i) != 0;
+    }
+}
@@ -0,0 +1,69 @@
+import ij.IJ;
+
+import mmcorej.CMMCore;
+
+// frames straight from the micromanager core's circular buffer, no live window needed
+//
+// takes the last image the camera put in the buffer without removing it, so micromanager's own
+// live display is not starved. the core hands out a new array for every call, the same image
+// included, so an image is only a new frame when its pixels differ (see Frame.signature)
+class CircularBufferFrameSource implements FrameSource {
+    static final long MIN_INTERVAL_NANOS = 1000000L;
+
+    private CMMCore core;
+    private long lastSignature;
+    private boolean signed;      // whether lastSignature is set
+    private long framesRead;
+
+    CircularBufferFrameSource(CMMCore core_){
+        core = core_;
+        framesRead = 0;
+    }
+
+    public boolean read(Frame frame) throws java.lang.Exception {
+        Object pixels = core.getLastImage();
+        if( pixels == null ){
+            return false;
+        }
+        if( !(pixels instanceof short[]) && !(pixels instanceof byte[]) ){
+            IJ.log("[ERROR] frames of type " + pixels.getClass().getSimpleName() + " are not supported");
+            return false;
+        }
+        long signature = Frame.signature(pixels);
+        if( signed && signature == lastSignature ){
+            return false;
+        }
+        lastSignature = signature;
+        signed = true;
+
+        int bytesPerPixel = pixels instanceof short[] ? 2 : 1;
+        frame.ensureSize(getWidth(), getHeight(), bytesPerPixel);
+        frame.copyPixelsFrom(pixels);
+        frame.sourceSequence = framesRead++;
+        return true;
+    }
+
+    public int getWidth(){
+        return (int) core.getImageWidth();
+    }
+
+    public int getHeight(){
+        return (int) core.getImageHeight();
+    }
+
+    public int getBytesPerPixel(){
+        return (int) core.getBytesPerPixel();
+    }
+
+    public long getFrameIntervalNanos(){
+        try {
+            return Math.max(MIN_INTERVAL_NANOS, (long) (core.getExposure() * 1.0e6));
+        } catch (java.lang.Exception e){
+            return MIN_INTERVAL_NANOS;
+        }
+    }
+
+    public String getName(){
+        return "circular buffer";
+    }
+}
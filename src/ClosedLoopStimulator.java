@@ -0,0 +1,159 @@
+import ij.IJ;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+// stimulation decided by what the worm does, instead of a protocol fixed when go is pressed
+//
+// runs on the tracking thread right after each tracking task: the worm's position becomes a
+// BehaviorState and every rule is checked against it, a handful of comparisons, so the decision adds
+// next to nothing to the tracking task. a rule that fires starts its protocol on the stimulation
+// timeline at once. decisions on frames older than MAX_DECISION_LATENCY_MS are dropped, a late
+// stimulus would be tied to behavior that is already over. a frame the ring reused while it was tracked
+// is not evaluated at all, its image may have been torn. every trigger is saved with its decision
+// latency, the time from the frame being read to the protocol being started
+class ClosedLoopStimulator {
+    static final long MAX_DECISION_LATENCY_MS = 250;
+
+    private TrackStimController controller;
+    private Stimulator stimulator;
+    private BehaviorEstimator estimator;
+    private ArrayList<StimulationRule> rules;
+    private volatile boolean active;
+
+    private ArrayList<String> triggerData;  // one row per trigger
+    private int staleDecisions;             // rules that would have fired on a frame that was too old
+    private int busySkips;                  // rules that fired while a protocol was still running
+    private long jobStartNanos;
+    private double[] lastStagePos;          // time (ns), x, y of the last stage position read
+    private String saveDir;
+
+    ClosedLoopStimulator(TrackStimController controller_, Stimulator stimulator_){
+        controller = controller_;
+        stimulator = stimulator_;
+        estimator = new BehaviorEstimator();
+        rules = new ArrayList<StimulationRule>();
+        triggerData = new ArrayList<String>();
+    }
+
+    // start evaluating the rules for a job, throws IllegalArgumentException if a rule cannot be understood
+    public synchronized void start(String ruleSpecs, String saveDirectory) throws java.lang.Exception {
+        if( !stimulator.initialized ){
+            throw new Exception("could not run closed loop stimulation.  the stimulator is not initialized");
+        }
+        rules = StimulationRule.parseRules(ruleSpecs);
+        estimator.reset();
+        lastStagePos = null;
+        triggerData = new ArrayList<String>();
+        staleDecisions = 0;
+        busySkips = 0;
+        jobStartNanos = System.nanoTime();
+        saveDir = saveDirectory;
+        active = !rules.isEmpty();
+        IJ.log("[INFO] closed loop stimulation with " + String.valueOf(rules.size()) + " rules");
+    }
+
+    public boolean isActive(){
+        return active;
+    }
+
+    // called by each tracking task once the worm is found (or not) in its frame
+    // the frame's time and size come from the result, its ring slot may hold a newer frame by now
+    public synchronized void evaluate(TrackingResult result, StageCalibration calibration){
+        if( !active ){
+            return;
+        }
+
+        double xUm = Double.NaN;
+        double yUm = Double.NaN;
+        if( result.measurement != null ){
+            double[] p = toStage(result.measurement.x, result.measurement.y, result, calibration);
+            xUm = p[0];
+            yUm = p[1];
+        }
+        BehaviorState state = estimator.update(result.index, result.timeNanos, xUm, yUm);
+
+        for(StimulationRule rule : rules){
+            long now = System.nanoTime();
+            if( !rule.shouldFire(state, now) ){
+                continue;
+            }
+
+            long latencyNanos = now - result.timeNanos;
+            if( latencyNanos > MAX_DECISION_LATENCY_MS * 1000000L ){
+                staleDecisions++;
+                continue;
+            }
+            if( stimulator.isProtocolRunning() ){
+                busySkips++;
+                continue;
+            }
+
+            stimulator.triggerWaveform(rule.waveform);
+            rule.markFired(now);
+            controller.markEvent("closed loop rule \"" + rule.spec + "\"");
+            long startedNanos = System.nanoTime();
+
+            String latency = String.valueOf(Math.round((startedNanos - result.timeNanos) / 1.0e4) / 100.0);
+            triggerData.add(String.valueOf(result.index) + ", " +
+                String.valueOf(TimeUnit.NANOSECONDS.toMillis(startedNanos - jobStartNanos)) + ", " +
+                "\"" + rule.spec + "\", " + state.toCSV() + ", " + latency);
+            IJ.log("[INFO] closed loop rule \"" + rule.spec + "\" fired at tracking task " + String.valueOf(result.index) +
+                ", decision latency " + latency + " ms");
+        }
+    }
+
+    // the worm's position on the plate, microns
+    // the stage is read now, after the frame, and moved back along its velocity since the last read to
+    // where it was when the frame was taken. without a stage calibration micromanager's pixel size is
+    // used and the image is assumed to be aligned with the stage
+    private double[] toStage(double xPx, double yPx, TrackingResult result, StageCalibration calibration){
+        double[] stagePos = new double[]{ 0.0, 0.0 };
+        try {
+            stagePos[0] = controller.core.getXPosition();
+            stagePos[1] = controller.core.getYPosition();
+            long now = System.nanoTime();
+            double[] read = new double[]{ now, stagePos[0], stagePos[1] };
+            if( lastStagePos != null && now > lastStagePos[0] ){
+                double back = (now - result.timeNanos) / (now - lastStagePos[0]);
+                stagePos[0] -= (stagePos[0] - lastStagePos[1]) * back;
+                stagePos[1] -= (stagePos[1] - lastStagePos[2]) * back;
+            }
+            lastStagePos = read;
+        } catch (java.lang.Exception e){
+            // keep the image position, the speed is then wrong while the stage moves
+        }
+        if( calibration == null ){
+            double pixelSize = controller.core.getPixelSizeUm();
+            calibration = new StageCalibration("", pixelSize > 0 ? pixelSize : 1.0, 0, 0, pixelSize > 0 ? pixelSize : 1.0, 0);
+        }
+        return calibration.imageToStage(xPx, yPx, result.width, result.height, stagePos);
+    }
+
+    // stop evaluating and save the triggers of the job, a protocol already started runs to its end
+    public synchronized void finish(){
+        if( !active ){
+            return;
+        }
+        active = false;
+        IJ.log("[INFO] closed loop stimulation: " + String.valueOf(triggerData.size()) + " triggers, " +
+            String.valueOf(busySkips) + " skipped while a protocol was running, " +
+            String.valueOf(staleDecisions) + " dropped for frames older than " + String.valueOf(MAX_DECISION_LATENCY_MS) + " ms");
+
+        PrintWriter p = null;
+        try {
+            p = new PrintWriter(saveDir + "/" + "temp" + String.valueOf(controller.currentJobId) + "_" + "closed-loop.csv");
+            p.println("tracking task, timestamp(ms), rule, x (um), y (um), speed (um/s), heading (deg), reversal, decision latency (ms)");
+            for(int i = 0; i < triggerData.size(); i++){
+                p.println(triggerData.get(i));
+            }
+        } catch (java.io.IOException e){
+            IJ.log("[ERROR] unable to write closed loop file");
+        } finally {
+            if( p != null ){
+                p.close();
+            }
+        }
+    }
+}
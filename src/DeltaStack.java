@@ -0,0 +1,204 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// temporal delta stack: the frames of a job in one file, a keyframe every few frames and the frames in
+// between saved as their difference to the frame before, for the most compression on long tracking runs
+//
+// with the stage keeping the worm centered most of two consecutive frames is the same, so the differences
+// are mostly close to 0. every value is stored as a zigzag number (0, -1, 1, -2, ... become 0, 1, 2, 3, ...)
+// with the high bytes of all pixels before the low bytes, which leaves long runs of zeros for deflate.
+// keyframes are saved the same way from the differences along each row. a frame is a keyframe when
+// keyframeInterval frames have passed since the last one or its size differs from the frame before
+// (worm crop frames saved whole), so any frame is rebuilt from at most keyframeInterval records
+//
+// the file, all numbers big endian:
+//   "TDSK", version, keyframe interval                                     header, 3 ints
+//   frame, type (0 keyframe, 1 delta), bytes per pixel, width, height,      one record per frame
+//     info length, info (utf-8, the tiff info, e.g. "xpos=,ypos=,zpos="), data length, data
+//   frame, offset, type for every record                                    index
+//   record count, index offset, "TDSX"                                      trailer, 16 bytes
+// a file that was not closed has no index, DeltaStackReader then finds the records by reading them in order
+class DeltaStack {
+    static final int MAGIC = 0x5444534b;         // "TDSK"
+    static final int INDEX_MAGIC = 0x54445358;   // "TDSX"
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 12;
+    static final int TRAILER_LENGTH = 16;
+    static final byte KEYFRAME = 0;
+    static final byte DELTA = 1;
+
+    private DataOutputStream out;
+    private long offset;
+    private ArrayList<long[]> index;             // frame, offset, type per record
+
+    // start a new stack file
+    DeltaStack(String path, int keyframeInterval) throws java.io.IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 20));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(keyframeInterval);
+        offset = HEADER_LENGTH;
+        index = new ArrayList<long[]>();
+    }
+
+    // add a record made by encode(), records go in the order the frames were taken
+    public void append(int frame, byte type, byte[] record) throws java.io.IOException {
+        out.write(record);
+        index.add(new long[]{ frame, offset, type });
+        offset += record.length;
+    }
+
+    // write the index and close the file
+    public void close() throws java.io.IOException {
+        long indexOffset = offset;
+        for(long[] entry : index){
+            out.writeInt((int) entry[0]);
+            out.writeLong(entry[1]);
+            out.writeByte((int) entry[2]);
+        }
+        out.writeInt(index.size());
+        out.writeLong(indexOffset);
+        out.writeInt(INDEX_MAGIC);
+        out.close();
+    }
+
+    // the bytes the file has so far
+    public long length(){
+        return offset;
+    }
+
+    // one record: a keyframe when previous is null, otherwise the difference to previous, which must have
+    // the same size and type. pixels are byte[] or short[] of width * height
+    public static byte[] encode(int frame, Object pixels, Object previous, int width, int height, String info, int level){
+        boolean wide = pixels instanceof short[];
+        int n = width * height;
+        byte[] planes = new byte[wide ? 2 * n : n];
+
+        if( wide ){
+            short[] v = (short[]) pixels;
+            short[] p = (short[]) previous;
+            for(int i = 0; i < n; i++){
+                int reference = p != null ? p[i] : (i % width == 0 ? 0 : v[i - 1]);
+                int z = zigzag16((short) (v[i] - reference));
+                planes[i] = (byte) (z >> 8);
+                planes[n + i] = (byte) z;
+            }
+        } else {
+            byte[] v = (byte[]) pixels;
+            byte[] p = (byte[]) previous;
+            for(int i = 0; i < n; i++){
+                int reference = p != null ? p[i] : (i % width == 0 ? 0 : v[i - 1]);
+                planes[i] = (byte) zigzag8((byte) (v[i] - reference));
+            }
+        }
+
+        byte[] data = deflate(planes, level);
+        byte[] infoBytes = utf8(info == null ? "" : info);
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream(data.length + infoBytes.length + 32);
+        DataOutputStream r = new DataOutputStream(record);
+        try {
+            r.writeInt(frame);
+            r.writeByte(previous == null ? KEYFRAME : DELTA);
+            r.writeByte(wide ? 2 : 1);
+            r.writeInt(width);
+            r.writeInt(height);
+            r.writeInt(infoBytes.length);
+            r.write(infoBytes);
+            r.writeInt(data.length);
+            r.write(data);
+        } catch (java.io.IOException e){
+            // not thrown by a byte array
+        }
+        return record.toByteArray();
+    }
+
+    // rebuild the pixels of a record's data, previous is the frame before for a delta record
+    public static Object decode(byte[] data, byte type, int bytesPerPixel, int width, int height, Object previous) throws DataFormatException {
+        int n = width * height;
+        byte[] planes = inflate(data, bytesPerPixel * n);
+
+        if( bytesPerPixel == 2 ){
+            short[] v = new short[n];
+            short[] p = (short[]) previous;
+            for(int i = 0; i < n; i++){
+                int r = unzigzag16(((planes[i] & 0xff) << 8) | (planes[n + i] & 0xff));
+                int reference = type == DELTA ? p[i] : (i % width == 0 ? 0 : v[i - 1]);
+                v[i] = (short) (reference + r);
+            }
+            return v;
+        }
+
+        byte[] v = new byte[n];
+        byte[] p = (byte[]) previous;
+        for(int i = 0; i < n; i++){
+            int r = unzigzag8(planes[i] & 0xff);
+            int reference = type == DELTA ? p[i] : (i % width == 0 ? 0 : v[i - 1]);
+            v[i] = (byte) (reference + r);
+        }
+        return v;
+    }
+
+    private static int zigzag16(short d){
+        return ((d << 1) ^ (d >> 15)) & 0xffff;
+    }
+
+    private static int unzigzag16(int z){
+        return (z >>> 1) ^ -(z & 1);
+    }
+
+    private static int zigzag8(byte d){
+        return ((d << 1) ^ (d >> 7)) & 0xff;
+    }
+
+    private static int unzigzag8(int z){
+        return (z >>> 1) ^ -(z & 1);
+    }
+
+    private static byte[] deflate(byte[] in, int level){
+        Deflater deflater = new Deflater(level);
+        deflater.setInput(in);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(in.length / 4 + 64);
+        byte[] chunk = new byte[65536];
+        while( !deflater.finished() ){
+            int n = deflater.deflate(chunk);
+            out.write(chunk, 0, n);
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] in, int length) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(in);
+        byte[] out = new byte[length];
+        int n = 0;
+        while( n < length && !inflater.finished() ){
+            int read = inflater.inflate(out, n, length - n);
+            if( read == 0 && (inflater.needsInput() || inflater.needsDictionary()) ){
+                break;
+            }
+            n += read;
+        }
+        inflater.end();
+        if( n != length ){
+            throw new DataFormatException("record has " + String.valueOf(n) + " of " + String.valueOf(length) + " bytes");
+        }
+        return out;
+    }
+
+    private static byte[] utf8(String s){
+        try {
+            return s.getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException e){
+            return s.getBytes();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.TiffEncoder;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// reads the frames of a DeltaStack file in any order
+//
+// a frame is rebuilt from the keyframe before it, at most keyframe interval records. the last frame
+// read is kept, so reading the frames in order decodes each record once
+//
+// from the command line, to turn a stack back into the <frame>.tiff files of an uncompressed run:
+//   java DeltaStackReader <run directory>/temp<i>_frames.delta [output directory]
+class DeltaStackReader {
+    private RandomAccessFile file;
+    private int keyframeInterval;
+    private int[] frames;              // frame number of every record, in the order they were written
+    private long[] offsets;
+    private byte[] types;
+    private boolean complete;          // false when the index was missing and the records were found by reading them
+
+    private int cachedRecord = -1;     // the last record decoded, its pixels and info
+    private Object cachedPixels;
+    private String cachedInfo;
+    private int cachedWidth;
+    private int cachedHeight;
+
+    DeltaStackReader(String path) throws java.io.IOException {
+        file = new RandomAccessFile(path, "r");
+        if( file.length() < DeltaStack.HEADER_LENGTH || file.readInt() != DeltaStack.MAGIC ){
+            file.close();
+            throw new java.io.IOException(path + " is not a delta stack");
+        }
+        int version = file.readInt();
+        if( version != DeltaStack.VERSION ){
+            file.close();
+            throw new java.io.IOException(path + " is a delta stack of version " + String.valueOf(version));
+        }
+        keyframeInterval = file.readInt();
+
+        complete = readIndex();
+        if( !complete ){
+            scanRecords();
+        }
+    }
+
+    // the index at the end of the file, false if the file was never closed
+    private boolean readIndex() throws java.io.IOException {
+        long length = file.length();
+        if( length < DeltaStack.HEADER_LENGTH + DeltaStack.TRAILER_LENGTH ){
+            return false;
+        }
+        file.seek(length - DeltaStack.TRAILER_LENGTH);
+        int count = file.readInt();
+        long indexOffset = file.readLong();
+        if( file.readInt() != DeltaStack.INDEX_MAGIC || indexOffset + 13L * count + DeltaStack.TRAILER_LENGTH != length ){
+            return false;
+        }
+
+        frames = new int[count];
+        offsets = new long[count];
+        types = new byte[count];
+        byte[] indexBytes = new byte[13 * count];
+        file.seek(indexOffset);
+        file.readFully(indexBytes);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(indexBytes));
+        for(int i = 0; i < count; i++){
+            frames[i] = in.readInt();
+            offsets[i] = in.readLong();
+            types[i] = in.readByte();
+        }
+        return true;
+    }
+
+    // walk the records from the header, up to the first one that was cut off
+    private void scanRecords() throws java.io.IOException {
+        ArrayList<long[]> found = new ArrayList<long[]>();
+        long length = file.length();
+        long offset = DeltaStack.HEADER_LENGTH;
+        while( offset + 18 <= length ){
+            file.seek(offset);
+            int frame = file.readInt();
+            byte type = file.readByte();
+            file.readByte();
+            file.readInt();
+            file.readInt();
+            long infoLength = file.readInt() & 0xffffffffL;
+            if( offset + 22 + infoLength > length ){
+                break;
+            }
+            file.seek(offset + 18 + infoLength);
+            long dataLength = file.readInt() & 0xffffffffL;
+            long end = offset + 22 + infoLength + dataLength;
+            if( end > length ){
+                break;
+            }
+            found.add(new long[]{ frame, offset, type });
+            offset = end;
+        }
+
+        frames = new int[found.size()];
+        offsets = new long[found.size()];
+        types = new byte[found.size()];
+        for(int i = 0; i < frames.length; i++){
+            frames[i] = (int) found.get(i)[0];
+            offsets[i] = found.get(i)[1];
+            types[i] = (byte) found.get(i)[2];
+        }
+    }
+
+    // frame numbers in the stack, in the order they were taken
+    public int[] getFrames(){
+        return frames.clone();
+    }
+
+    public int getKeyframeInterval(){
+        return keyframeInterval;
+    }
+
+    // false if the stack was not closed, e.g. the computer crashed during the job, every whole record is still read
+    public boolean isComplete(){
+        return complete;
+    }
+
+    // the frame with this frame number as an image with its tiff info, null if the stack does not have it
+    public synchronized ImagePlus read(int frame) throws java.io.IOException {
+        // frames are written in the order they were taken, the numbers go up
+        int record = Arrays.binarySearch(frames, frame);
+        if( record < 0 ){
+            return null;
+        }
+
+        // from the keyframe before it, or from the last frame read if that is on the way
+        int start = record;
+        while( start > 0 && types[start] != DeltaStack.KEYFRAME ){
+            start--;
+        }
+        if( cachedRecord >= start && cachedRecord <= record ){
+            start = cachedRecord + 1;
+        }
+        for(int i = start; i <= record; i++){
+            decodeRecord(i);
+        }
+
+        ImageProcessor ip = cachedPixels instanceof short[] ?
+            new ShortProcessor(cachedWidth, cachedHeight, ((short[]) cachedPixels).clone(), null) :
+            new ByteProcessor(cachedWidth, cachedHeight, ((byte[]) cachedPixels).clone(), null);
+        ImagePlus image = new ImagePlus(String.valueOf(frame), ip);
+        image.setProperty("Info", cachedInfo);
+        return image;
+    }
+
+    // decode record i into the cache, the record before it must be cached for a delta record
+    private void decodeRecord(int i) throws java.io.IOException {
+        file.seek(offsets[i]);
+        file.readInt();
+        byte type = file.readByte();
+        int bytesPerPixel = file.readByte();
+        int width = file.readInt();
+        int height = file.readInt();
+        byte[] infoBytes = new byte[file.readInt()];
+        file.readFully(infoBytes);
+        byte[] data = new byte[file.readInt()];
+        file.readFully(data);
+
+        Object previous = null;
+        if( type == DeltaStack.DELTA ){
+            if( cachedRecord != i - 1 ){
+                throw new java.io.IOException("delta record " + String.valueOf(i) + " read without the record before it");
+            }
+            previous = cachedPixels;
+        }
+        try {
+            cachedPixels = DeltaStack.decode(data, type, bytesPerPixel, width, height, previous);
+        } catch (java.util.zip.DataFormatException e){
+            throw new java.io.IOException("record " + String.valueOf(i) + " is damaged: " + e.getMessage());
+        }
+        cachedRecord = i;
+        cachedWidth = width;
+        cachedHeight = height;
+        cachedInfo = new String(infoBytes, "UTF-8");
+    }
+
+    // frame <frame> of a run, from the run's stack if it has it, otherwise its tiff at tiffPath (frames
+    // saved after the stack was closed, or a run saved as tiffs), null if neither can be read. stack may be null
+    public static ImagePlus openFrame(DeltaStackReader stack, String tiffPath, int frame){
+        if( stack != null ){
+            try {
+                ImagePlus image = stack.read(frame);
+                if( image != null ){
+                    return image;
+                }
+            } catch (java.io.IOException e){
+                IJ.log("[WARNING] could not read frame " + String.valueOf(frame) + " from the delta stack: " + e.getMessage());
+            }
+        }
+        return new File(tiffPath).exists() ? IJ.openImage(tiffPath) : null;
+    }
+
+    public void close() throws java.io.IOException {
+        file.close();
+    }
+
+    // write every frame of a stack as <frame>.tiff with its info, like an uncompressed run
+    public static void main(String[] args) throws java.lang.Exception {
+        if( args.length < 1 ){
+            System.out.println("usage: java DeltaStackReader <frames.delta> [output directory]");
+            System.exit(1);
+        }
+        File stack = new File(args[0]);
+        File outputDirectory = args.length > 1 ? new File(args[1]) : stack.getAbsoluteFile().getParentFile();
+        outputDirectory.mkdirs();
+
+        DeltaStackReader reader = new DeltaStackReader(args[0]);
+        if( !reader.isComplete() ){
+            System.out.println("the stack was not closed, reading the " + String.valueOf(reader.frames.length) + " whole frames it has");
+        }
+        int[] frames = reader.getFrames();
+        for(int i = 0; i < frames.length; i++){
+            ImagePlus image = reader.read(frames[i]);
+            FileInfo fi = image.getFileInfo();
+            fi.info = (String) image.getProperty("Info");
+            FileOutputStream out = new FileOutputStream(new File(outputDirectory, String.valueOf(frames[i]) + ".tiff"));
+            try {
+                new TiffEncoder(fi).write(out);
+            } finally {
+                out.close();
+            }
+        }
+        reader.close();
+        System.out.println(String.valueOf(frames.length) + " frames written to " + outputDirectory.getPath());
+    }
+}
@@ -0,0 +1,188 @@
+import ij.IJ;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.prefs.Preferences;
+
+// checks before a job starts that the disk of its save directory can keep up with the frames and has room for them
+//
+// a job needs width x height x bytes per pixel x fps bytes per second, less with a worm crop or a compressed
+// format (at the ratio the format got on the last job). the disk's sequential write speed is measured once
+// by writing MEASURE_BYTES to a scratch file and syncing it, and kept in the preferences per volume with
+// the time it was measured, so later checks only read the free space and take milliseconds. a volume is
+// measured again after MAX_AGE_MS, or with remeasure()
+//   OK     the disk keeps up with HEADROOM to spare and has room for the frames
+//   WARN   the frames need more than HEADROOM of the measured speed, imaging will fall behind, or the
+//          frames nearly fill the disk
+//   BLOCK  the frames do not fit in the free space, the job would stop part way
+class DiskPreflight {
+    static final int OK = 0;
+    static final int WARN = 1;
+    static final int BLOCK = 2;
+
+    static final long MEASURE_BYTES = 64L << 20;
+    static final int MEASURE_CHUNK = 1 << 20;
+    static final long MAX_AGE_MS = 7L * 24 * 3600 * 1000;   // a week
+    static final double HEADROOM = 0.8;      // the frames may use this much of the measured speed
+    static final double FULL = 0.95;         // warn when the frames take more of the free space than this
+    static final String PREFERENCES_NODE = "diskSpeed";
+
+    int status = OK;
+    String message;
+    String volume;
+    double requiredMBps;
+    double measuredMBps;       // NaN if it could not be measured
+    long requiredBytes;
+    long freeBytes;
+
+    // bytesPerFrame is what one frame takes on disk
+    public static DiskPreflight check(String directory, double bytesPerFrame, int numFrames, int framesPerSecond){
+        DiskPreflight p = new DiskPreflight();
+        p.volume = volumeName(directory);
+        p.requiredMBps = bytesPerFrame * framesPerSecond / (1 << 20);
+        p.requiredBytes = (long) (bytesPerFrame * numFrames);
+        p.freeBytes = existingDirectory(directory).getUsableSpace();
+        p.measuredMBps = writeSpeed(directory, p.volume);
+
+        if( p.requiredBytes > p.freeBytes ){
+            p.status = BLOCK;
+            p.message = "The frames need " + gb(p.requiredBytes) + " GB but " + p.volume + " has " + gb(p.freeBytes) + " GB free";
+        } else if( !Double.isNaN(p.measuredMBps) && p.requiredMBps > HEADROOM * p.measuredMBps ){
+            p.status = WARN;
+            p.message = "The frames need " + mbps(p.requiredMBps) + " MB/s but " + p.volume + " writes " + mbps(p.measuredMBps) +
+                " MB/s, imaging will fall behind. Use fewer frames per second, a worm crop or a compressed format";
+        } else if( p.requiredBytes > FULL * p.freeBytes ){
+            p.status = WARN;
+            p.message = "The frames need " + gb(p.requiredBytes) + " GB, nearly all of the " + gb(p.freeBytes) + " GB free on " + p.volume;
+        }
+        return p;
+    }
+
+    // the write speed of the directory's volume in MB/s, measured if it was not measured recently, NaN on failure
+    static synchronized double writeSpeed(String directory, String volume){
+        Preferences prefs = Preferences.userNodeForPackage(DiskPreflight.class).node(PREFERENCES_NODE);
+        String key = preferencesKey(volume);
+        String saved = prefs.get(key, null);
+        if( saved != null ){
+            try {
+                String[] v = saved.split(",");
+                if( System.currentTimeMillis() - Long.parseLong(v[1]) < MAX_AGE_MS ){
+                    return Double.parseDouble(v[0]);
+                }
+            } catch (java.lang.Exception e){
+                // measured again below
+            }
+        }
+
+        double speed = measure(directory);
+        if( !Double.isNaN(speed) ){
+            prefs.put(key, String.valueOf(speed) + "," + String.valueOf(System.currentTimeMillis()));
+            IJ.log("[INFO] disk " + volume + " writes " + mbps(speed) + " MB/s");
+        }
+        return speed;
+    }
+
+    // forget the measured speed of the directory's volume, the next check measures it again
+    public static void remeasure(String directory){
+        Preferences prefs = Preferences.userNodeForPackage(DiskPreflight.class).node(PREFERENCES_NODE);
+        prefs.remove(preferencesKey(volumeName(directory)));
+    }
+
+    // write MEASURE_BYTES in MEASURE_CHUNK pieces and sync them to the disk, the way a run of frames is written
+    private static double measure(String directory){
+        // the save directory may not be made yet, the scratch file goes on the same volume
+        File dir = existingDirectory(directory);
+        // not enough room for the scratch file, the free space check speaks for itself
+        if( dir.getUsableSpace() < 2 * MEASURE_BYTES ){
+            return Double.NaN;
+        }
+
+        File scratch = new File(dir, ".trackstim-disk-check.tmp");
+        byte[] chunk = new byte[MEASURE_CHUNK];
+        // not all zeros, in case the file system compresses
+        for(int i = 0; i < chunk.length; i++){
+            chunk[i] = (byte) (i * 31 + (i >> 9));
+        }
+
+        FileOutputStream out = null;
+        try {
+            long start = System.nanoTime();
+            out = new FileOutputStream(scratch);
+            for(long written = 0; written < MEASURE_BYTES; written += chunk.length){
+                out.write(chunk);
+            }
+            out.getFD().sync();
+            out.close();
+            out = null;
+            double seconds = Math.max(1, System.nanoTime() - start) / 1.0e9;
+            return MEASURE_BYTES / seconds / (1 << 20);
+        } catch (java.io.IOException e){
+            IJ.log("[WARNING] could not measure the write speed of " + directory + ": " + e.getMessage());
+            return Double.NaN;
+        } finally {
+            if( out != null ){
+                try {
+                    out.close();
+                } catch (java.io.IOException e){
+                    // deleted anyway
+                }
+            }
+            scratch.delete();
+        }
+    }
+
+    // the directory itself, or for one that is not made yet (FrameStripes and the imager make them when
+    // the job starts) the first directory above it that is, which is on the volume it will be on
+    static File existingDirectory(String directory){
+        File dir;
+        try {
+            dir = new File(directory).getCanonicalFile();
+        } catch (java.io.IOException e){
+            dir = new File(directory).getAbsoluteFile();
+        }
+        while( !dir.exists() && dir.getParentFile() != null ){
+            dir = dir.getParentFile();
+        }
+        return dir;
+    }
+
+    // the volume the directory is on, e.g. "D:\" on windows or "/Volumes/Data" on the mac
+    // java 6 cannot name the volume of a path, so this is the directory where the total and free space
+    // last stay the same going up from it, which is where the disk is mounted. a second disk of the same
+    // size mounted under the first differs in free space, so the two are not taken for one volume
+    static String volumeName(String directory){
+        File mount = existingDirectory(directory);
+        long total = mount.getTotalSpace();
+        long free = mount.getFreeSpace();
+        if( total <= 0 ){
+            return mount.getPath();
+        }
+        for(File parent = mount.getParentFile(); parent != null; parent = parent.getParentFile()){
+            if( parent.getTotalSpace() != total || parent.getFreeSpace() != free ){
+                break;
+            }
+            mount = parent;
+        }
+        return mount.getPath();
+    }
+
+    // preference keys are at most 80 characters
+    private static String preferencesKey(String volume){
+        return volume.length() <= Preferences.MAX_KEY_LENGTH ? volume :
+            volume.substring(0, Preferences.MAX_KEY_LENGTH - 9) + "#" + Integer.toHexString(volume.hashCode());
+    }
+
+    // e.g. "disk: 26.0 MB/s needed of 410.5 MB/s measured, 20.3 GB needed of 812.4 GB free on /Volumes/Data"
+    public String describe(){
+        return "disk: " + mbps(requiredMBps) + " MB/s needed of " + (Double.isNaN(measuredMBps) ? "unknown" : mbps(measuredMBps)) +
+            " MB/s measured, " + gb(requiredBytes) + " GB needed of " + gb(freeBytes) + " GB free on " + volume;
+    }
+
+    private static String mbps(double mbps){
+        return String.valueOf(Math.round(mbps * 10.0) / 10.0);
+    }
+
+    private static String gb(long bytes){
+        return String.valueOf(Math.round(bytes * 10.0 / (1L << 30)) / 10.0);
+    }
+}
@@ -0,0 +1,94 @@
+import ij.IJ;
+import ij.ImagePlus;
+
+// frames of a recorded run (a temp<i> directory) handed out at the pace they were taken
+//
+// a frame is read once its recorded time since the start of the run has passed, so consumers see
+// the same frame rate and gaps as the original job. with loop set the run starts over at the end,
+// otherwise the source runs dry. use TrackingReplay.toFrameSource to get the frame times of a run
+class FileReplayFrameSource implements FrameSource {
+    private String runDirectory;
+    private DeltaStackReader stack;   // the run's frames.delta, null for a run saved as tiffs
+    private String[] framePaths;      // the tiff of each frame, in the stripe directory of a striped run
+    private int[] frameNumbers;
+    private double[] frameTimesMs;
+    private boolean loop;
+
+    private int next;
+    private long startTime;
+    private int width;
+    private int height;
+    private int bytesPerPixel;
+
+    FileReplayFrameSource(String runDirectory_, DeltaStackReader stack_, String[] framePaths_, int[] frameNumbers_, double[] frameTimesMs_, boolean loop_){
+        runDirectory = runDirectory_;
+        stack = stack_;
+        framePaths = framePaths_;
+        frameNumbers = frameNumbers_;
+        frameTimesMs = frameTimesMs_;
+        loop = loop_;
+        next = 0;
+        startTime = -1;
+
+        // the size of the run is the size of its first frame
+        ImagePlus first = DeltaStackReader.openFrame(stack, framePaths[0], frameNumbers[0]);
+        if( first != null ){
+            width = first.getWidth();
+            height = first.getHeight();
+            bytesPerPixel = first.getBitDepth() == 16 ? 2 : 1;
+        }
+    }
+
+    public boolean read(Frame frame){
+        if( next >= frameNumbers.length ){
+            if( !loop ){
+                return false;
+            }
+            next = 0;
+            startTime = -1;
+        }
+        if( startTime < 0 ){
+            startTime = System.nanoTime() - (long) (frameTimesMs[0] * 1.0e6);
+        }
+        if( System.nanoTime() - startTime < (long) (frameTimesMs[next] * 1.0e6) ){
+            return false;
+        }
+
+        int i = next++;
+        ImagePlus image = DeltaStackReader.openFrame(stack, framePaths[i], frameNumbers[i]);
+        if( image == null ){
+            IJ.log("[WARNING] could not open frame " + String.valueOf(frameNumbers[i]) + ", skipping it");
+            return false;
+        }
+        Object pixels = image.getProcessor().getPixels();
+        if( !(pixels instanceof short[]) && !(pixels instanceof byte[]) ){
+            return false;
+        }
+
+        frame.ensureSize(image.getWidth(), image.getHeight(), pixels instanceof short[] ? 2 : 1);
+        frame.copyPixelsFrom(pixels);
+        frame.sourceSequence = frameNumbers[i];
+        return true;
+    }
+
+    public int getWidth(){
+        return width;
+    }
+
+    public int getHeight(){
+        return height;
+    }
+
+    public int getBytesPerPixel(){
+        return bytesPerPixel;
+    }
+
+    // frames are polled for often enough not to add to the recorded gaps
+    public long getFrameIntervalNanos(){
+        return 1000000L;
+    }
+
+    public String getName(){
+        return "replay of " + runDirectory;
+    }
+}
@@ -0,0 +1,88 @@
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+// one slot of the frame ring: a preallocated pixel buffer plus where the image in it came from
+// consumers wrap the buffer without copying it, anything kept past the next few frames must be duplicated
+class Frame {
+    static final int SIGNATURE_STRIDE = 61;
+
+    int width;
+    int height;
+    int bytesPerPixel;
+    Object pixels;            // byte[] for 8 bit images, short[] for 16 bit images
+
+    volatile long sequence;   // position in the frame ring, set when the frame is published
+    long sourceSequence;      // frame number given by the source (camera frame, saved frame number)
+    long timestampNanos;      // System.nanoTime() when the image was read from the source
+
+    Frame(int width_, int height_, int bytesPerPixel_){
+        sequence = -1;
+        allocate(width_, height_, bytesPerPixel_);
+    }
+
+    // make sure the buffer fits an image of this size, only allocates when the camera settings change
+    void ensureSize(int width_, int height_, int bytesPerPixel_){
+        if( width_ != width || height_ != height || bytesPerPixel_ != bytesPerPixel ){
+            allocate(width_, height_, bytesPerPixel_);
+        }
+    }
+
+    private void allocate(int width_, int height_, int bytesPerPixel_){
+        width = width_;
+        height = height_;
+        bytesPerPixel = bytesPerPixel_;
+        if( bytesPerPixel == 2 ){
+            pixels = new short[width * height];
+        } else {
+            pixels = new byte[width * height];
+        }
+    }
+
+    // copy pixels of the same size and type into the buffer
+    void copyPixelsFrom(Object source){
+        System.arraycopy(source, 0, pixels, 0, width * height);
+    }
+
+    // a frame of its own with the same image, for keeping it past the next few frames of the ring
+    // the copy can be torn by the capture thread, check FrameConsumer.stillValid on this frame after it
+    Frame copy(){
+        Frame c = new Frame(width, height, bytesPerPixel);
+        c.copyPixelsFrom(pixels);
+        c.sequence = sequence;
+        c.sourceSequence = sourceSequence;
+        c.timestampNanos = timestampNanos;
+        return c;
+    }
+
+    // an image processor on top of the buffer, no copy
+    ImageProcessor getProcessor(){
+        if( pixels instanceof short[] ){
+            return new ShortProcessor(width, height, (short[]) pixels, null);
+        }
+        return new ByteProcessor(width, height, (byte[]) pixels, null);
+    }
+
+    ImagePlus toImagePlus(){
+        return new ImagePlus("Frame " + String.valueOf(sequence), getProcessor());
+    }
+
+    // a hash of every SIGNATURE_STRIDE-th pixel, to tell a new image from the same one polled again
+    // camera noise changes some of these pixels in every new image
+    static long signature(Object pixels){
+        long h = 17;
+        if( pixels instanceof short[] ){
+            short[] p = (short[]) pixels;
+            for(int i = 0; i < p.length; i += SIGNATURE_STRIDE){
+                h = 31 * h + p[i];
+            }
+        } else {
+            byte[] p = (byte[]) pixels;
+            for(int i = 0; i < p.length; i += SIGNATURE_STRIDE){
+                h = 31 * h + p[i];
+            }
+        }
+        return h;
+    }
+}
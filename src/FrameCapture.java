@@ -0,0 +1,83 @@
+import ij.IJ;
+
+// the one thread that reads the frame source into the frame ring
+//
+// a frame that was read is stamped and published, then the thread waits out the rest of the
+// source's frame interval. when the source has nothing new it is polled again a millisecond later
+class FrameCapture implements Runnable {
+    static final long POLL_NANOS = 1000000L;
+
+    private final FrameSource source;
+    private final FrameRing ring;
+    private volatile boolean running;
+    private Thread thread;
+
+    private long framesCaptured;
+    private boolean lastReadFailed; // only log the first error of a run of failed reads
+
+    FrameCapture(FrameSource source_, FrameRing ring_){
+        source = source_;
+        ring = ring_;
+    }
+
+    public FrameSource getSource(){
+        return source;
+    }
+
+    public long getFramesCaptured(){
+        return framesCaptured;
+    }
+
+    public void start(){
+        running = true;
+        thread = new Thread(this, "TrackStim frame capture");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop(){
+        running = false;
+        if( thread == null ){
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    public void run(){
+        while( running ){
+            long readStartTime = System.nanoTime();
+            long waitNanos = POLL_NANOS;
+
+            Frame frame = ring.claimNext();
+            try {
+                if( source.read(frame) ){
+                    frame.timestampNanos = System.nanoTime();
+                    ring.publish(frame);
+                    framesCaptured++;
+                    waitNanos = source.getFrameIntervalNanos() - (frame.timestampNanos - readStartTime);
+                }
+                lastReadFailed = false;
+            } catch (java.lang.Exception e){
+                if( !lastReadFailed ){
+                    IJ.log("[ERROR] could not read a frame from the " + source.getName());
+                    IJ.log(String.valueOf(e.getMessage()));
+                }
+                lastReadFailed = true;
+            }
+
+            if( waitNanos > 0 ){
+                try {
+                    Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+                } catch (InterruptedException e){
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+// one stage reading the frame ring at its own pace: the imager, the tracker, the tracker view or the frame metrics
+//
+// the capture thread never waits for a consumer. a consumer going through every frame that falls more
+// than a ring behind loses the frames that were overwritten, a consumer that only wants the newest frame
+// passes over the ones in between. both are counted, along with how far behind the cursor the consumer
+// was and how old the frame was when it was taken, so the stage that cannot keep up shows in the counters
+class FrameConsumer {
+    final String name;
+    private final FrameRing ring;
+    private volatile long sequence;        // last frame taken, -1 before the first
+
+    // only written by the consuming thread
+    private volatile long framesTaken;
+    private volatile long framesSkipped;   // newer frames existed, passed over for the newest
+    private volatile long framesOverrun;   // overwritten before the consumer got to them
+    private volatile long framesRepeated;  // no new frame, the last one was handed out again
+    private volatile long lagSum;          // frames published since the previous take, summed over takes
+    private volatile long maxLag;
+    private volatile long ageNanosSum;     // time from capture to take, summed over takes
+    private volatile long maxAgeNanos;
+
+    FrameConsumer(String name_, FrameRing ring_){
+        name = name_;
+        ring = ring_;
+        sequence = ring_.getCursor();
+    }
+
+    // the next frame after the last one taken, in order, null if there is none yet
+    public Frame next(){
+        while( true ){
+            long cursor = ring.getCursor();
+            if( sequence >= cursor ){
+                return null;
+            }
+
+            // the slot after the cursor may already be being overwritten by the capture thread
+            long wanted = sequence + 1;
+            long oldest = Math.max(0, cursor - ring.size() + 2);
+            if( wanted < oldest ){
+                framesOverrun += oldest - wanted;
+                wanted = oldest;
+            }
+
+            Frame frame = ring.get(wanted);
+            if( frame != null ){
+                take(frame, wanted, cursor);
+                return frame;
+            }
+            // overwritten between reading the cursor and the slot, try again from further on
+            framesOverrun++;
+            sequence = wanted;
+        }
+    }
+
+    // the newest frame, passing over any not taken yet
+    // null if there is no new frame, unless repeat is set, then the last frame is handed out again
+    // for stages that need a frame at every tick whether the camera kept up or not
+    public Frame latest(boolean repeat){
+        long cursor = ring.getCursor();
+        if( cursor < 0 ){
+            return null;
+        }
+        Frame frame = ring.get(cursor);
+        if( frame == null ){
+            return null;
+        }
+        if( cursor == sequence ){
+            if( repeat ){
+                framesRepeated++;
+                recordTake(frame, 0);
+                return frame;
+            }
+            return null;
+        }
+
+        if( sequence >= 0 ){
+            framesSkipped += cursor - sequence - 1;
+        }
+        take(frame, cursor, cursor);
+        return frame;
+    }
+
+    // true if the frame taken last is still the same, i.e. the capture thread did not overwrite it while in use
+    public boolean stillValid(Frame frame){
+        return frame.sequence == sequence;
+    }
+
+    // how many frames the consumer is behind the capture thread right now
+    public long getLag(){
+        return ring.getCursor() - sequence;
+    }
+
+    private void take(Frame frame, long taken, long cursor){
+        long lag = sequence >= 0 ? cursor - sequence : cursor + 1;
+        sequence = taken;
+        recordTake(frame, lag);
+    }
+
+    private void recordTake(Frame frame, long lag){
+        framesTaken++;
+        lagSum += lag;
+        maxLag = Math.max(maxLag, lag);
+        long age = System.nanoTime() - frame.timestampNanos;
+        ageNanosSum += age;
+        maxAgeNanos = Math.max(maxAgeNanos, age);
+    }
+
+    // start the counters over, e.g. at the start of a job
+    public void resetCounters(){
+        framesTaken = 0;
+        framesSkipped = 0;
+        framesOverrun = 0;
+        framesRepeated = 0;
+        lagSum = 0;
+        maxLag = 0;
+        ageNanosSum = 0;
+        maxAgeNanos = 0;
+    }
+
+    public static String csvHeader(){
+        return "stage, frames taken, frames skipped, frames overrun, frames repeated, mean lag (frames), max lag (frames), mean age (ms), max age (ms), current lag (frames)";
+    }
+
+    public String toCSV(){
+        long taken = Math.max(framesTaken, 1);
+        return name + ", " + String.valueOf(framesTaken) + ", " + String.valueOf(framesSkipped) + ", " +
+            String.valueOf(framesOverrun) + ", " + String.valueOf(framesRepeated) + ", " +
+            String.valueOf(Math.round(100.0 * lagSum / taken) / 100.0) + ", " + String.valueOf(maxLag) + ", " +
+            String.valueOf(Math.round(ageNanosSum / taken / 10000L) / 100.0) + ", " +
+            String.valueOf(Math.round(maxAgeNanos / 10000L) / 100.0) + ", " + String.valueOf(getLag());
+    }
+}
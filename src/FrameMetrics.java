@@ -0,0 +1,54 @@
+// the metrics stage of the frame ring: goes through every captured frame and measures the capture itself
+// how many frames came in, how regularly, and how many the source numbered but never delivered
+class FrameMetrics {
+    private final FrameConsumer frames;
+
+    private long framesSeen;
+    private long sourceFramesMissed;   // gaps in the source's own frame numbers
+    private long lastSourceSequence;
+    private long firstTimestampNanos;
+    private long lastTimestampNanos;
+    private long maxIntervalNanos;
+
+    FrameMetrics(FrameRing ring){
+        frames = ring.addConsumer("metrics");
+        resetCounters();
+    }
+
+    // take every frame published since the last call
+    public synchronized void drain(){
+        Frame frame;
+        while( (frame = frames.next()) != null ){
+            long timestamp = frame.timestampNanos;
+            long sourceSequence = frame.sourceSequence;
+            if( framesSeen == 0 ){
+                firstTimestampNanos = timestamp;
+            } else {
+                maxIntervalNanos = Math.max(maxIntervalNanos, timestamp - lastTimestampNanos);
+                if( sourceSequence > lastSourceSequence + 1 ){
+                    sourceFramesMissed += sourceSequence - lastSourceSequence - 1;
+                }
+            }
+            lastTimestampNanos = timestamp;
+            lastSourceSequence = sourceSequence;
+            framesSeen++;
+        }
+    }
+
+    public synchronized void resetCounters(){
+        frames.resetCounters();
+        framesSeen = 0;
+        sourceFramesMissed = 0;
+        lastSourceSequence = -1;
+        maxIntervalNanos = 0;
+    }
+
+    public synchronized String describe(){
+        double seconds = (lastTimestampNanos - firstTimestampNanos) / 1.0e9;
+        double fps = framesSeen > 1 && seconds > 0 ? (framesSeen - 1) / seconds : 0.0;
+        return "frames captured: " + String.valueOf(framesSeen) + "\n" +
+            "capture rate (fps): " + String.valueOf(Math.round(fps * 10.0) / 10.0) + "\n" +
+            "longest gap between frames (ms): " + String.valueOf(Math.round(maxIntervalNanos / 10000L) / 100.0) + "\n" +
+            "frames missed by the source: " + String.valueOf(sourceFramesMissed) + "\n";
+    }
+}
@@ -0,0 +1,88 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// preallocated frames shared by everything that looks at the camera images
+//
+// one capture thread writes the next slot and publishes it, any number of consumers read the
+// published frames in place, each at its own pace through a FrameConsumer. nothing is locked and
+// the capture thread never waits on a consumer. the cursor is volatile and written after the pixels, so a consumer
+// that sees a sequence also sees its pixels. a slot is reused after the ring has gone all the way
+// around, so a consumer that may hold a frame that long checks its sequence is unchanged afterwards
+class FrameRing {
+    static final int DEFAULT_SIZE = 16;
+
+    private final Frame[] slots;
+    private volatile long cursor;   // sequence of the last published frame, -1 before the first
+    private final CopyOnWriteArrayList<FrameConsumer> consumers;
+
+    FrameRing(int size, int width, int height, int bytesPerPixel){
+        slots = new Frame[size];
+        for(int i = 0; i < size; i++){
+            slots[i] = new Frame(width, height, bytesPerPixel);
+        }
+        cursor = -1;
+        consumers = new CopyOnWriteArrayList<FrameConsumer>();
+    }
+
+    // a new stage reading the ring, starting after the newest frame
+    public FrameConsumer addConsumer(String name){
+        FrameConsumer consumer = new FrameConsumer(name, this);
+        consumers.add(consumer);
+        return consumer;
+    }
+
+    public List<FrameConsumer> getConsumers(){
+        return consumers;
+    }
+
+    // frames taken, skipped and lost by every stage, one csv row each
+    public String describeConsumers(){
+        StringBuilder s = new StringBuilder();
+        s.append(FrameConsumer.csvHeader() + "\n");
+        for(FrameConsumer consumer : consumers){
+            s.append(consumer.toCSV() + "\n");
+        }
+        return s.toString();
+    }
+
+    public int size(){
+        return slots.length;
+    }
+
+    public long getCursor(){
+        return cursor;
+    }
+
+    // the slot the producer fills next, not visible to consumers until published
+    // its old sequence is cleared first so consumers still holding it can tell it is being overwritten
+    Frame claimNext(){
+        Frame frame = slots[(int) ((cursor + 1) % slots.length)];
+        frame.sequence = -1;
+        return frame;
+    }
+
+    // make the claimed slot the newest frame
+    void publish(Frame frame){
+        frame.sequence = cursor + 1;
+        cursor = frame.sequence;
+    }
+
+    // the newest frame, null if nothing was published yet
+    public Frame getLatest(){
+        long c = cursor;
+        if( c < 0 ){
+            return null;
+        }
+        return slots[(int) (c % slots.length)];
+    }
+
+    // the frame with this sequence, null if it is not published yet or was already overwritten
+    public Frame get(long sequence){
+        long c = cursor;
+        if( sequence < 0 || sequence > c || sequence <= c - slots.length ){
+            return null;
+        }
+        Frame frame = slots[(int) (sequence % slots.length)];
+        return frame.sequence == sequence ? frame : null;
+    }
+}
@@ -0,0 +1,19 @@
+// where the frames of a job come from: micromanager's live window, the core's circular buffer,
+// a recorded run or a synthetic worm. the frame capture reads a source into the frame ring
+// and the imager, tracker and preview take their frames from the ring
+interface FrameSource {
+    // read the newest image into the frame, setting its source sequence
+    // returns false if there is no image, or none newer than the last one read
+    boolean read(Frame frame) throws java.lang.Exception;
+
+    int getWidth();
+
+    int getHeight();
+
+    int getBytesPerPixel();
+
+    // how often the source makes a new image
+    long getFrameIntervalNanos();
+
+    String getName();
+}
@@ -0,0 +1,546 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.io.TiffEncoder;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// spreads the frames of a job over the save directory and directories on other disks, so a frame rate
+// one disk cannot keep up with is written by several at once
+//
+// written as directories separated by ";" and optionally "by=speed", "" saves every frame to the save
+// directory. e.g. "E:/frames; F:/frames" or "E:/frames; F:/frames; by=speed"
+//
+// every job gets a temp<i> directory in each stripe directory, the job's own temp<i> is the first stripe.
+// frames go to the stripes in turn, or with by=speed in proportion to the write speed DiskPreflight
+// measured for each disk. each stripe has its own writer thread, so the disks write at the same time and
+// a disk more than MAX_PENDING frames behind makes the imaging task (or the FrameWriter of compressed
+// tiffs) wait. where every frame went is saved
+// to stripes.csv, which TrackingReplay and openVirtualStack read to put the frames back in order
+//
+// from the command line, to move the frames of a striped run back into its temp<i> directory:
+//   java FrameStripes <run directory>
+class FrameStripes {
+    static final int MAX_PENDING = 32;   // frames waiting per disk
+
+    String spec;
+    String[] roots;                      // the directories after the save directory
+    boolean bySpeed;
+
+    private Stripe[] stripes;            // of the job running, the job's directory first
+    private double[] weights;
+    private double[] credit;             // smooth weighted round robin, the stripe with the most credit is next
+    private int[] frameStripes;          // stripe of every frame of the job, -1 if not saved, null once saved
+
+    // null for "", throws IllegalArgumentException if the spec cannot be understood
+    public static FrameStripes parse(String spec){
+        if( spec.trim().isEmpty() ){
+            return null;
+        }
+
+        FrameStripes s = new FrameStripes();
+        s.spec = spec.trim();
+        ArrayList<String> roots = new ArrayList<String>();
+        String[] parts = s.spec.split(";");
+        for(int i = 0; i < parts.length; i++){
+            String part = parts[i].trim();
+            if( part.isEmpty() ){
+                continue;
+            }
+            if( part.startsWith("by=") ){
+                if( !part.equals("by=speed") ){
+                    throw new IllegalArgumentException("expected by=speed, got " + part);
+                }
+                s.bySpeed = true;
+            } else {
+                roots.add(part);
+            }
+        }
+        if( roots.isEmpty() ){
+            throw new IllegalArgumentException("no directories to stripe over");
+        }
+        s.roots = roots.toArray(new String[roots.size()]);
+        return s;
+    }
+
+    // the share of the frames each disk gets, the save directory's first
+    public double[] shares(String saveDirectory){
+        double[] w = measureWeights(allDirectories(saveDirectory));
+        double total = 0;
+        for(int i = 0; i < w.length; i++){
+            total += w[i];
+        }
+        for(int i = 0; i < w.length; i++){
+            w[i] /= total;
+        }
+        return w;
+    }
+
+    // the save directory and the stripe directories
+    public String[] allDirectories(String saveDirectory){
+        String[] all = new String[roots.length + 1];
+        all[0] = saveDirectory;
+        System.arraycopy(roots, 0, all, 1, roots.length);
+        return all;
+    }
+
+    // make the job's directory on every disk and start their writers. a directory that cannot be made is left out
+    public synchronized void start(String jobDirectory, int jobId, int numFrames){
+        ArrayList<String> directories = new ArrayList<String>();
+        directories.add(jobDirectory);
+        for(int i = 0; i < roots.length; i++){
+            File dir = stripeDirectory(roots[i], jobId);
+            if( !dir.isDirectory() ){
+                IJ.log("[ERROR] unable to make stripe directory " + dir.getPath() + ", its frames go to the other disks");
+                continue;
+            }
+            directories.add(dir.getPath());
+        }
+
+        String[] dirs = directories.toArray(new String[directories.size()]);
+        HashMap<String, String> volumes = new HashMap<String, String>();
+        for(int i = 0; i < dirs.length; i++){
+            String volume = DiskPreflight.volumeName(dirs[i]);
+            if( volumes.containsKey(volume) ){
+                IJ.log("[WARNING] " + dirs[i] + " is on the same disk as " + volumes.get(volume) + ", it does not add write speed");
+            }
+            volumes.put(volume, dirs[i]);
+        }
+
+        weights = measureWeights(dirs);
+        credit = new double[dirs.length];
+        frameStripes = new int[numFrames];
+        java.util.Arrays.fill(frameStripes, -1);
+        stripes = new Stripe[dirs.length];
+        for(int i = 0; i < dirs.length; i++){
+            stripes[i] = new Stripe(dirs[i]);
+            stripes[i].start();
+        }
+    }
+
+    // temp<i> in root, or temp<i>-2, temp<i>-3, ... if another session already used it
+    private static File stripeDirectory(String root, int jobId){
+        File dir = new File(root, "temp" + String.valueOf(jobId));
+        for(int n = 2; dir.exists(); n++){
+            dir = new File(root, "temp" + String.valueOf(jobId) + "-" + String.valueOf(n));
+        }
+        dir.mkdirs();
+        return dir;
+    }
+
+    private double[] measureWeights(String[] directories){
+        double[] w = new double[directories.length];
+        double known = 0;
+        int count = 0;
+        for(int i = 0; i < w.length; i++){
+            w[i] = bySpeed ? DiskPreflight.writeSpeed(directories[i], DiskPreflight.volumeName(directories[i])) : 1.0;
+            if( !Double.isNaN(w[i]) && w[i] > 0 ){
+                known += w[i];
+                count++;
+            }
+        }
+        // a disk that could not be measured gets the mean of the others
+        for(int i = 0; i < w.length; i++){
+            if( Double.isNaN(w[i]) || w[i] <= 0 ){
+                w[i] = count > 0 ? known / count : 1.0;
+            }
+        }
+        return w;
+    }
+
+    // pick the stripe of a frame and return the path to save it at, on the imaging thread
+    public synchronized String assign(int frameIndex){
+        double total = 0;
+        int next = 0;
+        for(int i = 0; i < stripes.length; i++){
+            credit[i] += weights[i];
+            total += weights[i];
+            if( credit[i] > credit[next] ){
+                next = i;
+            }
+        }
+        credit[next] -= total;
+
+        if( frameStripes != null && frameIndex >= 0 && frameIndex < frameStripes.length ){
+            frameStripes[frameIndex] = next;
+        }
+        return stripes[next].directory + "/" + String.valueOf(frameIndex) + ".tiff";
+    }
+
+    // hand an uncompressed tiff of a frame assigned before to its stripe's writer, the pixels are copied
+    public void write(int frameIndex, String path, FileInfo fi){
+        ByteArrayOutputStream tiff = new ByteArrayOutputStream(fi.width * fi.height * fi.getBytesPerPixel() + 1024);
+        try {
+            new TiffEncoder(fi).write(tiff);
+        } catch (java.io.IOException e){
+            // not thrown by a byte array
+        }
+        write(frameIndex, path, tiff.toByteArray());
+    }
+
+    // hand the file of a frame assigned before to its stripe's writer, e.g. a tiff the FrameWriter compressed
+    public void write(int frameIndex, String path, byte[] file){
+        Stripe stripe;
+        synchronized(this){
+            int i = frameStripes != null && frameIndex >= 0 && frameIndex < frameStripes.length ? frameStripes[frameIndex] : -1;
+            stripe = i >= 0 && stripes != null ? stripes[i] : null;
+        }
+
+        StripedFrame frame = new StripedFrame(path, file);
+        if( stripe == null || !stripe.offer(frame) ){
+            // the job is over, saved here
+            try {
+                writeFile(frame);
+            } catch (java.io.IOException e){
+                IJ.log("[ERROR] unable to write tiff file " + path);
+            }
+        }
+    }
+
+    // wait for every disk to write its frames and stop the writers
+    public void finish(){
+        Stripe[] s;
+        synchronized(this){
+            s = stripes;
+        }
+        if( s == null ){
+            return;
+        }
+        for(int i = 0; i < s.length; i++){
+            s[i].finish();
+        }
+    }
+
+    static void writeFile(StripedFrame frame) throws java.io.IOException {
+        FileOutputStream out = new FileOutputStream(frame.path);
+        try {
+            out.write(frame.bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    // e.g. "frame stripes: 2 disks
+    //   D:/screens/temp3: 1500 frames, 786.4 MB, 140.2 MB/s while writing, imaging waited at 0 frames"
+    public synchronized String describe(){
+        if( stripes == null ){
+            return "frame stripes: not started\n";
+        }
+        String s = "frame stripes: " + String.valueOf(stripes.length) + " disks" + (bySpeed ? " by speed" : "") + "\n";
+        for(int i = 0; i < stripes.length; i++){
+            s += "  " + stripes[i].describe() + "\n";
+        }
+        return s;
+    }
+
+    // save the directory of every frame to <directory>/temp<job>_stripes.csv
+    public synchronized void save(String directory, int jobId){
+        if( frameStripes == null ){
+            return;
+        }
+        IJ.log("[INFO] " + describe());
+
+        PrintWriter p = null;
+        try {
+            p = new PrintWriter(directory + "/" + "temp" + String.valueOf(jobId) + "_" + "stripes.csv");
+            p.println("frame, directory");
+            for(int i = 0; i < frameStripes.length; i++){
+                if( frameStripes[i] >= 0 ){
+                    p.println(String.valueOf(i) + ", " + new File(stripes[frameStripes[i]].directory).getAbsolutePath());
+                }
+            }
+        } catch (java.io.IOException e){
+            IJ.log("[ERROR] unable to write stripes file");
+        } finally {
+            if( p != null ){
+                p.close();
+            }
+        }
+        frameStripes = null;
+    }
+
+    // where every frame of a striped run is, by frame number, null for a run that was not striped
+    public static HashMap<Integer, String> readIndex(String runDirectory) throws java.io.IOException {
+        File index = new File(runDirectory, new File(runDirectory).getName() + "_stripes.csv");
+        if( !index.exists() ){
+            return null;
+        }
+
+        HashMap<Integer, String> paths = new HashMap<Integer, String>();
+        BufferedReader r = new BufferedReader(new FileReader(index));
+        try {
+            r.readLine();
+            String line;
+            while( (line = r.readLine()) != null ){
+                int comma = line.indexOf(',');
+                if( comma < 0 ){
+                    continue;
+                }
+                String frame = line.substring(0, comma).trim();
+                paths.put(Integer.valueOf(frame), line.substring(comma + 1).trim() + "/" + frame + ".tiff");
+            }
+        } finally {
+            r.close();
+        }
+        return paths;
+    }
+
+    // the file of a frame of a run, from its stripes index if it has one and the file is still there,
+    // otherwise <run directory>/<frame>.tiff. index may be null
+    public static String framePath(HashMap<Integer, String> index, String runDirectory, int frame){
+        String path = index != null ? index.get(frame) : null;
+        if( path != null && new File(path).exists() ){
+            return path;
+        }
+        return runDirectory + "/" + String.valueOf(frame) + ".tiff";
+    }
+
+    // the frames of a run, striped or not, in order as one stack that reads each frame when it is shown
+    public static ImagePlus openVirtualStack(String runDirectory) throws java.io.IOException {
+        HashMap<Integer, String> index = readIndex(runDirectory);
+        ArrayList<Integer> frames = new ArrayList<Integer>();
+        if( index != null ){
+            frames.addAll(index.keySet());
+        }
+        String[] names = new File(runDirectory).list();
+        for(int i = 0; names != null && i < names.length; i++){
+            if( names[i].matches("[0-9]+\\.tiff") ){
+                Integer frame = Integer.valueOf(names[i].substring(0, names[i].length() - ".tiff".length()));
+                if( index == null || !index.containsKey(frame) ){
+                    frames.add(frame);
+                }
+            }
+        }
+        if( frames.isEmpty() ){
+            throw new java.io.IOException("no frames in " + runDirectory);
+        }
+        java.util.Collections.sort(frames);
+
+        ImagePlus first = IJ.openImage(framePath(index, runDirectory, frames.get(0)));
+        if( first == null ){
+            throw new java.io.IOException("could not open frame " + String.valueOf(frames.get(0)));
+        }
+        // the names are whole paths, the stack's own directory is empty
+        VirtualStack stack = new VirtualStack(first.getWidth(), first.getHeight(), null, "");
+        for(Integer frame : frames){
+            stack.addSlice(framePath(index, runDirectory, frame));
+        }
+        return new ImagePlus(new File(runDirectory).getName(), stack);
+    }
+
+    // renamed on the same disk, copied and deleted when the disks differ
+    private static void moveFile(File from, File to) throws java.io.IOException {
+        if( to.exists() ){
+            to.delete();
+        }
+        if( from.renameTo(to) ){
+            return;
+        }
+        FileInputStream in = new FileInputStream(from);
+        try {
+            FileOutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[1 << 20];
+                int n;
+                while( (n = in.read(buffer)) > 0 ){
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if( !from.delete() ){
+            throw new java.io.IOException("unable to delete " + from.getPath() + " after copying it");
+        }
+    }
+
+    // move the frames of a striped run back into its directory and point the index at them
+    public static void main(String[] args) throws java.lang.Exception {
+        if( args.length < 1 ){
+            System.out.println("usage: java FrameStripes <run directory>");
+            System.exit(1);
+        }
+        String runDirectory = args[0];
+        HashMap<Integer, String> index = readIndex(runDirectory);
+        if( index == null ){
+            System.out.println(runDirectory + " was not striped");
+            return;
+        }
+
+        int moved = 0;
+        int missing = 0;
+        for(Integer frame : index.keySet()){
+            File from = new File(index.get(frame));
+            File to = new File(runDirectory, String.valueOf(frame) + ".tiff");
+            if( from.getAbsoluteFile().equals(to.getAbsoluteFile()) ){
+                continue;
+            }
+            if( !from.exists() ){
+                missing++;
+                continue;
+            }
+            moveFile(from, to);
+            moved++;
+        }
+
+        String runName = new File(runDirectory).getName();
+        PrintWriter p = new PrintWriter(new File(runDirectory, runName + "_stripes.csv"));
+        try {
+            p.println("frame, directory");
+            ArrayList<Integer> frames = new ArrayList<Integer>(index.keySet());
+            java.util.Collections.sort(frames);
+            for(Integer frame : frames){
+                p.println(String.valueOf(frame) + ", " + new File(runDirectory).getAbsolutePath());
+            }
+        } finally {
+            p.close();
+        }
+        System.out.println(String.valueOf(moved) + " frames moved to " + runDirectory +
+            (missing > 0 ? ", " + String.valueOf(missing) + " were not found" : ""));
+    }
+}
+
+// one disk of the stripes, written by its own thread in the order its frames were taken
+class Stripe {
+    String directory;
+
+    private ArrayBlockingQueue<StripedFrame> pending = new ArrayBlockingQueue<StripedFrame>(FrameStripes.MAX_PENDING);
+    private Thread writer;
+    private boolean closed;
+
+    private final Object statsLock = new Object();
+    private int frames;
+    private int failures;
+    private int waits;
+    private long bytes;
+    private long writeNanos;
+
+    Stripe(String directory_){
+        directory = directory_;
+    }
+
+    void start(){
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run(){
+                writeInOrder();
+            }
+        }, "TrackStim stripe writer " + directory);
+        writer.start();
+    }
+
+    // false once the stripe is finished, the caller writes the frame itself
+    synchronized boolean offer(StripedFrame frame){
+        if( closed ){
+            return false;
+        }
+        if( pending.offer(frame) ){
+            return true;
+        }
+        synchronized(statsLock){
+            waits++;
+        }
+        try {
+            pending.put(frame);
+            return true;
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    void finish(){
+        boolean interrupted = false;
+        synchronized(this){
+            if( closed ){
+                return;
+            }
+            closed = true;
+            // the end marker goes in once the writer has made room, nothing else can be added after closed
+            while( true ){
+                try {
+                    pending.put(StripedFrame.END);
+                    break;
+                } catch (InterruptedException e){
+                    interrupted = true;
+                }
+            }
+        }
+        while( true ){
+            try {
+                writer.join();
+                break;
+            } catch (InterruptedException e){
+                interrupted = true;
+            }
+        }
+        if( interrupted ){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeInOrder(){
+        while( true ){
+            StripedFrame frame;
+            try {
+                frame = pending.take();
+            } catch (InterruptedException e){
+                return;
+            }
+            if( frame == StripedFrame.END ){
+                return;
+            }
+
+            long start = System.nanoTime();
+            try {
+                FrameStripes.writeFile(frame);
+                synchronized(statsLock){
+                    frames++;
+                    bytes += frame.bytes.length;
+                    writeNanos += System.nanoTime() - start;
+                }
+            } catch (java.io.IOException e){
+                synchronized(statsLock){
+                    failures++;
+                }
+                IJ.log("[ERROR] unable to write tiff file " + frame.path);
+            }
+        }
+    }
+
+    String describe(){
+        synchronized(statsLock){
+            double seconds = Math.max(1, writeNanos) / 1.0e9;
+            return directory + ": " + String.valueOf(frames) + " frames, " +
+                String.valueOf(Math.round(bytes / 1048576.0 * 10.0) / 10.0) + " MB, " +
+                String.valueOf(Math.round(bytes / 1048576.0 / seconds * 10.0) / 10.0) + " MB/s while writing, " +
+                "imaging waited at " + String.valueOf(waits) + " frames" +
+                (failures > 0 ? ", " + String.valueOf(failures) + " failed" : "");
+        }
+    }
+}
+
+// an encoded frame waiting for its disk
+class StripedFrame {
+    static final StripedFrame END = new StripedFrame(null, null);
+
+    String path;
+    byte[] bytes;
+
+    StripedFrame(String path_, byte[] bytes_){
+        path = path_;
+        bytes = bytes_;
+    }
+}
@@ -0,0 +1,421 @@
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// saves the frames of a job lossless compressed, encoded in parallel and written in order
+//
+// written as "lzw", "deflate" or "delta" followed by any of these options, "" saves uncompressed tiffs
+//   threads=<n>   encoder threads (default half the cores), more cores for fewer bytes on disk
+//   keyframe=<n>  delta only, a keyframe every n frames (default 50)
+// e.g. "lzw threads=4". lzw and deflate save a tiff per frame, see TiffFrameEncoder. delta saves every
+// frame of the job to one temp<i>_frames.delta file as its difference to the frame before, the most
+// compression for tracking runs, see DeltaStack
+//
+// the imaging task hands over a copy of the frame and goes on, the encoders compress the frames on a
+// pool and one writer thread saves them to disk in the order they were taken. at most MAX_PENDING
+// frames wait to be encoded or written, past that the imaging task waits for the encoders, so a run
+// the cpu cannot keep up with slows down instead of filling the memory. the compression ratio and the
+// encode and write times of each job are added to frame-ring.txt
+class FrameWriter {
+    static final int MAX_PENDING = 64;   // 32 MB of 512 x 512 16 bit frames
+    static final int DELTA_STACK = -1;   // compression of a delta stack, the others are tiff compression tags
+    static final int DELTA_LEVEL = java.util.zip.Deflater.BEST_SPEED;  // 2% bigger records than level 6 in a fifth of the time
+
+    String spec;
+    int compression;
+    int threads;
+    int keyframeInterval = 50;
+
+    private DeltaStack stack;            // the job's delta stack, null for tiffs
+    private FrameStripes stripes;        // the disks the job's tiffs are spread over, null writes them here
+    private Object previousPixels;       // the last frame handed to the stack and its size
+    private int previousWidth;
+    private int previousHeight;
+    private int sinceKeyframe;
+
+    private ExecutorService encoders;
+    private Thread writerThread;
+    private ArrayBlockingQueue<PendingFrame> pending;
+    private boolean closed = true;       // frames written after finish() are encoded on the calling thread
+
+    // the ratio each format got on its last job, what the next job's frames are expected to take on disk
+    private static final HashMap<Integer, Double> lastRatios = new HashMap<Integer, Double>();
+
+    private final Object statsLock = new Object();
+    private int frames;
+    private int failures;
+    private int waits;                   // frames the imaging task waited for the encoders at
+    private int keyframes;
+    private long rawBytes;
+    private long writtenBytes;
+    private long encodeNanos;
+    private long maxEncodeNanos;
+    private long writeNanos;
+    private long startNanos;
+    private long endNanos;
+
+    // null for "", throws IllegalArgumentException if the spec cannot be understood
+    public static FrameWriter parse(String spec){
+        String[] words = spec.trim().split("\\s+");
+        if( words[0].isEmpty() ){
+            return null;
+        }
+
+        FrameWriter writer = new FrameWriter();
+        writer.spec = spec.trim();
+        if( words[0].equals("lzw") ){
+            writer.compression = TiffFrameEncoder.LZW;
+        } else if( words[0].equals("deflate") ){
+            writer.compression = TiffFrameEncoder.DEFLATE;
+        } else if( words[0].equals("delta") ){
+            writer.compression = DELTA_STACK;
+        } else {
+            throw new IllegalArgumentException("unknown compression " + words[0] + ", expected lzw, deflate or delta");
+        }
+        writer.threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        for(int i = 1; i < words.length; i++){
+            String[] option = words[i].split("=", 2);
+            if( option.length < 2 ){
+                throw new IllegalArgumentException("expected name=value, got " + words[i]);
+            }
+            int value;
+            try {
+                value = Integer.parseInt(option[1]);
+            } catch (NumberFormatException e){
+                throw new IllegalArgumentException(option[0] + " is not a whole number: " + option[1]);
+            }
+            if( value <= 0 ){
+                throw new IllegalArgumentException(option[0] + " must be greater than 0");
+            }
+            if( option[0].equals("threads") ){
+                writer.threads = value;
+            } else if( option[0].equals("keyframe") && writer.compression == DELTA_STACK ){
+                writer.keyframeInterval = value;
+            } else {
+                throw new IllegalArgumentException("unknown option " + option[0]);
+            }
+        }
+        return writer;
+    }
+
+    // start the encoders and the writer for a job, a delta stack is made in its directory. the tiffs are
+    // handed to stripes_ to write when it is not null
+    public synchronized void start(String directory, int jobId, FrameStripes stripes_){
+        stripes = stripes_;
+        synchronized(statsLock){
+            frames = 0;
+            failures = 0;
+            waits = 0;
+            keyframes = 0;
+            rawBytes = 0;
+            writtenBytes = 0;
+            encodeNanos = 0;
+            maxEncodeNanos = 0;
+            writeNanos = 0;
+            startNanos = System.nanoTime();
+            endNanos = startNanos;
+        }
+
+        stack = null;
+        previousPixels = null;
+        if( compression == DELTA_STACK ){
+            String path = directory + "/" + "temp" + String.valueOf(jobId) + "_" + "frames.delta";
+            try {
+                stack = new DeltaStack(path, keyframeInterval);
+            } catch (java.io.IOException e){
+                IJ.log("[ERROR] unable to make delta stack " + path + ", saving lzw tiffs instead");
+            }
+        }
+
+        pending = new ArrayBlockingQueue<PendingFrame>(MAX_PENDING);
+        encoders = Executors.newFixedThreadPool(threads);
+        final ArrayBlockingQueue<PendingFrame> queue = pending;
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run(){
+                writeInOrder(queue);
+            }
+        }, "TrackStim frame writer");
+        writerThread.start();
+        closed = false;
+    }
+
+    // save frame frameIndex of the job, the image to path with the info in its tiff or to the delta stack,
+    // on the imaging thread. the pixels are copied, the frame ring may reuse the buffer as soon as this returns
+    public void write(int frameIndex, String path, ImagePlus image, String info){
+        final Object pixels = copyPixels(image.getProcessor().getPixels());
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final String frameInfo = info;
+        final int frame = frameIndex;
+
+        synchronized(this){
+            if( !closed ){
+                Callable<byte[]> encode;
+                byte type = DeltaStack.KEYFRAME;
+                if( stack != null ){
+                    // the difference to the frame before, a keyframe every keyframeInterval frames and after a size change
+                    boolean sameSize = previousPixels != null && previousWidth == width && previousHeight == height &&
+                        previousPixels.getClass() == pixels.getClass();
+                    final Object previous = sameSize && sinceKeyframe < keyframeInterval ? previousPixels : null;
+                    type = previous == null ? DeltaStack.KEYFRAME : DeltaStack.DELTA;
+                    sinceKeyframe = previous == null ? 1 : sinceKeyframe + 1;
+                    previousPixels = pixels;
+                    previousWidth = width;
+                    previousHeight = height;
+                    encode = new Callable<byte[]>() {
+                        @Override
+                        public byte[] call(){
+                            long start = System.nanoTime();
+                            byte[] record = DeltaStack.encode(frame, pixels, previous, width, height, frameInfo, DELTA_LEVEL);
+                            addEncode(System.nanoTime() - start, rawLength(pixels));
+                            return record;
+                        }
+                    };
+                } else {
+                    encode = tiffEncoder(pixels, width, height, frameInfo, compression);
+                }
+
+                PendingFrame pendingFrame = new PendingFrame(frame, type, path, encoders.submit(encode));
+                if( pending.offer(pendingFrame) ){
+                    return;
+                }
+                synchronized(statsLock){
+                    waits++;
+                }
+                try {
+                    pending.put(pendingFrame);
+                    return;
+                } catch (InterruptedException e){
+                    // the job is being stopped, the frame is still saved below, the next record a keyframe
+                    Thread.currentThread().interrupt();
+                    pendingFrame.encoded.cancel(false);
+                    previousPixels = null;
+                }
+            }
+        }
+
+        // too late for the job's stack, saved as its own tiff
+        try {
+            writeFile(path, tiffEncoder(pixels, width, height, frameInfo, compression == DELTA_STACK ? TiffFrameEncoder.LZW : compression).call());
+        } catch (java.lang.Exception e){
+            addFailure(path, e);
+        }
+    }
+
+    private Callable<byte[]> tiffEncoder(final Object pixels, final int width, final int height, final String info, final int tiffCompression){
+        return new Callable<byte[]>() {
+            @Override
+            public byte[] call(){
+                long start = System.nanoTime();
+                byte[] tiff = TiffFrameEncoder.encode(pixels, width, height, info, tiffCompression);
+                addEncode(System.nanoTime() - start, rawLength(pixels));
+                return tiff;
+            }
+        };
+    }
+
+    // wait for every frame to be written and stop the threads, the job's numbers stay for describe()
+    public void finish(){
+        Thread t;
+        synchronized(this){
+            if( closed ){
+                return;
+            }
+            closed = true;
+            t = writerThread;
+            // the end marker goes in once the writer has made room, nothing else can be added after closed
+            boolean interrupted = false;
+            while( true ){
+                try {
+                    pending.put(PendingFrame.END);
+                    break;
+                } catch (InterruptedException e){
+                    interrupted = true;
+                }
+            }
+            if( interrupted ){
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        try {
+            t.join();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        encoders.shutdown();
+        if( stack != null ){
+            try {
+                stack.close();
+            } catch (java.io.IOException e){
+                IJ.log("[ERROR] unable to finish the delta stack, its frames can still be read without the index");
+            }
+            synchronized(statsLock){
+                writtenBytes = stack.length();
+            }
+            previousPixels = null;
+        }
+        synchronized(statsLock){
+            endNanos = System.nanoTime();
+            if( rawBytes > 0 && writtenBytes > 0 ){
+                synchronized(lastRatios){
+                    lastRatios.put(compression, (double) rawBytes / writtenBytes);
+                }
+            }
+        }
+    }
+
+    private void writeInOrder(ArrayBlockingQueue<PendingFrame> queue){
+        while( true ){
+            PendingFrame frame;
+            try {
+                frame = queue.take();
+            } catch (InterruptedException e){
+                return;
+            }
+            if( frame == PendingFrame.END ){
+                return;
+            }
+
+            try {
+                if( stack != null ){
+                    appendToStack(frame, frame.encoded.get());
+                } else if( stripes != null ){
+                    writeToStripe(frame, frame.encoded.get());
+                } else {
+                    writeFile(frame.path, frame.encoded.get());
+                }
+            } catch (ExecutionException e){
+                addFailure(frame.path, e.getCause() != null ? e.getCause() : e);
+            } catch (java.lang.Exception e){
+                addFailure(frame.path, e);
+            }
+        }
+    }
+
+    private void writeFile(String path, byte[] tiff) throws java.io.IOException {
+        long start = System.nanoTime();
+        FileOutputStream outputStream = new FileOutputStream(path);
+        try {
+            outputStream.write(tiff);
+        } finally {
+            outputStream.close();
+        }
+        synchronized(statsLock){
+            frames++;
+            writtenBytes += tiff.length;
+            writeNanos += System.nanoTime() - start;
+        }
+    }
+
+    // written by the stripe's own thread, the time here is only the wait for a stripe that is behind
+    private void writeToStripe(PendingFrame frame, byte[] tiff){
+        long start = System.nanoTime();
+        stripes.write(frame.frameIndex, frame.path, tiff);
+        synchronized(statsLock){
+            frames++;
+            writtenBytes += tiff.length;
+            writeNanos += System.nanoTime() - start;
+        }
+    }
+
+    private void appendToStack(PendingFrame frame, byte[] record) throws java.io.IOException {
+        long start = System.nanoTime();
+        stack.append(frame.frameIndex, frame.type, record);
+        synchronized(statsLock){
+            frames++;
+            writtenBytes += record.length;
+            writeNanos += System.nanoTime() - start;
+            if( frame.type == DeltaStack.KEYFRAME ){
+                keyframes++;
+            }
+        }
+    }
+
+    private void addEncode(long nanos, long bytes){
+        synchronized(statsLock){
+            rawBytes += bytes;
+            encodeNanos += nanos;
+            maxEncodeNanos = Math.max(maxEncodeNanos, nanos);
+        }
+    }
+
+    private void addFailure(String path, Throwable e){
+        synchronized(statsLock){
+            failures++;
+        }
+        IJ.log("[ERROR] unable to write compressed tiff file " + path);
+        IJ.log(String.valueOf(e.getMessage()));
+    }
+
+    private static long rawLength(Object pixels){
+        return pixels instanceof short[] ? 2L * ((short[]) pixels).length : ((byte[]) pixels).length;
+    }
+
+    private static Object copyPixels(Object pixels){
+        if( pixels instanceof short[] ){
+            return ((short[]) pixels).clone();
+        }
+        return ((byte[]) pixels).clone();
+    }
+
+    // raw bytes per byte written the format got on its last job, 1 before its first job
+    public double expectedRatio(){
+        synchronized(lastRatios){
+            Double ratio = lastRatios.get(compression);
+            return ratio != null ? ratio : 1.0;
+        }
+    }
+
+    // e.g. "frame writer: lzw on 4 encoder threads, 3000 frames, 1572.9 MB raw, 612.3 MB written, ratio 2.57, ..."
+    public String describe(){
+        synchronized(statsLock){
+            double seconds = Math.max(1, endNanos - startNanos) / 1.0e9;
+            String format = compression == TiffFrameEncoder.LZW ? "lzw" : compression == TiffFrameEncoder.DEFLATE ? "deflate" :
+                "delta stack (" + String.valueOf(keyframes) + " keyframes)";
+            return "frame writer: " + format + " on " + String.valueOf(threads) +
+                " encoder threads, " + String.valueOf(frames) + " frames, " +
+                mb(rawBytes) + " MB raw, " + mb(writtenBytes) + " MB written, ratio " +
+                String.valueOf(writtenBytes > 0 ? Math.round(100.0 * rawBytes / writtenBytes) / 100.0 : 0.0) + ", " +
+                "encode " + ms(frames > 0 ? encodeNanos / frames : 0) + " ms per frame (max " + ms(maxEncodeNanos) + "), " +
+                "write " + ms(frames > 0 ? writeNanos / frames : 0) + " ms per frame, " +
+                mb((long) (writtenBytes / seconds)) + " MB/s to disk, " +
+                "imaging waited for the encoders at " + String.valueOf(waits) + " frames" +
+                (failures > 0 ? ", " + String.valueOf(failures) + " frames not written" : "") + "\n";
+        }
+    }
+
+    private static String mb(long bytes){
+        return String.valueOf(Math.round(bytes / 1.0e5) / 10.0);
+    }
+
+    private static String ms(long nanos){
+        return String.valueOf(Math.round(nanos / 1.0e4) / 100.0);
+    }
+}
+
+// a frame handed to the encoders, in the order it was taken
+class PendingFrame {
+    static final PendingFrame END = new PendingFrame(-1, DeltaStack.KEYFRAME, null, null);
+
+    int frameIndex;
+    byte type;                 // of its delta stack record
+    String path;               // of its tiff
+    Future<byte[]> encoded;
+
+    PendingFrame(int frameIndex_, byte type_, String path_, Future<byte[]> encoded_){
+        frameIndex = frameIndex_;
+        type = type_;
+        path = path_;
+        encoded = encoded_;
+    }
+}
@@ -8,6 +8,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import mmcorej.CMMCore;
 
@@ -20,6 +21,8 @@ import org.micromanager.api.ScriptInterface;
 
 // Take an image and save it
 class ImagingTask implements Runnable {
+	static final int MAX_COPY_ATTEMPTS = 3;
+
 	CMMCore core;
 	ScriptInterface app;
 	long timePoint;
@@ -30,8 +33,10 @@ class ImagingTask implements Runnable {
 
 	String[] stimStrengthFrameData;
 	String[] stagePosFrameData;
+	long[] frameSequences;
 
 	TrackStimController controller;
+	FrameConsumer frames;
 
 	ImagingTask(
 		CMMCore core_,
@@ -41,7 +46,9 @@ class ImagingTask implements Runnable {
 		int frameIndex_,
 		String[] stimStrengthFrameData_,
 		String[] stagePosFrameData_,
+		long[] frameSequences_,
 		TrackStimController c,
+		FrameConsumer frames_,
 		long jobStartTime_
 		){
 		core = core_;
@@ -52,8 +59,10 @@ class ImagingTask implements Runnable {
 
 		stimStrengthFrameData = stimStrengthFrameData_;
 		stagePosFrameData = stagePosFrameData_;
+		frameSequences = frameSequences_;
 
 		controller = c;
+		frames = frames_;
 
 		jobStartTime = jobStartTime_;
 	}
@@ -64,15 +73,30 @@ class ImagingTask implements Runnable {
 			return;
 		}
 
-		ImagePlus liveModeImage = app.getSnapLiveWin().getImagePlus();
+		// frame locked stimulation changes the level at the start of the frame, the frame saved is then one
+		// exposed entirely at the new level. otherwise the newest frame from the frame ring. every frame index
+		// needs an image, so if the camera has not made a new one the last is saved again
+		Frame frame;
+		if( controller.stimulateFrame(frameIndex, jobStartTime + timePoint) ){
+			frame = waitForFrameAfter(System.nanoTime());
+		} else {
+			frame = frames.latest(true);
+		}
+		if( frame == null ){
+			IJ.log("[ERROR] Could not acquire image.  No frames from the " + controller.getFrameSource().getName() + " yet." );
+			return;
+		}
+		frame = copyFrame(frame);
+		frameSequences[frameIndex] = frame.sequence;
 		double[] stagePosInfo = getStagePositionInfo();
-		int stimStrength = controller.getStimulatorStrength();
+		int stimStrength = controller.getStimulatorStrength(Stimulator.STIMULATION_CHANNEL);
+		int secondStimStrength = controller.getStimulatorStrength(Stimulator.SECOND_CHANNEL);
 		long currTime = System.nanoTime();
 
 		// compute timestamp relative to when the job first started
 		String timeStampStr = String.valueOf(TimeUnit.NANOSECONDS.toMillis(currTime - jobStartTime));
 		// add the stim strength at this current frame to the data to save
-		String frameAndStimStrengthData = String.valueOf(frameIndex) + ", " + timeStampStr + ", " + String.valueOf(stimStrength);
+		String frameAndStimStrengthData = String.valueOf(frameIndex) + ", " + timeStampStr + ", " + String.valueOf(stimStrength) + ", " + String.valueOf(secondStimStrength);
 		stimStrengthFrameData[frameIndex] = frameAndStimStrengthData;
 
 		// add the stage position at this current frame to the data to save
@@ -80,11 +104,61 @@ class ImagingTask implements Runnable {
 		String frameStagePosStr = String.valueOf(frameIndex) + ", " + timeStampStr + ", " + stagePosInfoCSV;
 		stagePosFrameData[frameIndex] = frameStagePosStr;
 
-		saveSnapshotToTiff(liveModeImage, stagePosInfo);
+		// a quiet worm only gets the rows above, see RecordingGate
+		RunJournal journal = controller.getJournal();
+		if( controller.gateFrame(frameIndex, frame, timeStampStr) == RecordingGate.METADATA ){
+			if( journal != null ){
+				journal.frame(frameAndStimStrengthData, frameStagePosStr, null);
+			}
+			IJ.log("[INFO] Skipped frame: " + String.valueOf(frameIndex) + ", no motion");
+			return;
+		}
+
+		// the whole frame, or only the part around the worm while tracking, see WormCrop
+		ImagePlus image = controller.cropFrame(frameIndex, frame, stagePosInfo, timeStampStr);
+		String filePath = saveSnapshotToTiff(image, stagePosInfo);
+		if( journal != null ){
+			journal.frame(frameAndStimStrengthData, frameStagePosStr, filePath);
+		}
 
 		IJ.log("[INFO] Saved frame: " + String.valueOf(frameIndex));
 	}
 
+	// a copy of the frame the task keeps, the ring slot is reused within a few frames and saving takes longer
+	// a copy the capture thread overwrote while it was made is taken again from the newest frame
+	private Frame copyFrame(Frame frame){
+		Frame copy = frame.copy();
+		for(int attempt = 1; !frames.stillValid(frame) && attempt < MAX_COPY_ATTEMPTS; attempt++){
+			frame = frames.latest(true);
+			copy = frame.copy();
+		}
+		if( !frames.stillValid(frame) ){
+			IJ.log("[WARNING] frame " + String.valueOf(frameIndex) + " was overwritten in the frame ring while it was copied");
+		}
+		return copy;
+	}
+
+	// the first frame whose whole exposure started after the given time
+	// gives up after a few frame intervals and takes the newest frame, e.g. when the camera stalls
+	private Frame waitForFrameAfter(long nanos){
+		long intervalNanos = controller.getFrameSource().getFrameIntervalNanos();
+		long deadline = nanos + 3 * intervalNanos + TimeUnit.MILLISECONDS.toNanos(5);
+		while( System.nanoTime() < deadline ){
+			Frame frame = frames.latest(false);
+			if( frame != null && frame.timestampNanos - intervalNanos >= nanos ){
+				return frame;
+			}
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		IJ.log("[WARNING] no frame after the stimulation change of frame " + String.valueOf(frameIndex) + ", saving the newest");
+		return frames.latest(true);
+	}
+
 	private double[] getStagePositionInfo(){
 		double currXPos = 0.0;
 		double currYPos = 0.0;
@@ -102,8 +176,11 @@ class ImagingTask implements Runnable {
 		return new double[]{ currXPos, currYPos, currZPos };
 	}
 
-	private void saveSnapshotToTiff(ImagePlus snapshot, double[] stagePosInfo){
-		String filePath = saveDirectory + "/" + String.valueOf(frameIndex) + ".tiff";
+	// returns the file the frame is saved to
+	private String saveSnapshotToTiff(ImagePlus snapshot, double[] stagePosInfo){
+		// striped, the frame goes to the next disk's directory
+		FrameStripes stripes = controller.getFrameStripes();
+		String filePath = stripes != null ? stripes.assign(frameIndex) : saveDirectory + "/" + String.valueOf(frameIndex) + ".tiff";
 		FileInfo fi = snapshot.getFileInfo();
 
 		// legacy info that Yanning and Anson scripts depend on
@@ -113,6 +190,19 @@ class ImagingTask implements Runnable {
 
 		fi.info = stagePositionInfoString;
 
+		// compressed on the frame writer's threads, this task goes on to the next frame
+		FrameWriter writer = controller.getFrameWriter();
+		if( writer != null ){
+			writer.write(frameIndex, filePath, snapshot, stagePositionInfoString);
+			return filePath;
+		}
+
+		// written on the disk's own thread, so the disks write at the same time
+		if( stripes != null ){
+			stripes.write(frameIndex, filePath, fi);
+			return filePath;
+		}
+
 		try {
 			File toSave = new File(filePath);
 			toSave.createNewFile();
@@ -125,13 +215,17 @@ class ImagingTask implements Runnable {
 			IJ.log("[ERROR] unable to write tiff file with stage position info");
 			IJ.log(e.getMessage());
 		}
+		return filePath;
 	}
 }
 
 // Handles the scheduling of imaging tasks
 class Imager {
+	static final String STIM_STRENGTH_HEADER = "frame, timestamp(ms), stimulator signal, stimulator signal DA2";
+	static final String STAGE_POS_HEADER = "frame, timestamp(ms), x, y, z";
 
 	TrackStimController controller;
+	FrameConsumer frames; // the writer stage of the frame ring
 
 	private ArrayList<ScheduledFuture> imagingTasks;
 	private ScheduledExecutorService imagingScheduler;
@@ -139,11 +233,13 @@ class Imager {
 
 	private String[] stimStrengthFrameData;  // each frame will append the current stimulator value here
 	private String[] stagePosFrameData;      // each frame will append its stage position here
+	private long[] frameSequences;           // frame ring sequence of the frame saved at each index, -1 if none
 	private String imageSaveDir;
 
 	Imager(TrackStimController c){
 
 		controller = c;
+		frames = c.getFrameRing().addConsumer("writer");
 
 		imagingTasks = new ArrayList<ScheduledFuture>();
 		imagingStartTime = 0;
@@ -152,19 +248,38 @@ class Imager {
     // schedule a number of snapshots at fixed time interval to ensure that images are taken
     // at the given fps
     public void scheduleImagingTasks(int numFrames, int fps, final String imageSaveDirectory){
+		scheduleImagingTasks(numFrames, fps, imageSaveDirectory, null);
+	}
+
+	// resume a job that did not finish from the frame after the last one in its journal, the frame index
+	// and timestamps go on as if the job had not stopped. resumed is null for a new job
+	public void scheduleImagingTasks(int numFrames, int fps, final String imageSaveDirectory, JournalState resumed){
 		stimStrengthFrameData = new String[numFrames];
 		stagePosFrameData = new String[numFrames];
+		frameSequences = new long[numFrames];
+		Arrays.fill(frameSequences, -1);
+
+		int firstFrame = 0;
+		if( resumed != null ){
+			firstFrame = resumed.lastFrame + 1;
+			for( int i = 0; i < firstFrame && i < numFrames; i++ ){
+				stimStrengthFrameData[i] = resumed.stimStrengthRows.get(i);
+				stagePosFrameData[i] = resumed.stagePosRows.get(i);
+			}
+		}
 
-    	imagingScheduler = Executors.newSingleThreadScheduledExecutor();
+    	final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    	imagingScheduler = scheduler;
    		ArrayList<ScheduledFuture> futureTasks = new ArrayList<ScheduledFuture>();
 
 		long frameCycleNano = TimeUnit.MILLISECONDS.toNanos(1000 / fps); // take a pic every cycle
 
-		imagingStartTime = System.nanoTime();
+		// a resumed job started when its first frame would have been due
+		imagingStartTime = System.nanoTime() - firstFrame * frameCycleNano;
 		imageSaveDir = imageSaveDirectory;
 
 		// schedule when each frame should be taken
-        for(int curFrameIndex = 0; curFrameIndex < numFrames; curFrameIndex++){
+        for(int curFrameIndex = firstFrame; curFrameIndex < numFrames; curFrameIndex++){
             long timePtNano = curFrameIndex * frameCycleNano; // e.g. 0 ms, 100ms, 200ms, etc..
             ImagingTask s = new ImagingTask(
 				controller.core,
@@ -174,23 +289,29 @@ class Imager {
 				curFrameIndex,
 				stimStrengthFrameData,
 				stagePosFrameData,
+				frameSequences,
 				controller,
+				frames,
 				imagingStartTime
 			);
 
-            ScheduledFuture snapShot = imagingScheduler.schedule(s, timePtNano, TimeUnit.NANOSECONDS);
+            ScheduledFuture snapShot = imagingScheduler.schedule(s, timePtNano - firstFrame * frameCycleNano, TimeUnit.NANOSECONDS);
             futureTasks.add(snapShot);
 		}
 
 		// schedule an additional task to let the controller know when the last frame has been taken
+		// in a continuous session it runs when the next frame would be due, the next job takes that frame
+		long doneNano = (controller.isContinuousSession() ? numFrames : numFrames + 1) * frameCycleNano;
 		ScheduledFuture lastImagingTask = imagingScheduler.schedule(new Runnable() {
 			@Override
 			public void run(){
+				// let the thread go once this task is done, a queue of jobs would otherwise collect one per job
+				scheduler.shutdown();
 				saveStimStrengthDataToFile(imageSaveDirectory);
 				saveStagePosDataToFile(imageSaveDirectory);
 				controller.onImageAcquisitionDone(computeImageTaskTimeInSeconds());
 			}
-		}, (numFrames + 1) * frameCycleNano, TimeUnit.NANOSECONDS);
+		}, doneNano - firstFrame * frameCycleNano, TimeUnit.NANOSECONDS);
 			imagingTasks.add(lastImagingTask);
 
       imagingTasks = futureTasks;
@@ -198,6 +319,10 @@ class Imager {
 
 	// cancel all imaging tasks
     public void cancelTasks(){
+		// nothing to stop if no job was started
+		if( imagingScheduler == null ){
+			return;
+		}
 		for (int i = 0; i < imagingTasks.size(); i++ ){
 			ScheduledFuture task = imagingTasks.get(i);
       		task.cancel(true);
@@ -214,8 +339,7 @@ class Imager {
 		try {
 			p = new PrintWriter(directory + "/" + "temp" + String.valueOf(controller.currentJobId) + "_" + "stim-strength.csv");
 
-			String stimStrengthCSVHeader = "frame, timestamp(ms), stimulator signal";
-			p.println(stimStrengthCSVHeader);
+			p.println(STIM_STRENGTH_HEADER);
 
 			for( int i = 0; i < stimStrengthFrameData.length; i++ ){
 				if( stimStrengthFrameData[i] != null ){
@@ -237,8 +361,7 @@ class Imager {
 		try {
 			p = new PrintWriter(directory + "/" + "temp" + String.valueOf(controller.currentJobId) + "_" +"stage-pos.csv");
 
-			String stagePosCsvHeader = "frame, timestamp(ms), x, y, z";
-			p.println(stagePosCsvHeader);
+			p.println(STAGE_POS_HEADER);
 
 			for( int i = 0; i < stagePosFrameData.length; i++ ){
 				if( stagePosFrameData[i] != null ){
@@ -254,6 +377,31 @@ class Imager {
 		}
 	}
 
+	// System.nanoTime() when the first frame of the job was due
+	public long getStartTime(){
+		return imagingStartTime;
+	}
+
+	// frame ring sequence of the first frame saved in the job, -1 if none was
+	public long getFirstFrameSequence(){
+		for( int i = 0; frameSequences != null && i < frameSequences.length; i++ ){
+			if( frameSequences[i] >= 0 ){
+				return frameSequences[i];
+			}
+		}
+		return -1;
+	}
+
+	// frame ring sequence of the last frame saved in the job, -1 if none was
+	public long getLastFrameSequence(){
+		for( int i = frameSequences == null ? -1 : frameSequences.length - 1; i >= 0; i-- ){
+			if( frameSequences[i] >= 0 ){
+				return frameSequences[i];
+			}
+		}
+		return -1;
+	}
+
 	private double computeImageTaskTimeInSeconds(){
 		double imagingTaskDoneTime = System.nanoTime();
 		return (imagingTaskDoneTime - imagingStartTime) / 1000000000.0;
@@ -0,0 +1,73 @@
+import ij.IJ;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+// a continuous imaging session: the camera streams from the first job to the last and every job is a
+// segment of the one stream
+//
+// live mode and the circular buffer are left alone between the jobs of a session, and the imager ends
+// a job at the time its next frame would be due, so the next job can start within a frame period of
+// the last one ending. each segment is saved to session.csv in the root directory with the frame ring
+// sequence of its first and last frame, which lines the temp<i> frames up with the stream, and with
+// the gap from the end of the segment before it
+class ImagingSession {
+    private String directory;
+    private long startNanos;
+    private ArrayList<String> segments;  // one row per job
+    private long lastEndNanos;           // when the last segment ended, -1 before the first
+    private long lastSequence;           // frame ring sequence of the last frame saved so far
+    private long maxGapNanos;
+
+    ImagingSession(String directory_){
+        directory = directory_;
+        startNanos = System.nanoTime();
+        segments = new ArrayList<String>();
+        lastEndNanos = -1;
+        lastSequence = -1;
+        maxGapNanos = 0;
+    }
+
+    // a job ended, times are System.nanoTime() values, sequences -1 if the job saved no frame
+    public synchronized void addSegment(int jobId, long firstSequence, long lastSequence_, long segmentStartNanos, long segmentEndNanos){
+        long gapNanos = lastEndNanos < 0 ? 0 : segmentStartNanos - lastEndNanos;
+        maxGapNanos = Math.max(maxGapNanos, gapNanos);
+        long skipped = lastSequence < 0 || firstSequence < 0 ? 0 : firstSequence - lastSequence - 1;
+
+        segments.add(String.valueOf(jobId) + ", " + String.valueOf(firstSequence) + ", " + String.valueOf(lastSequence_) + ", " +
+            ms(segmentStartNanos - startNanos) + ", " + ms(segmentEndNanos - startNanos) + ", " +
+            ms(gapNanos) + ", " + String.valueOf(skipped));
+        IJ.log("[INFO] session segment temp" + String.valueOf(jobId) + ": frames " + String.valueOf(firstSequence) + " to " +
+            String.valueOf(lastSequence_) + " of the stream, started " + ms(gapNanos) + " ms after the segment before");
+
+        lastEndNanos = segmentEndNanos;
+        if( lastSequence_ >= 0 ){
+            lastSequence = lastSequence_;
+        }
+    }
+
+    // save the segments to <directory>/session.csv
+    public synchronized void finish(){
+        IJ.log("[INFO] continuous session: " + String.valueOf(segments.size()) + " segments, longest gap between segments " +
+            ms(maxGapNanos) + " ms");
+
+        PrintWriter p = null;
+        try {
+            p = new PrintWriter(directory + "/" + "session.csv");
+            p.println("job, first frame sequence, last frame sequence, start (ms), end (ms), gap (ms), stream frames between segments");
+            for(int i = 0; i < segments.size(); i++){
+                p.println(segments.get(i));
+            }
+        } catch (java.io.IOException e){
+            IJ.log("[ERROR] unable to write session file");
+        } finally {
+            if( p != null ){
+                p.close();
+            }
+        }
+    }
+
+    private static String ms(long nanos){
+        return String.valueOf(Math.round(nanos / 1000.0) / 1000.0);
+    }
+}
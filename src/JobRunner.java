@@ -0,0 +1,211 @@
+import ij.IJ;
+
+import java.io.File;
+import java.util.ArrayList;
+
+// runs a queue of imaging jobs back to back without the ui, for screens that run unattended
+//
+// each JobSpec is handed to the controller the way the go button does it, and the runner waits for
+// the last frame before starting the next one. the controller's tracking and stimulation settings
+// are set for each job and put back when the queue is done, so an open TrackStim window is left as
+// it was. a job still running FINISH_MARGIN_MS past its last frame is stopped, one stuck job should
+// not hold up the rest of the night
+//
+// in a continuous session the camera is not stopped between jobs and the next job starts as soon as
+// the last one ends, for long sequences of protocols on the same animal, see ImagingSession
+//
+// from a micromanager script, with the TrackStim window closed so the serial ports are free:
+//   tsc = new TrackStimController(mmc, gui);
+//   JobRunner.runFile(tsc, "D:/screens/overnight.txt", false);
+//   tsc.destroy();
+class JobRunner implements Runnable {
+    static final long POLL_MS = 100;
+    static final long FINISH_MARGIN_MS = 30000;
+
+    private TrackStimController controller;
+    private ArrayList<JobSpec> jobs;
+    private String defaultDirectory;     // for jobs without a save directory
+    private volatile boolean cancelled;
+    private volatile boolean running;
+    private boolean continuous;          // run the queue as one continuous session
+    private ArrayList<String> results;   // one line per job run
+
+    JobRunner(TrackStimController controller_, ArrayList<JobSpec> jobs_, String defaultDirectory_){
+        controller = controller_;
+        jobs = jobs_;
+        defaultDirectory = defaultDirectory_;
+        results = new ArrayList<String>();
+    }
+
+    // run every job of a job file and return the summary, blocks until the last job is done
+    public static String runFile(TrackStimController controller, String path, boolean continuous) throws java.io.IOException {
+        JobRunner runner = new JobRunner(controller, JobSpec.parseFile(path), new File(path).getAbsoluteFile().getParent());
+        runner.setContinuousSession(continuous);
+        runner.run();
+        return runner.describe();
+    }
+
+    // keep the camera streaming from the first job to the last, set before the queue starts
+    public void setContinuousSession(boolean continuous_){
+        continuous = continuous_;
+    }
+
+    // run the queue on its own thread
+    public Thread start(){
+        running = true;
+        Thread t = new Thread(this, "TrackStim job runner");
+        t.start();
+        return t;
+    }
+
+    // stop the job that is running and skip the rest of the queue
+    public void cancel(){
+        cancelled = true;
+    }
+
+    public boolean isRunning(){
+        return running;
+    }
+
+    public void run(){
+        running = true;
+        double threshold = controller.thresholdValue;
+        int trackerSpeed = controller.trackerSpeedFactor;
+        boolean multiWorm = controller.multiWormTrackingEnabled;
+        boolean onDevice = controller.isOnDeviceStimulation();
+        String motionGate = controller.getRecordingGateSpec();
+        String wormCrop = controller.getWormCropSpec();
+        String frameCompression = controller.getFrameCompressionSpec();
+        String frameStripes = controller.getFrameStripesSpec();
+        controller.unattended = true;
+
+        int total = 0;
+        for(JobSpec job : jobs){
+            total += job.repeat;
+        }
+        IJ.log("[INFO] job runner: " + String.valueOf(jobs.size()) + " jobs, " + String.valueOf(total) + " runs");
+        // nobody is there to choose whether to resume a run a crash stopped, its csv files are at least written
+        controller.repairUnfinishedRuns(defaultDirectory);
+        if( continuous ){
+            new File(defaultDirectory).mkdirs();
+            controller.startContinuousSession(defaultDirectory);
+        }
+
+        try {
+            int n = 0;
+            for(JobSpec job : jobs){
+                for(int r = 0; r < job.repeat && !cancelled; r++){
+                    n++;
+                    runJob(job, n, total);
+                    if( job.pauseSeconds > 0 ){
+                        sleepUnlessCancelled((long) (job.pauseSeconds * 1000));
+                    }
+                }
+            }
+        } catch (java.lang.InterruptedException e){
+            cancelled = true;
+        } finally {
+            if( controller.acquisitionRunning ){
+                controller.stopImageAcquisition();
+            }
+            controller.thresholdValue = threshold;
+            controller.trackerSpeedFactor = trackerSpeed;
+            controller.updateMultiWormTracking(multiWorm);
+            controller.updateOnDeviceStimulation(onDevice);
+            controller.updateRecordingGate(motionGate);
+            controller.updateWormCrop(wormCrop);
+            controller.updateFrameCompression(frameCompression);
+            controller.updateFrameStripes(frameStripes);
+            controller.endContinuousSession();
+            controller.unattended = false;
+            running = false;
+            IJ.log("[INFO] job runner " + (cancelled ? "cancelled" : "done") + "\n" + describe());
+        }
+    }
+
+    private void runJob(JobSpec job, int n, int total) throws java.lang.InterruptedException {
+        String root = job.saveDirectory.isEmpty() ? defaultDirectory : job.saveDirectory;
+        File rootFile = new File(root);
+        rootFile.mkdirs();
+        if( !rootFile.isDirectory() ){
+            addResult("run " + String.valueOf(n) + ": not started, cannot make save directory " + root);
+            IJ.log("[ERROR] job runner: cannot make save directory " + root);
+            return;
+        }
+
+        if( !Double.isNaN(job.threshold) ){
+            controller.thresholdValue = job.threshold;
+        }
+        if( job.trackerSpeed >= 0 ){
+            controller.trackerSpeedFactor = job.trackerSpeed;
+        }
+        controller.updateMultiWormTracking(job.multiWorm);
+        controller.updateOnDeviceStimulation(job.onDeviceTiming);
+        controller.updateRecordingGate(job.motionGate);
+        controller.updateWormCrop(job.wormCrop);
+        controller.updateFrameCompression(job.frameCompression);
+        controller.updateFrameStripes(job.frameStripes);
+
+        // nobody is there to answer a warning, only a job that cannot fit is skipped
+        DiskPreflight preflight = controller.preflightJob(rootFile.getPath(), job.numFrames, job.framesPerSecond);
+        if( preflight.status == DiskPreflight.BLOCK ){
+            addResult("run " + String.valueOf(n) + ": not started, " + preflight.message);
+            IJ.log("[ERROR] job runner: " + preflight.message);
+            return;
+        }
+        if( preflight.status == DiskPreflight.WARN ){
+            IJ.log("[WARNING] job runner: " + preflight.message);
+        }
+
+        IJ.log("[INFO] job runner: run " + String.valueOf(n) + " of " + String.valueOf(total) + ", " + job.describe());
+        long startNanos = System.nanoTime();
+        controller.startImageAcquisition(
+            job.numFrames, job.framesPerSecond, rootFile.getPath() + File.separator,
+            job.enableStimulator, job.preStimMs, job.stimStrength, job.stimDurationMs, job.stimCycleMs, job.numStimCycles,
+            job.waveform, job.secondWaveform, job.frameLocked, job.closedLoopRules,
+            job.rampBase, job.rampStart, job.rampEnd,
+            job.enableTracking
+        );
+        int jobId = controller.currentJobId;
+
+        // woken as soon as the job ends, the next one can start right away
+        long deadlineNanos = startNanos + (job.durationMs() + FINISH_MARGIN_MS) * 1000000L;
+        while( !controller.waitForJob(POLL_MS) ){
+            if( cancelled || System.nanoTime() >= deadlineNanos ){
+                break;
+            }
+        }
+
+        String outcome = "done";
+        if( controller.acquisitionRunning ){
+            outcome = cancelled ? "cancelled" : "stopped, still running " + String.valueOf(FINISH_MARGIN_MS / 1000) + " s after its last frame";
+            controller.stopImageAcquisition();
+        }
+        // a protocol longer than the job would still be lighting the next one
+        controller.stopStimulation();
+
+        double seconds = (System.nanoTime() - startNanos) / 1.0e9;
+        addResult("run " + String.valueOf(n) + ": " + rootFile.getPath() + File.separator + "temp" + String.valueOf(jobId) + ", " +
+            job.describe() + ", " + outcome + " in " + String.valueOf(Math.round(seconds * 10.0) / 10.0) + " s");
+    }
+
+    private void sleepUnlessCancelled(long ms) throws java.lang.InterruptedException {
+        long endNanos = System.nanoTime() + ms * 1000000L;
+        while( !cancelled && System.nanoTime() < endNanos ){
+            Thread.sleep(Math.min(POLL_MS, Math.max(1, (endNanos - System.nanoTime()) / 1000000L)));
+        }
+    }
+
+    private synchronized void addResult(String r){
+        results.add(r);
+    }
+
+    // one line per job run so far
+    public synchronized String describe(){
+        StringBuilder s = new StringBuilder();
+        for(String r : results){
+            s.append(r + "\n");
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,323 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+
+// one imaging job of a batch run, the values the go button takes from the ui
+//
+// written like the job-args.txt saved with every run, one "name: value" per line, so the job args of
+// an earlier run can be queued again as they are. jobs in one file are separated by a line "---" and
+// '#' starts a comment. names that are left out keep the ui's defaults, threshold and tracking speed
+// keep the controller's current values
+//   save directory: D:/screens/2024-05-01        where the temp<i> directories are made
+//   number of frames: 3000
+//   frames per second: 26                        1, 10, 20 or 26
+//   frame compression: none                      a FrameWriter spec, e.g. lzw or delta
+//   frame stripes: none                          a FrameStripes spec, e.g. E:/frames; F:/frames
+//   stimulator enabled: true
+//   pre stimulation (ms), stimulation strength, stimulation duration (ms),
+//   stimulation cycle duration (ms), number of cycles, ramp base, ramp start, ramp end
+//   waveform: sine 2                             a StimulationWaveform spec
+//   second channel (DA2) waveform: none
+//   stimulation frame locked: false
+//   stimulation timed on device: false
+//   closed loop rules: none                      StimulationRule specs
+//   motion gate: none                            a RecordingGate spec
+//   worm crop: none                              a WormCrop spec
+//   auto-tracking enabled: true
+//   multi-worm tracking enabled: false
+//   threshold: 1.5
+//   tracking speed: 7
+//   repeat: 1                                    run the job this many times in a row
+//   pause (s): 0                                 wait this long after the job before the next one
+class JobSpec {
+    static final int MAX_FRAMES = 15600;
+    static final int[] FRAME_RATES = { 1, 10, 20, 26 };
+
+    // written to job-args.txt for reference only, the values follow from the others
+    static final String[] IGNORED_NAMES = { "ramp enabled", "stage calibration" };
+
+    int line;                        // where the job starts in its file
+    String saveDirectory = "";
+    int numFrames = 3000;
+    int framesPerSecond = 26;
+    boolean enableStimulator = false;
+    int preStimMs = 10000;
+    int stimStrength = Stimulator.ON_SIGNAL;
+    int stimDurationMs = 5000;
+    int stimCycleMs = 10000;
+    int numStimCycles = 3;
+    String waveform = "square";
+    String secondWaveform = "";
+    boolean frameLocked = false;
+    boolean onDeviceTiming = false;
+    String closedLoopRules = "";
+    String motionGate = "";
+    String wormCrop = "";
+    String frameCompression = "";
+    String frameStripes = "";
+    int rampBase = 0;
+    int rampStart = 0;
+    int rampEnd = Stimulator.ON_SIGNAL;
+    boolean enableTracking = false;
+    boolean multiWorm = false;
+    double threshold = Double.NaN;   // NaN keeps the controller's value
+    int trackerSpeed = -1;           // -1 keeps the controller's value
+    int repeat = 1;
+    double pauseSeconds = 0;
+
+    // every job of a file, throws IllegalArgumentException naming the line that is wrong
+    public static ArrayList<JobSpec> parseFile(String path) throws java.io.IOException {
+        ArrayList<JobSpec> jobs = new ArrayList<JobSpec>();
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            JobSpec job = null;
+            String l;
+            int lineNumber = 0;
+            while( (l = reader.readLine()) != null ){
+                lineNumber++;
+                int comment = l.indexOf('#');
+                if( comment >= 0 ){
+                    l = l.substring(0, comment);
+                }
+                l = l.trim();
+                if( l.isEmpty() ){
+                    continue;
+                }
+                if( l.equals("---") ){
+                    job = null;
+                    continue;
+                }
+
+                if( job == null ){
+                    job = new JobSpec();
+                    job.line = lineNumber;
+                    jobs.add(job);
+                }
+                try {
+                    job.set(l);
+                } catch (IllegalArgumentException e){
+                    throw new IllegalArgumentException(path + " line " + String.valueOf(lineNumber) + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        for(JobSpec job : jobs){
+            try {
+                job.validate();
+            } catch (IllegalArgumentException e){
+                throw new IllegalArgumentException(path + " job at line " + String.valueOf(job.line) + ": " + e.getMessage());
+            }
+        }
+        return jobs;
+    }
+
+    // the job of the lines of a job-args.txt, e.g. from a run's journal to resume it
+    // throws IllegalArgumentException with the line that is wrong
+    public static JobSpec parseLines(ArrayList<String> lines){
+        JobSpec job = new JobSpec();
+        for(String l : lines){
+            if( !l.trim().isEmpty() ){
+                job.set(l.trim());
+            }
+        }
+        job.validate();
+        return job;
+    }
+
+    // set one "name: value" line
+    public void set(String l){
+        int colon = l.indexOf(':');
+        if( colon < 0 ){
+            throw new IllegalArgumentException("expected name: value, got " + l);
+        }
+        String name = l.substring(0, colon).trim().toLowerCase();
+        String value = l.substring(colon + 1).trim();
+
+        if( name.equals("save directory") ){
+            saveDirectory = value;
+        } else if( name.equals("number of frames") ){
+            numFrames = toInt(name, value);
+        } else if( name.equals("frames per second") ){
+            framesPerSecond = toInt(name, value);
+        } else if( name.equals("stimulator enabled") ){
+            enableStimulator = toBoolean(name, value);
+        } else if( name.equals("pre stimulation (ms)") ){
+            preStimMs = toInt(name, value);
+        } else if( name.equals("stimulation strength") ){
+            stimStrength = toInt(name, value);
+        } else if( name.equals("stimulation duration (ms)") ){
+            stimDurationMs = toInt(name, value);
+        } else if( name.equals("stimulation cycle duration (ms)") ){
+            stimCycleMs = toInt(name, value);
+        } else if( name.equals("number of cycles") ){
+            numStimCycles = toInt(name, value);
+        } else if( name.equals("waveform") ){
+            waveform = value;
+        } else if( name.equals("second channel (da2) waveform") ){
+            secondWaveform = value.equals("none") ? "" : value;
+        } else if( name.equals("stimulation frame locked") ){
+            frameLocked = toBoolean(name, value);
+        } else if( name.equals("stimulation timed on device") ){
+            onDeviceTiming = toBoolean(name, value);
+        } else if( name.equals("closed loop rules") ){
+            closedLoopRules = value.equals("none") ? "" : value;
+        } else if( name.equals("motion gate") ){
+            motionGate = value.equals("none") ? "" : value;
+        } else if( name.equals("frame compression") ){
+            frameCompression = value.equals("none") ? "" : value;
+        } else if( name.equals("frame stripes") ){
+            frameStripes = value.equals("none") ? "" : value;
+        } else if( name.equals("worm crop") ){
+            wormCrop = value.equals("none") ? "" : value;
+        } else if( name.equals("ramp base") ){
+            rampBase = toInt(name, value);
+        } else if( name.equals("ramp start") ){
+            rampStart = toInt(name, value);
+        } else if( name.equals("ramp end") ){
+            rampEnd = toInt(name, value);
+        } else if( name.equals("auto-tracking enabled") ){
+            enableTracking = toBoolean(name, value);
+        } else if( name.equals("multi-worm tracking enabled") ){
+            multiWorm = toBoolean(name, value);
+        } else if( name.equals("threshold") ){
+            try {
+                threshold = Double.parseDouble(value);
+            } catch (NumberFormatException e){
+                throw new IllegalArgumentException(name + " is not a number: " + value);
+            }
+        } else if( name.equals("tracking speed") ){
+            trackerSpeed = toInt(name, value);
+        } else if( name.equals("repeat") ){
+            repeat = toInt(name, value);
+        } else if( name.equals("pause (s)") ){
+            try {
+                pauseSeconds = Double.parseDouble(value);
+            } catch (NumberFormatException e){
+                throw new IllegalArgumentException(name + " is not a number: " + value);
+            }
+        } else {
+            for(String ignored : IGNORED_NAMES){
+                if( name.equals(ignored) ){
+                    return;
+                }
+            }
+            // a typo would otherwise run a whole screen with a default
+            throw new IllegalArgumentException("unknown setting " + name);
+        }
+    }
+
+    // the same checks the ui makes before a job starts, throws IllegalArgumentException with the first problem
+    public void validate(){
+        if( !saveDirectory.isEmpty() && new File(saveDirectory).isFile() ){
+            throw new IllegalArgumentException("save directory is a file");
+        }
+        if( numFrames <= 0 || numFrames > MAX_FRAMES ){
+            throw new IllegalArgumentException("number of frames must be in the range of [1, " + String.valueOf(MAX_FRAMES) + "]");
+        }
+        boolean knownRate = false;
+        for(int fps : FRAME_RATES){
+            knownRate = knownRate || fps == framesPerSecond;
+        }
+        if( !knownRate ){
+            throw new IllegalArgumentException("frames per second must be 1, 10, 20 or 26");
+        }
+        if( repeat <= 0 ){
+            throw new IllegalArgumentException("repeat must be greater than 0");
+        }
+        if( pauseSeconds < 0 ){
+            throw new IllegalArgumentException("pause must be non-negative");
+        }
+        try {
+            RecordingGate.parse(motionGate);
+        } catch (IllegalArgumentException e){
+            throw new IllegalArgumentException("motion gate: " + e.getMessage());
+        }
+        try {
+            WormCrop.parse(wormCrop);
+        } catch (IllegalArgumentException e){
+            throw new IllegalArgumentException("worm crop: " + e.getMessage());
+        }
+        try {
+            FrameWriter.parse(frameCompression);
+        } catch (IllegalArgumentException e){
+            throw new IllegalArgumentException("frame compression: " + e.getMessage());
+        }
+        try {
+            FrameStripes.parse(frameStripes);
+        } catch (IllegalArgumentException e){
+            throw new IllegalArgumentException("frame stripes: " + e.getMessage());
+        }
+        if( !enableStimulator ){
+            return;
+        }
+
+        if( preStimMs <= 0 ){
+            throw new IllegalArgumentException("pre stimulation must be greater than 0");
+        }
+        if( stimStrength > Stimulator.ON_SIGNAL || stimStrength < 0 ){
+            throw new IllegalArgumentException("stimulation strength must be in the range of [0, 63]");
+        }
+        if( stimCycleMs <= 0 ){
+            throw new IllegalArgumentException("stimulation cycle duration must be greater than 0");
+        }
+        if( numStimCycles <= 0 ){
+            throw new IllegalArgumentException("number of cycles must be greater than 0");
+        }
+        if( rampBase < 0 || rampStart < 0 ){
+            throw new IllegalArgumentException("ramp base and ramp start must be non-negative");
+        }
+        if( rampEnd < 0 || rampEnd > Stimulator.ON_SIGNAL ){
+            throw new IllegalArgumentException("ramp end must be in the range of [0, 63]");
+        }
+        try {
+            new StimulationWaveform().parse(waveform);
+        } catch (IllegalArgumentException e){
+            throw new IllegalArgumentException("waveform: " + e.getMessage());
+        }
+        try {
+            if( !secondWaveform.isEmpty() ){
+                new StimulationWaveform().parse(secondWaveform);
+            }
+        } catch (IllegalArgumentException e){
+            throw new IllegalArgumentException("DA2 waveform: " + e.getMessage());
+        }
+        try {
+            StimulationRule.parseRules(closedLoopRules);
+        } catch (IllegalArgumentException e){
+            throw new IllegalArgumentException("closed loop " + e.getMessage());
+        }
+    }
+
+    // how long the job images for, ms
+    public long durationMs(){
+        return 1000L * numFrames / framesPerSecond;
+    }
+
+    // e.g. "3000 frames at 26 fps, stimulation sine 2, tracking"
+    public String describe(){
+        return String.valueOf(numFrames) + " frames at " + String.valueOf(framesPerSecond) + " fps" +
+            (enableStimulator ? ", stimulation " + (closedLoopRules.isEmpty() ? waveform : "closed loop") : "") +
+            (enableTracking ? ", tracking" : "");
+    }
+
+    private static int toInt(String name, String value){
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e){
+            throw new IllegalArgumentException(name + " is not a whole number: " + value);
+        }
+    }
+
+    private static boolean toBoolean(String name, String value){
+        if( value.equalsIgnoreCase("true") || value.equalsIgnoreCase("yes") ){
+            return true;
+        }
+        if( value.equalsIgnoreCase("false") || value.equalsIgnoreCase("no") ){
+            return false;
+        }
+        throw new IllegalArgumentException(name + " must be true or false: " + value);
+    }
+}
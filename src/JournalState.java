@@ -0,0 +1,48 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// what the journal of a run holds
+class JournalState {
+    String directory;
+    int jobId;
+    boolean finished;
+    int resumes;
+    ArrayList<String> args = new ArrayList<String>();             // the lines of job-args.txt
+    HashMap<Integer, String> stimStrengthRows = new HashMap<Integer, String>();
+    HashMap<Integer, String> stagePosRows = new HashMap<Integer, String>();
+    HashMap<Integer, String> framePaths = new HashMap<Integer, String>();
+    HashMap<Integer, String> trackingRows = new HashMap<Integer, String>();
+    ArrayList<String> wormTrackRows = new ArrayList<String>();
+    int lastFrame = -1;                // last frame taken
+    int lastTrackingTask = -1;
+    int framesOnDisk;                  // set by RunJournal.repair
+    int framesLost;
+    int lastFrameOnDisk = -1;
+
+    // the number of frames the job was started with, 0 if the args did not say
+    public int numFrames(){
+        for(String arg : args){
+            if( arg.startsWith("number of frames:") ){
+                try {
+                    return Integer.parseInt(arg.substring("number of frames:".length()).trim());
+                } catch (NumberFormatException e){
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    // frames still to take when it is resumed
+    public int framesLeft(){
+        return Math.max(0, numFrames() - (lastFrame + 1));
+    }
+
+    // e.g. "temp4 did not finish: 1200 of 3000 frames taken, 1198 on disk, last 1199, 2 lost, csv files repaired"
+    public String describe(){
+        return new File(directory).getName() + " did not finish: " + String.valueOf(lastFrame + 1) + " of " + String.valueOf(numFrames()) +
+            " frames taken, " + String.valueOf(framesOnDisk) + " on disk, last " + String.valueOf(lastFrameOnDisk) +
+            (framesLost > 0 ? ", " + String.valueOf(framesLost) + " lost" : "") + ", csv files repaired";
+    }
+}
@@ -0,0 +1,81 @@
+import ij.ImagePlus;
+import ij.gui.ImageWindow;
+
+import mmcorej.CMMCore;
+
+import org.micromanager.api.ScriptInterface;
+
+// frames from micromanager's live mode window, what the plugin has always used
+// the window has no frame numbers, so an image is only a new frame when the window shows a new pixel
+// array, or other pixels in the same one (see Frame.signature). the same image polled again is not
+// published twice
+class LiveWindowFrameSource implements FrameSource {
+    static final long MIN_INTERVAL_NANOS = 5000000L; // live mode does not redraw faster than this
+
+    private ScriptInterface app;
+    private CMMCore core;
+    private long framesRead;
+    private Object lastPixels;
+    private long lastSignature;
+
+    LiveWindowFrameSource(ScriptInterface app_, CMMCore core_){
+        app = app_;
+        core = core_;
+        framesRead = 0;
+    }
+
+    public boolean read(Frame frame){
+        if( !app.isLiveModeOn() ){
+            return false;
+        }
+        ImageWindow liveWindow = app.getSnapLiveWin();
+        if( liveWindow == null ){
+            return false;
+        }
+        ImagePlus liveImage = liveWindow.getImagePlus();
+        if( liveImage == null ){
+            return false;
+        }
+
+        Object pixels = liveImage.getProcessor().getPixels();
+        if( !(pixels instanceof short[]) && !(pixels instanceof byte[]) ){
+            return false;
+        }
+
+        long signature = Frame.signature(pixels);
+        if( pixels == lastPixels && signature == lastSignature ){
+            return false;
+        }
+        lastPixels = pixels;
+        lastSignature = signature;
+
+        frame.ensureSize(liveImage.getWidth(), liveImage.getHeight(), pixels instanceof short[] ? 2 : 1);
+        frame.copyPixelsFrom(pixels);
+        frame.sourceSequence = framesRead++;
+        return true;
+    }
+
+    public int getWidth(){
+        return (int) core.getImageWidth();
+    }
+
+    public int getHeight(){
+        return (int) core.getImageHeight();
+    }
+
+    public int getBytesPerPixel(){
+        return (int) core.getBytesPerPixel();
+    }
+
+    public long getFrameIntervalNanos(){
+        try {
+            return Math.max(MIN_INTERVAL_NANOS, (long) (core.getExposure() * 1.0e6));
+        } catch (java.lang.Exception e){
+            return MIN_INTERVAL_NANOS;
+        }
+    }
+
+    public String getName(){
+        return "live window";
+    }
+}
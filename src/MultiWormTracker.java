@@ -0,0 +1,261 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+// buckets blobs into square cells the size of the link distance
+// so a track only has to look at the blobs in the 3x3 cells around its predicted position
+// instead of every blob in the frame
+class SpatialGrid {
+    private double cellSize;
+    private int cols;
+    private int rows;
+
+    private int[] cellHead;   // first blob index in each cell, -1 if empty
+    private int[] nextInCell; // next blob index in the same cell, -1 at the end
+
+    SpatialGrid(double cellSize_){
+        cellSize = cellSize_;
+        cellHead = new int[0];
+        nextInCell = new int[0];
+    }
+
+    public void build(ArrayList<WormBlob> blobs, int width, int height){
+        cols = (int) Math.ceil(width / cellSize) + 1;
+        rows = (int) Math.ceil(height / cellSize) + 1;
+
+        // reuse the arrays between updates, they only grow when the frame or blob count does
+        if( cellHead.length < cols * rows ){
+            cellHead = new int[cols * rows];
+        }
+        if( nextInCell.length < blobs.size() ){
+            nextInCell = new int[blobs.size() * 2];
+        }
+        Arrays.fill(cellHead, 0, cols * rows, -1);
+
+        for(int i = 0; i < blobs.size(); i++){
+            WormBlob b = blobs.get(i);
+            int cell = cellIndex(b.x, b.y);
+            nextInCell[i] = cellHead[cell];
+            cellHead[cell] = i;
+        }
+    }
+
+    // write the indices of the blobs in the cells surrounding (x, y) into out, return how many were written
+    public int query(double x, double y, int[] out){
+        int cx = clamp((int) (x / cellSize), cols);
+        int cy = clamp((int) (y / cellSize), rows);
+        int count = 0;
+
+        for(int gy = Math.max(cy - 1, 0); gy <= Math.min(cy + 1, rows - 1); gy++){
+            for(int gx = Math.max(cx - 1, 0); gx <= Math.min(cx + 1, cols - 1); gx++){
+                for(int i = cellHead[gy * cols + gx]; i != -1; i = nextInCell[i]){
+                    out[count++] = i;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    private int cellIndex(double x, double y){
+        return clamp((int) (y / cellSize), rows) * cols + clamp((int) (x / cellSize), cols);
+    }
+
+    private static int clamp(int v, int n){
+        return Math.max(0, Math.min(v, n - 1));
+    }
+}
+
+// keeps identities for several worms between tracking updates
+// replaces the getMinDist/getRoiOrder matching in notes/ which compared every object pair and
+// sorted distances with a nested index lookup
+//
+// each update:
+//   1. bucket the new blobs in a spatial grid
+//   2. for each track collect the blobs within MAX_LINK_DISTANCE of its predicted position
+//   3. sort all candidate (track, blob) pairs by distance and assign greedily, closest pairs first
+//   4. unmatched worm shaped blobs start new tracks, tracks unmatched for too long are dropped
+class MultiWormTracker {
+    static final double MAX_LINK_DISTANCE = 50.0; // pixels a worm can move between updates
+    static final int MAX_MISSED_UPDATES = 10;     // drop a track after this many updates without a blob
+    static final int MAX_OBJECTS = 0xffff;        // blob and track indices are packed into 16 bits
+
+    private ArrayList<WormTrack> tracks;
+    private SpatialGrid grid;
+    private int nextTrackId;
+
+    private int targetId;                      // id of the track the stage follows, -1 if none
+    // point picked by the user, resolved on the next update. set without the lock so a click never waits
+    // for an update, taken with getAndSet so a pick made during an update is kept for the next one
+    private final AtomicReference<double[]> requestedTarget = new AtomicReference<double[]>();
+
+    MultiWormTracker(){
+        tracks = new ArrayList<WormTrack>();
+        grid = new SpatialGrid(MAX_LINK_DISTANCE);
+        reset();
+    }
+
+    public synchronized void reset(){
+        tracks.clear();
+        nextTrackId = 1;
+        targetId = -1;
+    }
+
+    // follow the worm closest to (x, y) from the next update on
+    public void selectTarget(double x, double y){
+        requestedTarget.set(new double[]{ x, y });
+    }
+
+    public synchronized void update(ArrayList<WormBlob> blobs, int width, int height){
+        int numBlobs = Math.min(blobs.size(), MAX_OBJECTS);
+        int numTracks = Math.min(tracks.size(), MAX_OBJECTS);
+
+        grid.build(blobs, width, height);
+
+        // candidate pairs packed as (float distance bits << 32 | track << 16 | blob)
+        // distances are non negative so the float bits sort in the same order as the distances
+        // and the pairs can be sorted as primitives
+        long[] candidates = new long[Math.max(numTracks * 8, 16)];
+        int numCandidates = 0;
+        int[] nearby = new int[Math.max(blobs.size(), 1)];
+        double maxDistSq = MAX_LINK_DISTANCE * MAX_LINK_DISTANCE;
+
+        for(int t = 0; t < numTracks; t++){
+            WormTrack track = tracks.get(t);
+            double px = track.predictedX();
+            double py = track.predictedY();
+
+            int n = grid.query(px, py, nearby);
+            for(int k = 0; k < n; k++){
+                int b = nearby[k];
+                if( b >= numBlobs ){
+                    continue;
+                }
+                WormBlob blob = blobs.get(b);
+                double dx = blob.x - px;
+                double dy = blob.y - py;
+                double distSq = dx * dx + dy * dy;
+
+                if( distSq <= maxDistSq ){
+                    if( numCandidates == candidates.length ){
+                        candidates = Arrays.copyOf(candidates, candidates.length * 2);
+                    }
+                    long distBits = Float.floatToIntBits((float) distSq);
+                    candidates[numCandidates++] = (distBits << 32) | ((long) t << 16) | b;
+                }
+            }
+        }
+
+        Arrays.sort(candidates, 0, numCandidates);
+
+        boolean[] trackMatched = new boolean[numTracks];
+        boolean[] blobMatched = new boolean[numBlobs];
+
+        for(int c = 0; c < numCandidates; c++){
+            int t = (int) ((candidates[c] >> 16) & 0xffff);
+            int b = (int) (candidates[c] & 0xffff);
+            if( trackMatched[t] || blobMatched[b] ){
+                continue;
+            }
+            trackMatched[t] = true;
+            blobMatched[b] = true;
+
+            WormTrack track = tracks.get(t);
+            WormBlob blob = blobs.get(b);
+
+            // smooth the velocity so a single noisy centroid does not throw the prediction off
+            track.vx = 0.5 * track.vx + 0.5 * (blob.x - track.x);
+            track.vy = 0.5 * track.vy + 0.5 * (blob.y - track.y);
+            track.x = blob.x;
+            track.y = blob.y;
+            track.missedUpdates = 0;
+            track.setShape(blob);
+        }
+
+        // coast unmatched tracks along their last velocity, drop the ones that have been gone too long
+        ArrayList<WormTrack> survivors = new ArrayList<WormTrack>();
+        for(int t = 0; t < tracks.size(); t++){
+            WormTrack track = tracks.get(t);
+            if( t >= numTracks || !trackMatched[t] ){
+                track.missedUpdates++;
+                track.lastBlob = null;
+                track.x = track.predictedX();
+                track.y = track.predictedY();
+            }
+            if( track.missedUpdates <= MAX_MISSED_UPDATES ){
+                survivors.add(track);
+            }
+        }
+        tracks = survivors;
+
+        // known worms are followed whatever shape they take (e.g. coiling during an omega turn)
+        // but only worm shaped blobs start new tracks
+        for(int b = 0; b < numBlobs; b++){
+            if( !blobMatched[b] && blobs.get(b).isWormShaped() ){
+                tracks.add(new WormTrack(nextTrackId++, blobs.get(b)));
+            }
+        }
+
+        updateTarget(width, height);
+    }
+
+    // the track the stage should follow, null if there is none
+    public synchronized WormTrack getTarget(){
+        return findTrack(targetId);
+    }
+
+    // the blob the target was matched to in the last update, null if it was missed
+    public synchronized WormBlob getTargetBlob(){
+        WormTrack target = findTrack(targetId);
+        return target != null ? target.lastBlob : null;
+    }
+
+    public synchronized int getTargetId(){
+        return targetId;
+    }
+
+    public synchronized ArrayList<WormTrack> getTracks(){
+        return new ArrayList<WormTrack>(tracks);
+    }
+
+    private void updateTarget(int width, int height){
+        double[] requested = requestedTarget.getAndSet(null);
+
+        if( requested != null ){
+            WormTrack closest = findClosestTrack(requested[0], requested[1]);
+            if( closest != null ){
+                targetId = closest.id;
+            }
+        } else if( findTrack(targetId) == null ){
+            // nothing picked yet or the target was dropped
+            // the stage keeps the target centered so the worm closest to the center is the best guess
+            WormTrack closest = findClosestTrack(width / 2.0, height / 2.0);
+            targetId = closest != null ? closest.id : -1;
+        }
+    }
+
+    private WormTrack findTrack(int id){
+        for(int i = 0; i < tracks.size(); i++){
+            if( tracks.get(i).id == id ){
+                return tracks.get(i);
+            }
+        }
+        return null;
+    }
+
+    private WormTrack findClosestTrack(double x, double y){
+        WormTrack closest = null;
+        double minDistSq = Double.MAX_VALUE;
+        for(int i = 0; i < tracks.size(); i++){
+            WormTrack track = tracks.get(i);
+            double dx = track.x - x;
+            double dy = track.y - y;
+            double distSq = dx * dx + dy * dy;
+            if( distSq < minDistSq ){
+                minDistSq = distSq;
+                closest = track;
+            }
+        }
+        return closest;
+    }
+}
@@ -0,0 +1,397 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.TiffEncoder;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// the frames of a pre-trigger buffer: the off heap pixels and what is known about each frame
+// a new one is made when the frame size or the seconds change, the writer keeps the one it is saving from
+class PreTriggerSlots {
+    final ByteBuffer buffer;
+    final int capacity;             // frames
+    final int width;
+    final int height;
+    final int bytesPerPixel;
+    final long[] index;             // frames copied before the one in the slot, -1 if the slot is empty
+    final long[] sequence;          // frame ring sequence
+    final long[] nanos;             // when the frame was read from the source
+    final int[] level;              // stimulation levels when the frame was copied
+    final int[] secondLevel;
+
+    // windows of these slots waiting for the writer, so slots made later start with none of them
+    final ConcurrentLinkedQueue<Long> queuedStarts = new ConcurrentLinkedQueue<Long>(); // first index of each window
+    volatile long writerFrom = -1;  // oldest index the writer still has to save, -1 when idle
+
+    PreTriggerSlots(int capacity_, int width_, int height_, int bytesPerPixel_){
+        capacity = capacity_;
+        width = width_;
+        height = height_;
+        bytesPerPixel = bytesPerPixel_;
+        buffer = ByteBuffer.allocateDirect(capacity * width * height * bytesPerPixel).order(ByteOrder.nativeOrder());
+        index = new long[capacity];
+        Arrays.fill(index, -1);
+        sequence = new long[capacity];
+        nanos = new long[capacity];
+        level = new int[capacity];
+        secondLevel = new int[capacity];
+    }
+
+    boolean fits(Frame frame){
+        return frame.width == width && frame.height == height && frame.bytesPerPixel == bytesPerPixel;
+    }
+}
+
+// the pre-trigger stage of the frame ring: keeps the last seconds of camera frames in memory so the
+// frames from just before an event can be saved, without recording the hours in between
+//
+// every frame is copied into one direct buffer allocated outside the java heap, so minutes of frames
+// add nothing to garbage collection, with its sequence, time and stimulation levels in plain arrays
+// next to it. an event (a mark from the ui, the light coming on, a closed loop rule firing) keeps the
+// frames of the last preSeconds and streaming goes on for postSeconds, then the window is written to
+// trigger<i> in the save directory on a writer thread. events during an open window are noted in it.
+// the slots of a window are not reused until they are written, new frames are dropped and counted
+// instead, which only happens if the disk falls MARGIN_SECONDS behind
+class PreTriggerBuffer {
+    static final double MARGIN_SECONDS = 2.0;      // room in the buffer for the writer to catch up
+    static final long MAX_BYTES = 1L << 30;        // the buffer is shortened to fit this
+    static final long STOP_TIMEOUT_SECONDS = 30;   // how long closing waits for the last frames to be saved
+
+    private final FrameConsumer frames;
+    private final TrackStimController controller;
+    private final ExecutorService writer;
+    private final ConcurrentLinkedQueue<Object[]> events;  // time (ns), reason, not yet taken by drain
+
+    private volatile double preSeconds;   // 0 when the buffer is off
+    private volatile double postSeconds;
+    private volatile String directory;
+
+    // only touched by drain, apart from the writer reading slots it has protected
+    private PreTriggerSlots slots;        // null until the first frame, or while the buffer is off
+    private ByteBuffer bytes;             // views of the buffer for drain
+    private ShortBuffer shorts;
+    private long copied;                  // frames copied since the slots were made
+    private long dropped;
+
+    // the window being recorded
+    private long windowStart = -1;        // index of its first frame, -1 when there is none
+    private long windowEndNanos;
+    private long windowTriggerNanos;
+    private ArrayList<String> windowEvents;
+
+    private volatile int windowsSaved;
+
+    PreTriggerBuffer(TrackStimController controller_, FrameRing ring){
+        controller = controller_;
+        frames = ring.addConsumer("pre-trigger");
+        writer = Executors.newSingleThreadExecutor();
+        events = new ConcurrentLinkedQueue<Object[]>();
+        directory = "";
+    }
+
+    // keep preSeconds of frames before an event and postSeconds after it, preSeconds 0 turns it off
+    // and frees the buffer. an open window is saved with the frames it has so far
+    public synchronized void configure(double preSeconds_, double postSeconds_, String directory_){
+        if( windowStart >= 0 ){
+            closeWindow();
+        }
+        preSeconds = Math.max(0, preSeconds_);
+        postSeconds = Math.max(0, postSeconds_);
+        setDirectory(directory_);
+        slots = null;
+        copied = 0;
+        events.clear();
+        if( preSeconds > 0 ){
+            IJ.log("[INFO] keeping " + String.valueOf(preSeconds) + " s of frames before events and " + String.valueOf(postSeconds) + " s after");
+        }
+    }
+
+    // where the trigger<i> directories are made
+    public void setDirectory(String directory_){
+        if( directory_ != null && !directory_.isEmpty() ){
+            directory = directory_;
+        }
+    }
+
+    public boolean isEnabled(){
+        return preSeconds > 0;
+    }
+
+    // an event happened now, cheap enough to be called from the stimulation timeline
+    public void trigger(String reason){
+        if( preSeconds > 0 ){
+            events.add(new Object[]{ System.nanoTime(), reason });
+        }
+    }
+
+    // copy every frame published since the last call and open or close windows
+    public synchronized void drain(){
+        if( preSeconds <= 0 ){
+            events.clear();
+            frames.latest(false);
+            return;
+        }
+
+        Frame frame;
+        while( (frame = frames.next()) != null ){
+            if( slots == null || !slots.fits(frame) ){
+                if( !allocate(frame) ){
+                    return;
+                }
+            }
+            copy(frame);
+        }
+
+        Object[] event;
+        while( (event = events.poll()) != null ){
+            addEvent((Long) event[0], (String) event[1]);
+        }
+
+        // the window is complete once a frame from after its end came in
+        if( windowStart >= 0 && copied > 0 && slots.nanos[(int) ((copied - 1) % slots.capacity)] >= windowEndNanos ){
+            closeWindow();
+        }
+    }
+
+    // hand the open window to the writer with the frames copied so far
+    private void closeWindow(){
+        final long start = windowStart;
+        final long end = copied - 1;
+        final long triggerNanos = windowTriggerNanos;
+        final ArrayList<String> notes = windowEvents;
+        final PreTriggerSlots source = slots;
+        source.queuedStarts.add(start);
+        windowStart = -1;
+        writer.submit(new Runnable() {
+            @Override
+            public void run(){
+                save(source, start, end, triggerNanos, notes);
+            }
+        });
+    }
+
+    private boolean allocate(Frame frame){
+        long frameBytes = (long) frame.width * frame.height * frame.bytesPerPixel;
+        long intervalNanos = Math.max(1, controller.getFrameSource().getFrameIntervalNanos());
+        long wanted = (long) Math.ceil((preSeconds + postSeconds + MARGIN_SECONDS) * 1.0e9 / intervalNanos);
+        int capacity = (int) Math.max(2, Math.min(wanted, MAX_BYTES / frameBytes));
+        if( capacity < wanted ){
+            IJ.log("[WARNING] the pre-trigger buffer holds " + String.valueOf(capacity) + " frames, not the " + String.valueOf(wanted) + " asked for");
+        }
+
+        try {
+            slots = new PreTriggerSlots(capacity, frame.width, frame.height, frame.bytesPerPixel);
+        } catch (OutOfMemoryError e){
+            IJ.log("[ERROR] not enough memory for the pre-trigger buffer, it is turned off");
+            slots = null;
+            preSeconds = 0;
+            return false;
+        }
+        bytes = slots.buffer.duplicate();
+        shorts = slots.buffer.duplicate().order(ByteOrder.nativeOrder()).asShortBuffer();
+        copied = 0;
+        windowStart = -1;
+        IJ.log("[INFO] pre-trigger buffer: " + String.valueOf(capacity) + " frames, " +
+            String.valueOf(capacity * frameBytes / (1 << 20)) + " MB outside the java heap");
+        return true;
+    }
+
+    private void copy(Frame frame){
+        // the frame that would be overwritten is still needed by the window or the writer
+        long overwritten = copied - slots.capacity;
+        long protect = Long.MAX_VALUE;
+        if( windowStart >= 0 ){
+            protect = windowStart;
+        }
+        long writing = slots.writerFrom;
+        if( writing >= 0 ){
+            protect = Math.min(protect, writing);
+        }
+        for(Long queued : slots.queuedStarts){
+            protect = Math.min(protect, queued);
+        }
+        if( overwritten >= 0 && overwritten >= protect ){
+            dropped++;
+            return;
+        }
+
+        int slot = (int) (copied % slots.capacity);
+        slots.index[slot] = -1;
+        int pixelsPerFrame = slots.width * slots.height;
+        if( slots.bytesPerPixel == 2 ){
+            shorts.position(slot * pixelsPerFrame);
+            shorts.put((short[]) frame.pixels, 0, pixelsPerFrame);
+        } else {
+            bytes.position(slot * pixelsPerFrame);
+            bytes.put((byte[]) frame.pixels, 0, pixelsPerFrame);
+        }
+        if( !frames.stillValid(frame) ){
+            // overwritten by the capture thread while it was copied
+            dropped++;
+            return;
+        }
+
+        slots.sequence[slot] = frame.sequence;
+        slots.nanos[slot] = frame.timestampNanos;
+        slots.level[slot] = controller.getStimulatorStrength(Stimulator.STIMULATION_CHANNEL);
+        slots.secondLevel[slot] = controller.getStimulatorStrength(Stimulator.SECOND_CHANNEL);
+        slots.index[slot] = copied;
+        copied++;
+    }
+
+    private void addEvent(long nanos, String reason){
+        if( windowStart >= 0 ){
+            windowEvents.add(ms(nanos - windowTriggerNanos) + ", " + reason);
+            return;
+        }
+        if( copied == 0 ){
+            return;
+        }
+
+        // the oldest frame still in the buffer from no more than preSeconds before the event
+        long start = copied - 1;
+        long oldest = Math.max(0, copied - slots.capacity);
+        while( start > oldest ){
+            int slot = (int) ((start - 1) % slots.capacity);
+            if( slots.index[slot] != start - 1 || slots.nanos[slot] < nanos - (long) (preSeconds * 1.0e9) ){
+                break;
+            }
+            start--;
+        }
+        windowStart = start;
+        windowTriggerNanos = nanos;
+        windowEndNanos = nanos + (long) (postSeconds * 1.0e9);
+        windowEvents = new ArrayList<String>();
+        windowEvents.add(ms(0) + ", " + reason);
+        IJ.log("[INFO] " + reason + ", keeping the frames around it");
+    }
+
+    // write frames start to end of the buffer to trigger<i>, runs on the writer thread
+    private void save(PreTriggerSlots source, long start, long end, long triggerNanos, ArrayList<String> notes){
+        // the window stays protected while it moves from the queue to the writer
+        source.writerFrom = start;
+        source.queuedStarts.poll();
+
+        File dir = null;
+        String root = directory;
+        if( new File(root).isDirectory() ){
+            int i = 1;
+            dir = new File(root, "trigger" + String.valueOf(i));
+            while( dir.exists() ){
+                i++;
+                dir = new File(root, "trigger" + String.valueOf(i));
+            }
+            if( !dir.mkdir() ){
+                dir = null;
+            }
+        }
+        if( dir == null ){
+            IJ.log("[ERROR] no save directory for the frames around the event, they are not saved");
+            source.writerFrom = -1;
+            return;
+        }
+
+        ByteBuffer view = source.buffer.duplicate();
+        ShortBuffer shortView = source.buffer.duplicate().order(ByteOrder.nativeOrder()).asShortBuffer();
+        int pixelsPerFrame = source.width * source.height;
+        ArrayList<String> rows = new ArrayList<String>();
+        int saved = 0;
+        for(long index = start; index <= end; index++){
+            source.writerFrom = index;
+            int slot = (int) (index % source.capacity);
+            if( source.index[slot] != index ){
+                continue;
+            }
+
+            ImageProcessor ip;
+            if( source.bytesPerPixel == 2 ){
+                short[] pixels = new short[pixelsPerFrame];
+                shortView.position(slot * pixelsPerFrame);
+                shortView.get(pixels);
+                ip = new ShortProcessor(source.width, source.height, pixels, null);
+            } else {
+                byte[] pixels = new byte[pixelsPerFrame];
+                view.position(slot * pixelsPerFrame);
+                view.get(pixels);
+                ip = new ByteProcessor(source.width, source.height, pixels, null);
+            }
+            FileInfo fi = new ImagePlus("", ip).getFileInfo();
+            try {
+                FileOutputStream out = new FileOutputStream(new File(dir, String.valueOf(saved) + ".tiff"));
+                new TiffEncoder(fi).write(out);
+                out.close();
+            } catch (java.io.IOException e){
+                IJ.log("[ERROR] unable to write frame " + String.valueOf(saved) + " around the event");
+            }
+            rows.add(String.valueOf(saved) + ", " + String.valueOf(source.sequence[slot]) + ", " +
+                ms(source.nanos[slot] - triggerNanos) + ", " + String.valueOf(source.level[slot]) + ", " + String.valueOf(source.secondLevel[slot]));
+            saved++;
+        }
+        source.writerFrom = -1;
+
+        String prefix = dir.getPath() + File.separator + dir.getName() + "_";
+        PrintWriter p = null;
+        try {
+            p = new PrintWriter(prefix + "frames.csv");
+            p.println("frame, frame ring sequence, time from event (ms), stimulator signal, stimulator signal DA2");
+            for(String row : rows){
+                p.println(row);
+            }
+            p.close();
+            p = new PrintWriter(prefix + "events.csv");
+            p.println("time from first event (ms), event");
+            for(String note : notes){
+                p.println(note);
+            }
+        } catch (java.io.IOException e){
+            IJ.log("[ERROR] unable to write the frame times around the event");
+        } finally {
+            if( p != null ){
+                p.close();
+            }
+        }
+        windowsSaved++;
+        IJ.log("[INFO] saved " + String.valueOf(saved) + " frames around the event in " + dir.getPath());
+    }
+
+    public synchronized String describe(){
+        if( slots == null ){
+            return "pre-trigger buffer: off\n";
+        }
+        return "pre-trigger buffer: " + String.valueOf(slots.capacity) + " frames, " + String.valueOf(windowsSaved) + " event windows saved, " +
+            String.valueOf(dropped) + " frames dropped while the writer caught up\n";
+    }
+
+    // save the open window as far as it got and wait a while for the writer to finish
+    public void stop(){
+        synchronized(this){
+            if( windowStart >= 0 ){
+                closeWindow();
+            }
+        }
+        writer.shutdown();
+        try {
+            writer.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String ms(long nanos){
+        return String.valueOf(Math.round(nanos / 1000.0) / 1000.0);
+    }
+}
@@ -0,0 +1,184 @@
+import ij.IJ;
+
+import java.io.PrintWriter;
+
+// motion gated recording: decides for every frame of a job whether it is worth saving, so long runs
+// on a quiescent worm do not fill the disk with the same image
+//
+// written as "motion" followed by any of these options, "" saves every frame
+//   energy=<fraction>  the worm moves when the frame differs from the one before by more than this, the
+//                      mean absolute pixel difference relative to the mean intensity (default 0.02)
+//   speed=<um/s>       or when the stage follows the worm faster than this, auto-tracking only (default 20)
+//   hold=<ms>          frames are saved this long after the last motion (default 2000)
+//   every=<n>          after that one quiet frame in n is saved, 0 saves none (default 10)
+// e.g. "motion energy=0.05 every=26"
+//
+// the difference is taken on every SAMPLE_STEP-th pixel of every SAMPLE_STEP-th row, a few thousand
+// pixels, so the decision takes a fraction of a millisecond on the imaging thread. frames that are not
+// saved still get their stage position and stimulation rows, and every decision is saved to
+// recording-gate.csv with the numbers it was made on
+class RecordingGate {
+    static final int SAMPLE_STEP = 8;
+    static final int FULL = 0;        // moving, or within hold of the last motion
+    static final int DECIMATED = 1;   // quiet, one frame in every
+    static final int METADATA = 2;    // quiet, the frame is not saved
+    static final String[] DECISION_NAMES = { "full", "decimated", "metadata" };
+
+    String spec;
+    double energyThreshold = 0.02;
+    double speedThreshold = 20;
+    double holdMs = 2000;
+    int every = 10;
+
+    private int[] reference;                     // sampled pixels of the previous frame
+    private long lastMotionNanos;
+    private int quietFrames;                     // since the last motion
+    private volatile double trackedSpeed = Double.NaN;  // um/s, NaN without auto-tracking
+    private String[] decisionData;               // one row per frame
+    private int[] decisionCounts;
+
+    // null for "", throws IllegalArgumentException if the spec cannot be understood
+    public static RecordingGate parse(String spec){
+        String[] words = spec.trim().split("\\s+");
+        if( words[0].isEmpty() ){
+            return null;
+        }
+        if( !words[0].equals("motion") ){
+            throw new IllegalArgumentException("unknown gate " + words[0] + ", expected motion");
+        }
+
+        RecordingGate gate = new RecordingGate();
+        gate.spec = spec.trim();
+        for(int i = 1; i < words.length; i++){
+            String[] option = words[i].split("=", 2);
+            if( option.length < 2 ){
+                throw new IllegalArgumentException("expected name=value, got " + words[i]);
+            }
+            double value;
+            try {
+                value = Double.parseDouble(option[1]);
+            } catch (NumberFormatException e){
+                throw new IllegalArgumentException(option[0] + " is not a number: " + option[1]);
+            }
+            if( value < 0 ){
+                throw new IllegalArgumentException(option[0] + " must be non-negative");
+            }
+            if( option[0].equals("energy") ){
+                gate.energyThreshold = value;
+            } else if( option[0].equals("speed") ){
+                gate.speedThreshold = value;
+            } else if( option[0].equals("hold") ){
+                gate.holdMs = value;
+            } else if( option[0].equals("every") ){
+                gate.every = (int) value;
+            } else {
+                throw new IllegalArgumentException("unknown option " + option[0]);
+            }
+        }
+        return gate;
+    }
+
+    // forget the last job
+    public synchronized void start(int numFrames){
+        reference = null;
+        lastMotionNanos = 0;
+        quietFrames = 0;
+        trackedSpeed = Double.NaN;
+        decisionData = new String[numFrames];
+        decisionCounts = new int[DECISION_NAMES.length];
+    }
+
+    // the stage velocity of the last tracking task, mm/s, null when it lost the worm
+    public void updateTracking(double[] stageVelocity){
+        trackedSpeed = stageVelocity == null ? Double.NaN : 1000.0 * Math.hypot(stageVelocity[0], stageVelocity[1]);
+    }
+
+    // what to do with this frame of the job, FULL, DECIMATED or METADATA
+    public synchronized int decide(int frameIndex, Frame frame, String timeStamp){
+        long now = System.nanoTime();
+        double energy = differenceEnergy(frame);
+        double speed = trackedSpeed;
+        boolean moving = Double.isNaN(energy) || energy >= energyThreshold || (!Double.isNaN(speed) && speed >= speedThreshold);
+
+        int decision;
+        if( moving ){
+            lastMotionNanos = now;
+            quietFrames = 0;
+            decision = FULL;
+        } else if( now - lastMotionNanos < holdMs * 1.0e6 ){
+            decision = FULL;
+        } else {
+            decision = every > 0 && quietFrames % every == 0 ? DECIMATED : METADATA;
+            quietFrames++;
+        }
+
+        decisionCounts[decision]++;
+        if( frameIndex >= 0 && frameIndex < decisionData.length ){
+            decisionData[frameIndex] = String.valueOf(frameIndex) + ", " + timeStamp + ", " +
+                (Double.isNaN(energy) ? "NaN" : String.valueOf(Math.round(energy * 10000.0) / 10000.0)) + ", " +
+                (Double.isNaN(speed) ? "NaN" : String.valueOf(Math.round(speed * 10.0) / 10.0)) + ", " + DECISION_NAMES[decision];
+        }
+        return decision;
+    }
+
+    // mean absolute difference of the sampled pixels to the last frame, relative to its mean intensity
+    // NaN for the first frame of the job or after the image size changed
+    private double differenceEnergy(Frame frame){
+        int columns = (frame.width + SAMPLE_STEP - 1) / SAMPLE_STEP;
+        int rows = (frame.height + SAMPLE_STEP - 1) / SAMPLE_STEP;
+        boolean first = reference == null || reference.length != columns * rows;
+        if( first ){
+            reference = new int[columns * rows];
+        }
+
+        long differenceSum = 0;
+        long intensitySum = 0;
+        int k = 0;
+        for(int y = 0; y < frame.height; y += SAMPLE_STEP){
+            int row = y * frame.width;
+            for(int x = 0; x < frame.width; x += SAMPLE_STEP){
+                int v = frame.bytesPerPixel == 2 ? ((short[]) frame.pixels)[row + x] & 0xffff : ((byte[]) frame.pixels)[row + x] & 0xff;
+                differenceSum += Math.abs(v - reference[k]);
+                intensitySum += reference[k];
+                reference[k] = v;
+                k++;
+            }
+        }
+        if( first ){
+            return Double.NaN;
+        }
+        return intensitySum > 0 ? (double) differenceSum / intensitySum : (differenceSum > 0 ? Double.POSITIVE_INFINITY : 0.0);
+    }
+
+    // e.g. "frames saved: 120 full, 30 decimated, 850 metadata only"
+    public synchronized String describe(){
+        return "motion gate \"" + spec + "\", frames saved: " + String.valueOf(decisionCounts[FULL]) + " full, " +
+            String.valueOf(decisionCounts[DECIMATED]) + " decimated, " + String.valueOf(decisionCounts[METADATA]) + " metadata only";
+    }
+
+    // save every decision to <directory>/temp<job>_recording-gate.csv
+    public synchronized void save(String directory, int jobId){
+        if( decisionData == null ){
+            return;
+        }
+        IJ.log("[INFO] " + describe());
+
+        PrintWriter p = null;
+        try {
+            p = new PrintWriter(directory + "/" + "temp" + String.valueOf(jobId) + "_" + "recording-gate.csv");
+            p.println("frame, timestamp(ms), difference energy, tracked speed (um/s), decision");
+            for(int i = 0; i < decisionData.length; i++){
+                if( decisionData[i] != null ){
+                    p.println(decisionData[i]);
+                }
+            }
+        } catch (java.io.IOException e){
+            IJ.log("[ERROR] unable to write recording gate file");
+        } finally {
+            if( p != null ){
+                p.close();
+            }
+        }
+        decisionData = null;
+    }
+}
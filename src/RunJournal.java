@@ -0,0 +1,320 @@
+import ij.IJ;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// append only journal of a job, temp<i>_journal.txt in its directory, so a crash of micromanager or the
+// computer during a job loses at most the last second of it
+//
+// the csv files of a job are built in memory and written when it ends, the journal has every row of them as
+// it happens. one line per entry, tab separated:
+//   job     <job id>  <start, ms since 1970>
+//   arg     <line of job-args.txt>
+//   frame   <stim-strength.csv row>  <stage-pos.csv row>  <file the frame was saved to, - if only its rows were>
+//   track   <tracking-state.csv row>
+//   worm    <worm-tracks.csv row>
+//   resume  <time, ms since 1970>  <first frame taken after the restart>
+//   end     <time, ms since 1970>  [why, e.g. "not resumed"]
+// every line is handed to the operating system as it is written and synced to the disk every SYNC_INTERVAL_MS.
+// a job without an end line did not finish: repair() writes its csv files again from the journal and
+// TrackStimController.resumeImageAcquisition can take the rest of its frames into the same directory
+class RunJournal {
+    static final long SYNC_INTERVAL_MS = 1000;
+
+    private FileOutputStream file;
+    private Writer out;
+    private long lastSyncNanos;
+
+    // start the journal of a new job, or add to the one of a job that is resumed
+    RunJournal(String directory, int jobId, boolean resume) throws java.io.IOException {
+        file = new FileOutputStream(path(directory, jobId), resume);
+        out = new OutputStreamWriter(file, "UTF-8");
+        lastSyncNanos = System.nanoTime();
+    }
+
+    static String path(String directory, int jobId){
+        return directory + "/" + "temp" + String.valueOf(jobId) + "_" + "journal.txt";
+    }
+
+    public void start(int jobId){
+        append("job\t" + String.valueOf(jobId) + "\t" + String.valueOf(System.currentTimeMillis()));
+    }
+
+    // the job args as written to job-args.txt
+    public void args(String jobArgsPath){
+        BufferedReader r = null;
+        try {
+            r = new BufferedReader(new FileReader(jobArgsPath));
+            String line;
+            while( (line = r.readLine()) != null ){
+                append("arg\t" + line);
+            }
+        } catch (java.io.IOException e){
+            IJ.log("[ERROR] unable to add the job args to the journal");
+        } finally {
+            if( r != null ){
+                try {
+                    r.close();
+                } catch (java.io.IOException e){
+                    // read already
+                }
+            }
+        }
+    }
+
+    // a frame is done, path is where it was saved or null if only its rows were kept
+    public void frame(String stimStrengthRow, String stagePosRow, String path){
+        append("frame\t" + stimStrengthRow + "\t" + stagePosRow + "\t" + (path == null ? "-" : path));
+    }
+
+    public void tracking(String trackingStateRow){
+        append("track\t" + trackingStateRow);
+    }
+
+    public void wormTrack(String wormTrackRow){
+        append("worm\t" + wormTrackRow);
+    }
+
+    public void resume(int firstFrame){
+        append("resume\t" + String.valueOf(System.currentTimeMillis()) + "\t" + String.valueOf(firstFrame));
+    }
+
+    // the job finished and wrote its own csv files
+    public synchronized void end(String why){
+        append("end\t" + String.valueOf(System.currentTimeMillis()) + (why == null ? "" : "\t" + why));
+        try {
+            out.flush();
+            file.getFD().sync();
+            out.close();
+        } catch (java.io.IOException e){
+            IJ.log("[ERROR] unable to close the journal");
+        }
+        out = null;
+    }
+
+    private synchronized void append(String line){
+        if( out == null ){
+            return;
+        }
+        try {
+            out.write(line);
+            out.write("\n");
+            out.flush();
+            long now = System.nanoTime();
+            if( now - lastSyncNanos > SYNC_INTERVAL_MS * 1000000L ){
+                file.getFD().sync();
+                lastSyncNanos = now;
+            }
+        } catch (java.io.IOException e){
+            IJ.log("[ERROR] unable to write to the journal, closing it");
+            try {
+                out.close();
+            } catch (java.io.IOException ignored){
+                // closed anyway
+            }
+            out = null;
+        }
+    }
+
+    // mark a job that did not finish as done without resuming it, it is not offered again
+    public static void abandon(String runDirectory) throws java.io.IOException {
+        JournalState state = read(runDirectory);
+        if( state == null || state.finished ){
+            return;
+        }
+        RunJournal journal = new RunJournal(runDirectory, state.jobId, true);
+        journal.end("not resumed");
+    }
+
+    // what the journal of a run directory says, null if it has none
+    public static JournalState read(String runDirectory) throws java.io.IOException {
+        String runName = new File(runDirectory).getName();
+        File f = new File(runDirectory, runName + "_journal.txt");
+        if( !f.exists() ){
+            return null;
+        }
+
+        JournalState state = new JournalState();
+        state.directory = runDirectory;
+        BufferedReader r = new BufferedReader(new FileReader(f));
+        try {
+            String line;
+            while( (line = r.readLine()) != null ){
+                String[] v = line.split("\t", -1);
+                // a line cut off by the crash is left out
+                try {
+                    if( v[0].equals("job") && v.length == 3 ){
+                        state.jobId = Integer.parseInt(v[1]);
+                    } else if( v[0].equals("arg") && v.length == 2 ){
+                        state.args.add(v[1]);
+                    } else if( v[0].equals("frame") && v.length == 4 ){
+                        int frame = Integer.parseInt(v[1].substring(0, v[1].indexOf(',')).trim());
+                        state.stimStrengthRows.put(frame, v[1]);
+                        state.stagePosRows.put(frame, v[2]);
+                        if( !v[3].equals("-") ){
+                            state.framePaths.put(frame, v[3]);
+                        }
+                        state.lastFrame = Math.max(state.lastFrame, frame);
+                    } else if( v[0].equals("track") && v.length == 2 ){
+                        int task = Integer.parseInt(v[1].substring(0, v[1].indexOf(',')).trim());
+                        state.trackingRows.put(task, v[1]);
+                        state.lastTrackingTask = Math.max(state.lastTrackingTask, task);
+                    } else if( v[0].equals("worm") && v.length == 2 ){
+                        state.wormTrackRows.add(v[1]);
+                    } else if( v[0].equals("resume") && v.length == 3 ){
+                        state.resumes++;
+                    } else if( v[0].equals("end") && v.length >= 2 ){
+                        state.finished = true;
+                    }
+                } catch (java.lang.RuntimeException e){
+                    // cut off or damaged
+                }
+            }
+        } finally {
+            r.close();
+        }
+        return state;
+    }
+
+    // write the csv files of a run that did not finish again from its journal, returns what was found
+    // null if the run has no journal or finished. a run can be repaired any number of times
+    public static JournalState repair(String runDirectory) throws java.io.IOException {
+        JournalState state = read(runDirectory);
+        if( state == null || state.finished ){
+            return null;
+        }
+        String prefix = runDirectory + "/" + "temp" + String.valueOf(state.jobId) + "_";
+
+        writeRows(prefix + "stim-strength.csv", Imager.STIM_STRENGTH_HEADER, state.stimStrengthRows, state.lastFrame);
+        writeRows(prefix + "stage-pos.csv", Imager.STAGE_POS_HEADER, state.stagePosRows, state.lastFrame);
+        if( !state.trackingRows.isEmpty() ){
+            writeRows(prefix + "tracking-state.csv", Tracker.TRACKING_STATE_HEADER, state.trackingRows, state.lastTrackingTask);
+        }
+        if( !state.wormTrackRows.isEmpty() ){
+            PrintWriter p = new PrintWriter(prefix + "worm-tracks.csv");
+            try {
+                p.println(Tracker.WORM_TRACKS_HEADER);
+                for(String row : state.wormTrackRows){
+                    p.println(row);
+                }
+            } finally {
+                p.close();
+            }
+        }
+        writeStripesIndex(state, prefix + "stripes.csv");
+
+        // which of the frames made it to disk, a frame handed to the frame writer may not have
+        DeltaStackReader stack = null;
+        File stackFile = new File(prefix + "frames.delta");
+        if( stackFile.exists() ){
+            stack = new DeltaStackReader(stackFile.getPath());
+        }
+        int[] stackFrames = stack != null ? stack.getFrames() : new int[0];
+        java.util.Arrays.sort(stackFrames);
+        for(Integer frame : state.framePaths.keySet()){
+            boolean onDisk = new File(state.framePaths.get(frame)).exists() || java.util.Arrays.binarySearch(stackFrames, frame) >= 0;
+            if( onDisk ){
+                state.framesOnDisk++;
+                state.lastFrameOnDisk = Math.max(state.lastFrameOnDisk, frame);
+            } else {
+                state.framesLost++;
+            }
+        }
+        if( stack != null ){
+            stack.close();
+        }
+        return state;
+    }
+
+    // stripes.csv of a striped run, from the directories the frames were saved in. nothing for a run that was not striped
+    static void writeStripesIndex(JournalState state, String path) throws java.io.IOException {
+        File runDirectory = new File(state.directory).getAbsoluteFile();
+        boolean striped = false;
+        for(String framePath : state.framePaths.values()){
+            if( !new File(framePath).getAbsoluteFile().getParentFile().equals(runDirectory) ){
+                striped = true;
+                break;
+            }
+        }
+        if( !striped ){
+            return;
+        }
+
+        PrintWriter p = new PrintWriter(path);
+        try {
+            p.println("frame, directory");
+            for(int i = 0; i <= state.lastFrame; i++){
+                String framePath = state.framePaths.get(i);
+                if( framePath != null ){
+                    p.println(String.valueOf(i) + ", " + new File(framePath).getAbsoluteFile().getParent());
+                }
+            }
+        } finally {
+            p.close();
+        }
+    }
+
+    private static void writeRows(String path, String header, HashMap<Integer, String> rows, int last) throws java.io.IOException {
+        PrintWriter p = new PrintWriter(path);
+        try {
+            p.println(header);
+            for(int i = 0; i <= last; i++){
+                String row = rows.get(i);
+                if( row != null ){
+                    p.println(row);
+                }
+            }
+        } finally {
+            p.close();
+        }
+    }
+
+    // repair the runs of a save directory that did not finish, the one with the most recent journal first
+    public static ArrayList<JournalState> repairAll(String rootDirectory){
+        ArrayList<JournalState> repaired = new ArrayList<JournalState>();
+        File[] runs = new File(rootDirectory).listFiles();
+        if( runs == null ){
+            return repaired;
+        }
+        java.util.Arrays.sort(runs, new java.util.Comparator<File>() {
+            @Override
+            public int compare(File a, File b){
+                long ta = new File(a, a.getName() + "_journal.txt").lastModified();
+                long tb = new File(b, b.getName() + "_journal.txt").lastModified();
+                return ta < tb ? 1 : (ta > tb ? -1 : 0);
+            }
+        });
+        for(int i = 0; i < runs.length; i++){
+            if( !runs[i].isDirectory() || !runs[i].getName().matches("temp[0-9]+") ){
+                continue;
+            }
+            try {
+                JournalState state = repair(runs[i].getPath());
+                if( state != null ){
+                    IJ.log("[WARNING] " + state.describe());
+                    repaired.add(state);
+                }
+            } catch (java.io.IOException e){
+                IJ.log("[ERROR] unable to repair " + runs[i].getPath() + ": " + e.getMessage());
+            }
+        }
+        return repaired;
+    }
+
+    // from the command line, repair one run: java RunJournal <run directory>
+    public static void main(String[] args) throws java.lang.Exception {
+        if( args.length < 1 ){
+            System.out.println("usage: java RunJournal <run directory>");
+            System.exit(1);
+        }
+        JournalState state = repair(args[0]);
+        System.out.println(state == null ? args[0] + " finished or has no journal, nothing to repair" : state.describe());
+    }
+}
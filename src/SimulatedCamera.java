@@ -0,0 +1,194 @@
+import java.util.ArrayList;
+import java.util.Random;
+
+// a 16 bit camera looking down at the simulated plate through the stage
+//
+// renders dark worms on a bright, textured and noisy background at the stage position of the moment the frame is
+// taken. a new frame is made every exposure, asking again within the same exposure gives the same
+// frame like micromanager's live mode. image x follows the stage x axis and image y points against
+// the stage y axis, the same as the rig, so the legacy tracking speed moves the stage the right way
+class SimulatedCamera {
+    static final int DEFAULT_WIDTH = 512;
+    static final int DEFAULT_HEIGHT = 512;
+    static final double DEFAULT_PIXEL_SIZE_UM = 4.0;
+    static final double DEFAULT_EXPOSURE_MS = 10.0;
+    static final int BACKGROUND_LEVEL = 3000;
+    static final int WORM_LEVEL = 900;
+    static final double NOISE_SIGMA = 120.0;
+    static final int NOISE_TABLE_SIZE = 1 << 16;    // recycled noise, drawing fresh gaussians for every pixel is too slow
+    static final int CENTERLINE_POINTS = 60;
+    static final int TEXTURE_SIZE = 512;           // cells per side of the repeating plate texture
+    static final double TEXTURE_CELL_UM = 10.0;
+    static final double TEXTURE_AMPLITUDE = 150.0; // the agar and food patches the stage calibration correlates on
+
+    int width = DEFAULT_WIDTH;
+    int height = DEFAULT_HEIGHT;
+    double pixelSizeUm = DEFAULT_PIXEL_SIZE_UM;
+    volatile double exposureMs = DEFAULT_EXPOSURE_MS;
+
+    private SimulationClock clock;
+    private SimulatedStage stage;
+    private SimulatedStimulator stimulator;
+    private ArrayList<SimulatedWorm> worms;
+
+    private short[] noise;
+    private short[] texture;       // fixed to the plate, so it moves with the stage like the worms do
+    private Random random;
+    private long lastFrameIndex;
+    private short[] lastFrame;
+    private int framesRendered;
+
+    SimulatedCamera(SimulationClock clock_, SimulatedStage stage_, SimulatedStimulator stimulator_, long seed){
+        clock = clock_;
+        stage = stage_;
+        stimulator = stimulator_;
+        worms = new ArrayList<SimulatedWorm>();
+        random = new Random(seed);
+        lastFrameIndex = -1;
+
+        noise = new short[NOISE_TABLE_SIZE];
+        for(int i = 0; i < noise.length; i++){
+            noise[i] = (short) Math.round(random.nextGaussian() * NOISE_SIGMA);
+        }
+        texture = makeTexture(random);
+    }
+
+    // smooth random blotches: white noise box blurred a few times, wrapping around at the edges
+    private static short[] makeTexture(Random random){
+        int n = TEXTURE_SIZE;
+        double[] t = new double[n * n];
+        for(int i = 0; i < t.length; i++){
+            t[i] = random.nextGaussian();
+        }
+
+        int radius = 3;
+        for(int pass = 0; pass < 2; pass++){
+            double[] blurred = new double[n * n];
+            for(int y = 0; y < n; y++){
+                for(int x = 0; x < n; x++){
+                    double sum = 0.0;
+                    for(int k = -radius; k <= radius; k++){
+                        sum += t[y * n + ((x + k + n) % n)] + t[((y + k + n) % n) * n + x];
+                    }
+                    blurred[y * n + x] = sum;
+                }
+            }
+            t = blurred;
+        }
+
+        double sumSq = 0.0;
+        for(int i = 0; i < t.length; i++){
+            sumSq += t[i] * t[i];
+        }
+        double scale = TEXTURE_AMPLITUDE / Math.sqrt(sumSq / t.length);
+
+        short[] out = new short[n * n];
+        for(int i = 0; i < t.length; i++){
+            out[i] = (short) Math.round(t[i] * scale);
+        }
+        return out;
+    }
+
+    public synchronized void addWorm(SimulatedWorm worm){
+        worms.add(worm);
+    }
+
+    public synchronized ArrayList<SimulatedWorm> getWorms(){
+        return new ArrayList<SimulatedWorm>(worms);
+    }
+
+    public synchronized int getFramesRendered(){
+        return framesRendered;
+    }
+
+    // the frame of the current exposure
+    public synchronized short[] getFrame(){
+        long now = clock.nanos();
+        long frameIndex = (long) (now / (exposureMs * 1.0e6));
+        if( frameIndex != lastFrameIndex || lastFrame == null ){
+            lastFrame = new short[width * height];
+            render(now, lastFrame);
+            lastFrameIndex = frameIndex;
+        }
+        return lastFrame;
+    }
+
+    // render the current view into a width * height buffer, for sources that bring their own buffers
+    public synchronized void renderInto(short[] pixels){
+        render(clock.nanos(), pixels);
+    }
+
+    // image coordinates of a point in stage micrometers when the stage is at stagePos
+    public double[] stageToImage(double x, double y, double[] stagePos){
+        return new double[]{
+            width / 2.0 + (x - stagePos[0]) / pixelSizeUm,
+            height / 2.0 - (y - stagePos[1]) / pixelSizeUm
+        };
+    }
+
+    private void render(long now, short[] pixels){
+        double[] stagePos = stage.getPosition();
+        int ledLevel = stimulator.getLevel(Stimulator.STIMULATION_CHANNEL);
+
+        // texture cell under each image column and row
+        int[] textureColumn = new int[width];
+        for(int x = 0; x < width; x++){
+            double wx = stagePos[0] + (x + 0.5 - width / 2.0) * pixelSizeUm;
+            textureColumn[x] = wrap((int) Math.floor(wx / TEXTURE_CELL_UM));
+        }
+        int[] textureRow = new int[height];
+        for(int y = 0; y < height; y++){
+            double wy = stagePos[1] - (y + 0.5 - height / 2.0) * pixelSizeUm;
+            textureRow[y] = wrap((int) Math.floor(wy / TEXTURE_CELL_UM)) * TEXTURE_SIZE;
+        }
+
+        int offset = random.nextInt(NOISE_TABLE_SIZE);
+        for(int y = 0; y < height; y++){
+            int row = y * width;
+            for(int x = 0; x < width; x++){
+                pixels[row + x] = (short) (BACKGROUND_LEVEL + texture[textureRow[y] + textureColumn[x]] + noise[(offset + row + x) & (NOISE_TABLE_SIZE - 1)]);
+            }
+        }
+
+        double radiusPx = SimulatedWorm.WIDTH_UM / 2.0 / pixelSizeUm;
+        for(int w = 0; w < worms.size(); w++){
+            SimulatedWorm worm = worms.get(w);
+            worm.advanceTo(now, ledLevel);
+
+            // stamp discs along the body, close enough together to make a smooth outline
+            double[][] line = worm.centerline(CENTERLINE_POINTS);
+            for(int i = 0; i < CENTERLINE_POINTS; i++){
+                // taper the head and tail
+                double taper = Math.sin(Math.PI * (i + 0.5) / CENTERLINE_POINTS);
+                double r = Math.max(1.0, radiusPx * Math.sqrt(taper));
+                double[] p = stageToImage(line[0][i], line[1][i], stagePos);
+                stampDisc(pixels, p[0], p[1], r, offset + i * 7919);
+            }
+        }
+
+        framesRendered++;
+    }
+
+    private static int wrap(int cell){
+        return ((cell % TEXTURE_SIZE) + TEXTURE_SIZE) % TEXTURE_SIZE;
+    }
+
+    private void stampDisc(short[] pixels, double cx, double cy, double r, int noiseOffset){
+        int x0 = Math.max(0, (int) Math.floor(cx - r));
+        int x1 = Math.min(width - 1, (int) Math.ceil(cx + r));
+        int y0 = Math.max(0, (int) Math.floor(cy - r));
+        int y1 = Math.min(height - 1, (int) Math.ceil(cy + r));
+        double rSq = r * r;
+
+        for(int y = y0; y <= y1; y++){
+            double dy = y + 0.5 - cy;
+            int row = y * width;
+            for(int x = x0; x <= x1; x++){
+                double dx = x + 0.5 - cx;
+                if( dx * dx + dy * dy <= rSq ){
+                    pixels[row + x] = (short) (WORM_LEVEL + noise[(noiseOffset + row + x) & (NOISE_TABLE_SIZE - 1)]);
+                }
+            }
+        }
+    }
+}
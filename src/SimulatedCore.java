@@ -0,0 +1,216 @@
+import java.awt.geom.Point2D;
+
+import mmcorej.CMMCore;
+import mmcorej.CharVector;
+
+// a micromanager core backed by the simulated rig instead of real devices
+//
+// only the calls the plugin makes are simulated. the core is created without a native core
+// (null pointer, not owned), so any other call fails because the native library is missing
+// rather than touching real hardware
+class SimulatedCore extends CMMCore {
+    static final String XY_STAGE_LABEL = "XYStage";
+    static final String CAMERA_LABEL = "Camera";
+    static final String STAGE_PORT = "SimulatedStagePort";
+    static final String STIMULATOR_PORT = "SimulatedStimulatorPort";
+    static final String PIXEL_SIZE_CONFIG = "Simulated";
+
+    SimulationClock clock;
+    SimulatedStage stage;
+    SimulatedStimulator stimulator;
+    SimulatedCamera camera;
+
+    SimulatedCore(SimulationClock clock_, long serialLatencyNanos, long seed){
+        super(0, false);
+        clock = clock_;
+        stage = new SimulatedStage(clock_);
+        stage.latencyNanos = serialLatencyNanos;
+        stimulator = new SimulatedStimulator(clock_, serialLatencyNanos);
+        camera = new SimulatedCamera(clock_, stage, stimulator, seed);
+    }
+
+    // bytes for the stimulator, mmcorej.CharVector needs the native library so the stimulator
+    // hands them over directly
+    public void writeToSerialPort(String port, int data) throws Exception {
+        if( !port.equals(STIMULATOR_PORT) ){
+            throw new Exception("no simulated device on serial port " + port);
+        }
+        stimulator.write(data);
+    }
+
+    // the bytes the simulated stimulator sent back, CharVector cannot be made without the native library
+    public int[] readFromSerialPortBytes(String port) throws Exception {
+        if( !port.equals(STIMULATOR_PORT) ){
+            throw new Exception("no simulated device on serial port " + port);
+        }
+        return stimulator.read();
+    }
+
+    @Override
+    public void writeToSerialPort(String port, CharVector data) throws Exception {
+        throw new Exception("CharVector needs the native micromanager library, use writeToSerialPort(port, int) with the simulated core");
+    }
+
+    @Override
+    public void setSerialPortCommand(String port, String command, String term) throws Exception {
+        if( !port.equals(STAGE_PORT) ){
+            throw new Exception("no simulated device on serial port " + port);
+        }
+        stage.command(command);
+    }
+
+    @Override
+    public String getSerialPortAnswer(String port, String term) throws Exception {
+        if( !port.equals(STAGE_PORT) ){
+            throw new Exception("no simulated device on serial port " + port);
+        }
+        return stage.getLastAnswer();
+    }
+
+    @Override
+    public String getProperty(String label, String propName) throws Exception {
+        if( propName.equals("Port") ){
+            if( label.equals(XY_STAGE_LABEL) ){
+                return STAGE_PORT;
+            }
+            if( label.equals(Stimulator.STIMULATOR_DEVICE_LABEL) ){
+                return STIMULATOR_PORT;
+            }
+        }
+        throw new Exception("no simulated property " + propName + " on device " + label);
+    }
+
+    @Override
+    public String getXYStageDevice(){
+        return XY_STAGE_LABEL;
+    }
+
+    @Override
+    public String getCameraDevice(){
+        return CAMERA_LABEL;
+    }
+
+    @Override
+    public double getXPosition() throws Exception {
+        return stage.getPosition()[0];
+    }
+
+    @Override
+    public double getYPosition() throws Exception {
+        return stage.getPosition()[1];
+    }
+
+    @Override
+    public double getXPosition(String label) throws Exception {
+        return getXPosition();
+    }
+
+    @Override
+    public double getYPosition(String label) throws Exception {
+        return getYPosition();
+    }
+
+    @Override
+    public Point2D.Double getXYStagePosition() throws Exception {
+        double[] pos = stage.getPosition();
+        return new Point2D.Double(pos[0], pos[1]);
+    }
+
+    @Override
+    public Point2D.Double getXYStagePosition(String label) throws Exception {
+        return getXYStagePosition();
+    }
+
+    // no focus drive on the simulated rig
+    @Override
+    public double getPosition() throws Exception {
+        return 0.0;
+    }
+
+    @Override
+    public double getPosition(String label) throws Exception {
+        return 0.0;
+    }
+
+    @Override
+    public void setRelativeXYPosition(String label, double dx, double dy) throws Exception {
+        stage.moveRelative(dx, dy);
+    }
+
+    @Override
+    public void setRelativeXYPosition(double dx, double dy) throws Exception {
+        stage.moveRelative(dx, dy);
+    }
+
+    @Override
+    public void setXYPosition(String label, double x, double y) throws Exception {
+        stage.moveTo(x, y);
+    }
+
+    @Override
+    public void setXYPosition(double x, double y) throws Exception {
+        stage.moveTo(x, y);
+    }
+
+    @Override
+    public boolean deviceBusy(String label) throws Exception {
+        return label.equals(XY_STAGE_LABEL) && stage.isBusy();
+    }
+
+    @Override
+    public void waitForDevice(String label) throws Exception {
+        if( label.equals(XY_STAGE_LABEL) ){
+            clock.sleepUntil(stage.getBusyUntilNanos());
+        }
+    }
+
+    @Override
+    public double getExposure() throws Exception {
+        return camera.exposureMs;
+    }
+
+    @Override
+    public void setExposure(double exposureMs) throws Exception {
+        camera.exposureMs = exposureMs;
+    }
+
+    @Override
+    public double getPixelSizeUm(){
+        return camera.pixelSizeUm;
+    }
+
+    @Override
+    public String getCurrentPixelSizeConfig() throws Exception {
+        return PIXEL_SIZE_CONFIG;
+    }
+
+    @Override
+    public long getImageWidth(){
+        return camera.width;
+    }
+
+    @Override
+    public long getImageHeight(){
+        return camera.height;
+    }
+
+    @Override
+    public long getBytesPerPixel(){
+        return 2;
+    }
+
+    @Override
+    public long getImageBitDepth(){
+        return 16;
+    }
+
+    @Override
+    public Object getLastImage() throws Exception {
+        return camera.getFrame();
+    }
+
+    // live mode keeps no history, there is nothing to clear
+    @Override
+    public void clearCircularBuffer() throws Exception {
+    }
+}
@@ -0,0 +1,187 @@
+import java.util.ArrayList;
+
+// a motorized xy stage that understands the asi ms-2000 commands the plugin sends over serial
+//
+//   VECTOR X=<mm/s> Y=<mm/s>   ramp to a constant velocity, the stage keeps going until told otherwise
+//   R X=<1/10 um> Y=<1/10 um>  relative move
+//
+// commands take effect after the serial latency, velocity changes are limited by the acceleration.
+// positions are in micrometers like micromanager reports them, the native signs give the direction
+// micromanager sees for a positive controller move
+class SimulatedStage {
+    static final double DEFAULT_ACCELERATION = 20.0;  // mm/s^2
+    static final double DEFAULT_MOVE_SPEED = 5.0;     // mm/s for relative and absolute moves
+    static final long DEFAULT_LATENCY_NANOS = 5000000L; // serial round trip and controller processing
+
+    double accelerationMmPerS2 = DEFAULT_ACCELERATION;
+    double moveSpeedMmPerS = DEFAULT_MOVE_SPEED;
+    long latencyNanos = DEFAULT_LATENCY_NANOS;
+    int nativeXSign = 1;
+    int nativeYSign = 1;
+
+    private SimulationClock clock;
+
+    private double x;            // um, micromanager axes
+    private double y;
+    private double vx;           // um/s, micromanager axes
+    private double vy;
+    private double targetVx;
+    private double targetVy;
+    private long simulatedNanos; // time the position was last brought up to
+    private long busyUntilNanos; // end of the current move
+
+    private ArrayList<Long> pendingTimes;     // when each pending command takes effect
+    private ArrayList<double[]> pendingChanges; // { type, x, y } of each pending command
+    private static final double VELOCITY_CHANGE = 0;
+    private static final double POSITION_CHANGE = 1;
+
+    private int commandsReceived;
+    private String lastAnswer;
+
+    SimulatedStage(SimulationClock clock_){
+        clock = clock_;
+        pendingTimes = new ArrayList<Long>();
+        pendingChanges = new ArrayList<double[]>();
+        lastAnswer = "";
+    }
+
+    // handle one serial command, returns the answer the controller would send back
+    public synchronized String command(String command){
+        commandsReceived++;
+        long effectiveTime = clock.nanos() + latencyNanos;
+
+        String[] parts = command.trim().split("\\s+");
+        double cx = 0.0;
+        double cy = 0.0;
+        for(int i = 1; i < parts.length; i++){
+            String p = parts[i].toUpperCase();
+            if( p.startsWith("X=") ){
+                cx = Double.parseDouble(p.substring(2));
+            } else if( p.startsWith("Y=") ){
+                cy = Double.parseDouble(p.substring(2));
+            }
+        }
+
+        String name = parts.length > 0 ? parts[0].toUpperCase() : "";
+        if( name.equals("VECTOR") || name.equals("VE") ){
+            schedule(effectiveTime, VELOCITY_CHANGE, nativeXSign * cx * 1000.0, nativeYSign * cy * 1000.0);
+            lastAnswer = ":A";
+        } else if( name.equals("R") || name.equals("MOVREL") ){
+            moveBy(effectiveTime, nativeXSign * cx / 10.0, nativeYSign * cy / 10.0);
+            lastAnswer = ":A";
+        } else {
+            lastAnswer = ":N-1";
+        }
+        return lastAnswer;
+    }
+
+    public synchronized String getLastAnswer(){
+        return lastAnswer;
+    }
+
+    // relative move in micromanager micrometers, as done by setRelativeXYPosition
+    public synchronized void moveRelative(double dx, double dy){
+        commandsReceived++;
+        moveBy(clock.nanos() + latencyNanos, dx, dy);
+    }
+
+    public synchronized void moveTo(double newX, double newY){
+        double[] pos = getPosition();
+        moveRelative(newX - pos[0], newY - pos[1]);
+    }
+
+    // put the stage somewhere instantly, for synthetic frame sources rather than anything the controller can do
+    public synchronized void jumpTo(double newX, double newY){
+        advanceTo(clock.nanos());
+        x = newX;
+        y = newY;
+    }
+
+    // the stage stops, travels the distance at the move speed and then reports the new position
+    private void moveBy(long startTime, double dx, double dy){
+        schedule(startTime, VELOCITY_CHANGE, 0.0, 0.0);
+        long travelNanos = (long) (Math.sqrt(dx * dx + dy * dy) / (moveSpeedMmPerS * 1000.0) * 1.0e9);
+        long doneTime = startTime + travelNanos;
+        schedule(doneTime, POSITION_CHANGE, dx, dy);
+        busyUntilNanos = Math.max(busyUntilNanos, doneTime);
+    }
+
+    private void schedule(long time, double type, double a, double b){
+        // commands arrive in order and share one latency, so appending keeps the queue sorted
+        // except for move completions, which are inserted where they belong
+        int i = pendingTimes.size();
+        while( i > 0 && pendingTimes.get(i - 1) > time ){
+            i--;
+        }
+        pendingTimes.add(i, time);
+        pendingChanges.add(i, new double[]{ type, a, b });
+    }
+
+    public synchronized double[] getPosition(){
+        advanceTo(clock.nanos());
+        return new double[]{ x, y };
+    }
+
+    // current velocity in um/s, micromanager axes
+    public synchronized double[] getVelocity(){
+        advanceTo(clock.nanos());
+        return new double[]{ vx, vy };
+    }
+
+    public synchronized boolean isBusy(){
+        return clock.nanos() < busyUntilNanos;
+    }
+
+    public synchronized long getBusyUntilNanos(){
+        return busyUntilNanos;
+    }
+
+    public synchronized int getCommandsReceived(){
+        return commandsReceived;
+    }
+
+    // bring the position up to the given time, applying the pending commands on the way
+    private void advanceTo(long now){
+        while( !pendingTimes.isEmpty() && pendingTimes.get(0) <= now ){
+            long t = pendingTimes.remove(0);
+            double[] change = pendingChanges.remove(0);
+            integrate(t);
+            if( change[0] == VELOCITY_CHANGE ){
+                targetVx = change[1];
+                targetVy = change[2];
+            } else {
+                x += change[1];
+                y += change[2];
+            }
+        }
+        integrate(now);
+    }
+
+    // move at the current velocity while ramping it towards the target at the acceleration limit
+    private void integrate(long now){
+        if( now <= simulatedNanos ){
+            return;
+        }
+        double dt = (now - simulatedNanos) / 1.0e9;
+        double a = accelerationMmPerS2 * 1000.0;
+
+        double[] rx = integrateAxis(x, vx, targetVx, a, dt);
+        double[] ry = integrateAxis(y, vy, targetVy, a, dt);
+        x = rx[0];
+        vx = rx[1];
+        y = ry[0];
+        vy = ry[1];
+        simulatedNanos = now;
+    }
+
+    private static double[] integrateAxis(double pos, double v, double target, double a, double dt){
+        double dv = target - v;
+        double sign = Math.signum(dv);
+        double rampTime = Math.abs(dv) / a;
+        if( rampTime >= dt ){
+            return new double[]{ pos + v * dt + 0.5 * sign * a * dt * dt, v + sign * a * dt };
+        }
+        pos += v * rampTime + 0.5 * sign * a * rampTime * rampTime;
+        return new double[]{ pos + target * (dt - rampTime), target };
+    }
+}
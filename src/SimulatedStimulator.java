@@ -0,0 +1,91 @@
+import java.util.ArrayList;
+
+// the arduino led stimulator on the FreeSerialPort, decodes the bytes the plugin writes
+// see ./documentation/arduino.c for the format:
+//   bit 7     channel, 0 = DA1, 1 = DA2
+//   bit 6     0 = set the 6 bit output level, 1 = trigger setting
+//   bits 0-5  level, or trigger length (bits 0-2) and cycle length (bits 3-5) indices
+// bytes from 0xF8 up are the batch protocol of StimulatorBatch, handled by the firmware emulator
+class SimulatedStimulator {
+    private SimulationClock clock;
+    private long latencyNanos;
+
+    private int triggerLengthIndex;
+    private int cycleLengthIndex;
+
+    // every decoded byte: { time (ns), channel, level or -1 for a trigger setting, raw byte }
+    private ArrayList<long[]> events;
+
+    private StimulatorFirmwareEmulator firmware;
+
+    SimulatedStimulator(SimulationClock clock_, long latencyNanos_){
+        clock = clock_;
+        latencyNanos = latencyNanos_;
+        events = new ArrayList<long[]>();
+        firmware = new StimulatorFirmwareEmulator(this);
+    }
+
+    public synchronized void write(int data){
+        long time = clock.nanos() + latencyNanos;
+        if( firmware.write(data, time) ){
+            return;
+        }
+        int channel = (data >> 7) & 1;
+
+        if( (data & 0x40) != 0 ){
+            triggerLengthIndex = data & 0x07;
+            cycleLengthIndex = (data >> 3) & 0x07;
+            events.add(new long[]{ time, channel, -1, data & 0xff });
+            return;
+        }
+
+        events.add(new long[]{ time, channel, data & 0x3f, data & 0xff });
+    }
+
+    // a level set by an uploaded protocol, at the time the firmware set it
+    void playLevel(long nanos, int channel, int level){
+        int i = events.size();
+        while( i > 0 && events.get(i - 1)[0] > nanos ){
+            i--;
+        }
+        events.add(i, new long[]{ nanos, channel, level, channel << 7 | level });
+    }
+
+    // the replies of the firmware waiting to be read
+    public synchronized int[] read(){
+        return firmware.read(clock.nanos());
+    }
+
+    // output level of a channel (0 = DA1, 1 = DA2) at the current time, 0 to 63
+    public synchronized int getLevel(int channel){
+        return getLevelAt(channel, clock.nanos());
+    }
+
+    public synchronized int getLevelAt(int channel, long nanos){
+        firmware.advanceTo(clock.nanos());
+        int level = 0;
+        for(int i = 0; i < events.size(); i++){
+            long[] e = events.get(i);
+            if( e[0] > nanos ){
+                break;
+            }
+            if( e[1] == channel && e[2] >= 0 ){
+                level = (int) e[2];
+            }
+        }
+        return level;
+    }
+
+    public synchronized int getTriggerLengthIndex(){
+        return triggerLengthIndex;
+    }
+
+    public synchronized int getCycleLengthIndex(){
+        return cycleLengthIndex;
+    }
+
+    public synchronized ArrayList<long[]> getEvents(){
+        firmware.advanceTo(clock.nanos());
+        return new ArrayList<long[]>(events);
+    }
+}
@@ -0,0 +1,76 @@
+import java.util.Random;
+
+// a worm crawling on the simulated plate, in stage micrometers
+//
+// it crawls forward along its heading with a slow random turn and a travelling body wave,
+// and reverses for a while when the led is switched on, like an optogenetic avoidance response
+class SimulatedWorm {
+    static final double LENGTH_UM = 1000.0;
+    static final double WIDTH_UM = 60.0;
+    static final double SPEED_UM_PER_S = 150.0;
+    static final double BODY_WAVELENGTH_UM = 650.0;
+    static final double BODY_AMPLITUDE_UM = 50.0;
+    static final double UNDULATION_HZ = 0.5;
+    static final double TURN_RATE = 0.4;        // standard deviation of the heading change, rad per sqrt(s)
+    static final double REVERSAL_SECONDS = 2.0;
+
+    double x;         // center of the body
+    double y;
+    double heading;   // direction of travel in radians, stage axes
+    double speed = SPEED_UM_PER_S;
+
+    private double phase;
+    private long lastNanos;
+    private long reversalEndNanos;
+    private int lastLedLevel;
+    private Random random;
+
+    SimulatedWorm(double x_, double y_, double heading_, long seed){
+        x = x_;
+        y = y_;
+        heading = heading_;
+        random = new Random(seed);
+        reversalEndNanos = -1;
+    }
+
+    public boolean isReversing(){
+        return lastNanos < reversalEndNanos;
+    }
+
+    // move the worm up to the given time, ledLevel is the stimulator output (0 to 63)
+    public synchronized void advanceTo(long nanos, int ledLevel){
+        if( ledLevel > 0 && lastLedLevel == 0 ){
+            reversalEndNanos = nanos + (long) (REVERSAL_SECONDS * 1.0e9);
+        }
+        lastLedLevel = ledLevel;
+
+        if( nanos <= lastNanos ){
+            return;
+        }
+        double dt = (nanos - lastNanos) / 1.0e9;
+        lastNanos = nanos;
+
+        double direction = isReversing() ? -1.0 : 1.0;
+        heading += random.nextGaussian() * TURN_RATE * Math.sqrt(dt);
+        x += direction * speed * dt * Math.cos(heading);
+        y += direction * speed * dt * Math.sin(heading);
+        phase += direction * 2.0 * Math.PI * UNDULATION_HZ * dt;
+    }
+
+    // points along the body from head to tail, { x[], y[] } in stage micrometers
+    public synchronized double[][] centerline(int numPoints){
+        double[] xs = new double[numPoints];
+        double[] ys = new double[numPoints];
+        double ax = Math.cos(heading);
+        double ay = Math.sin(heading);
+
+        for(int i = 0; i < numPoints; i++){
+            double s = LENGTH_UM * i / (numPoints - 1);          // distance from the head
+            double along = LENGTH_UM / 2.0 - s;
+            double side = BODY_AMPLITUDE_UM * Math.sin(2.0 * Math.PI * s / BODY_WAVELENGTH_UM - phase);
+            xs[i] = x + along * ax - side * ay;
+            ys[i] = y + along * ay + side * ax;
+        }
+        return new double[][]{ xs, ys };
+    }
+}
@@ -0,0 +1,56 @@
+// the time base every part of the simulated rig shares
+//
+// runs on System.nanoTime like the real tasks, so the imager, tracker and stimulator schedules line up
+// with the simulated hardware. a stopped clock only moves when advanced, which gives repeatable images
+// and stage positions when stepping the simulation by hand
+class SimulationClock {
+    private final long startNanos;
+    private volatile boolean running;
+    private volatile long manualNanos;
+
+    SimulationClock(){
+        startNanos = System.nanoTime();
+        running = true;
+        manualNanos = 0;
+    }
+
+    // nanoseconds since the simulation started
+    public long nanos(){
+        if( running ){
+            return System.nanoTime() - startNanos;
+        }
+        return manualNanos;
+    }
+
+    public double seconds(){
+        return nanos() / 1.0e9;
+    }
+
+    public long millis(){
+        return nanos() / 1000000L;
+    }
+
+    // stop following real time, the clock then only moves with advance()
+    public void stop(){
+        manualNanos = nanos();
+        running = false;
+    }
+
+    public void advance(long nanos){
+        if( running ){
+            throw new IllegalStateException("only a stopped simulation clock can be advanced");
+        }
+        manualNanos += nanos;
+    }
+
+    // wait until the clock reaches the given time, returns straight away on a stopped clock
+    public void sleepUntil(long nanos) throws InterruptedException {
+        if( !running ){
+            return;
+        }
+        long remaining = nanos - nanos();
+        if( remaining > 0 ){
+            Thread.sleep(remaining / 1000000L, (int) (remaining % 1000000L));
+        }
+    }
+}
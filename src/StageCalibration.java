@@ -0,0 +1,306 @@
+import ij.process.FHT;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.PrintWriter;
+import java.util.prefs.Preferences;
+
+// pixel to stage transform for one objective, measured by the StageCalibrator
+//
+// maps an image offset in pixels to the stage displacement in microns that produces it:
+//   [dx um]   [a b] [dx px]
+//   [dy um] = [c d] [dy px]
+// the matrix includes the pixel size, any rotation of the camera relative to the stage and axis flips
+//
+// a worm at image offset p from the image center is brought to the center by moving the stage by -T p,
+// so its absolute position in stage coordinates is stagePosition - T p
+//
+// stage coordinates are the ones micromanager reports (stage-pos.csv), the tracker's serial velocity
+// commands use the controller's own axes which can be flipped relative to them, hence the native axis signs
+class StageCalibration {
+    static final String PREFERENCES_NODE = "stage-calibration";
+    static final String DEFAULT_OBJECTIVE = "default";
+
+    String objective; // micromanager pixel size config the calibration was measured with
+    double a;
+    double b;
+    double c;
+    double d;
+    double rmsErrorUm; // fit residual, how well the moves agree with a single affine transform
+    int nativeXSign;   // +1 or -1, direction of the controller's x axis in micromanager stage coordinates
+    int nativeYSign;
+
+    StageCalibration(String objective_, double a_, double b_, double c_, double d_, double rmsErrorUm_){
+        objective = objective_;
+        a = a_;
+        b = b_;
+        c = c_;
+        d = d_;
+        rmsErrorUm = rmsErrorUm_;
+        nativeXSign = 1;
+        nativeYSign = 1;
+    }
+
+    // stage velocity command (controller axes, mm/s) that closes the offset of an image point
+    // from the image center at the given rate (1/s)
+    public double[] stageVelocityToCenter(double xPx, double yPx, int width, int height, double ratePerSecond){
+        double[] offsetUm = pixelsToMicrons(xPx - width / 2.0, yPx - height / 2.0);
+        return new double[]{
+            -nativeXSign * offsetUm[0] * ratePerSecond / 1000.0,
+            -nativeYSign * offsetUm[1] * ratePerSecond / 1000.0
+        };
+    }
+
+    // stage displacement in microns that shifts the image by (dxPx, dyPx)
+    public double[] pixelsToMicrons(double dxPx, double dyPx){
+        return new double[]{ a * dxPx + b * dyPx, c * dxPx + d * dyPx };
+    }
+
+    // image shift in pixels caused by moving the stage by (dxUm, dyUm)
+    public double[] micronsToPixels(double dxUm, double dyUm){
+        double det = a * d - b * c;
+        return new double[]{ (d * dxUm - b * dyUm) / det, (-c * dxUm + a * dyUm) / det };
+    }
+
+    // position of an image point in stage coordinates (microns)
+    // stagePos is the stage position the image was taken at
+    public double[] imageToStage(double xPx, double yPx, int width, int height, double[] stagePos){
+        double[] offsetUm = pixelsToMicrons(xPx - width / 2.0, yPx - height / 2.0);
+        return new double[]{ stagePos[0] - offsetUm[0], stagePos[1] - offsetUm[1] };
+    }
+
+    // average size of a pixel in microns
+    public double micronsPerPixel(){
+        return Math.sqrt(Math.abs(a * d - b * c));
+    }
+
+    // rotation of the image axes relative to the stage axes
+    public double rotationDegrees(){
+        return Math.toDegrees(Math.atan2(c, a));
+    }
+
+    // least squares fit of the transform to stage moves (microns) and the image shifts (pixels) they caused
+    // needs at least two moves that are not parallel
+    public static StageCalibration fit(String objective, double[][] stageMovesUm, double[][] imageShiftsPx) throws Exception {
+        // T = (sum m p^T) (sum p p^T)^-1
+        double spxx = 0, spxy = 0, spyy = 0;
+        double smxpx = 0, smxpy = 0, smypx = 0, smypy = 0;
+        for(int i = 0; i < stageMovesUm.length; i++){
+            double px = imageShiftsPx[i][0];
+            double py = imageShiftsPx[i][1];
+            double mx = stageMovesUm[i][0];
+            double my = stageMovesUm[i][1];
+            spxx += px * px;
+            spxy += px * py;
+            spyy += py * py;
+            smxpx += mx * px;
+            smxpy += mx * py;
+            smypx += my * px;
+            smypy += my * py;
+        }
+
+        double det = spxx * spyy - spxy * spxy;
+        if( Math.abs(det) < 1e-9 ){
+            throw new Exception("the image did not shift in two independent directions, is the stage moving?");
+        }
+
+        double a = (smxpx * spyy - smxpy * spxy) / det;
+        double b = (smxpy * spxx - smxpx * spxy) / det;
+        double c = (smypx * spyy - smypy * spxy) / det;
+        double d = (smypy * spxx - smypx * spxy) / det;
+
+        double sumSqError = 0.0;
+        for(int i = 0; i < stageMovesUm.length; i++){
+            double ex = a * imageShiftsPx[i][0] + b * imageShiftsPx[i][1] - stageMovesUm[i][0];
+            double ey = c * imageShiftsPx[i][0] + d * imageShiftsPx[i][1] - stageMovesUm[i][1];
+            sumSqError += ex * ex + ey * ey;
+        }
+
+        return new StageCalibration(objective, a, b, c, d, Math.sqrt(sumSqError / stageMovesUm.length));
+    }
+
+    // shift (dx, dy) in pixels of the content of after relative to before, by cross correlation
+    // uses the largest centered power of 2 square (at most maxSize) so the FHT can be used
+    public static double[] measureShift(ImageProcessor before, ImageProcessor after, int maxSize){
+        int size = 1;
+        while( size * 2 <= Math.min(Math.min(before.getWidth(), before.getHeight()), maxSize) ){
+            size *= 2;
+        }
+
+        FHT beforeFHT = new FHT(windowedSquare(before, size));
+        FHT afterFHT = new FHT(windowedSquare(after, size));
+        beforeFHT.transform();
+        afterFHT.transform();
+
+        FHT correlation = afterFHT.conjugateMultiply(beforeFHT);
+        correlation.inverseTransform();
+        correlation.swapQuadrants();
+
+        float[] c = (float[]) correlation.getPixels();
+        int peak = 0;
+        for(int i = 1; i < c.length; i++){
+            if( c[i] > c[peak] ){
+                peak = i;
+            }
+        }
+        int peakX = peak % size;
+        int peakY = peak / size;
+
+        // refine the peak to sub-pixel with a parabola through its neighbours
+        double subX = parabolicPeakOffset(c[peakY * size + wrap(peakX - 1, size)], c[peak], c[peakY * size + wrap(peakX + 1, size)]);
+        double subY = parabolicPeakOffset(c[wrap(peakY - 1, size) * size + peakX], c[peak], c[wrap(peakY + 1, size) * size + peakX]);
+
+        return new double[]{ peakX + subX - size / 2, peakY + subY - size / 2 };
+    }
+
+    // center crop with the mean removed and a hann window applied
+    // so the image borders do not correlate with each other
+    private static FloatProcessor windowedSquare(ImageProcessor ip, int size){
+        int x0 = (ip.getWidth() - size) / 2;
+        int y0 = (ip.getHeight() - size) / 2;
+        float[] pixels = new float[size * size];
+
+        double sum = 0.0;
+        for(int y = 0; y < size; y++){
+            for(int x = 0; x < size; x++){
+                float v = ip.getf(x0 + x, y0 + y);
+                pixels[y * size + x] = v;
+                sum += v;
+            }
+        }
+        float mean = (float) (sum / pixels.length);
+
+        for(int y = 0; y < size; y++){
+            double wy = 0.5 - 0.5 * Math.cos(2.0 * Math.PI * y / (size - 1));
+            for(int x = 0; x < size; x++){
+                double wx = 0.5 - 0.5 * Math.cos(2.0 * Math.PI * x / (size - 1));
+                pixels[y * size + x] = (float) ((pixels[y * size + x] - mean) * wx * wy);
+            }
+        }
+
+        return new FloatProcessor(size, size, pixels, null);
+    }
+
+    private static double parabolicPeakOffset(double left, double center, double right){
+        double denominator = left - 2.0 * center + right;
+        if( denominator == 0.0 ){
+            return 0.0;
+        }
+        return Math.max(-0.5, Math.min(0.5, 0.5 * (left - right) / denominator));
+    }
+
+    private static int wrap(int i, int n){
+        return (i + n) % n;
+    }
+
+    // store the calibration for its objective so it is used every time that objective is active
+    public void save(){
+        Preferences prefs = Preferences.userNodeForPackage(StageCalibration.class).node(PREFERENCES_NODE);
+        prefs.put(objective, String.valueOf(a) + "," + String.valueOf(b) + "," + String.valueOf(c) + "," +
+            String.valueOf(d) + "," + String.valueOf(rmsErrorUm) + "," +
+            String.valueOf(nativeXSign) + "," + String.valueOf(nativeYSign));
+    }
+
+    // the saved calibration for an objective, null if it was never calibrated
+    public static StageCalibration load(String objective){
+        Preferences prefs = Preferences.userNodeForPackage(StageCalibration.class).node(PREFERENCES_NODE);
+        String saved = prefs.get(objective, null);
+        if( saved == null ){
+            return null;
+        }
+
+        try {
+            String[] v = saved.split(",");
+            StageCalibration calibration = new StageCalibration(objective, Double.parseDouble(v[0]), Double.parseDouble(v[1]),
+                Double.parseDouble(v[2]), Double.parseDouble(v[3]), Double.parseDouble(v[4]));
+            calibration.nativeXSign = Integer.parseInt(v[5]);
+            calibration.nativeYSign = Integer.parseInt(v[6]);
+            return calibration;
+        } catch (java.lang.Exception e){
+            return null;
+        }
+    }
+
+    // micromanager's pixel size config stands in for the objective, it changes whenever the objective does
+    public static String getCurrentObjective(mmcorej.CMMCore core){
+        String objective = "";
+        try {
+            objective = core.getCurrentPixelSizeConfig();
+        } catch (java.lang.Exception e){
+            objective = "";
+        }
+        return objective.length() > 0 ? objective : DEFAULT_OBJECTIVE;
+    }
+
+    // write the calibration next to the images so offline tools can convert pixels to stage microns
+    public void saveToFile(String path) throws java.io.IOException {
+        PrintWriter p = null;
+        try {
+            p = new PrintWriter(path);
+            p.println("objective: " + objective);
+            p.println("a: " + String.valueOf(a));
+            p.println("b: " + String.valueOf(b));
+            p.println("c: " + String.valueOf(c));
+            p.println("d: " + String.valueOf(d));
+            p.println("rms error (um): " + String.valueOf(rmsErrorUm));
+            p.println("native x sign: " + String.valueOf(nativeXSign));
+            p.println("native y sign: " + String.valueOf(nativeYSign));
+            p.println("microns per pixel: " + String.valueOf(micronsPerPixel()));
+            p.println("rotation (deg): " + String.valueOf(rotationDegrees()));
+        } finally {
+            if( p != null ){
+                p.close();
+            }
+        }
+    }
+
+    public static StageCalibration readFromFile(String path) throws java.io.IOException {
+        BufferedReader r = new BufferedReader(new FileReader(path));
+        String objective = DEFAULT_OBJECTIVE;
+        double[] m = new double[5];
+        int[] signs = new int[]{ 1, 1 };
+        try {
+            String line;
+            while( (line = r.readLine()) != null ){
+                int sep = line.indexOf(": ");
+                if( sep < 0 ){
+                    continue;
+                }
+                String key = line.substring(0, sep);
+                String value = line.substring(sep + 2).trim();
+
+                if( key.equals("objective") ){
+                    objective = value;
+                } else if( key.equals("a") ){
+                    m[0] = Double.parseDouble(value);
+                } else if( key.equals("b") ){
+                    m[1] = Double.parseDouble(value);
+                } else if( key.equals("c") ){
+                    m[2] = Double.parseDouble(value);
+                } else if( key.equals("d") ){
+                    m[3] = Double.parseDouble(value);
+                } else if( key.equals("rms error (um)") ){
+                    m[4] = Double.parseDouble(value);
+                } else if( key.equals("native x sign") ){
+                    signs[0] = Integer.parseInt(value);
+                } else if( key.equals("native y sign") ){
+                    signs[1] = Integer.parseInt(value);
+                }
+            }
+        } finally {
+            r.close();
+        }
+        StageCalibration calibration = new StageCalibration(objective, m[0], m[1], m[2], m[3], m[4]);
+        calibration.nativeXSign = signs[0];
+        calibration.nativeYSign = signs[1];
+        return calibration;
+    }
+
+    public String describe(){
+        return objective + ": " + String.valueOf(Math.round(micronsPerPixel() * 1000.0) / 1000.0) + " um/px, rotation " +
+            String.valueOf(Math.round(rotationDegrees() * 10.0) / 10.0) + " deg, fit error " +
+            String.valueOf(Math.round(rmsErrorUm * 100.0) / 100.0) + " um";
+    }
+}
@@ -0,0 +1,149 @@
+import ij.IJ;
+import ij.process.ImageProcessor;
+
+import mmcorej.CMMCore;
+
+// measures the pixel to stage transform of the current objective
+//
+// moves the stage by small known steps, measures how far the live image shifted after each one by
+// cross correlation and fits a StageCalibration to the moves. the stage ends up where it started
+class StageCalibrator implements Runnable {
+    // moves in multiples of the step size, opposite pairs cancel out backlash and drift
+    static final double[][] MOVE_PATTERN = {
+        { 1, 0 }, { -1, 0 }, { 0, 1 }, { 0, -1 }, { 1, 1 }, { -1, -1 }
+    };
+    static final int MAX_CORRELATION_SIZE = 512;   // pixels, larger crops are slower and not more accurate
+    static final double TARGET_SHIFT_FRACTION = 0.125; // aim for shifts of 1/8 of the correlation crop
+    static final double DEFAULT_STEP_UM = 50.0;     // used when micromanager does not know the pixel size
+    static final int MIN_SETTLE_MS = 200;           // wait at least this long for a fresh live image after a move
+
+    TrackStimController controller;
+    CMMCore core;
+
+    StageCalibrator(TrackStimController controller_){
+        controller = controller_;
+        core = controller_.core;
+    }
+
+    public void run(){
+        StageCalibration calibration = null;
+        try {
+            calibration = calibrate();
+            calibration.save();
+            IJ.log("[INFO] stage calibrated for " + calibration.describe());
+        } catch (java.lang.Exception e){
+            IJ.log("[ERROR] stage calibration failed");
+            IJ.log(e.getMessage());
+        }
+        controller.onStageCalibrationDone(calibration);
+    }
+
+    private StageCalibration calibrate() throws java.lang.Exception {
+        String objective = StageCalibration.getCurrentObjective(core);
+        String xyStage = core.getXYStageDevice();
+        double stepUm = chooseStepSizeUm();
+
+        double[][] stageMovesUm = new double[MOVE_PATTERN.length][];
+        double[][] imageShiftsPx = new double[MOVE_PATTERN.length][];
+
+        for(int i = 0; i < MOVE_PATTERN.length; i++){
+            ImageProcessor before = grabLiveImage();
+            double[] startPos = getStagePosition();
+
+            core.setRelativeXYPosition(xyStage, MOVE_PATTERN[i][0] * stepUm, MOVE_PATTERN[i][1] * stepUm);
+            waitForStage(xyStage);
+
+            // use where the stage says it went rather than where it was told to go
+            double[] endPos = getStagePosition();
+            ImageProcessor after = grabLiveImage();
+
+            stageMovesUm[i] = new double[]{ endPos[0] - startPos[0], endPos[1] - startPos[1] };
+            imageShiftsPx[i] = StageCalibration.measureShift(before, after, MAX_CORRELATION_SIZE);
+
+            IJ.log("[INFO] calibration move " + String.valueOf(i + 1) + "/" + String.valueOf(MOVE_PATTERN.length) +
+                ": stage (" + String.valueOf(round(stageMovesUm[i][0])) + ", " + String.valueOf(round(stageMovesUm[i][1])) + ") um" +
+                ", image (" + String.valueOf(round(imageShiftsPx[i][0])) + ", " + String.valueOf(round(imageShiftsPx[i][1])) + ") px");
+
+            core.setRelativeXYPosition(xyStage, -stageMovesUm[i][0], -stageMovesUm[i][1]);
+            waitForStage(xyStage);
+        }
+
+        StageCalibration calibration = StageCalibration.fit(objective, stageMovesUm, imageShiftsPx);
+        measureNativeAxisSigns(calibration, xyStage, stepUm);
+
+        return calibration;
+    }
+
+    // the tracker drives the stage with the controller's own VECTOR command, whose axes can point the
+    // other way from micromanager's. send a relative move in controller units (1/10 um) and see which
+    // way micromanager says the stage went
+    private void measureNativeAxisSigns(StageCalibration calibration, String xyStage, double stepUm) throws java.lang.Exception {
+        String port = core.getProperty(xyStage, "Port");
+        int steps = (int) Math.round(stepUm * 10.0);
+
+        double[] startPos = getStagePosition();
+        core.setSerialPortCommand(port, "R X=" + String.valueOf(steps) + " Y=" + String.valueOf(steps), "\r");
+        try {
+            // read the controller's acknowledgement so it is not left in the port buffer
+            core.getSerialPortAnswer(port, "\r\n");
+        } catch (java.lang.Exception e){
+            IJ.log("[WARNING] no answer from the stage to the calibration move");
+        }
+        waitForStage(xyStage);
+        double[] endPos = getStagePosition();
+
+        calibration.nativeXSign = endPos[0] - startPos[0] < 0 ? -1 : 1;
+        calibration.nativeYSign = endPos[1] - startPos[1] < 0 ? -1 : 1;
+
+        core.setRelativeXYPosition(xyStage, startPos[0] - endPos[0], startPos[1] - endPos[1]);
+        waitForStage(xyStage);
+    }
+
+    // step size giving an image shift that is large enough to measure precisely
+    // but small enough to keep most of the correlation crop overlapping
+    private double chooseStepSizeUm(){
+        double pixelSizeUm = core.getPixelSizeUm();
+        if( pixelSizeUm <= 0 ){
+            return DEFAULT_STEP_UM;
+        }
+
+        // same crop as StageCalibration.measureShift, smaller cameras or rois get a smaller crop
+        int cropSize = 1;
+        while( cropSize * 2 <= Math.min(Math.min(core.getImageWidth(), core.getImageHeight()), MAX_CORRELATION_SIZE) ){
+            cropSize *= 2;
+        }
+        return cropSize * TARGET_SHIFT_FRACTION * pixelSizeUm;
+    }
+
+    private void waitForStage(String xyStage) throws java.lang.Exception {
+        core.waitForDevice(xyStage);
+
+        // the live window needs a few exposures to show an image taken after the move
+        long settleMs = MIN_SETTLE_MS;
+        try {
+            settleMs = Math.max(MIN_SETTLE_MS, (long) (3 * core.getExposure()));
+        } catch (java.lang.Exception e){
+            settleMs = MIN_SETTLE_MS;
+        }
+        Thread.sleep(settleMs);
+    }
+
+    private ImageProcessor grabLiveImage() throws java.lang.Exception {
+        if( !controller.app.isLiveModeOn() ){
+            throw new Exception("live mode must be on to calibrate the stage");
+        }
+        Frame frame = controller.getLatestFrame();
+        if( frame == null ){
+            throw new Exception("no frames from the " + controller.getFrameSource().getName() + " to calibrate with");
+        }
+        return frame.getProcessor().duplicate();
+    }
+
+    private double[] getStagePosition() throws java.lang.Exception {
+        return new double[]{ core.getXPosition(), core.getYPosition() };
+    }
+
+    private static double round(double v){
+        return Math.round(v * 10.0) / 10.0;
+    }
+}
@@ -0,0 +1,151 @@
+import ij.IJ;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+// every stimulation signal of a job with when it was planned, when it was sent and when the serial
+// write returned, to show how well the stimulation was timed and catch regressions
+//
+// the arrays are allocated once with the stimulator and reused by every job, so recording a signal
+// is a few array stores and never allocates while the timeline is sending. signals past CAPACITY
+// are counted but not kept. times are ns from the start of the job
+class StimulationAuditLog {
+    static final int CAPACITY = 1 << 16;
+
+    // who sent the signal
+    static final int TIMELINE = 0;   // the stimulation timeline, timed on the computer
+    static final int DEVICE = 1;     // the stimulator firmware, sent is its report, written when the report came in
+    static final int FRAME = 2;      // an imaging task, frame locked stimulation
+    static final String[] SOURCE_NAMES = { "timeline", "device", "frame" };
+
+    private final int[] sources = new int[CAPACITY];
+    private final int[] protocols = new int[CAPACITY];
+    private final int[] events = new int[CAPACITY];
+    private final int[] channels = new int[CAPACITY];
+    private final int[] levels = new int[CAPACITY];
+    private final long[] plannedNanos = new long[CAPACITY];
+    private final long[] sentNanos = new long[CAPACITY];
+    private final long[] writtenNanos = new long[CAPACITY];
+
+    private int size;
+    private int dropped;
+    private long startNanos;
+
+    // forget the last job, times are taken from now
+    public synchronized void start(){
+        size = 0;
+        dropped = 0;
+        startNanos = System.nanoTime();
+    }
+
+    // record one signal, all times are System.nanoTime() values
+    public synchronized void record(int source, int protocol, int event, int channel, int level, long planned, long sent, long written){
+        if( size == CAPACITY ){
+            dropped++;
+            return;
+        }
+        sources[size] = source;
+        protocols[size] = protocol;
+        events[size] = event;
+        channels[size] = channel;
+        levels[size] = level;
+        plannedNanos[size] = planned - startNanos;
+        sentNanos[size] = sent - startNanos;
+        writtenNanos[size] = written - startNanos;
+        size++;
+    }
+
+    public synchronized int size(){
+        return size;
+    }
+
+    // save every signal to <directory>/temp<job>_stim-timing.csv and the summary to stim-timing.txt
+    public synchronized String save(String directory, int jobId){
+        String summary = describe();
+        PrintWriter p = null;
+        try {
+            p = new PrintWriter(directory + "/" + "temp" + String.valueOf(jobId) + "_" + "stim-timing.csv");
+            p.println("protocol, signal, source, channel, level, planned (ms), sent (ms), written (ms), late (ms), write (ms)");
+            for(int i = 0; i < size; i++){
+                p.println(String.valueOf(protocols[i]) + ", " + String.valueOf(events[i]) + ", " + SOURCE_NAMES[sources[i]] + ", " +
+                    String.valueOf(channels[i]) + ", " + String.valueOf(levels[i]) + ", " +
+                    ms(plannedNanos[i]) + ", " + ms(sentNanos[i]) + ", " + ms(writtenNanos[i]) + ", " +
+                    ms(sentNanos[i] - plannedNanos[i]) + ", " + ms(writtenNanos[i] - sentNanos[i]));
+            }
+        } catch (java.io.IOException e){
+            IJ.log("[ERROR] unable to write stimulation timing file");
+        } finally {
+            if( p != null ){
+                p.close();
+            }
+        }
+
+        p = null;
+        try {
+            p = new PrintWriter(directory + "/" + "temp" + String.valueOf(jobId) + "_" + "stim-timing.txt");
+            p.print(summary);
+        } catch (java.io.IOException e){
+            IJ.log("[ERROR] unable to write stimulation timing summary");
+        } finally {
+            if( p != null ){
+                p.close();
+            }
+        }
+        return summary;
+    }
+
+    // percentiles of how late the signals of each source went out, and how long the serial writes took
+    public synchronized String describe(){
+        StringBuilder s = new StringBuilder();
+        s.append("stimulation signals: " + String.valueOf(size) + (dropped > 0 ? ", " + String.valueOf(dropped) + " more not recorded" : "") + "\n");
+        for(int source = 0; source < SOURCE_NAMES.length; source++){
+            int n = 0;
+            for(int i = 0; i < size; i++){
+                if( sources[i] == source ){
+                    n++;
+                }
+            }
+            if( n == 0 ){
+                continue;
+            }
+
+            long[] late = new long[n];
+            long[] write = new long[n];
+            int worst = -1;
+            int k = 0;
+            for(int i = 0; i < size; i++){
+                if( sources[i] != source ){
+                    continue;
+                }
+                late[k] = sentNanos[i] - plannedNanos[i];
+                write[k] = writtenNanos[i] - sentNanos[i];
+                if( worst < 0 || late[k] > sentNanos[worst] - plannedNanos[worst] ){
+                    worst = i;
+                }
+                k++;
+            }
+            Arrays.sort(late);
+            Arrays.sort(write);
+
+            s.append(SOURCE_NAMES[source] + ": " + String.valueOf(n) + " signals\n");
+            s.append("  late (ms): p50 " + ms(percentile(late, 0.5)) + ", p90 " + ms(percentile(late, 0.9)) +
+                ", p99 " + ms(percentile(late, 0.99)) + ", p99.9 " + ms(percentile(late, 0.999)) + ", max " + ms(late[n - 1]) + "\n");
+            s.append("  " + (source == DEVICE ? "report delay" : "serial write") + " (ms): p50 " + ms(percentile(write, 0.5)) +
+                ", p99 " + ms(percentile(write, 0.99)) + ", max " + ms(write[n - 1]) + "\n");
+            s.append("  latest: protocol " + String.valueOf(protocols[worst]) + " signal " + String.valueOf(events[worst]) +
+                ", planned at " + ms(plannedNanos[worst]) + " ms, channel " + String.valueOf(channels[worst]) +
+                " level " + String.valueOf(levels[worst]) + "\n");
+        }
+        return s.toString();
+    }
+
+    // nearest rank percentile of sorted values
+    private static long percentile(long[] sorted, double p){
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+    private static String ms(long nanos){
+        return String.valueOf(Math.round(nanos / 1000.0) / 1000.0);
+    }
+}
@@ -0,0 +1,155 @@
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// one closed loop stimulation rule: a condition on the worm's behavior and the protocol it starts
+//
+// written as "<condition> : <waveform spec>", several rules separated by ';'
+//   speed > <um/s>, speed < <um/s>       how fast the worm crawls
+//   reversal                             the worm turned around
+//   region <x um> <y um> <radius um>     the worm is within the circle, stage coordinates
+//   outside <x um> <y um> <radius um>    the worm is outside the circle
+// e.g. "speed > 150 : square duration=2000; reversal : sine 5 duration=1000 strength=40 channel=2"
+//
+// the waveform is a StimulationWaveform spec that starts as soon as the rule fires: no pre stimulation,
+// one cycle of DEFAULT_DURATION_MS unless the spec says otherwise. channel=2 sends it to DA2.
+// a rule fires when its condition becomes true, not on every task it stays true, and then waits
+// cooldown=<ms> (DEFAULT_COOLDOWN_MS) before it can fire again
+class StimulationRule {
+    static final double DEFAULT_DURATION_MS = 1000;
+    static final double DEFAULT_COOLDOWN_MS = 5000;
+    static final Pattern RULE_OPTION = Pattern.compile("(?<=^|\\s)(cooldown|channel)=(\\S*)");
+
+    enum Condition { SPEED_ABOVE, SPEED_BELOW, REVERSAL, INSIDE, OUTSIDE }
+
+    String spec;
+    Condition condition;
+    double threshold;          // speed, um/s
+    double[] region;           // x, y, radius, um
+    StimulationWaveform waveform;
+    double cooldownMs = DEFAULT_COOLDOWN_MS;
+
+    private boolean wasTrue;
+    private long lastFiredNanos;
+    private boolean fired;
+
+    // parse every rule of a ';' separated list, throws IllegalArgumentException naming the rule that is wrong
+    public static ArrayList<StimulationRule> parseRules(String specs){
+        ArrayList<StimulationRule> rules = new ArrayList<StimulationRule>();
+        for(String spec : specs.split(";")){
+            if( spec.trim().isEmpty() ){
+                continue;
+            }
+            try {
+                rules.add(parse(spec));
+            } catch (IllegalArgumentException e){
+                throw new IllegalArgumentException("rule \"" + spec.trim() + "\": " + e.getMessage());
+            }
+        }
+        return rules;
+    }
+
+    public static StimulationRule parse(String spec){
+        String[] parts = spec.split(":", 2);
+        if( parts.length < 2 ){
+            throw new IllegalArgumentException("needs a condition and a waveform separated by :");
+        }
+
+        StimulationRule rule = new StimulationRule();
+        rule.spec = spec.trim();
+        rule.parseCondition(parts[0].trim().toLowerCase());
+
+        // the rule's own options, the rest is the waveform
+        int channel = 1;
+        Matcher m = RULE_OPTION.matcher(parts[1]);
+        StringBuffer waveformSpec = new StringBuffer();
+        while( m.find() ){
+            double value;
+            try {
+                value = Double.parseDouble(m.group(2));
+            } catch (NumberFormatException e){
+                throw new IllegalArgumentException(m.group(1) + " is not a number: " + m.group(2));
+            }
+            if( m.group(1).equals("cooldown") ){
+                rule.cooldownMs = Math.max(0, value);
+            } else {
+                channel = (int) value;
+                if( channel != 1 && channel != 2 ){
+                    throw new IllegalArgumentException("channel must be 1 (DA1) or 2 (DA2)");
+                }
+            }
+            m.appendReplacement(waveformSpec, "");
+        }
+        m.appendTail(waveformSpec);
+
+        StimulationWaveform w = new StimulationWaveform();
+        w.preStimMs = 0;
+        w.durationMs = DEFAULT_DURATION_MS;
+        w.cycleMs = DEFAULT_DURATION_MS;
+        w.numCycles = 1;
+        w.parse(waveformSpec.toString());
+        w.cycleMs = Math.max(w.cycleMs, w.durationMs);
+        w.channel = channel == 2 ? Stimulator.SECOND_CHANNEL : Stimulator.STIMULATION_CHANNEL;
+        rule.waveform = w;
+        return rule;
+    }
+
+    private void parseCondition(String c){
+        String[] words = c.replaceAll("([<>])", " $1 ").trim().split("\\s+");
+        try {
+            if( words[0].equals("speed") && words.length == 3 && (words[1].equals(">") || words[1].equals("<")) ){
+                condition = words[1].equals(">") ? Condition.SPEED_ABOVE : Condition.SPEED_BELOW;
+                threshold = Double.parseDouble(words[2]);
+            } else if( words[0].equals("reversal") && words.length == 1 ){
+                condition = Condition.REVERSAL;
+            } else if( (words[0].equals("region") || words[0].equals("outside")) && words.length == 4 ){
+                condition = words[0].equals("region") ? Condition.INSIDE : Condition.OUTSIDE;
+                region = new double[]{ Double.parseDouble(words[1]), Double.parseDouble(words[2]), Double.parseDouble(words[3]) };
+            } else {
+                throw new IllegalArgumentException("unknown condition " + c);
+            }
+        } catch (NumberFormatException e){
+            throw new IllegalArgumentException("condition " + c + " has a value that is not a number");
+        }
+    }
+
+    public void reset(){
+        wasTrue = false;
+        fired = false;
+    }
+
+    // whether the condition holds for this state, false when the worm was not found
+    public boolean test(BehaviorState s){
+        if( !s.found ){
+            return false;
+        }
+        switch( condition ){
+            case SPEED_ABOVE:
+                return s.speed > threshold;
+            case SPEED_BELOW:
+                return s.speed < threshold;
+            case REVERSAL:
+                return s.reversal;
+            case INSIDE:
+                return Math.hypot(s.x - region[0], s.y - region[1]) <= region[2];
+            default:
+                return Math.hypot(s.x - region[0], s.y - region[1]) > region[2];
+        }
+    }
+
+    // true if the rule should fire now: the condition just became true and the cooldown is over
+    public boolean shouldFire(BehaviorState s, long nowNanos){
+        boolean isTrue = test(s);
+        boolean rising = isTrue && !wasTrue;
+        wasTrue = isTrue;
+        if( !rising ){
+            return false;
+        }
+        return !fired || nowNanos - lastFiredNanos >= cooldownMs * 1.0e6;
+    }
+
+    public void markFired(long nowNanos){
+        fired = true;
+        lastFiredNanos = nowNanos;
+    }
+}
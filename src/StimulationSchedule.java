@@ -0,0 +1,69 @@
+import java.util.Arrays;
+
+// the signals of a stimulation protocol in the order they are sent
+// kept as plain arrays so long protocols cost no more than a few bytes per signal
+class StimulationSchedule {
+    private long[] timesNanos;  // from the start of the protocol
+    private int[] channels;
+    private int[] levels;       // 0 - 63
+    private int size;
+
+    StimulationSchedule(){
+        timesNanos = new long[16];
+        channels = new int[16];
+        levels = new int[16];
+        size = 0;
+    }
+
+    public void add(long timeNanos, int channel, int level){
+        if( size == timesNanos.length ){
+            timesNanos = Arrays.copyOf(timesNanos, size * 2);
+            channels = Arrays.copyOf(channels, size * 2);
+            levels = Arrays.copyOf(levels, size * 2);
+        }
+        timesNanos[size] = timeNanos;
+        channels[size] = channel;
+        levels[size] = level;
+        size++;
+    }
+
+    public void addMs(double timeMs, int channel, int level){
+        add(Math.round(timeMs * 1.0e6), channel, level);
+    }
+
+    // order the signals by time, signals at the same time keep the order they were added in
+    public void sort(){
+        // insertion sort, schedules are built nearly in order
+        for(int i = 1; i < size; i++){
+            long t = timesNanos[i];
+            int c = channels[i];
+            int l = levels[i];
+            int j = i - 1;
+            while( j >= 0 && timesNanos[j] > t ){
+                timesNanos[j + 1] = timesNanos[j];
+                channels[j + 1] = channels[j];
+                levels[j + 1] = levels[j];
+                j--;
+            }
+            timesNanos[j + 1] = t;
+            channels[j + 1] = c;
+            levels[j + 1] = l;
+        }
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public long getTimeNanos(int i){
+        return timesNanos[i];
+    }
+
+    public int getChannel(int i){
+        return channels[i];
+    }
+
+    public int getLevel(int i){
+        return levels[i];
+    }
+}
@@ -0,0 +1,298 @@
+import ij.IJ;
+
+import mmcorej.CMMCore;
+
+// the one thread that sends the stimulator signals of a protocol at their planned times
+//
+// the signals are sent in order against System.nanoTime(). the thread sleeps until just before each
+// signal and, with spin wait on, spins for the last SPIN_NANOS, which a sleep cannot resolve.
+// signals due at the same time, e.g. both channels switching together, go out in one serial write.
+// when each signal actually went out is recorded next to when it was planned, here for the protocol
+// summary and in the stimulator's audit log for the job. the thread lives as
+// long as the stimulator, so a protocol of any length uses it and no other
+//
+// a protocol uploaded to the stimulator firmware (StimulatorBatch) is timed by the arduino instead,
+// the thread then only starts it and records the times the firmware reports for each signal
+class StimulationTimeline implements Runnable {
+    static final long SPIN_NANOS = 1000000L; // sleeps wake up late by up to about a millisecond
+    static final long DEVICE_POLL_MS = 1;
+    static final long DEVICE_TIMEOUT_NANOS = 2000000000L; // how long after the last signal to wait for the firmware to finish
+
+    private final Stimulator stimulator;
+    private final Thread thread;
+
+    // the last protocol started and the one the thread has not taken yet, guarded by this
+    private Run current;
+    private Run pending;
+
+    volatile boolean spinWait = true;
+
+    // one protocol and how it went. the thread sends a protocol with its own run only, so one started
+    // while the last is still winding down cannot send with the old one's state or be dropped by it
+    private static class Run {
+        StimulationSchedule schedule;
+        StimulatorBatch batch;      // the upload the firmware is timing, null when timed here
+        CMMCore core;
+        String port;
+        long startNanos;
+        long[] sentNanos;           // when each signal was handed to the serial port, relative to startNanos, -1 if not sent
+        int protocol;               // number of the protocol in the audit log
+        boolean cancelled;
+        boolean done;
+    }
+
+    StimulationTimeline(Stimulator stimulator_){
+        stimulator = stimulator_;
+        thread = new Thread(this, "TrackStim stimulation timeline");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // send the schedule's signals, timed from startNanos_ (a System.nanoTime() value)
+    // a protocol still being sent is cancelled first
+    public void start(CMMCore core_, String port_, StimulationSchedule schedule_, long startNanos_){
+        start(core_, port_, schedule_, null, startNanos_);
+    }
+
+    // start a protocol already uploaded to the stimulator firmware, now
+    public void startOnDevice(CMMCore core_, String port_, StimulatorBatch batch_){
+        start(core_, port_, batch_.expand(), batch_, System.nanoTime());
+    }
+
+    private void start(CMMCore core_, String port_, StimulationSchedule schedule_, StimulatorBatch batch_, long startNanos_){
+        cancel();
+        synchronized(this){
+            Run run = new Run();
+            run.core = core_;
+            run.port = port_;
+            run.schedule = schedule_;
+            run.batch = batch_;
+            run.protocol = stimulator.nextProtocol();
+            run.startNanos = startNanos_;
+            run.sentNanos = new long[schedule_.size()];
+            java.util.Arrays.fill(run.sentNanos, -1);
+            // the last one could not be stopped in time, it is not sent at all
+            if( current != null && !current.done ){
+                current.cancelled = true;
+                thread.interrupt();
+            }
+            if( pending != null ){
+                pending.done = true;
+            }
+            current = run;
+            pending = run;
+            notifyAll();
+        }
+    }
+
+    // stop sending the current protocol, returns once no more signals will be sent
+    public void cancel(){
+        synchronized(this){
+            Run run = current;
+            if( run == null || run.done ){
+                return;
+            }
+            run.cancelled = true;
+            thread.interrupt();
+            long deadline = System.currentTimeMillis() + 1000;
+            while( !run.done && System.currentTimeMillis() < deadline ){
+                try {
+                    wait(100);
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    public synchronized boolean isRunning(){
+        return current != null && !current.done;
+    }
+
+    public synchronized StimulationSchedule getSchedule(){
+        return current == null ? null : current.schedule;
+    }
+
+    // when each signal of the last protocol was sent, in ns from its start, -1 for signals never sent
+    public synchronized long[] getSentNanos(){
+        return current == null ? new long[0] : current.sentNanos.clone();
+    }
+
+    public void run(){
+        while( true ){
+            Run run;
+            synchronized(this){
+                while( pending == null ){
+                    try {
+                        wait();
+                    } catch (InterruptedException e){
+                        // a cancel with nothing running, keep waiting
+                    }
+                }
+                run = pending;
+                pending = null;
+            }
+            StimulationSchedule schedule = run.schedule;
+            long start = run.startNanos;
+
+            if( run.batch != null ){
+                playOnDevice(run);
+            }
+            for(int i = 0; run.batch == null && i < schedule.size(); ){
+                if( !waitUntil(start + schedule.getTimeNanos(i)) ){
+                    break;
+                }
+
+                // the signals due together
+                int n = 1;
+                while( i + n < schedule.size() && schedule.getTimeNanos(i + n) == schedule.getTimeNanos(i) ){
+                    n++;
+                }
+                int[] channels = new int[n];
+                int[] levels = new int[n];
+                for(int k = 0; k < n; k++){
+                    channels[k] = schedule.getChannel(i + k);
+                    levels[k] = schedule.getLevel(i + k);
+                }
+
+                synchronized(this){
+                    if( run.cancelled ){
+                        break;
+                    }
+                    long sent = System.nanoTime();
+                    for(int k = 0; k < n; k++){
+                        run.sentNanos[i + k] = sent - start;
+                    }
+                    if( n == 1 ){
+                        Stimulator.sendSignal(run.core, run.port, channels[0], levels[0]);
+                    } else {
+                        Stimulator.sendSignals(run.core, run.port, channels, levels);
+                    }
+                    long written = System.nanoTime();
+                    for(int k = 0; k < n; k++){
+                        stimulator.audit.record(StimulationAuditLog.TIMELINE, run.protocol, i + k, channels[k], levels[k],
+                            start + schedule.getTimeNanos(i + k), sent, written);
+                    }
+                }
+                for(int k = 0; k < n; k++){
+                    stimulator.setLevel(channels[k], levels[k]);
+                }
+                i += n;
+            }
+
+            synchronized(this){
+                run.done = true;
+                Thread.interrupted(); // a cancel that came in after the last signal
+                notifyAll();
+                if( !run.cancelled ){
+                    IJ.log("[INFO] stimulation protocol sent: " + describeTiming(run));
+                }
+            }
+        }
+    }
+
+    // start the uploaded protocol and follow the firmware's reports until it is done
+    private void playOnDevice(Run run){
+        StimulationSchedule schedule = run.schedule;
+        long start = run.startNanos;
+        CMMCore core = run.core;
+        String port = run.port;
+        StimulatorBatch.ReplyParser parser = new StimulatorBatch.ReplyParser();
+        int perCycle = run.batch.cycle.size();
+        long endNanos = schedule.size() > 0 ? schedule.getTimeNanos(schedule.size() - 1) : 0;
+        boolean aborted = false;
+
+        try {
+            Stimulator.writeSignalData(core, port, StimulatorBatch.START);
+            while( true ){
+                synchronized(this){
+                    if( run.cancelled && !aborted ){
+                        Stimulator.writeSignalData(core, port, StimulatorBatch.ABORT);
+                        aborted = true;
+                    }
+                }
+
+                for(long[] reply : parser.feed(Stimulator.readSignalData(core, port))){
+                    if( reply[0] == StimulatorBatch.START ){
+                        int i = (int) (reply[1] * perCycle + reply[2]);
+                        if( i < schedule.size() ){
+                            synchronized(this){
+                                run.sentNanos[i] = reply[3] * 1000L;
+                            }
+                            stimulator.audit.record(StimulationAuditLog.DEVICE, run.protocol, i, schedule.getChannel(i), schedule.getLevel(i),
+                                start + schedule.getTimeNanos(i), start + reply[3] * 1000L, System.nanoTime());
+                            stimulator.setLevel(schedule.getChannel(i), schedule.getLevel(i));
+                        }
+                    } else if( reply[0] == StimulatorBatch.DONE ){
+                        return;
+                    } else if( reply[0] == StimulatorBatch.ERROR ){
+                        IJ.log("[WARNING] the stimulator stopped the uploaded protocol, error " + String.valueOf(reply[1]));
+                        return;
+                    }
+                }
+
+                if( System.nanoTime() - start > endNanos + DEVICE_TIMEOUT_NANOS ){
+                    IJ.log("[WARNING] the stimulator did not report the end of the uploaded protocol");
+                    return;
+                }
+                try {
+                    Thread.sleep(DEVICE_POLL_MS);
+                } catch (InterruptedException e){
+                    // a cancel, the abort goes out on the next pass
+                }
+            }
+        } catch (java.lang.Exception e){
+            IJ.log("[WARNING] lost the stimulator while it played the uploaded protocol");
+            IJ.log(e.getMessage());
+        }
+    }
+
+    // sleep, then spin, until System.nanoTime() reaches the target, false if cancelled in the meantime
+    private boolean waitUntil(long targetNanos){
+        try {
+            long remaining = targetNanos - System.nanoTime();
+            long sleepNanos = spinWait ? remaining - SPIN_NANOS : remaining;
+            if( sleepNanos > 0 ){
+                Thread.sleep(sleepNanos / 1000000L, (int) (sleepNanos % 1000000L));
+            }
+            while( spinWait && System.nanoTime() < targetNanos ){
+                if( Thread.interrupted() ){
+                    return false;
+                }
+                // busy wait, a yield could hand the cpu to another thread for a whole time slice
+            }
+            return true;
+        } catch (InterruptedException e){
+            return false;
+        }
+    }
+
+    // how late the signals of the last protocol went out compared to the plan
+    public synchronized String describeTiming(){
+        if( current == null ){
+            return "no protocol";
+        }
+        return describeTiming(current);
+    }
+
+    private static String describeTiming(Run run){
+        StimulationSchedule schedule = run.schedule;
+        long[] sentNanos = run.sentNanos;
+        int sent = 0;
+        long sumLate = 0;
+        long maxLate = 0;
+        for(int i = 0; i < sentNanos.length; i++){
+            if( sentNanos[i] < 0 ){
+                continue;
+            }
+            long late = sentNanos[i] - schedule.getTimeNanos(i);
+            sumLate += late;
+            maxLate = Math.max(maxLate, late);
+            sent++;
+        }
+        return (run.batch != null ? "timed on the stimulator, " : "") + String.valueOf(sent) + " of " + String.valueOf(schedule.size()) + " signals, " +
+            "mean " + String.valueOf(sent > 0 ? Math.round(sumLate / sent / 1000.0) / 1000.0 : 0.0) + " ms late, " +
+            "max " + String.valueOf(Math.round(maxLate / 1000.0) / 1000.0) + " ms late";
+    }
+}
@@ -0,0 +1,189 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// what the light does during the on part of each stimulation cycle
+//
+// the shape is given as a short spec, the waveform choice plus its parameters in the ui:
+//   square              full strength for the whole duration (the default)
+//   square <hz>         pulses of full strength at the given frequency, half on half off
+//   ramp                from the ramp start to the ramp end level, every level held equally long
+//   sine <hz>           between the base and full strength
+//   chirp <hz> <hz>     a sine whose frequency goes from the first to the second over the duration
+//   file <path>         levels from a csv, one level per line every SAMPLE_MS, or "time (ms), level" per line
+// between cycles, and after the last, the light is at the base level
+//
+// timing and levels come from the stimulator ui fields, and can be set in the spec with name=value,
+// e.g. "sine 2 pre=1000 strength=40", so the second channel can run its own protocol:
+//   pre, duration, cycle (ms), cycles, strength, base, start, end (0 - 63)
+class StimulationWaveform {
+    static final double DEFAULT_SAMPLE_MS = 5.0; // a byte takes about a millisecond on the stimulator serial port
+    static final int MAX_LEVEL = 63;              // the stimulator dac has 6 bits
+    static final Pattern OPTION = Pattern.compile("(?<=^|\\s)(pre|duration|cycles|cycle|strength|base|start|end)=(\\S*)");
+
+    enum Shape { SQUARE, RAMP, SINE, CHIRP, FILE }
+
+    Shape shape = Shape.SQUARE;
+    String spec = "square";
+
+    // timing, same meaning as the stimulator ui fields
+    double preStimMs;
+    double durationMs;
+    double cycleMs;
+    int numCycles;
+    int channel = Stimulator.STIMULATION_CHANNEL;
+
+    // levels, 0 - 63
+    int strength = Stimulator.ON_SIGNAL;
+    int base = Stimulator.OFF_SIGNAL;
+    int rampStart = 0;
+    int rampEnd = Stimulator.ON_SIGNAL;
+
+    double frequencyHz = 0;      // square pulses, sine and the chirp start
+    double endFrequencyHz = 0;   // chirp end
+    String file;
+    double sampleMs = DEFAULT_SAMPLE_MS; // how finely sines, chirps and files are sampled
+
+    // levels of a file waveform, read when the spec is parsed so a bad file shows up before the job starts
+    double[] fileTimesMs;
+    int[] fileLevels;
+
+    // set the shape from a spec, throws IllegalArgumentException if it cannot be understood
+    public void parse(String spec_){
+        String shapeSpec = parseOptions(spec_);
+        if( shapeSpec.trim().isEmpty() ){
+            shapeSpec = "square";
+        }
+        String[] parts = shapeSpec.trim().split("\\s+", 2);
+        String name = parts[0].toLowerCase();
+        String args = parts.length > 1 ? parts[1].trim() : "";
+        String[] numbers = args.isEmpty() ? new String[0] : args.split("\\s+");
+
+        try {
+            if( name.equals("square") ){
+                shape = Shape.SQUARE;
+                frequencyHz = numbers.length > 0 ? Double.parseDouble(numbers[0]) : 0;
+            } else if( name.equals("ramp") ){
+                shape = Shape.RAMP;
+            } else if( name.equals("sine") ){
+                shape = Shape.SINE;
+                frequencyHz = Double.parseDouble(numbers[0]);
+            } else if( name.equals("chirp") ){
+                shape = Shape.CHIRP;
+                frequencyHz = Double.parseDouble(numbers[0]);
+                endFrequencyHz = Double.parseDouble(numbers[1]);
+            } else if( name.equals("file") ){
+                shape = Shape.FILE;
+                file = args;
+                readFile();
+            } else {
+                throw new IllegalArgumentException("unknown waveform " + name);
+            }
+        } catch (ArrayIndexOutOfBoundsException e){
+            throw new IllegalArgumentException("waveform " + name + " is missing its frequency");
+        } catch (NumberFormatException e){
+            throw new IllegalArgumentException("waveform " + name + " frequency is not a number: " + args);
+        }
+
+        if( frequencyHz < 0 || endFrequencyHz < 0 ){
+            throw new IllegalArgumentException("waveform frequencies must not be negative");
+        }
+        if( (shape == Shape.SINE || shape == Shape.CHIRP) && frequencyHz == 0 && endFrequencyHz == 0 ){
+            throw new IllegalArgumentException("waveform " + name + " needs a frequency above 0");
+        }
+        spec = spec_.trim();
+    }
+
+    // take the name=value options out of the spec and set them, returns the rest of the spec
+    private String parseOptions(String spec_){
+        Matcher m = OPTION.matcher(spec_);
+        StringBuffer rest = new StringBuffer();
+        while( m.find() ){
+            String name = m.group(1);
+            double value;
+            try {
+                value = Double.parseDouble(m.group(2));
+            } catch (NumberFormatException e){
+                throw new IllegalArgumentException("waveform option " + name + " is not a number: " + m.group(2));
+            }
+            if( value < 0 ){
+                throw new IllegalArgumentException("waveform option " + name + " must not be negative");
+            }
+
+            if( name.equals("pre") ){
+                preStimMs = value;
+            } else if( name.equals("duration") ){
+                durationMs = value;
+            } else if( name.equals("cycle") ){
+                cycleMs = value;
+            } else if( name.equals("cycles") ){
+                numCycles = (int) value;
+            } else {
+                int level = WaveformCompiler.quantize(value);
+                if( name.equals("strength") ){
+                    strength = level;
+                } else if( name.equals("base") ){
+                    base = level;
+                } else if( name.equals("start") ){
+                    rampStart = level;
+                } else {
+                    rampEnd = level;
+                }
+            }
+            m.appendReplacement(rest, "");
+        }
+        m.appendTail(rest);
+        return rest.toString();
+    }
+
+    private void readFile(){
+        if( file.isEmpty() ){
+            throw new IllegalArgumentException("waveform file is missing its path");
+        }
+
+        ArrayList<double[]> rows = new ArrayList<double[]>();
+        BufferedReader r = null;
+        try {
+            r = new BufferedReader(new FileReader(file));
+            String line;
+            while( (line = r.readLine()) != null ){
+                line = line.trim();
+                if( line.isEmpty() || line.startsWith("#") ){
+                    continue;
+                }
+                String[] fields = line.split("[,\\s]+");
+                try {
+                    if( fields.length >= 2 ){
+                        rows.add(new double[]{ Double.parseDouble(fields[0]), Double.parseDouble(fields[1]) });
+                    } else {
+                        rows.add(new double[]{ rows.size() * sampleMs, Double.parseDouble(fields[0]) });
+                    }
+                } catch (NumberFormatException e){
+                    // a header line
+                }
+            }
+        } catch (java.io.IOException e){
+            throw new IllegalArgumentException("could not read waveform file " + file);
+        } finally {
+            if( r != null ){
+                try { r.close(); } catch (java.io.IOException e){}
+            }
+        }
+        if( rows.isEmpty() ){
+            throw new IllegalArgumentException("waveform file " + file + " has no levels");
+        }
+
+        fileTimesMs = new double[rows.size()];
+        fileLevels = new int[rows.size()];
+        for(int i = 0; i < rows.size(); i++){
+            fileTimesMs[i] = rows.get(i)[0];
+            fileLevels[i] = WaveformCompiler.quantize(rows.get(i)[1]);
+        }
+    }
+
+    public String toString(){
+        return spec;
+    }
+}
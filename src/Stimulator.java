@@ -1,89 +1,77 @@
 import ij.IJ;
 
-import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import mmcorej.CharVector;
 import mmcorej.CMMCore;
 
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-
 // send signals to the stimulator to turn on/off the LED light
-class StimulationTask implements Runnable {
-    CMMCore mmc;
-    int channel;
-    int signal;
-    String stimulatorPort;
-    Stimulator stimulator;
-
-    StimulationTask(CMMCore cmmcore_, String stimulatorPort_, int channel_, int signal_, Stimulator s) {
-        mmc = cmmcore_;
-        stimulatorPort = stimulatorPort_;
-        channel = channel_;
-        signal = signal_;
-        
-        stimulator = s;
-    }
-
-    // use micromanager to send a signal to the USB connection of the stimulator
-    public static void sendSignal(CMMCore core_, String port_, int channel_, int signal_){
-        int signalData = channel_ << 7 | signal_;
-        CharVector signalDataVec = new CharVector();
-        signalDataVec.add((char) signalData);
-
-        try {
-            core_.writeToSerialPort(port_, signalDataVec);
-        } catch (java.lang.Exception e) {
-            IJ.log("[ERROR] could not write data " + String.valueOf(signalDataVec) + " to the serial port " + port_);
-            IJ.log(e.getMessage());
-        }
-    }
-
-    // send signal data to the stimulator through the serial port
-    public void run() {
-        StimulationTask.sendSignal(mmc, stimulatorPort, channel, signal);
-        // update the current stimulation signal so the stimulator can check if the LED light is on
-        stimulator.currStimulationStrength = signal;
-    }
-}
-
 class Stimulator {
     TrackStimController controller;
     String stimulatorPort;
     boolean initialized = false;
 
-    private ArrayList<ScheduledFuture> stimulatorTasks;
+    // sends the signals of every protocol from one thread
+    private StimulationTimeline timeline;
 
-    static final int STIMULATION_CHANNEL = 0; // the channel to send ths signals to
+    // frame locked protocols are sent by the imaging tasks instead
+    // the level of each channel to set at the start of each frame, -1 where the level stays the same
+    private volatile int[][] frameLevels;
+
+    static final int STIMULATION_CHANNEL = 0; // the channel to send ths signals to, DA1 on the stimulator
+    static final int SECOND_CHANNEL = 1;      // DA2, for a second light
+    static final int NUM_CHANNELS = 2;
+    static final long UPLOAD_TIMEOUT_MS = 1000;
     static final String STIMULATOR_DEVICE_LABEL = "FreeSerialPort"; // hardcoded device label found in config
 
     public static final int ON_SIGNAL = 63; // max strength signal to turn the light on
     public static final int OFF_SIGNAL = 0; // signal to turn the light off
 
-    public volatile int currStimulationStrength;
+    // the level each channel was last set to
+    private final AtomicIntegerArray levels = new AtomicIntegerArray(NUM_CHANNELS);
+
+    // every signal of the job with its planned and actual times
+    final StimulationAuditLog audit = new StimulationAuditLog();
+    private int protocols;           // protocols started this job, numbers them in the audit log
+    private int frameLockedProtocol;
+
+    // upload protocols to the stimulator firmware and let the arduino time them, needs the batch firmware
+    public volatile boolean onDeviceTiming;
 
     Stimulator(TrackStimController c){
         controller = c;
         stimulatorPort = "";
 
-        stimulatorTasks = new ArrayList<ScheduledFuture>();
-        currStimulationStrength = OFF_SIGNAL;
+        timeline = new StimulationTimeline(this);
+    }
+
+    public int getLevel(int channel){
+        return levels.get(channel);
+    }
+
+    public void setLevel(int channel, int level){
+        int was = levels.getAndSet(channel, level);
+        // the light coming on with the other channel off, the pre-trigger buffer keeps the frames from before it
+        if( was == OFF_SIGNAL && level != OFF_SIGNAL && levels.get(channel == STIMULATION_CHANNEL ? SECOND_CHANNEL : STIMULATION_CHANNEL) == OFF_SIGNAL ){
+            controller.markEvent("stimulation onset");
+        }
     }
 
     public void turnOnLEDLight(CMMCore core, String port){
-        StimulationTask.sendSignal(controller.core, stimulatorPort, 0, ON_SIGNAL);
-        currStimulationStrength = ON_SIGNAL;
+        sendSignal(controller.core, stimulatorPort, STIMULATION_CHANNEL, ON_SIGNAL);
+        setLevel(STIMULATION_CHANNEL, ON_SIGNAL);
     }
 
+    // both lights off in one write
     public void turnOffLEDLight(CMMCore core, String port){
-        StimulationTask.sendSignal(controller.core, stimulatorPort, 0, OFF_SIGNAL);
-        currStimulationStrength = OFF_SIGNAL;
+        sendSignals(controller.core, stimulatorPort,
+            new int[]{ STIMULATION_CHANNEL, SECOND_CHANNEL }, new int[]{ OFF_SIGNAL, OFF_SIGNAL });
+        setLevel(STIMULATION_CHANNEL, OFF_SIGNAL);
+        setLevel(SECOND_CHANNEL, OFF_SIGNAL);
     }
 
     public boolean isLEDLightOn(){
-        return currStimulationStrength > 0;
+        return getLevel(STIMULATION_CHANNEL) > 0;
     }
 
     // find and connect to the LED light stimulator
@@ -99,15 +87,12 @@ class Stimulator {
         // if we dont set trigger cycle and trigger length to 0,
         // we wont be able to turn the light on and off at the right times
         int initialSignal = (STIMULATION_CHANNEL << 8) | 192;
-        CharVector initialSignalData = new CharVector();
-        initialSignalData.add((char) initialSignal);
-
 
         try {
             stimulatorPort = controller.core.getProperty(STIMULATOR_DEVICE_LABEL, "Port");
 
             // send initial signal to stimulator port
-            controller.core.writeToSerialPort(stimulatorPort, initialSignalData);
+            writeSignalData(controller.core, stimulatorPort, initialSignal);
             portFound = true;
 
         } catch (Exception e){
@@ -119,17 +104,34 @@ class Stimulator {
         return portFound;
     }
 
-    public void cancelTasks(){
-        for (int k = 0; k < stimulatorTasks.size(); k++){
-            stimulatorTasks.get(k).cancel(true);
+    // start a new audit log for a job
+    public synchronized void startAudit(){
+        audit.start();
+        protocols = 0;
+    }
+
+    public synchronized int nextProtocol(){
+        return protocols++;
+    }
+
+    // save the audit log of the job and log its summary
+    public void saveAudit(String directory, int jobId){
+        if( audit.size() == 0 ){
+            return;
         }
+        IJ.log("[INFO] stimulation timing\n" + audit.save(directory, jobId));
+    }
+
+    public void cancelTasks(){
+        timeline.cancel();
+        frameLevels = null;
         // turn the light off if it is currently in the middle of a stimulation cycle
         turnOffLEDLight(controller.core, stimulatorPort);
     }
 
     // schedules signals that will be run in the future at specific time points and intervals based on
     // the arguments:
-    //    useRamp: whether to ramp up gradually to the full signal strength i.e. go from a weaker signal to a stronger signal
+    //    waveform: what the light does while it is on, e.g. "square" or "ramp", see StimulationWaveform
     //    preStimTimeMs: time in ms before any signals are sent
     //    signal: signal to send to the light -- usually 63 and it is rare if it is changed
     //    stimDurationMs: duration that the light is on in ms
@@ -138,62 +140,303 @@ class Stimulator {
     //    rampBase: strength applied
     //    rampStart: signal at the start of the interval
     //    rampEnd: signal at the end of the interval
+    //    secondWaveform: what the second light does, "" for nothing. it takes the same fields unless
+    //        its spec sets them, e.g. "square pre=2000 strength=40"
     public void scheduleStimulationTasks(
-        boolean useRamp, int preStimTimeMs, int signal,
+        String waveform, String secondWaveform, int preStimTimeMs, int signal,
         int stimDurationMs, int stimCycleDurationMs, int numStimCycles,
         int rampBase, int rampStart, int rampEnd) throws java.lang.Exception {
 
-        ArrayList<ScheduledFuture> futureTasks = new ArrayList<ScheduledFuture>();
+        scheduleWaveforms(buildWaveforms(
+            waveform, secondWaveform, preStimTimeMs, signal, stimDurationMs, stimCycleDurationMs, numStimCycles, rampBase, rampStart, rampEnd));
+    }
+
+    // the waveforms of the stimulator ui fields, one per channel used, same arguments as scheduleStimulationTasks
+    public static StimulationWaveform[] buildWaveforms(
+        String waveform, String secondWaveform, int preStimTimeMs, int signal,
+        int stimDurationMs, int stimCycleDurationMs, int numStimCycles,
+        int rampBase, int rampStart, int rampEnd){
+
+        StimulationWaveform first = buildWaveform(
+            waveform, preStimTimeMs, signal, stimDurationMs, stimCycleDurationMs, numStimCycles, rampBase, rampStart, rampEnd);
+        if( secondWaveform == null || secondWaveform.trim().isEmpty() ){
+            return new StimulationWaveform[]{ first };
+        }
+
+        StimulationWaveform second = buildWaveform(
+            secondWaveform, preStimTimeMs, signal, stimDurationMs, stimCycleDurationMs, numStimCycles, rampBase, rampStart, rampEnd);
+        second.channel = SECOND_CHANNEL;
+        return new StimulationWaveform[]{ first, second };
+    }
+
+    // the waveform of the stimulator ui fields, the fields are defaults the spec can override
+    public static StimulationWaveform buildWaveform(
+        String waveform, int preStimTimeMs, int signal,
+        int stimDurationMs, int stimCycleDurationMs, int numStimCycles,
+        int rampBase, int rampStart, int rampEnd){
+
+        StimulationWaveform w = new StimulationWaveform();
+        w.preStimMs = preStimTimeMs;
+        w.strength = signal;
+        w.durationMs = stimDurationMs;
+        w.cycleMs = stimCycleDurationMs;
+        w.numCycles = numStimCycles;
+        w.base = rampBase;
+        w.rampStart = rampStart;
+        w.rampEnd = rampEnd;
+        w.parse(waveform);
+        return w;
+    }
+
+    public void scheduleWaveform(StimulationWaveform waveform) throws java.lang.Exception {
+        scheduleWaveforms(new StimulationWaveform[]{ waveform });
+    }
+
+    // compile the waveforms of each channel into one stream of signals and start sending them
+    public void scheduleWaveforms(StimulationWaveform[] waveforms) throws java.lang.Exception {
         if(!initialized){
             throw new Exception("could not run stimulation.  the stimulator is not initialized");
         }
 
-        try {
-            if (useRamp) {
-                // incrementally increase light strength
-                int rampSignalDelta = Math.abs(rampEnd - rampStart);
-                int rampSign = Integer.signum(rampEnd - rampStart);
+        frameLevels = null;
+        timeline.cancel();
+        if( onDeviceTiming && uploadWaveforms(waveforms) ){
+            return;
+        }
 
+        StimulationSchedule schedule = WaveformCompiler.compile(waveforms);
+        IJ.log("[INFO] stimulation waveform " + describe(waveforms) + ": " + String.valueOf(schedule.size()) + " signals");
+        timeline.start(controller.core, stimulatorPort, schedule, System.nanoTime());
+    }
 
-                for (int i = 0; i < numStimCycles; i++) {
+    // start a protocol now on the stimulation timeline, for closed loop rules
+    // never uploaded to the firmware, the upload would add its round trip to the decision latency
+    public void triggerWaveform(StimulationWaveform waveform){
+        timeline.start(controller.core, stimulatorPort, WaveformCompiler.compile(waveform), System.nanoTime());
+    }
 
-                    // schedule signals with incrementally increasing light strength
-                    for (int j = 0; j < rampSignalDelta + 1; j++) {
-                        futureTasks.add(scheduleSignal(preStimTimeMs + i * stimCycleDurationMs + j * (stimDurationMs / rampSignalDelta),
-                                rampStart + j * rampSign));
-                    }
+    public boolean isProtocolRunning(){
+        return timeline.isRunning();
+    }
 
-                    // schedule signal to turn off light at end of cycle
-                    futureTasks.add(scheduleSignal(preStimTimeMs + stimDurationMs + i * stimCycleDurationMs, rampBase));
-                }
-            } else {
-                // send full light strength right away
-                for (int i = 0; i < numStimCycles; i++) {
-                    int signalTimePtBegin = preStimTimeMs + i * stimCycleDurationMs;
-                    int signalTimePtEnd = signalTimePtBegin + stimDurationMs;
+    // e.g. "DA1 square, DA2 sine 5"
+    public static String describe(StimulationWaveform[] waveforms){
+        if( waveforms.length == 1 ){
+            return waveforms[0].toString();
+        }
+        String s = "";
+        for(int i = 0; i < waveforms.length; i++){
+            s += (i > 0 ? ", " : "") + "DA" + String.valueOf(waveforms[i].channel + 1) + " " + waveforms[i].toString();
+        }
+        return s;
+    }
 
-                    // schedule signal to turn on light at beginning cycle
-                    futureTasks.add(scheduleSignal(signalTimePtBegin, signal));
+    // upload the waveforms to the firmware and start them there, false if they cannot be timed on the device
+    private boolean uploadWaveforms(StimulationWaveform[] waveforms){
+        String waveform = describe(waveforms);
+        StimulatorBatch batch = StimulatorBatch.fromWaveforms(waveforms);
+        if( batch == null ){
+            IJ.log("[WARNING] stimulation waveform " + waveform + " has more than " + String.valueOf(StimulatorBatch.MAX_EVENTS) +
+                " level changes per cycle, channels with different cycles or is longer than " + String.valueOf(StimulatorBatch.MAX_MICROS / 60000000L) +
+                " minutes for the stimulator firmware, timing it on the computer instead");
+            return false;
+        }
 
-                    // schedule signal to turn off light at end of cycle
-                    futureTasks.add(scheduleSignal(signalTimePtEnd, rampBase));
+        try {
+            readSignalData(controller.core, stimulatorPort); // drop anything left over
+            writeSignalData(controller.core, stimulatorPort, batch.encodeUpload());
+
+            // wait for the firmware to take the upload
+            StimulatorBatch.ReplyParser parser = new StimulatorBatch.ReplyParser();
+            long deadline = System.currentTimeMillis() + UPLOAD_TIMEOUT_MS;
+            while( System.currentTimeMillis() < deadline ){
+                java.util.ArrayList<long[]> replies = parser.feed(readSignalData(controller.core, stimulatorPort));
+                for(long[] reply : replies){
+                    if( reply[0] == StimulatorBatch.UPLOAD && reply[1] == batch.cycle.size() ){
+                        IJ.log("[INFO] stimulation waveform " + waveform + ": " + String.valueOf(batch.cycle.size()) +
+                            " signals per cycle uploaded to the stimulator");
+                        timeline.startOnDevice(controller.core, stimulatorPort, batch);
+                        return true;
+                    }
+                    if( reply[0] == StimulatorBatch.ERROR ){
+                        IJ.log("[WARNING] the stimulator refused the upload, error " + String.valueOf(reply[1]) + ", timing it on the computer instead");
+                        return false;
+                    }
                 }
+                Thread.sleep(5);
+            }
+            IJ.log("[WARNING] no answer to the upload, the stimulator firmware may not support it, timing it on the computer instead");
+        } catch (java.lang.Exception e){
+            IJ.log("[WARNING] could not upload the stimulation waveform, timing it on the computer instead");
+            IJ.log(e.getMessage());
+        }
+        return false;
+    }
+
+    // compile the waveforms and tie each level change to the start of the frame it falls in
+    // the imaging task of each frame sends the changes with stimulateFrame before it takes the frame,
+    // so a level lasts whole frames and every frame has exactly one level per channel. changes closer
+    // together than a frame collapse into the last one, e.g. pulses shorter than a frame are lost
+    public void scheduleFrameLockedStimulation(StimulationWaveform[] waveforms, int fps, int numFrames) throws java.lang.Exception {
+        scheduleFrameLockedStimulation(waveforms, fps, numFrames, 0);
+    }
+
+    // the same protocol for a job resumed at firstFrame, the levels the protocol had reached by then are sent with that frame
+    public void scheduleFrameLockedStimulation(StimulationWaveform[] waveforms, int fps, int numFrames, int firstFrame) throws java.lang.Exception {
+        if(!initialized){
+            throw new Exception("could not run stimulation.  the stimulator is not initialized");
+        }
+        timeline.cancel();
+
+        // the imager takes a frame every 1000 / fps whole ms, so the frame boundaries are too
+        double frameMs = 1000 / fps;
+        StimulationSchedule schedule = WaveformCompiler.compile(waveforms);
+        int[][] levels = new int[NUM_CHANNELS][numFrames];
+        for(int c = 0; c < NUM_CHANNELS; c++){
+            java.util.Arrays.fill(levels[c], -1);
+        }
+        int collapsed = 0;
+        for(int i = 0; i < schedule.size(); i++){
+            int frame = (int) Math.ceil(schedule.getTimeNanos(i) / 1.0e6 / frameMs - 1e-9);
+            if( frame >= numFrames ){
+                continue;
+            }
+            int[] channelLevels = levels[schedule.getChannel(i)];
+            if( channelLevels[frame] >= 0 ){
+                collapsed++;
+            }
+            channelLevels[frame] = schedule.getLevel(i);
+        }
+        for(int c = 0; c < NUM_CHANNELS && firstFrame > 0 && firstFrame < numFrames; c++){
+            for(int frame = firstFrame; frame >= 0 && levels[c][firstFrame] < 0; frame--){
+                levels[c][firstFrame] = levels[c][frame];
+            }
+        }
+
+        IJ.log("[INFO] frame locked stimulation waveform " + describe(waveforms) + ": " + String.valueOf(schedule.size()) + " signals");
+        if( collapsed > 0 ){
+            IJ.log("[WARNING] " + String.valueOf(collapsed) + " level changes were less than a frame apart and were dropped");
+        }
+        frameLockedProtocol = nextProtocol();
+        frameLevels = levels;
+    }
+
+    // stop sending levels from the imaging tasks, e.g. before a job without stimulation
+    public void clearFrameLockedStimulation(){
+        frameLevels = null;
+    }
+
+    public boolean isFrameLocked(){
+        return frameLevels != null;
+    }
+
+    // called by the imaging task at the start of a frame, sends the frame's levels that change in one write
+    // plannedNanos is when the frame was due, for the audit log
+    // returns true if a level changed, the frame should then be taken after the change
+    public boolean stimulateFrame(int frameIndex, long plannedNanos){
+        int[][] locked = frameLevels;
+        if( locked == null || frameIndex >= locked[0].length ){
+            return false;
+        }
+
+        int[] channels = new int[NUM_CHANNELS];
+        int[] changes = new int[NUM_CHANNELS];
+        int n = 0;
+        for(int c = 0; c < NUM_CHANNELS; c++){
+            int level = locked[c][frameIndex];
+            if( level >= 0 && level != getLevel(c) ){
+                channels[n] = c;
+                changes[n] = level;
+                n++;
             }
+        }
+        if( n == 0 ){
+            return false;
+        }
+
+        long sent = System.nanoTime();
+        sendSignals(controller.core, stimulatorPort,
+            java.util.Arrays.copyOf(channels, n), java.util.Arrays.copyOf(changes, n));
+        long written = System.nanoTime();
+        for(int i = 0; i < n; i++){
+            setLevel(channels[i], changes[i]);
+            audit.record(StimulationAuditLog.FRAME, frameLockedProtocol, frameIndex, channels[i], changes[i], plannedNanos, sent, written);
+        }
+        return true;
+    }
+
+    // how late the signals of the last protocol were sent
+    public String describeTiming(){
+        return timeline.describeTiming();
+    }
+
+    // use micromanager to send a signal to the USB connection of the stimulator
+    public static void sendSignal(CMMCore core_, String port_, int channel_, int signal_){
+        int signalData = channel_ << 7 | signal_;
+
+        try {
+            writeSignalData(core_, port_, signalData);
         } catch (java.lang.Exception e) {
-            IJ.log("[ERROR] could not send signals to the stimulator");
+            IJ.log("[ERROR] could not write data " + String.valueOf(signalData) + " to the serial port " + port_);
             IJ.log(e.getMessage());
         }
+    }
+
+    // send the levels of several channels in one serial write, e.g. changes due at the same time
+    public static void sendSignals(CMMCore core_, String port_, int[] channels_, int[] signals_){
+        int[] signalData = new int[channels_.length];
+        for(int i = 0; i < signalData.length; i++){
+            signalData[i] = channels_[i] << 7 | signals_[i];
+        }
 
-        stimulatorTasks = futureTasks;
+        try {
+            writeSignalData(core_, port_, signalData);
+        } catch (java.lang.Exception e) {
+            IJ.log("[ERROR] could not write " + String.valueOf(signalData.length) + " signals to the serial port " + port_);
+            IJ.log(e.getMessage());
+        }
     }
 
-    // schedule a task to send a (on/off w/ certain intensity) signal to the LED light
-    private ScheduledFuture scheduleSignal(int timePointMs, final int signal) {
-        ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor();
-        StimulationTask stimulationTask = new StimulationTask(controller.core, stimulatorPort, STIMULATION_CHANNEL, signal, this);
+    // write one byte of signal data to the stimulator port
+    // the simulated core takes the byte directly, CharVector cannot be made without the native library
+    public static void writeSignalData(CMMCore core_, String port_, int signalData) throws java.lang.Exception {
+        if( core_ instanceof SimulatedCore ){
+            ((SimulatedCore) core_).writeToSerialPort(port_, signalData);
+            return;
+        }
 
-        // convert the timepoint to microseconds
-        // legacy decision, not sure why we need to do it like this
-        return ses.schedule(stimulationTask, timePointMs * 1000, TimeUnit.MICROSECONDS);
+        CharVector signalDataVec = new CharVector();
+        signalDataVec.add((char) signalData);
+        core_.writeToSerialPort(port_, signalDataVec);
     }
-}
\ No newline at end of file
+
+    // write several bytes in one go, e.g. a schedule upload
+    public static void writeSignalData(CMMCore core_, String port_, int[] signalData) throws java.lang.Exception {
+        if( core_ instanceof SimulatedCore ){
+            for(int i = 0; i < signalData.length; i++){
+                ((SimulatedCore) core_).writeToSerialPort(port_, signalData[i]);
+            }
+            return;
+        }
+
+        CharVector signalDataVec = new CharVector();
+        for(int i = 0; i < signalData.length; i++){
+            signalDataVec.add((char) signalData[i]);
+        }
+        core_.writeToSerialPort(port_, signalDataVec);
+    }
+
+    // whatever the stimulator sent back since the last read, as bytes 0 - 255
+    public static int[] readSignalData(CMMCore core_, String port_) throws java.lang.Exception {
+        if( core_ instanceof SimulatedCore ){
+            return ((SimulatedCore) core_).readFromSerialPortBytes(port_);
+        }
+
+        CharVector answer = core_.readFromSerialPort(port_);
+        int[] data = new int[(int) answer.size()];
+        for(int i = 0; i < data.length; i++){
+            data[i] = answer.get(i) & 0xFF;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,159 @@
+import java.util.ArrayList;
+
+// a stimulation protocol uploaded to the stimulator firmware and timed on the arduino instead of in java
+//
+// the firmware keeps one cycle of level changes and repeats it, so the upload stays small whatever the
+// number of cycles. bytes 11111xxx are free in the serial format of ./documentation/arduino.c (cycle
+// length index 7 does not exist) and are used as batch commands. numbers are little endian
+//
+//   host -> stimulator
+//     UPLOAD  0xF8, u16 events, u32 pre stim (us), u32 cycle length (us), u16 cycles,
+//             events x (u32 time from the cycle start (us), u8 level byte), u8 sum of the bytes after 0xF8
+//     START   0xF9, start playing the upload now
+//     ABORT   0xFA, stop playing, the level goes to 0
+//
+//   stimulator -> host
+//     UPLOADED 0xF8, u16 events                    the upload was taken
+//     SENT     0xF9, u16 cycle, u16 event, u32 us  a level was set, us from START
+//     DONE     0xFB, u32 us                        the protocol ended or was aborted
+//     ERROR    0xFC, u8 code                       1 = bad checksum, 2 = too many events, 3 = no upload
+//
+// the firmware adds up its times in u32 us, so a whole protocol has to end before MAX_MICROS (about 71.6
+// minutes), longer ones are timed on the computer. an upload is played once, START after DONE is refused
+class StimulatorBatch {
+    static final int UPLOAD = 0xF8;
+    static final int START = 0xF9;
+    static final int ABORT = 0xFA;
+    static final int DONE = 0xFB;
+    static final int ERROR = 0xFC;
+    static final int MAX_EVENTS = 160;   // what fits in the leonardo's 2.5 kB of ram next to the rest of the firmware
+    static final long MAX_MICROS = 1L << 32;
+
+    final StimulationSchedule cycle;  // level changes of one cycle, from the cycle start
+    final long preStimMicros;
+    final long cycleMicros;
+    final int numCycles;
+
+    StimulatorBatch(StimulationSchedule cycle_, long preStimMicros_, long cycleMicros_, int numCycles_){
+        cycle = cycle_;
+        preStimMicros = preStimMicros_;
+        cycleMicros = cycleMicros_;
+        numCycles = numCycles_;
+    }
+
+    // the batch of the waveforms of each channel, null if one cycle has too many level changes for the
+    // firmware, the channels do not share their timing (the firmware has one cycle for both) or the
+    // protocol does not end before MAX_MICROS
+    public static StimulatorBatch fromWaveforms(StimulationWaveform[] waveforms){
+        StimulationWaveform w = waveforms[0];
+        for(int i = 1; i < waveforms.length; i++){
+            if( waveforms[i].preStimMs != w.preStimMs || waveforms[i].cycleMs != w.cycleMs || waveforms[i].numCycles != w.numCycles ){
+                return null;
+            }
+        }
+
+        StimulationSchedule cycle = WaveformCompiler.compileCycle(waveforms);
+        if( cycle.size() > MAX_EVENTS || w.numCycles > 0xFFFF ){
+            return null;
+        }
+        long preStimMicros = Math.round(w.preStimMs * 1000.0);
+        long cycleMicros = Math.round(w.cycleMs * 1000.0);
+        if( preStimMicros + w.numCycles * cycleMicros >= MAX_MICROS ){
+            return null;
+        }
+        return new StimulatorBatch(cycle, preStimMicros, cycleMicros, w.numCycles);
+    }
+
+    // every level change in the order the firmware plays them, event e of cycle c at c * events + e
+    public StimulationSchedule expand(){
+        StimulationSchedule schedule = new StimulationSchedule();
+        for(int c = 0; c < numCycles; c++){
+            for(int e = 0; e < cycle.size(); e++){
+                schedule.add((preStimMicros + c * cycleMicros) * 1000L + cycle.getTimeNanos(e), cycle.getChannel(e), cycle.getLevel(e));
+            }
+        }
+        return schedule;
+    }
+
+    public int[] encodeUpload(){
+        ArrayList<Integer> payload = new ArrayList<Integer>();
+        addNumber(payload, cycle.size(), 2);
+        addNumber(payload, preStimMicros, 4);
+        addNumber(payload, cycleMicros, 4);
+        addNumber(payload, numCycles, 2);
+        for(int e = 0; e < cycle.size(); e++){
+            addNumber(payload, cycle.getTimeNanos(e) / 1000L, 4);
+            payload.add(cycle.getChannel(e) << 7 | cycle.getLevel(e));
+        }
+
+        int[] bytes = new int[payload.size() + 2];
+        bytes[0] = UPLOAD;
+        int sum = 0;
+        for(int i = 0; i < payload.size(); i++){
+            bytes[i + 1] = payload.get(i);
+            sum += payload.get(i);
+        }
+        bytes[bytes.length - 1] = sum & 0xFF;
+        return bytes;
+    }
+
+    // throws IllegalArgumentException if the value does not fit, the firmware would read another one
+    private static void addNumber(ArrayList<Integer> bytes, long value, int size){
+        if( value < 0 || value >= 1L << (8 * size) ){
+            throw new IllegalArgumentException(String.valueOf(value) + " does not fit in " + String.valueOf(size) + " bytes");
+        }
+        for(int i = 0; i < size; i++){
+            bytes.add((int) ((value >> (8 * i)) & 0xFF));
+        }
+    }
+
+    // splits the bytes coming back from the stimulator into replies
+    // each reply is { type, first number, second number, time (us) }, unused fields are 0
+    static class ReplyParser {
+        private int[] pending = new int[9];
+        private int length = 0;
+
+        public ArrayList<long[]> feed(int[] data){
+            ArrayList<long[]> replies = new ArrayList<long[]>();
+            for(int i = 0; i < data.length; i++){
+                int b = data[i] & 0xFF;
+                if( length == 0 && replyLength(b) == 0 ){
+                    continue; // the firmware's once a second status bytes, or noise
+                }
+                pending[length++] = b;
+                if( length == replyLength(pending[0]) ){
+                    replies.add(decode());
+                    length = 0;
+                }
+            }
+            return replies;
+        }
+
+        private static int replyLength(int type){
+            switch( type ){
+                case UPLOAD: return 3;
+                case START: return 9;
+                case DONE: return 5;
+                case ERROR: return 2;
+                default: return 0;
+            }
+        }
+
+        private long number(int offset, int size){
+            long value = 0;
+            for(int i = 0; i < size; i++){
+                value |= ((long) pending[offset + i]) << (8 * i);
+            }
+            return value;
+        }
+
+        private long[] decode(){
+            switch( pending[0] ){
+                case UPLOAD: return new long[]{ UPLOAD, number(1, 2), 0, 0 };
+                case START: return new long[]{ START, number(1, 2), number(3, 2), number(5, 4) };
+                case DONE: return new long[]{ DONE, 0, 0, number(1, 4) };
+                default: return new long[]{ ERROR, pending[1], 0, 0 };
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+import java.util.ArrayList;
+
+// the batch part of the stimulator firmware in java, for testing uploads without the arduino
+// follows the protocol in StimulatorBatch and the firmware code in ./documentation/arduino.c, and plays
+// uploads on the simulation clock, so every level is set exactly on time like on the arduino
+class StimulatorFirmwareEmulator {
+    private final SimulatedStimulator stimulator; // where the levels played end up
+
+    // the upload being received
+    private ArrayList<Integer> upload;
+    private int uploadLength;   // bytes after the command byte, known once the event count came in
+
+    // the last upload taken
+    private boolean loaded;
+    private long preStimMicros;
+    private long cycleMicros;
+    private int numCycles;
+    private long[] timesMicros;
+    private int[] levelBytes;
+
+    // playing
+    private boolean playing;
+    private long startNanos;
+    private int cycle;
+    private int event;
+
+    private ArrayList<Integer> output; // bytes waiting to be read by the host
+
+    StimulatorFirmwareEmulator(SimulatedStimulator stimulator_){
+        stimulator = stimulator_;
+        output = new ArrayList<Integer>();
+    }
+
+    // a byte from the host, true if it belongs to the batch protocol
+    // plain level and trigger setting bytes are left to the stimulator
+    public boolean write(int data, long nanos){
+        data &= 0xFF;
+        if( upload != null ){
+            receiveUpload(data);
+            return true;
+        }
+        if( data < StimulatorBatch.UPLOAD ){
+            return false;
+        }
+
+        advanceTo(nanos);
+        if( data == StimulatorBatch.UPLOAD ){
+            upload = new ArrayList<Integer>();
+            uploadLength = -1;
+        } else if( data == StimulatorBatch.START ){
+            if( !loaded ){
+                reply(StimulatorBatch.ERROR, 3, 1);
+            } else {
+                playing = true;
+                startNanos = nanos;
+                cycle = 0;
+                event = 0;
+                advanceTo(nanos);
+            }
+        } else if( data == StimulatorBatch.ABORT ){
+            if( playing ){
+                playing = false;
+                loaded = false;
+                stimulator.playLevel(nanos, 0, 0);
+                reply(StimulatorBatch.DONE, (nanos - startNanos) / 1000L, 4);
+            }
+        }
+        return true;
+    }
+
+    private void receiveUpload(int data){
+        upload.add(data);
+        if( upload.size() == 2 ){
+            int count = upload.get(0) | upload.get(1) << 8;
+            uploadLength = 2 + 4 + 4 + 2 + 5 * count + 1;
+        }
+        if( upload.size() != uploadLength ){
+            return;
+        }
+
+        int sum = 0;
+        for(int i = 0; i < uploadLength - 1; i++){
+            sum += upload.get(i);
+        }
+        int count = (int) number(0, 2);
+        if( (sum & 0xFF) != upload.get(uploadLength - 1) ){
+            reply(StimulatorBatch.ERROR, 1, 1);
+        } else if( count > StimulatorBatch.MAX_EVENTS ){
+            reply(StimulatorBatch.ERROR, 2, 1);
+        } else {
+            preStimMicros = number(2, 4);
+            cycleMicros = number(6, 4);
+            numCycles = (int) number(10, 2);
+            timesMicros = new long[count];
+            levelBytes = new int[count];
+            for(int e = 0; e < count; e++){
+                timesMicros[e] = number(12 + 5 * e, 4);
+                levelBytes[e] = upload.get(12 + 5 * e + 4);
+            }
+            loaded = true;
+            reply(StimulatorBatch.UPLOAD, count, 2);
+        }
+        upload = null;
+    }
+
+    private long number(int offset, int size){
+        long value = 0;
+        for(int i = 0; i < size; i++){
+            value |= ((long) upload.get(offset + i)) << (8 * i);
+        }
+        return value;
+    }
+
+    // set every level due by now, like the firmware's loop would have
+    public void advanceTo(long nanos){
+        while( playing ){
+            if( cycle >= numCycles || timesMicros.length == 0 ){
+                playing = false;
+                loaded = false;
+                long endMicros = preStimMicros + numCycles * cycleMicros;
+                reply(StimulatorBatch.DONE, endMicros, 4);
+                return;
+            }
+
+            long dueMicros = preStimMicros + cycle * cycleMicros + timesMicros[event];
+            long dueNanos = startNanos + dueMicros * 1000L;
+            if( dueNanos > nanos ){
+                return;
+            }
+
+            stimulator.playLevel(dueNanos, (levelBytes[event] >> 7) & 1, levelBytes[event] & 0x3F);
+            output.add(StimulatorBatch.START);
+            addNumber(cycle, 2);
+            addNumber(event, 2);
+            addNumber(dueMicros, 4);
+
+            event++;
+            if( event == timesMicros.length ){
+                event = 0;
+                cycle++;
+            }
+        }
+    }
+
+    // bytes for the host, everything due by now
+    public int[] read(long nanos){
+        advanceTo(nanos);
+        int[] data = new int[output.size()];
+        for(int i = 0; i < data.length; i++){
+            data[i] = output.get(i);
+        }
+        output.clear();
+        return data;
+    }
+
+    private void reply(int type, long value, int size){
+        output.add(type);
+        addNumber(value, size);
+    }
+
+    private void addNumber(long value, int size){
+        for(int i = 0; i < size; i++){
+            output.add((int) ((value >> (8 * i)) & 0xFF));
+        }
+    }
+}
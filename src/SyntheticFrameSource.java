@@ -0,0 +1,68 @@
+// frames of a crawling worm rendered on the fly, for exercising and benchmarking the frame pipeline
+// without a camera or saved images
+//
+// uses the simulated camera on a plate of its own. the view jumps back onto the worm whenever it
+// gets near the edge, so it never crawls out of the frame however long the source runs
+class SyntheticFrameSource implements FrameSource {
+    static final double RECENTER_FRACTION = 0.3; // recenter once the worm is this fraction of the view from the center
+
+    private SimulationClock clock;
+    private SimulatedStage stage;
+    private SimulatedCamera camera;
+    private SimulatedWorm worm;
+    private long lastFrameIndex;
+
+    SyntheticFrameSource(int width, int height, double pixelSizeUm, double exposureMs, long seed){
+        clock = new SimulationClock();
+        stage = new SimulatedStage(clock);
+        camera = new SimulatedCamera(clock, stage, new SimulatedStimulator(clock, 0), seed);
+        camera.width = width;
+        camera.height = height;
+        camera.pixelSizeUm = pixelSizeUm;
+        camera.exposureMs = exposureMs;
+
+        worm = new SimulatedWorm(0.0, 0.0, 0.5, seed);
+        camera.addWorm(worm);
+        lastFrameIndex = -1;
+    }
+
+    public boolean read(Frame frame){
+        long frameIndex = (long) (clock.nanos() / (camera.exposureMs * 1.0e6));
+        if( frameIndex == lastFrameIndex ){
+            return false;
+        }
+        lastFrameIndex = frameIndex;
+
+        double[] stagePos = stage.getPosition();
+        double[] p = camera.stageToImage(worm.x, worm.y, stagePos);
+        if( Math.abs(p[0] - camera.width / 2.0) > RECENTER_FRACTION * camera.width ||
+            Math.abs(p[1] - camera.height / 2.0) > RECENTER_FRACTION * camera.height ){
+            stage.jumpTo(worm.x, worm.y);
+        }
+
+        frame.ensureSize(camera.width, camera.height, 2);
+        camera.renderInto((short[]) frame.pixels);
+        frame.sourceSequence = frameIndex;
+        return true;
+    }
+
+    public int getWidth(){
+        return camera.width;
+    }
+
+    public int getHeight(){
+        return camera.height;
+    }
+
+    public int getBytesPerPixel(){
+        return 2;
+    }
+
+    public long getFrameIntervalNanos(){
+        return (long) (camera.exposureMs * 1.0e6);
+    }
+
+    public String getName(){
+        return "synthetic worm";
+    }
+}
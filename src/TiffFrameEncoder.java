@@ -0,0 +1,292 @@
+import ij.ImageJ;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+// writes one frame as a compressed tiff in memory, lossless
+//
+// imagej 1.48 only writes uncompressed tiffs, so the file is put together here: big endian like the
+// tiffs imagej writes, one strip, and the frame's info (the legacy "xpos=,ypos=,zpos=" stage position)
+// in imagej's own metadata tags, so IJ.openImage gives back the same pixels and info as before
+//   LZW      lzw with the horizontal predictor, every row saved as the differences of neighbouring
+//            pixels, which are small on a smooth image and compress well. read by imagej 1.48
+//   DEFLATE  zip without a predictor, imagej 1.48 ignores the predictor tag for zip and would read
+//            the differences back as pixels
+class TiffFrameEncoder {
+    static final int LZW = 5;        // tiff compression tag values
+    static final int DEFLATE = 8;
+
+    // imagej's metadata header: "IJIJ" then one "info" entry
+    private static final int IJ_MAGIC = 0x494a494a;
+    private static final int IJ_INFO = 0x696e666f;
+
+    private static final int LZW_CLEAR = 256;
+    private static final int LZW_EOI = 257;
+    private static final int LZW_FIRST = 258;
+    private static final int LZW_MAX_CODE = 4095;
+    private static final int LZW_HASH_BITS = 13;     // twice the 4096 codes
+
+    // the tiff file of a frame, pixels are byte[] or short[] of width * height
+    public static byte[] encode(Object pixels, int width, int height, String info, int compression){
+        int bitsPerSample = pixels instanceof short[] ? 16 : 8;
+        byte[] raw = toBigEndian(pixels, width, height, compression == LZW);
+        byte[] strip = compression == LZW ? lzw(raw) : deflate(raw);
+
+        String description = "ImageJ=" + ImageJ.VERSION + "\n";
+        byte[] descriptionBytes = ascii(description);
+        byte[] infoBytes = info == null ? new byte[0] : utf16(info);
+        int metaHeaderLength = 12;
+
+        int tagCount = compression == LZW ? 13 : 12;
+        int ifdOffset = 8;
+        int ifdLength = 2 + 12 * tagCount + 4;
+        int descriptionOffset = ifdOffset + ifdLength;
+        int metaCountsOffset = even(descriptionOffset + descriptionBytes.length);
+        int metaOffset = metaCountsOffset + 8;
+        int stripOffset = even(metaOffset + metaHeaderLength + infoBytes.length);
+
+        TiffBuffer b = new TiffBuffer(stripOffset + strip.length);
+        b.putShort(0x4d4d);   // "MM", big endian
+        b.putShort(42);
+        b.putInt(ifdOffset);
+
+        // tags in ascending order
+        b.putShort(tagCount);
+        b.putTag(256, 4, 1, width);                          // image width
+        b.putTag(257, 4, 1, height);                         // image length
+        b.putTag(258, 3, 1, bitsPerSample);                  // bits per sample
+        b.putTag(259, 3, 1, compression);                    // compression
+        b.putTag(262, 3, 1, 1);                              // photometric, black is zero
+        b.putTag(270, 2, descriptionBytes.length, descriptionOffset);  // image description
+        b.putTag(273, 4, 1, stripOffset);                    // strip offsets
+        b.putTag(277, 3, 1, 1);                              // samples per pixel
+        b.putTag(278, 4, 1, height);                         // rows per strip
+        b.putTag(279, 4, 1, strip.length);                   // strip byte counts
+        if( compression == LZW ){
+            b.putTag(317, 3, 1, 2);                          // predictor, horizontal differencing
+        }
+        b.putTag(50838, 4, 2, metaCountsOffset);             // imagej metadata byte counts
+        b.putTag(50839, 1, metaHeaderLength + infoBytes.length, metaOffset);  // imagej metadata
+        b.putInt(0);                                         // no next ifd
+
+        b.put(descriptionBytes, descriptionOffset);
+        b.seek(metaCountsOffset);
+        b.putInt(metaHeaderLength);
+        b.putInt(infoBytes.length);
+        b.putInt(IJ_MAGIC);
+        b.putInt(IJ_INFO);
+        b.putInt(1);
+        b.put(infoBytes, metaOffset + metaHeaderLength);
+        b.put(strip, stripOffset);
+        return b.bytes;
+    }
+
+    // the pixels in file order, with each row replaced by the differences of neighbouring pixels
+    // when predict is set. 16 bit differences wrap around like the tiff predictor expects
+    private static byte[] toBigEndian(Object pixels, int width, int height, boolean predict){
+        if( pixels instanceof short[] ){
+            short[] s = (short[]) pixels;
+            byte[] out = new byte[2 * width * height];
+            for(int y = 0; y < height; y++){
+                int row = y * width;
+                int last = 0;
+                for(int x = 0; x < width; x++){
+                    int v = s[row + x] & 0xffff;
+                    int d = predict ? v - last : v;
+                    last = v;
+                    out[2 * (row + x)] = (byte) (d >> 8);
+                    out[2 * (row + x) + 1] = (byte) d;
+                }
+            }
+            return out;
+        }
+
+        byte[] p = (byte[]) pixels;
+        if( !predict ){
+            return Arrays.copyOf(p, width * height);
+        }
+        byte[] out = new byte[width * height];
+        for(int y = 0; y < height; y++){
+            int row = y * width;
+            int last = 0;
+            for(int x = 0; x < width; x++){
+                int v = p[row + x];
+                out[row + x] = (byte) (v - last);
+                last = v;
+            }
+        }
+        return out;
+    }
+
+    // tiff flavour of lzw: msb first codes of 9 to 12 bits, the code size grows one code early and
+    // the table is cleared when it is full, as libtiff does it
+    static byte[] lzw(byte[] in){
+        LzwBits out = new LzwBits(in.length / 2 + 16);
+        int[] keys = new int[1 << LZW_HASH_BITS];
+        int[] codes = new int[1 << LZW_HASH_BITS];
+        Arrays.fill(keys, -1);
+
+        int bits = 9;
+        int nextCode = LZW_FIRST;
+        out.write(LZW_CLEAR, bits);
+        if( in.length == 0 ){
+            out.write(LZW_EOI, bits);
+            return out.toByteArray();
+        }
+
+        int prefix = in[0] & 0xff;
+        for(int i = 1; i < in.length; i++){
+            int c = in[i] & 0xff;
+            int key = (c << 12) | prefix;
+            int h = (key * 0x9e3779b1) >>> (32 - LZW_HASH_BITS);
+            while( keys[h] != -1 && keys[h] != key ){
+                h = (h + 1) & ((1 << LZW_HASH_BITS) - 1);
+            }
+            if( keys[h] == key ){
+                prefix = codes[h];
+                continue;
+            }
+
+            out.write(prefix, bits);
+            keys[h] = key;
+            codes[h] = nextCode++;
+            if( nextCode == LZW_MAX_CODE - 1 ){
+                out.write(LZW_CLEAR, bits);
+                Arrays.fill(keys, -1);
+                nextCode = LZW_FIRST;
+                bits = 9;
+            } else if( nextCode > (1 << bits) - 1 ){
+                bits++;
+            }
+            prefix = c;
+        }
+
+        // the decoder adds a table entry for the last code too, which can make the end code wider
+        out.write(prefix, bits);
+        nextCode++;
+        if( nextCode == LZW_MAX_CODE - 1 ){
+            out.write(LZW_CLEAR, bits);
+            bits = 9;
+        } else if( nextCode > (1 << bits) - 1 ){
+            bits++;
+        }
+        out.write(LZW_EOI, bits);
+        return out.toByteArray();
+    }
+
+    static byte[] deflate(byte[] in){
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(in);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(in.length / 2 + 64);
+        byte[] chunk = new byte[65536];
+        while( !deflater.finished() ){
+            int n = deflater.deflate(chunk);
+            out.write(chunk, 0, n);
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static int even(int offset){
+        return (offset + 1) & ~1;
+    }
+
+    private static byte[] ascii(String s){
+        byte[] b = new byte[s.length() + 1];   // nul terminated
+        for(int i = 0; i < s.length(); i++){
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+
+    // imagej keeps the info as big endian utf-16
+    private static byte[] utf16(String s){
+        byte[] b = new byte[2 * s.length()];
+        for(int i = 0; i < s.length(); i++){
+            b[2 * i] = (byte) (s.charAt(i) >> 8);
+            b[2 * i + 1] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+}
+
+// a fixed size big endian buffer the tiff is put together in
+class TiffBuffer {
+    byte[] bytes;
+    private int position;
+
+    TiffBuffer(int length){
+        bytes = new byte[length];
+    }
+
+    void seek(int position_){
+        position = position_;
+    }
+
+    void putShort(int v){
+        bytes[position++] = (byte) (v >> 8);
+        bytes[position++] = (byte) v;
+    }
+
+    void putInt(int v){
+        putShort(v >>> 16);
+        putShort(v & 0xffff);
+    }
+
+    // one ifd entry, a value of type short or byte that fits is left aligned in the value field
+    void putTag(int tag, int type, int count, int value){
+        putShort(tag);
+        putShort(type);
+        putInt(count);
+        if( type == 3 && count == 1 ){
+            putShort(value);
+            putShort(0);
+        } else {
+            putInt(value);
+        }
+    }
+
+    void put(byte[] b, int offset){
+        System.arraycopy(b, 0, bytes, offset, b.length);
+    }
+}
+
+// lzw codes packed msb first
+class LzwBits {
+    private byte[] bytes;
+    private int length;
+    private int buffer;        // bits not yet written, right aligned
+    private int bufferBits;
+
+    LzwBits(int capacity){
+        bytes = new byte[Math.max(16, capacity)];
+    }
+
+    void write(int code, int bits){
+        buffer = (buffer << bits) | code;
+        bufferBits += bits;
+        while( bufferBits >= 8 ){
+            bufferBits -= 8;
+            put((byte) (buffer >> bufferBits));
+        }
+        buffer &= (1 << bufferBits) - 1;
+    }
+
+    byte[] toByteArray(){
+        if( bufferBits > 0 ){
+            put((byte) (buffer << (8 - bufferBits)));
+            bufferBits = 0;
+            buffer = 0;
+        }
+        return Arrays.copyOf(bytes, length);
+    }
+
+    private void put(byte b){
+        if( length == bytes.length ){
+            bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        }
+        bytes[length++] = b;
+    }
+}
@@ -11,12 +11,18 @@ import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
 import ij.process.ByteProcessor;
 import ij.gui.ImageWindow;
+import ij.gui.ImageCanvas;
 import ij.gui.PointRoi;
 
 import ij.measure.Measurements;
 
 import java.io.PrintWriter;
 
+import java.awt.GraphicsEnvironment;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Executors;
@@ -30,19 +36,72 @@ class TrackStimController {
     private ScheduledExecutorService micromanagerLiveModeProcessor;
     private ImagePlus trackerViewImage;
 
+    // runs the stage calibration off the ui thread
+    private ExecutorService calibrationExecutor;
+
+    // every task takes its images from the frame ring, filled from the frame source by the frame capture thread
+    // the imager, tracker, tracker view and frame metrics each read the ring at their own pace
+    private FrameSource frameSource;
+    private FrameRing frameRing;
+    private FrameCapture frameCapture;
+    private FrameConsumer previewFrames;
+    private FrameMetrics frameMetrics;
+    private ScheduledExecutorService frameMetricsProcessor;
+    private String currentSaveDirectory; // where the current job saves its files, null before the first job
+
     // main components that generate imaging, stimulation, and tracking tasks
     private TrackStimGUI gui;
     private Stimulator stimulator;
     private Tracker tracker;
+    private ClosedLoopStimulator closedLoop;
     private Imager imager;
 
     // sycned to ui sliders, used for thresholding images and the tracker velocity
     public volatile double thresholdValue;
     public volatile int trackerSpeedFactor;
 
+    // synced to the multi worm checkbox, follow one selected worm out of several on the plate
+    // the job running uses jobMultiWorm, the checkbox changes both, a resumed job keeps the one of its run
+    public volatile boolean multiWormTrackingEnabled;
+    public volatile boolean jobMultiWorm;
+    private ImageCanvas trackerViewCanvas; // canvas the target selection listener is attached to
+
     // current job id 
     public int currentJobId;
 
+    // true from the go btn until the last frame is taken or the job is stopped
+    public volatile boolean acquisitionRunning;
+
+    // set while a JobRunner works through a queue, nobody is there to close message boxes
+    public volatile boolean unattended;
+
+    // not null while a continuous session runs, live mode then stays on between jobs
+    private volatile ImagingSession session;
+    private final Object jobLock = new Object(); // notified when a job ends
+
+    // the last seconds of frames, saved around marked events whether a job is running or not
+    private PreTriggerBuffer preTrigger;
+
+    // which frames are worth saving, null saves every frame. the job running uses jobGate
+    private volatile RecordingGate recordingGate;
+    private volatile RecordingGate jobGate;
+
+    // crop around the tracked worm, null saves the whole frame. the job running uses jobCrop
+    private volatile WormCrop wormCrop;
+    private volatile WormCrop jobCrop;
+
+    // compressed tiff writing, null saves uncompressed tiffs. the job running uses jobWriter
+    private volatile FrameWriter frameWriter;
+    private volatile FrameWriter jobWriter;
+
+    // more disks to spread the frames over, null saves them to the save directory. the job running uses jobStripes
+    private volatile FrameStripes frameStripes;
+    private volatile FrameStripes jobStripes;
+
+    // journal of the running job, null between jobs or if it could not be made, see RunJournal
+    private volatile RunJournal journal;
+    private volatile boolean jobResumed;
+
     public CMMCore core;
     public ScriptInterface app;
 
@@ -50,16 +109,39 @@ class TrackStimController {
         core = core_;
         app = app_;
 
+        frameRing = new FrameRing(FrameRing.DEFAULT_SIZE, (int) core.getImageWidth(), (int) core.getImageHeight(), (int) core.getBytesPerPixel());
+        preTrigger = new PreTriggerBuffer(this, frameRing);
+
         stimulator = new Stimulator(this);
         stimulator.initialize();
+        closedLoop = new ClosedLoopStimulator(this, stimulator);
 
         tracker = new Tracker(this);
         tracker.initialize();
 
         imager = new Imager(this);
 
+        previewFrames = frameRing.addConsumer("preview");
+        frameMetrics = new FrameMetrics(frameRing);
+        frameMetricsProcessor = Executors.newSingleThreadScheduledExecutor();
+        frameMetricsProcessor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run(){
+                frameMetrics.drain();
+                preTrigger.drain();
+            }
+        }, 0, 20, TimeUnit.MILLISECONDS);
+
+        // micromanager's live window, unless there is no screen to show one (simulated headless runs)
+        if( GraphicsEnvironment.isHeadless() ){
+            setFrameSource(new CircularBufferFrameSource(core));
+        } else {
+            setFrameSource(new LiveWindowFrameSource(app, core));
+        }
+
         thresholdValue = 1.0;
         trackerSpeedFactor = 7;
+        multiWormTrackingEnabled = false;
         currentJobId = 0;
 
         // start processing live mode images to show the user
@@ -67,6 +149,8 @@ class TrackStimController {
         trackerViewImage = new ImagePlus("Tracker View");
         processLiveModeImages();
 
+        calibrationExecutor = Executors.newSingleThreadExecutor();
+
     }
 
     public void setGui(TrackStimGUI g){
@@ -75,13 +159,149 @@ class TrackStimController {
 
     public void destroy(){
         stopImageAcquisition();
+        frameCapture.stop();
+        frameMetricsProcessor.shutdownNow();
+        preTrigger.stop();
         micromanagerLiveModeProcessor.shutdownNow();
+        calibrationExecutor.shutdownNow();
         trackerViewImage.changes = false;
         trackerViewImage.close();
     }
 
-    public int getStimulatorStrength(){
-        return stimulator.currStimulationStrength;
+    // swap where frames come from, e.g. a recorded run or a synthetic worm instead of the camera
+    // the ring and its consumers stay, the frame buffers are resized on the first frame of a different size
+    public synchronized void setFrameSource(FrameSource source){
+        if( frameCapture != null ){
+            frameCapture.stop();
+        }
+        frameSource = source;
+        frameCapture = new FrameCapture(frameSource, frameRing);
+        frameCapture.start();
+        IJ.log("[INFO] taking frames from the " + source.getName());
+    }
+
+    public FrameSource getFrameSource(){
+        return frameSource;
+    }
+
+    public FrameRing getFrameRing(){
+        return frameRing;
+    }
+
+    // the newest frame from the frame source, null if none has arrived yet
+    // the frame is shared with every other task, so it must not be modified
+    public Frame getLatestFrame(){
+        return frameRing.getLatest();
+    }
+
+    // how every stage kept up with the capture during the current job
+    public String describeFrameRing(){
+        frameMetrics.drain();
+        return "frame source: " + frameSource.getName() + "\n" +
+            frameMetrics.describe() + preTrigger.describe() + "\n" +
+            frameRing.describeConsumers();
+    }
+
+    // save and log the reports of the job once: the frame ring counters and the stimulation timing
+    private void saveJobReports(){
+        if( currentSaveDirectory == null ){
+            return;
+        }
+        // every frame has to be on disk before the job's numbers are final
+        String report = describeFrameRing();
+        FrameWriter writer = jobWriter;
+        if( writer != null ){
+            writer.finish();
+            report += writer.describe();
+        }
+        FrameStripes stripes = jobStripes;
+        if( stripes != null ){
+            stripes.finish();
+            report += stripes.describe();
+        }
+        IJ.log(report);
+
+        PrintWriter p = null;
+        try {
+            p = new PrintWriter(currentSaveDirectory + "/" + "temp" + String.valueOf(currentJobId) + "_" + "frame-ring.txt");
+            p.print(report);
+        } catch (java.io.IOException e){
+            IJ.log("[ERROR] unable to write frame ring report");
+        } finally {
+            if( p != null ){
+                p.close();
+            }
+        }
+
+        stimulator.saveAudit(currentSaveDirectory, currentJobId);
+        if( jobGate != null ){
+            jobGate.save(currentSaveDirectory, currentJobId);
+        }
+        if( jobCrop != null ){
+            jobCrop.save(currentSaveDirectory, currentJobId);
+        }
+        if( stripes != null ){
+            stripes.save(currentSaveDirectory, currentJobId);
+            // the frames from before the job was resumed are in the journal
+            if( jobResumed ){
+                try {
+                    RunJournal.writeStripesIndex(RunJournal.read(currentSaveDirectory),
+                        currentSaveDirectory + "/" + "temp" + String.valueOf(currentJobId) + "_" + "stripes.csv");
+                } catch (java.io.IOException e){
+                    IJ.log("[ERROR] unable to write the stripes index of the resumed job");
+                }
+            }
+        }
+
+        // every file of the job is written, a crash from now on does not need the journal
+        RunJournal j = journal;
+        journal = null;
+        if( j != null ){
+            j.end(null);
+        }
+        currentSaveDirectory = null;
+    }
+
+    // the journal the imaging and tracking tasks add their rows to, null if the job has none
+    public RunJournal getJournal(){
+        return journal;
+    }
+
+    public int getStimulatorStrength(int channel){
+        return stimulator.getLevel(channel);
+    }
+
+    // hand the worm found by a tracking task to the recording gate, the worm crop and the closed loop rules, on the tracking thread
+    // frameValid is false when the ring reused the frame's slot while it was tracked, the image may have been torn
+    public void onTrackingTaskDone(TrackingResult result, boolean frameValid, StageCalibration calibration){
+        RecordingGate gate = jobGate;
+        if( gate != null ){
+            gate.updateTracking(result.measurement != null ? result.velocity : null);
+        }
+        WormCrop crop = jobCrop;
+        if( crop != null ){
+            crop.updateTracking(result, calibration);
+        }
+        if( closedLoop.isActive() && frameValid ){
+            closedLoop.evaluate(result, calibration);
+        }
+    }
+
+    // whether the imaging task should save this frame, RecordingGate.FULL when every frame is saved
+    public int gateFrame(int frameIndex, Frame frame, String timeStamp){
+        RecordingGate gate = jobGate;
+        return gate == null ? RecordingGate.FULL : gate.decide(frameIndex, frame, timeStamp);
+    }
+
+    // the image the imaging task saves for a frame, the crop around the worm or the whole frame
+    public ImagePlus cropFrame(int frameIndex, Frame frame, double[] stagePos, String timeStamp){
+        WormCrop crop = jobCrop;
+        return crop == null ? frame.toImagePlus() : crop.crop(frameIndex, frame, stagePos, timeStamp);
+    }
+
+    // set the stimulation level of a frame in frame locked mode, true if it changed
+    public boolean stimulateFrame(int frameIndex, long plannedNanos){
+        return stimulator.stimulateFrame(frameIndex, plannedNanos);
     }
 
     public void updateThresholdValue(int newThresholdVal){
@@ -93,17 +313,287 @@ class TrackStimController {
         trackerSpeedFactor = newSpeedVal;
     }
 
+    public void updateMultiWormTracking(boolean enabled){
+        multiWormTrackingEnabled = enabled;
+        jobMultiWorm = enabled;
+    }
+
+    public void updateOnDeviceStimulation(boolean enabled){
+        stimulator.onDeviceTiming = enabled;
+    }
+
+    // keep preSeconds of frames before each marked event and postSeconds after, saved to trigger<i>
+    // in the directory. preSeconds 0 turns it off
+    public void updatePreTrigger(double preSeconds, double postSeconds, String directory){
+        preTrigger.configure(preSeconds, postSeconds, directory);
+    }
+
+    public void updatePreTriggerDirectory(String directory){
+        preTrigger.setDirectory(directory);
+    }
+
+    // something happened the frames around should be kept for: a mark from the ui, the light coming on
+    // or a closed loop rule firing. does nothing unless the pre-trigger buffer is on
+    public void markEvent(String reason){
+        preTrigger.trigger(reason);
+    }
+
+    // save only the frames the gate spec lets through from the next job on, "" saves every frame
+    // throws IllegalArgumentException if the spec cannot be understood
+    public void updateRecordingGate(String spec){
+        recordingGate = RecordingGate.parse(spec);
+    }
+
+    public String getRecordingGateSpec(){
+        RecordingGate gate = recordingGate;
+        return gate == null ? "" : gate.spec;
+    }
+
+    // save a crop around the tracked worm from the next job on, "" saves the whole frame
+    // throws IllegalArgumentException if the spec cannot be understood
+    public void updateWormCrop(String spec){
+        wormCrop = WormCrop.parse(spec);
+    }
+
+    public String getWormCropSpec(){
+        WormCrop crop = wormCrop;
+        return crop == null ? "" : crop.spec;
+    }
+
+    // save lossless compressed tiffs from the next job on, "" saves uncompressed tiffs
+    // throws IllegalArgumentException if the spec cannot be understood
+    public void updateFrameCompression(String spec){
+        frameWriter = FrameWriter.parse(spec);
+    }
+
+    public String getFrameCompressionSpec(){
+        FrameWriter writer = frameWriter;
+        return writer == null ? "" : writer.spec;
+    }
+
+    // the writer the imaging tasks hand their frames to, null when they save uncompressed tiffs themselves
+    public FrameWriter getFrameWriter(){
+        return jobWriter;
+    }
+
+    // spread the frames over the save directory and these directories from the next job on, "" saves
+    // them to the save directory. throws IllegalArgumentException if the spec cannot be understood
+    public void updateFrameStripes(String spec){
+        frameStripes = FrameStripes.parse(spec);
+    }
+
+    public String getFrameStripesSpec(){
+        FrameStripes stripes = frameStripes;
+        return stripes == null ? "" : stripes.spec;
+    }
+
+    // the stripes the imaging tasks pick the directory of each frame from, null when they save to the job's directory
+    public FrameStripes getFrameStripes(){
+        return jobStripes;
+    }
+
+    // whether the disk of rootDirectory keeps up with and has room for a job of these frames, with the worm
+    // crop and frame compression set now. a motion gate is left out, the frames it skips cannot be known ahead
+    public DiskPreflight preflightJob(String rootDirectory, int numFrames, int framesPerSecond){
+        int width = frameSource.getWidth();
+        int height = frameSource.getHeight();
+        double bytesPerFrame = (double) width * height * frameSource.getBytesPerPixel();
+
+        WormCrop crop = wormCrop;
+        if( crop != null ){
+            double cropped = (double) Math.min(crop.size, width) * Math.min(crop.size, height) / ((double) width * height);
+            double whole = crop.fullEvery > 0 ? 1.0 / crop.fullEvery : 0.0;
+            bytesPerFrame *= whole + (1.0 - whole) * cropped;
+        }
+        FrameWriter writer = frameWriter;
+        if( writer != null ){
+            bytesPerFrame /= writer.expectedRatio();
+        }
+
+        // striped, every disk gets its share of the frames, the worst disk decides
+        // a stripe root on a fresh disk is only made by FrameStripes.start, it is checked on the disk it will be made on
+        FrameStripes stripes = frameStripes;
+        boolean delta = writer != null && writer.compression == FrameWriter.DELTA_STACK;
+        if( stripes == null || delta ){
+            DiskPreflight preflight = DiskPreflight.check(rootDirectory, bytesPerFrame, numFrames, framesPerSecond);
+            IJ.log("[INFO] " + preflight.describe());
+            return preflight;
+        }
+        String[] directories = stripes.allDirectories(rootDirectory);
+        double[] shares = stripes.shares(rootDirectory);
+        DiskPreflight worst = null;
+        for(int i = 0; i < directories.length; i++){
+            DiskPreflight preflight = DiskPreflight.check(directories[i], bytesPerFrame * shares[i], numFrames, framesPerSecond);
+            IJ.log("[INFO] " + preflight.describe());
+            if( worst == null || preflight.status > worst.status ){
+                worst = preflight;
+            }
+        }
+        return worst;
+    }
+
+    public boolean isOnDeviceStimulation(){
+        return stimulator.onDeviceTiming;
+    }
+
+    // stop a protocol that is still running after its job, the light is turned off
+    public void stopStimulation(){
+        if( stimulator.isProtocolRunning() ){
+            stimulator.cancelTasks();
+        }
+    }
+
+    // called when the user presses the calibrate btn
+    // moves the stage around the current position to measure the pixel to stage transform of the objective
+    public void calibrateStage(){
+        if( !app.isLiveModeOn() ){
+            app.enableLiveMode(true);
+        }
+
+        taskRunningDisableUI();
+        if( gui != null ){
+            gui.stopBtn.setEnabled(false);
+        }
+        IJ.log("[INFO] calibrating the stage for " + StageCalibration.getCurrentObjective(core) + ", do not touch the stage");
+        calibrationExecutor.submit(new StageCalibrator(this));
+    }
+
+    // called by the stage calibrator once it is done, calibration is null if it failed
+    public void onStageCalibrationDone(StageCalibration calibration){
+        if( calibration != null ){
+            IJ.showMessage("Stage calibrated for " + calibration.describe());
+        } else {
+            IJ.showMessage("Stage calibration failed, see the log for details");
+        }
+        noTaskRunningEnableUI();
+    }
+
     // main function called when the user presses the go btn
     // receives imaging, stimulator, and tracking args
     // calls the imager, tracker, and stimulator to schedule tasks
     public void startImageAcquisition(
         int numFrames, int framesPerSecond, String rootDirectory, // imaging args
         boolean enableStimulator, int preStim, int stimStrength, int stimDuration, // stimulator args
-        int stimCycleDuration, int numStimCycles, boolean enableRamp,
+        int stimCycleDuration, int numStimCycles, String stimWaveform, String stimSecondWaveform, boolean stimFrameLocked,
+        String closedLoopRules,
         int rampBase, int rampStart, int rampEnd,
         boolean enableTracking // tracking args
     ){
-        String imageSaveDirectory = createImageSaveDirectory(rootDirectory);
+        startJob(numFrames, framesPerSecond, rootDirectory, enableStimulator, preStim, stimStrength, stimDuration,
+            stimCycleDuration, numStimCycles, stimWaveform, stimSecondWaveform, stimFrameLocked, closedLoopRules,
+            rampBase, rampStart, rampEnd, enableTracking, null);
+    }
+
+    // the runs of a save directory that did not finish, e.g. micromanager crashed during them, most recent first
+    // their csv files are written again from their journals, see RunJournal
+    public ArrayList<JournalState> repairUnfinishedRuns(String rootDirectory){
+        return RunJournal.repairAll(rootDirectory);
+    }
+
+    // take the rest of the frames of a run that did not finish into its own directory, the frame index and
+    // timestamps go on from the last frame in its journal. the run's job args are used, not the ui's, except
+    // for the threshold and tracking speed. returns false, with the reason in the log, if it cannot be resumed
+    public boolean resumeImageAcquisition(String runDirectory){
+        JournalState state;
+        JobSpec job;
+        try {
+            state = RunJournal.repair(runDirectory);
+            if( state == null || state.framesLeft() == 0 ){
+                IJ.log("[ERROR] " + runDirectory + " has no frames left to take");
+                return false;
+            }
+            job = JobSpec.parseLines(state.args);
+        } catch (java.io.IOException e){
+            IJ.log("[ERROR] unable to read the journal of " + runDirectory + ": " + e.getMessage());
+            return false;
+        } catch (IllegalArgumentException e){
+            IJ.log("[ERROR] unable to resume " + runDirectory + ", its job args are wrong: " + e.getMessage());
+            return false;
+        }
+
+        // the settings of the next job are put back once this one has started with the run's, so the
+        // ui checkboxes match the controller again. the job keeps its own copy of each of them, device
+        // timing is only read when a protocol starts and a resumed job's protocol is frame locked
+        boolean multiWorm = multiWormTrackingEnabled;
+        boolean onDevice = isOnDeviceStimulation();
+        String motionGate = getRecordingGateSpec();
+        String crop = getWormCropSpec();
+        String compression = getFrameCompressionSpec();
+        String stripes = getFrameStripesSpec();
+        updateRecordingGate(job.motionGate);
+        updateWormCrop(job.wormCrop);
+        updateFrameCompression(job.frameCompression);
+        updateFrameStripes(job.frameStripes);
+        updateMultiWormTracking(job.multiWorm);
+        updateOnDeviceStimulation(job.onDeviceTiming);
+
+        IJ.log("[INFO] resuming " + state.describe() + ", from frame " + String.valueOf(state.lastFrame + 1));
+        String root = new File(runDirectory).getAbsoluteFile().getParent() + File.separator;
+        try {
+            startJob(job.numFrames, job.framesPerSecond, root,
+                job.enableStimulator, job.preStimMs, job.stimStrength, job.stimDurationMs, job.stimCycleMs, job.numStimCycles,
+                job.waveform, job.secondWaveform, job.frameLocked, job.closedLoopRules,
+                job.rampBase, job.rampStart, job.rampEnd, job.enableTracking, state);
+        } finally {
+            updateRecordingGate(motionGate);
+            updateWormCrop(crop);
+            updateFrameCompression(compression);
+            updateFrameStripes(stripes);
+            multiWormTrackingEnabled = multiWorm;
+            updateOnDeviceStimulation(onDevice);
+        }
+        return true;
+    }
+
+    // a run that did not finish is not offered to be resumed again
+    public void abandonRun(String runDirectory){
+        try {
+            RunJournal.abandon(runDirectory);
+        } catch (java.io.IOException e){
+            IJ.log("[ERROR] unable to write to the journal of " + runDirectory);
+        }
+    }
+
+    // resumed is the journal of the run to take the rest of the frames of, null for a new job
+    private void startJob(
+        int numFrames, int framesPerSecond, String rootDirectory,
+        boolean enableStimulator, int preStim, int stimStrength, int stimDuration,
+        int stimCycleDuration, int numStimCycles, String stimWaveform, String stimSecondWaveform, boolean stimFrameLocked,
+        String closedLoopRules,
+        int rampBase, int rampStart, int rampEnd,
+        boolean enableTracking,
+        JournalState resumed
+    ){
+        String imageSaveDirectory;
+        if( resumed == null ){
+            imageSaveDirectory = createImageSaveDirectory(rootDirectory);
+        } else {
+            imageSaveDirectory = resumed.directory;
+            currentJobId = resumed.jobId;
+        }
+        int firstFrame = resumed == null ? 0 : resumed.lastFrame + 1;
+        jobResumed = resumed != null;
+        try {
+            RunJournal j = new RunJournal(imageSaveDirectory, currentJobId, resumed != null);
+            if( resumed == null ){
+                j.start(currentJobId);
+            } else {
+                j.resume(firstFrame);
+            }
+            journal = j;
+        } catch (java.io.IOException e){
+            journal = null;
+            IJ.log("[WARNING] unable to start the journal of the job, it cannot be repaired after a crash: " + e.getMessage());
+        }
+        preTrigger.setDirectory(rootDirectory);
+        acquisitionRunning = true;
+
+        // count what each stage of the frame ring does during this job only
+        currentSaveDirectory = imageSaveDirectory;
+        frameMetrics.resetCounters();
+        for(FrameConsumer consumer : frameRing.getConsumers()){
+            consumer.resetCounters();
+        }
 
         taskRunningDisableUI();
         // ensure micro manager live mode is on so we can capture images
@@ -111,38 +601,146 @@ class TrackStimController {
             app.enableLiveMode(true);
         }
 
+        jobMultiWorm = multiWormTrackingEnabled;
         if( tracker.initialized  && enableTracking ){
             try {
-                tracker.scheduleTrackingTasks(numFrames, framesPerSecond);
+                tracker.scheduleTrackingTasks(numFrames, framesPerSecond, imageSaveDirectory, resumed);
             } catch (java.lang.Exception e){
                 IJ.log("[ERROR] could not start tracking. tracker is not initialized.");
             }
         }
 
+        jobGate = recordingGate;
+        if( jobGate != null ){
+            jobGate.start(numFrames);
+        }
+        jobCrop = wormCrop;
+        if( jobCrop != null ){
+            if( !enableTracking ){
+                IJ.log("[WARNING] the worm crop needs auto-tracking, every frame is saved whole");
+            }
+            jobCrop.start(numFrames, core.getPixelSizeUm());
+        }
+        jobStripes = frameStripes;
+        if( jobStripes != null ){
+            if( frameWriter != null && frameWriter.compression == FrameWriter.DELTA_STACK ){
+                IJ.log("[WARNING] a delta stack is one file, it is saved to the save directory without stripes");
+                jobStripes = null;
+            } else {
+                jobStripes.start(imageSaveDirectory, currentJobId, numFrames);
+            }
+        }
+        jobWriter = frameWriter;
+        if( jobWriter != null && resumed != null && jobWriter.compression == FrameWriter.DELTA_STACK ){
+            // a new stack would replace the one with the frames from before, the rest are saved next to it
+            IJ.log("[WARNING] the frames of the resumed job are saved as lzw tiffs next to its delta stack");
+            jobWriter = FrameWriter.parse("lzw");
+        }
+        if( jobWriter != null ){
+            jobWriter.start(imageSaveDirectory, currentJobId, jobStripes);
+        }
+
+        stimulator.clearFrameLockedStimulation();
+        stimulator.startAudit();
         if( stimulator.initialized && enableStimulator ){
             try {
-                stimulator.scheduleStimulationTasks(
-                    enableRamp, preStim, stimStrength,
-                    stimDuration, stimCycleDuration, numStimCycles,
-                    rampBase, rampStart, rampEnd
-                );
+                if( !closedLoopRules.trim().isEmpty() ){
+                    // the rules start protocols as the worm behaves, there is no fixed protocol
+                    if( !enableTracking ){
+                        IJ.log("[WARNING] closed loop stimulation needs auto-tracking, no rule will fire");
+                    }
+                    closedLoop.start(closedLoopRules, imageSaveDirectory);
+                } else if( stimFrameLocked || resumed != null ){
+                    // the imaging tasks send the levels at the start of their frames. a resumed job goes on
+                    // with the protocol where its frames left off, which only frame locked timing can do
+                    stimulator.scheduleFrameLockedStimulation(Stimulator.buildWaveforms(
+                        stimWaveform, stimSecondWaveform, preStim, stimStrength,
+                        stimDuration, stimCycleDuration, numStimCycles,
+                        rampBase, rampStart, rampEnd
+                    ), framesPerSecond, numFrames, firstFrame);
+                } else {
+                    stimulator.scheduleStimulationTasks(
+                        stimWaveform, stimSecondWaveform, preStim, stimStrength,
+                        stimDuration, stimCycleDuration, numStimCycles,
+                        rampBase, rampStart, rampEnd
+                    );
+                }
             } catch (java.lang.Exception e){
-                IJ.log("[ERROR] could not start stimulation.  stimulator not initialized.");
+                IJ.log("[ERROR] could not start stimulation.");
+                IJ.log(e.getMessage());
             }
         }
 
-        imager.scheduleImagingTasks(numFrames, framesPerSecond, imageSaveDirectory);
-        saveImagingJobArgs(imageSaveDirectory, numFrames, framesPerSecond, enableStimulator, preStim, stimStrength, stimDuration, stimCycleDuration, numStimCycles, enableRamp, rampBase, rampStart, rampEnd, enableTracking);
+        imager.scheduleImagingTasks(numFrames, framesPerSecond, imageSaveDirectory, resumed);
+        saveStageCalibration(imageSaveDirectory);
+        // a resumed job keeps the job args it was started with
+        if( resumed == null ){
+            saveImagingJobArgs(imageSaveDirectory, numFrames, framesPerSecond, enableStimulator, preStim, stimStrength, stimDuration, stimCycleDuration, numStimCycles, stimWaveform, stimSecondWaveform, stimFrameLocked, closedLoopRules, rampBase, rampStart, rampEnd, enableTracking);
+            RunJournal j = journal;
+            if( j != null ){
+                j.args(imageSaveDirectory + "/" + "temp" + String.valueOf(currentJobId) + "_" + "job-args.txt");
+            }
+        }
     }
 
     public void stopImageAcquisition(){
         imager.cancelTasks();
         tracker.cancelTasks();
         stimulator.cancelTasks();
+        closedLoop.finish();
+        saveJobReports();
 
+        jobEnded();
         noTaskRunningEnableUI();
     }
 
+    // keep the camera streaming between the jobs started from now on, each job is a segment of the
+    // stream. the segments are saved to session.csv in the directory
+    public void startContinuousSession(String directory){
+        session = new ImagingSession(directory);
+        if( !app.isLiveModeOn() ){
+            app.enableLiveMode(true);
+        }
+        IJ.log("[INFO] continuous session started");
+    }
+
+    // save the session's segments and flush the camera like the end of a single job does
+    public void endContinuousSession(){
+        ImagingSession s = session;
+        if( s == null ){
+            return;
+        }
+        session = null;
+        s.finish();
+        restartLiveMode();
+    }
+
+    public boolean isContinuousSession(){
+        return session != null;
+    }
+
+    // wait until no job is running, false if one still is after the timeout
+    public boolean waitForJob(long timeoutMs) throws java.lang.InterruptedException {
+        long end = System.nanoTime() + timeoutMs * 1000000L;
+        synchronized(jobLock){
+            while( acquisitionRunning ){
+                long left = (end - System.nanoTime()) / 1000000L;
+                if( left <= 0 ){
+                    return false;
+                }
+                jobLock.wait(left);
+            }
+        }
+        return true;
+    }
+
+    private void jobEnded(){
+        synchronized(jobLock){
+            acquisitionRunning = false;
+            jobLock.notifyAll();
+        }
+    }
+
     // called once the imaging tasks are finished
     public void onImageAcquisitionDone(double totalTaskTimeSeconds){
         // stop live mode again
@@ -151,9 +749,37 @@ class TrackStimController {
         // start live mode again
         // enable the gui again
 
-        app.enableLiveMode(false);
+        closedLoop.finish();
         String formattedTaskTime = new DecimalFormat("##.##").format(totalTaskTimeSeconds);
-        IJ.showMessage("Task finished in " + formattedTaskTime + " seconds");
+
+        // the camera streams on into the next job of the session, no message box and no live mode restart
+        ImagingSession s = session;
+        if( s != null ){
+            long endTime = System.nanoTime();
+            s.addSegment(currentJobId, imager.getFirstFrameSequence(), imager.getLastFrameSequence(), imager.getStartTime(), endTime);
+            IJ.log("[INFO] task finished in " + formattedTaskTime + " seconds");
+            saveJobReports();
+            jobEnded();
+            noTaskRunningEnableUI();
+            return;
+        }
+
+        saveJobReports();
+        app.enableLiveMode(false);
+        if( unattended ){
+            IJ.log("[INFO] task finished in " + formattedTaskTime + " seconds");
+        } else {
+            IJ.showMessage("Task finished in " + formattedTaskTime + " seconds");
+        }
+        restartLiveMode();
+
+        jobEnded();
+        noTaskRunningEnableUI();
+    }
+
+    // flush the live mode circular buffer and start live mode again
+    private void restartLiveMode(){
+        app.enableLiveMode(false);
         try {
             core.clearCircularBuffer();
 
@@ -162,15 +788,20 @@ class TrackStimController {
             IJ.log(e.getMessage());
         }
         app.enableLiveMode(true);
-
-        noTaskRunningEnableUI();
     }
 
     // block ui interaction when a imaging task is running
     private void taskRunningDisableUI(){
+        // headless runs have no ui
+        if( gui == null ){
+            return;
+        }
+
         // the user shouldnt be allowed to alter these while task is running
         gui.numFramesText.setEnabled(false);
         gui.framesPerSecondSelector.setEnabled(false);
+        gui.frameCompressionSelector.setEnabled(false);
+        gui.frameStripesText.setEnabled(false);
         gui.changeDirectoryBtn.setEnabled(false);
         gui.enableStimulator.setEnabled(false);
         gui.preStimulationTimeMsText.setEnabled(false);
@@ -178,11 +809,20 @@ class TrackStimController {
         gui.stimulationDurationMsText.setEnabled(false);
         gui.stimulationCycleDurationMsText.setEnabled(false);
         gui.numStimulationCyclesText.setEnabled(false);
-        gui.enableRamp.setEnabled(false);
+        gui.waveformSelector.setEnabled(false);
+        gui.waveformParams.setEnabled(false);
+        gui.frameLockedStim.setEnabled(false);
+        gui.onDeviceStim.setEnabled(false);
+        gui.secondWaveformText.setEnabled(false);
+        gui.closedLoopRulesText.setEnabled(false);
+        gui.motionGateText.setEnabled(false);
+        gui.wormCropText.setEnabled(false);
         gui.rampBase.setEnabled(false);
         gui.rampStart.setEnabled(false);
         gui.rampEnd.setEnabled(false);
         gui.enableTracking.setEnabled(false);
+        gui.enableMultiWorm.setEnabled(false);
+        gui.calibrateBtn.setEnabled(false);
         gui.goBtn.setEnabled(false);
 
         // the user should be able to stop the task
@@ -190,9 +830,15 @@ class TrackStimController {
     }
 
     private void noTaskRunningEnableUI(){
+        if( gui == null ){
+            return;
+        }
+
         // the user should be allowed to alter these when no task is running
         gui.numFramesText.setEnabled(true);
         gui.framesPerSecondSelector.setEnabled(true);
+        gui.frameCompressionSelector.setEnabled(true);
+        gui.frameStripesText.setEnabled(true);
         gui.changeDirectoryBtn.setEnabled(true);
         gui.enableStimulator.setEnabled(true);
         gui.preStimulationTimeMsText.setEnabled(true);
@@ -200,11 +846,20 @@ class TrackStimController {
         gui.stimulationDurationMsText.setEnabled(true);
         gui.stimulationCycleDurationMsText.setEnabled(true);
         gui.numStimulationCyclesText.setEnabled(true);
-        gui.enableRamp.setEnabled(true);
+        gui.waveformSelector.setEnabled(true);
+        gui.waveformParams.setEnabled(true);
+        gui.frameLockedStim.setEnabled(true);
+        gui.onDeviceStim.setEnabled(true);
+        gui.secondWaveformText.setEnabled(true);
+        gui.closedLoopRulesText.setEnabled(true);
+        gui.motionGateText.setEnabled(true);
+        gui.wormCropText.setEnabled(true);
         gui.rampBase.setEnabled(true);
         gui.rampStart.setEnabled(true);
         gui.rampEnd.setEnabled(true);
         gui.enableTracking.setEnabled(true);
+        gui.enableMultiWorm.setEnabled(true);
+        gui.calibrateBtn.setEnabled(true);
         gui.goBtn.setEnabled(true);
 
         // the user should not be able to press stop when there is no task running
@@ -219,27 +874,71 @@ class TrackStimController {
             @Override
             public void run(){
                 if (app.isLiveModeOn()){
-                    // take the current live mode image, binarize it and show the result
-                    ImagePlus liveModeImage = app.getSnapLiveWin().getImagePlus();
+                    // take the newest frame, binarize it and show the result
+                    // nothing to redraw if no frame came in since the last one
+                    Frame frame = previewFrames.latest(false);
+                    if( frame == null ){
+                        return;
+                    }
+
+                    ImagePlus binarized = TrackingTask.binarizeImage(frame.toImagePlus(), thresholdValue);
 
-                    ImagePlus binarized = TrackingTask.binarizeImage(liveModeImage, thresholdValue);
-                    double[] wormPosition = TrackingTask.detectWormPosition(binarized);
+                    if( multiWormTrackingEnabled ){
+                        // show every worm so the user can click on the one the stage should follow
+                        ArrayList<WormBlob> blobs = BlobDetector.detectBlobs(binarized, TrackingPipeline.MIN_WORM_AREA);
+                        if( !blobs.isEmpty() ){
+                            float[] xs = new float[blobs.size()];
+                            float[] ys = new float[blobs.size()];
+                            for(int i = 0; i < blobs.size(); i++){
+                                xs[i] = (float) blobs.get(i).x;
+                                ys[i] = (float) blobs.get(i).y;
+                            }
+                            trackerViewImage.setRoi(new PointRoi(xs, ys, blobs.size()));
+                        }
+                    } else {
+                        double[] wormPosition = TrackingTask.detectWormPosition(binarized);
 
-                    Double wormPosX = new Double(wormPosition[0]);
-                    Double wormPosY = new Double(wormPosition[1]);
+                        Double wormPosX = new Double(wormPosition[0]);
+                        Double wormPosY = new Double(wormPosition[1]);
 
-                    if(!wormPosX.isNaN() && !wormPosY.isNaN()){
-                        PointRoi centerOfMassRoi = new PointRoi(wormPosX, wormPosY);
-                        trackerViewImage.setRoi(centerOfMassRoi);
+                        if(!wormPosX.isNaN() && !wormPosY.isNaN()){
+                            PointRoi centerOfMassRoi = new PointRoi(wormPosX, wormPosY);
+                            trackerViewImage.setRoi(centerOfMassRoi);
+                        }
                     }
 
                     trackerViewImage.setProcessor(binarized.getProcessor());
-                    trackerViewImage.show("Tracker View");
+
+                    // simulated runs have no screen to show the tracker view on
+                    if( !GraphicsEnvironment.isHeadless() ){
+                        trackerViewImage.show("Tracker View");
+                        listenForTargetSelection();
+                    }
                 }
             }
         }, 0, 100, TimeUnit.MILLISECONDS);
     }
     
+    // clicking on a worm in the tracker view makes it the worm the stage follows
+    // the canvas is recreated when the user closes the tracker view, so check it every time
+    private void listenForTargetSelection(){
+        final ImageCanvas canvas = trackerViewImage.getCanvas();
+        if( canvas == null || canvas == trackerViewCanvas ){
+            return;
+        }
+
+        canvas.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e){
+                double x = canvas.offScreenXD(e.getX());
+                double y = canvas.offScreenYD(e.getY());
+                tracker.selectTarget(x, y);
+                IJ.log("[INFO] tracking the worm closest to (" + String.valueOf((int) x) + ", " + String.valueOf((int) y) + ")");
+            }
+        });
+        trackerViewCanvas = canvas;
+    }
+
     // create a directory of the form temp<i> where i is the first available
 	// i such that temp<i> can be created
 	private String createImageSaveDirectory(String root){
@@ -266,6 +965,21 @@ class TrackStimController {
 		return newdir.getPath();
     }
 
+    // save the pixel to stage transform with the images so offline tools can put worm positions
+    // in stage coordinates, nothing is saved if the current objective was never calibrated
+    private void saveStageCalibration(String directory){
+        StageCalibration calibration = StageCalibration.load(StageCalibration.getCurrentObjective(core));
+        if( calibration == null ){
+            return;
+        }
+
+        try {
+            calibration.saveToFile(directory + "/" + "temp" + String.valueOf(currentJobId) + "_" + "calibration.txt");
+        } catch (java.io.IOException e){
+            IJ.log("[ERROR] unable to write stage calibration file");
+        }
+    }
+
 	// save all job arguments for later reference
 	private void saveImagingJobArgs(
         String directory, 
@@ -277,7 +991,10 @@ class TrackStimController {
         int stimDur, 
         int stimCycleDur, 
         int numCycle, 
-        boolean useRamp, 
+        String waveform,
+        String secondWaveform,
+        boolean frameLocked,
+        String closedLoopRules,
         int rampBase, 
         int rampStart, 
         int rampEnd,
@@ -289,6 +1006,8 @@ class TrackStimController {
 
             p.println("number of frames: " + String.valueOf(frameArg));
             p.println("frames per second: " + String.valueOf(fpsArg));
+            p.println("frame compression: " + (jobWriter != null ? jobWriter.spec : "none"));
+            p.println("frame stripes: " + (jobStripes != null ? jobStripes.spec : "none"));
             p.println("stimulator enabled: " + String.valueOf(useStim));
 
             if(useStim){
@@ -297,6 +1016,12 @@ class TrackStimController {
                 p.println("stimulation duration (ms): " + String.valueOf(stimDur)); 
                 p.println("stimulation cycle duration (ms): " + String.valueOf(stimCycleDur)); 
                 p.println("number of cycles: " + String.valueOf(numCycle)); 
+                boolean useRamp = waveform.trim().startsWith("ramp");
+                p.println("waveform: " + waveform.trim());
+                p.println("second channel (DA2) waveform: " + (secondWaveform.trim().isEmpty() ? "none" : secondWaveform.trim()));
+                p.println("stimulation frame locked: " + String.valueOf(frameLocked));
+                p.println("closed loop rules: " + (closedLoopRules.trim().isEmpty() ? "none" : closedLoopRules.trim()));
+                p.println("stimulation timed on device: " + String.valueOf(stimulator.onDeviceTiming && !frameLocked));
                 p.println("ramp enabled: " + String.valueOf(useRamp)); 
 
                 if(useRamp){
@@ -305,8 +1030,19 @@ class TrackStimController {
                     p.println("ramp end: " + String.valueOf(rampEnd));    
                 }
             }
+            p.println("motion gate: " + (jobGate != null ? jobGate.spec : "none"));
+            p.println("worm crop: " + (jobCrop != null ? jobCrop.spec : "none"));
             p.println("auto-tracking enabled: " + String.valueOf(useTracking)); 
 
+            if(useTracking){
+                p.println("multi-worm tracking enabled: " + String.valueOf(jobMultiWorm));
+                p.println("tracking speed: " + String.valueOf(trackerSpeedFactor));
+                p.println("threshold: " + String.valueOf(thresholdValue));
+
+                StageCalibration calibration = StageCalibration.load(StageCalibration.getCurrentObjective(core));
+                p.println("stage calibration: " + (calibration != null ? calibration.describe() : "none (legacy speed)"));
+            }
+
 		} catch (java.io.IOException e){
 			IJ.log("[ERROR] unable to write job args to file");
 		} finally {
@@ -11,6 +11,8 @@ import java.awt.GridBagLayout;
 
 import java.awt.event.ActionListener;
 import java.awt.event.ActionEvent;
+import java.awt.event.ItemListener;
+import java.awt.event.ItemEvent;
 import java.awt.Insets;
 
 import javax.swing.event.ChangeListener;
@@ -25,6 +27,7 @@ import java.util.ArrayList;
 import java.util.Hashtable;
 
 import ij.IJ;
+import ij.gui.YesNoCancelDialog;
 import ij.plugin.frame.PlugInFrame;
 
 import java.util.concurrent.ScheduledFuture;
@@ -45,9 +48,19 @@ class TrackStimGUI extends PlugInFrame {
     TextField numFramesText;
     TextField saveDirectoryText;
     Choice framesPerSecondSelector;
+    Choice frameCompressionSelector;
     Checkbox enableTracking;
+    Checkbox enableMultiWorm;
     java.awt.Checkbox enableStimulator;
-    java.awt.Checkbox enableRamp;
+    Choice waveformSelector;
+    TextField waveformParams;
+    Checkbox frameLockedStim;
+    Checkbox onDeviceStim;
+    TextField secondWaveformText;
+    TextField closedLoopRulesText;
+    TextField motionGateText;
+    TextField wormCropText;
+    TextField frameStripesText;
     TextField preStimulationTimeMsText;
     TextField stimulationStrengthText;
     TextField stimulationDurationMsText;
@@ -58,8 +71,13 @@ class TrackStimGUI extends PlugInFrame {
     TextField rampEnd;
     JSlider thresholdSlider;
     JSlider trackerSpeedSlider;
+    Checkbox enablePreTrigger;
+    TextField preTriggerSecondsText;
+    TextField postTriggerSecondsText;
 
     Button changeDirectoryBtn;
+    Button calibrateBtn;
+    Button markEventBtn;
     Button stopBtn;
     Button goBtn;
 
@@ -82,6 +100,9 @@ class TrackStimGUI extends PlugInFrame {
         controller = c;
         c.updateThresholdValue(thresholdSlider.getValue());
         c.updateTrackerSpeedValue(trackerSpeedSlider.getValue());
+        c.updateMultiWormTracking(enableMultiWorm.getState());
+        c.updateOnDeviceStimulation(onDeviceStim.getState());
+        applyPreTrigger();
     }
 
     // load the previous values of the ui from the last session (before ther user quit)
@@ -89,10 +110,21 @@ class TrackStimGUI extends PlugInFrame {
         prefs = Preferences.userNodeForPackage(this.getClass());
         numFramesText.setText(prefs.get("numFrames", "3000"));
         framesPerSecondSelector.select(prefs.get("framesPerSecond", "26"));
+        frameCompressionSelector.select(prefs.get("frameCompression", "uncompressed tiff"));
         saveDirectoryText.setText(prefs.get("saveDirectory", ""));
         enableTracking.setState(prefs.getBoolean("enableTracking", false));
+        enableMultiWorm.setState(prefs.getBoolean("enableMultiWorm", false));
         enableStimulator.setState(prefs.getBoolean("enableStimulator", false));
-        enableRamp.setState(prefs.getBoolean("enableRamp", false));
+        // jobs saved before the waveform choice only had the ramp checkbox
+        waveformSelector.select(prefs.get("waveform", prefs.getBoolean("enableRamp", false) ? "ramp" : "square"));
+        waveformParams.setText(prefs.get("waveformParams", ""));
+        frameLockedStim.setState(prefs.getBoolean("frameLockedStim", false));
+        onDeviceStim.setState(prefs.getBoolean("onDeviceStim", false));
+        secondWaveformText.setText(prefs.get("secondWaveform", ""));
+        closedLoopRulesText.setText(prefs.get("closedLoopRules", ""));
+        motionGateText.setText(prefs.get("motionGate", ""));
+        wormCropText.setText(prefs.get("wormCrop", ""));
+        frameStripesText.setText(prefs.get("frameStripes", ""));
         preStimulationTimeMsText.setText(prefs.get("preStimulationTimeMs", "10000"));
         stimulationStrengthText.setText(prefs.get("stimulationStrength", "63"));
         stimulationDurationMsText.setText(prefs.get("stimulationDuration", "5000"));
@@ -101,6 +133,9 @@ class TrackStimGUI extends PlugInFrame {
         rampBase.setText(prefs.get("rampBase", "0"));
         rampStart.setText(prefs.get("rampStart", "0"));
         rampEnd.setText(prefs.get("rampEnd", "63"));
+        enablePreTrigger.setState(prefs.getBoolean("enablePreTrigger", false));
+        preTriggerSecondsText.setText(prefs.get("preTriggerSeconds", "10"));
+        postTriggerSecondsText.setText(prefs.get("postTriggerSeconds", "5"));
     }
 
     // save the current values of the ui to preferences
@@ -108,9 +143,19 @@ class TrackStimGUI extends PlugInFrame {
         prefs.put("saveDirectory", saveDirectoryText.getText());
         prefs.put("numFrames", numFramesText.getText());
         prefs.put("framesPerSecond", String.valueOf(framesPerSecondSelector.getSelectedItem()));
+        prefs.put("frameCompression", frameCompressionSelector.getSelectedItem());
         prefs.put("enableTracking", String.valueOf(enableTracking.getState()));
+        prefs.put("enableMultiWorm", String.valueOf(enableMultiWorm.getState()));
         prefs.put("enableStimulator", String.valueOf(enableStimulator.getState()));
-        prefs.put("enableRamp", String.valueOf(enableRamp.getState()));
+        prefs.put("waveform", waveformSelector.getSelectedItem());
+        prefs.put("waveformParams", waveformParams.getText());
+        prefs.put("frameLockedStim", String.valueOf(frameLockedStim.getState()));
+        prefs.put("onDeviceStim", String.valueOf(onDeviceStim.getState()));
+        prefs.put("secondWaveform", secondWaveformText.getText());
+        prefs.put("closedLoopRules", closedLoopRulesText.getText());
+        prefs.put("motionGate", motionGateText.getText());
+        prefs.put("wormCrop", wormCropText.getText());
+        prefs.put("frameStripes", frameStripesText.getText());
         prefs.put("preStimulationTimeMs", preStimulationTimeMsText.getText());
         prefs.put("stimulationStrength", stimulationStrengthText.getText());
         prefs.put("stimulationDuration", stimulationDurationMsText.getText());
@@ -126,6 +171,42 @@ class TrackStimGUI extends PlugInFrame {
     private void goBtnActionPerformed(ActionEvent e){
         if(uiValuesAreValid()){
             savePreferences();
+            controller.updateRecordingGate(motionGateText.getText().trim());
+            controller.updateWormCrop(wormCropText.getText().trim());
+            controller.updateFrameStripes(frameStripesText.getText().trim());
+            // "lzw tiff" -> "lzw", "delta stack" -> "delta", the encoders take half the cores
+            String compression = frameCompressionSelector.getSelectedItem();
+            controller.updateFrameCompression(compression.equals("uncompressed tiff") ? "" : compression.split(" ")[0]);
+
+            // a run micromanager or the computer crashed during is repaired, and can be finished instead of starting a new one
+            for(JournalState run : controller.repairUnfinishedRuns(saveDirectoryText.getText())){
+                if( run.framesLeft() == 0 ){
+                    controller.abandonRun(run.directory);
+                    continue;
+                }
+                YesNoCancelDialog resume = new YesNoCancelDialog(this, "Resume run", run.describe() +
+                    ".\n \nTake its remaining " + String.valueOf(run.framesLeft()) + " frames into it with its own settings?" +
+                    "\nNo leaves it as it is and starts a new run.");
+                if( resume.cancelPressed() ){
+                    return;
+                }
+                if( resume.yesPressed() ){
+                    controller.resumeImageAcquisition(run.directory);
+                    return;
+                }
+                controller.abandonRun(run.directory);
+            }
+
+            // a disk too slow or too full would leave the job behind or stop it part way
+            DiskPreflight preflight = controller.preflightJob(saveDirectoryText.getText(),
+                Integer.parseInt(numFramesText.getText()), Integer.parseInt(framesPerSecondSelector.getSelectedItem()));
+            if( preflight.status == DiskPreflight.BLOCK ){
+                IJ.showMessage("Disk check", preflight.message);
+                return;
+            }
+            if( preflight.status == DiskPreflight.WARN && !IJ.showMessageWithCancel("Disk check", preflight.message + "\n \nStart anyway?") ){
+                return;
+            }
 
             controller.startImageAcquisition(
                 Integer.parseInt(numFramesText.getText()),
@@ -138,7 +219,10 @@ class TrackStimGUI extends PlugInFrame {
                 Integer.parseInt(stimulationDurationMsText.getText()),
                 Integer.parseInt(stimulationCycleDurationMsText.getText()),
                 Integer.parseInt(numStimulationCyclesText.getText()),
-                enableRamp.getState(),
+                getWaveformSpec(),
+                secondWaveformText.getText().trim(),
+                frameLockedStim.getState(),
+                closedLoopRulesText.getText().trim(),
                 Integer.parseInt(rampBase.getText()),
                 Integer.parseInt(rampStart.getText()),
                 Integer.parseInt(rampEnd.getText()),
@@ -148,9 +232,57 @@ class TrackStimGUI extends PlugInFrame {
         }
     }
 
+    // the waveform choice and its frequency or file, e.g. "sine 2"
+    private String getWaveformSpec(){
+        return (waveformSelector.getSelectedItem() + " " + waveformParams.getText()).trim();
+    }
+
     // pick new directory
     private void directoryBtnActionPerformed(ActionEvent e){
         saveDirectoryText.setText(IJ.getDirectory("user.home"));
+        controller.updatePreTriggerDirectory(saveDirectoryText.getText());
+    }
+
+    // when the user toggles keeping frames before events, start or stop the pre-trigger buffer
+    private void preTriggerStateChanged(ItemEvent e){
+        applyPreTrigger();
+    }
+
+    private void applyPreTrigger(){
+        double preSeconds = 0;
+        double postSeconds = 0;
+        if( enablePreTrigger.getState() ){
+            try {
+                preSeconds = Double.parseDouble(preTriggerSecondsText.getText());
+                postSeconds = Double.parseDouble(postTriggerSecondsText.getText());
+            } catch (NumberFormatException ex){
+                preSeconds = -1;
+            }
+            if( preSeconds <= 0 || postSeconds < 0 ){
+                IJ.showMessage("Seconds before events must be greater than 0 and seconds after must be non-negative");
+                enablePreTrigger.setState(false);
+                preSeconds = 0;
+            }
+        }
+        controller.updatePreTrigger(preSeconds, postSeconds, saveDirectoryText.getText());
+
+        prefs.put("enablePreTrigger", String.valueOf(enablePreTrigger.getState()));
+        prefs.put("preTriggerSeconds", preTriggerSecondsText.getText());
+        prefs.put("postTriggerSeconds", postTriggerSecondsText.getText());
+    }
+
+    // keep the frames around now
+    private void markEventBtnActionPerformed(ActionEvent e){
+        if( !enablePreTrigger.getState() ){
+            IJ.showMessage("Keep frames before events is off, there are no frames to keep");
+            return;
+        }
+        controller.markEvent("mark");
+    }
+
+    // measure the pixel to stage transform for the current objective
+    private void calibrateBtnActionPerformed(ActionEvent e){
+        controller.calibrateStage();
     }
 
     // stop controller from getting images
@@ -170,6 +302,16 @@ class TrackStimGUI extends PlugInFrame {
         controller.updateTrackerSpeedValue(s.getValue());
     }
 
+    // when the user toggles multi worm tracking, update it in the controller
+    private void multiWormStateChanged(ItemEvent e){
+        controller.updateMultiWormTracking(enableMultiWorm.getState());
+    }
+
+    // when the user toggles timing the stimulation on the arduino, update it in the controller
+    private void onDeviceStimStateChanged(ItemEvent e){
+        controller.updateOnDeviceStimulation(onDeviceStim.getState());
+    }
+
     private boolean saveDirectoryIsValid(){
         File f = new File(saveDirectoryText.getText());
         boolean isValid = f.exists() && f.isDirectory();
@@ -243,6 +385,56 @@ class TrackStimGUI extends PlugInFrame {
                 IJ.showMessage("Ramp end must be in the range of [0, 63]");
             }
 
+            if(enableStimulator.getState()){
+                try {
+                    new StimulationWaveform().parse(getWaveformSpec());
+                } catch (IllegalArgumentException e){
+                    valid = false;
+                    IJ.showMessage("Waveform: " + e.getMessage());
+                }
+                try {
+                    if( !secondWaveformText.getText().trim().isEmpty() ){
+                        new StimulationWaveform().parse(secondWaveformText.getText());
+                    }
+                } catch (IllegalArgumentException e){
+                    valid = false;
+                    IJ.showMessage("DA2 waveform: " + e.getMessage());
+                }
+                try {
+                    StimulationRule.parseRules(closedLoopRulesText.getText());
+                } catch (IllegalArgumentException e){
+                    valid = false;
+                    IJ.showMessage("Closed loop " + e.getMessage());
+                }
+            }
+
+            try {
+                RecordingGate.parse(motionGateText.getText());
+            } catch (IllegalArgumentException e){
+                valid = false;
+                IJ.showMessage("Motion gate: " + e.getMessage());
+            }
+
+            try {
+                WormCrop.parse(wormCropText.getText());
+            } catch (IllegalArgumentException e){
+                valid = false;
+                IJ.showMessage("Worm crop: " + e.getMessage());
+            }
+
+            try {
+                FrameStripes stripes = FrameStripes.parse(frameStripesText.getText());
+                for(int i = 0; stripes != null && i < stripes.roots.length; i++){
+                    if( !new File(stripes.roots[i]).isDirectory() ){
+                        valid = false;
+                        IJ.showMessage("Stripe directory " + stripes.roots[i] + " does not exist or is a file");
+                    }
+                }
+            } catch (IllegalArgumentException e){
+                valid = false;
+                IJ.showMessage("Stripe over: " + e.getMessage());
+            }
+
         } catch (java.lang.Exception e){
             valid = false;
         }
@@ -347,6 +539,91 @@ class TrackStimGUI extends PlugInFrame {
         });
         add(changeDirectoryBtn);
 
+        // lossless compressed tiffs take cpu for fewer bytes on disk, see FrameWriter
+        frameCompressionSelector = new Choice();
+        frameCompressionSelector.add("uncompressed tiff");
+        frameCompressionSelector.add("lzw tiff");
+        frameCompressionSelector.add("deflate tiff");
+        frameCompressionSelector.add("delta stack");
+        gbc.gridx = 3;
+        gbc.gridy = 2;
+        gbc.gridwidth = 1;
+        gbc.insets = externalPadding;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbl.setConstraints(frameCompressionSelector, gbc);
+        add(frameCompressionSelector);
+
+        enablePreTrigger = new Checkbox("Keep frames before events (s)", false);
+        gbc.gridx = 0;
+        gbc.gridy = 3;
+        gbc.gridwidth = 1;
+        gbc.insets = externalPadding;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbl.setConstraints(enablePreTrigger, gbc);
+        enablePreTrigger.addItemListener(new ItemListener(){
+            public void itemStateChanged(ItemEvent e){
+                preTriggerStateChanged(e);
+            }
+        });
+        add(enablePreTrigger);
+
+        preTriggerSecondsText = new TextField("10", 6);
+        gbc.gridx = 1;
+        gbc.gridy = 3;
+        gbc.gridwidth = 1;
+        gbc.insets = externalPadding;
+        gbl.setConstraints(preTriggerSecondsText, gbc);
+        add(preTriggerSecondsText);
+
+        Label labelposttrigger = new Label("after (s)");
+        gbc.gridx = 2;
+        gbc.gridy = 3;
+        gbc.gridwidth = 1;
+        gbc.insets = leftLabelPadding;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbl.setConstraints(labelposttrigger, gbc);
+        add(labelposttrigger);
+
+        postTriggerSecondsText = new TextField("5", 6);
+        gbc.gridx = 3;
+        gbc.gridy = 3;
+        gbc.gridwidth = 1;
+        gbc.insets = externalPadding;
+        gbl.setConstraints(postTriggerSecondsText, gbc);
+        add(postTriggerSecondsText);
+
+        markEventBtn = new Button("Mark event");
+        gbc.gridx = 0;
+        gbc.gridy = 4;
+        gbc.gridwidth = 1;
+        gbc.insets = externalPadding;
+        gbl.setConstraints(markEventBtn, gbc);
+        markEventBtn.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                markEventBtnActionPerformed(evt);
+            }
+        });
+        add(markEventBtn);
+
+        Label labelmotiongate = new Label("Motion gate");
+        gbc.gridx = 2;
+        gbc.gridy = 4;
+        gbc.gridwidth = 1;
+        gbc.insets = leftLabelPadding;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbl.setConstraints(labelmotiongate, gbc);
+        add(labelmotiongate);
+
+        // save only the frames where the worm moves, empty saves every frame, e.g. "motion every=26"
+        motionGateText = new TextField("", 10);
+        gbc.gridx = 3;
+        gbc.gridy = 4;
+        gbc.gridwidth = 1;
+        gbc.insets = externalPadding;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbl.setConstraints(motionGateText, gbc);
+        add(motionGateText);
+
         // gui for stimulation
         enableStimulator = new Checkbox("Enable stimulator", false);
         gbc.gridx = 0;
@@ -452,14 +729,28 @@ class TrackStimGUI extends PlugInFrame {
         gbl.setConstraints(numStimulationCyclesText, gbc);
         add(numStimulationCyclesText);
 
-        enableRamp = new Checkbox("ramp", false);
+        waveformSelector = new Choice();
+        waveformSelector.add("square");
+        waveformSelector.add("ramp");
+        waveformSelector.add("sine");
+        waveformSelector.add("chirp");
+        waveformSelector.add("file");
         gbc.gridx = 2;
         gbc.gridy = 5;
         gbc.gridwidth = 1;
         gbc.insets = topPadding;
         gbc.anchor = GridBagConstraints.LINE_START;
-        gbl.setConstraints(enableRamp, gbc);
-        add(enableRamp);
+        gbl.setConstraints(waveformSelector, gbc);
+        add(waveformSelector);
+
+        frameLockedStim = new Checkbox("frame locked", false);
+        gbc.gridx = 3;
+        gbc.gridy = 5;
+        gbc.gridwidth = 1;
+        gbc.insets = topPadding;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbl.setConstraints(frameLockedStim, gbc);
+        add(frameLockedStim);
 
         Label labelbase = new Label("base");
         gbc.gridx = 2;
@@ -518,6 +809,80 @@ class TrackStimGUI extends PlugInFrame {
         gbl.setConstraints(rampEnd, gbc);
         add(rampEnd);
 
+        Label labelwaveformparams = new Label("Hz / file");
+        gbc.gridx = 2;
+        gbc.gridy = 9;
+        gbc.gridwidth = 1;
+        gbc.insets = leftLabelPadding;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbl.setConstraints(labelwaveformparams, gbc);
+        add(labelwaveformparams);
+
+        waveformParams = new TextField("", 10);
+        waveformParams.setPreferredSize(new Dimension(80, 30));
+        gbc.gridx = 3;
+        gbc.gridy = 9;
+        gbc.gridwidth = 1;
+        gbc.insets = leftLabelPadding;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbl.setConstraints(waveformParams, gbc);
+        add(waveformParams);
+
+        onDeviceStim = new Checkbox("on-device timing", false);
+        gbc.gridx = 1;
+        gbc.gridy = 5;
+        gbc.gridwidth = 1;
+        gbc.insets = topPadding;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbl.setConstraints(onDeviceStim, gbc);
+        onDeviceStim.addItemListener(new ItemListener(){
+            public void itemStateChanged(ItemEvent e){
+                onDeviceStimStateChanged(e);
+            }
+        });
+        add(onDeviceStim);
+
+        Label labelsecondwaveform = new Label("DA2");
+        gbc.gridx = 2;
+        gbc.gridy = 10;
+        gbc.gridwidth = 1;
+        gbc.insets = leftLabelPadding;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbl.setConstraints(labelsecondwaveform, gbc);
+        add(labelsecondwaveform);
+
+        // the second light's waveform spec, empty for none, e.g. "sine 5 strength=30"
+        secondWaveformText = new TextField("", 10);
+        secondWaveformText.setPreferredSize(new Dimension(80, 30));
+        gbc.gridx = 3;
+        gbc.gridy = 10;
+        gbc.gridwidth = 1;
+        gbc.insets = leftLabelPadding;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbl.setConstraints(secondWaveformText, gbc);
+        add(secondWaveformText);
+
+        Label labelclosedloop = new Label("Closed loop");
+        gbc.gridx = 2;
+        gbc.gridy = 12;
+        gbc.gridwidth = 1;
+        gbc.insets = leftLabelPadding;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbl.setConstraints(labelclosedloop, gbc);
+        add(labelclosedloop);
+
+        // rules that start stimulation from the worm's behavior instead of the fixed protocol, empty for none
+        // e.g. "speed > 150 : square duration=2000; reversal : square duration=500"
+        closedLoopRulesText = new TextField("", 10);
+        closedLoopRulesText.setPreferredSize(new Dimension(80, 30));
+        gbc.gridx = 3;
+        gbc.gridy = 12;
+        gbc.gridwidth = 1;
+        gbc.insets = leftLabelPadding;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbl.setConstraints(closedLoopRulesText, gbc);
+        add(closedLoopRulesText);
+
         enableTracking = new Checkbox("Enable auto-tracking", false);
         gbc.gridx = 0;
         gbc.gridy = 11;
@@ -527,6 +892,34 @@ class TrackStimGUI extends PlugInFrame {
         gbl.setConstraints(enableTracking, gbc);
         add(enableTracking);
 
+        enableMultiWorm = new Checkbox("Multi-worm (click worm to follow)", false);
+        gbc.gridx = 1;
+        gbc.gridy = 11;
+        gbc.gridwidth = 1;
+        gbc.insets = externalPadding;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbl.setConstraints(enableMultiWorm, gbc);
+        enableMultiWorm.addItemListener(new ItemListener(){
+            public void itemStateChanged(ItemEvent e){
+                multiWormStateChanged(e);
+            }
+        });
+        add(enableMultiWorm);
+
+        calibrateBtn = new Button("Calibrate stage");
+        gbc.gridx = 2;
+        gbc.gridy = 11;
+        gbc.gridwidth = 1;
+        gbc.insets = externalPadding;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbl.setConstraints(calibrateBtn, gbc);
+        calibrateBtn.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                calibrateBtnActionPerformed(evt);
+            }
+        });
+        add(calibrateBtn);
+
         Label thresholdSliderLabel = new Label("Auto-tracking threshold");
         gbc.gridx = 0;
         gbc.gridy = 12;
@@ -589,6 +982,46 @@ class TrackStimGUI extends PlugInFrame {
         gbl.setConstraints(trackerSpeedSlider, gbc);
         add(trackerSpeedSlider);
 
+        Label labelwormcrop = new Label("Worm crop");
+        gbc.gridx = 2;
+        gbc.gridy = 13;
+        gbc.gridwidth = 1;
+        gbc.insets = leftLabelPadding;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbl.setConstraints(labelwormcrop, gbc);
+        add(labelwormcrop);
+
+        // save only a square of this many pixels around the tracked worm, empty saves the whole frame, e.g. "256 full=100"
+        wormCropText = new TextField("", 10);
+        wormCropText.setPreferredSize(new Dimension(80, 30));
+        gbc.gridx = 3;
+        gbc.gridy = 13;
+        gbc.gridwidth = 1;
+        gbc.insets = leftLabelPadding;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbl.setConstraints(wormCropText, gbc);
+        add(wormCropText);
+
+        Label labelframestripes = new Label("Stripe over");
+        gbc.gridx = 2;
+        gbc.gridy = 14;
+        gbc.gridwidth = 1;
+        gbc.insets = leftLabelPadding;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbl.setConstraints(labelframestripes, gbc);
+        add(labelframestripes);
+
+        // more directories on other disks to spread the frames over, empty saves them all at the save directory, e.g. "E:/frames; F:/frames"
+        frameStripesText = new TextField("", 10);
+        frameStripesText.setPreferredSize(new Dimension(80, 30));
+        gbc.gridx = 3;
+        gbc.gridy = 14;
+        gbc.gridwidth = 1;
+        gbc.insets = leftLabelPadding;
+        gbc.anchor = GridBagConstraints.LINE_START;
+        gbl.setConstraints(frameStripesText, gbc);
+        add(frameStripesText);
+
         goBtn = new Button("Go");
         gbc.gridx = 0;
         gbc.gridy = 14;
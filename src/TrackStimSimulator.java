@@ -0,0 +1,332 @@
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+
+import org.micromanager.api.ScriptInterface;
+
+// stands in for micromanager's app: live mode on/off and the core, there is no live window
+class SimulatedAppHandler implements InvocationHandler {
+    private SimulatedCore core;
+    private volatile boolean liveModeOn;
+
+    SimulatedAppHandler(SimulatedCore core_){
+        core = core_;
+        liveModeOn = false;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args){
+        String name = method.getName();
+        if( name.equals("isLiveModeOn") ){
+            return liveModeOn;
+        }
+        if( name.equals("enableLiveMode") ){
+            liveModeOn = (Boolean) args[0];
+            return null;
+        }
+        if( name.equals("getMMCore") ){
+            return core;
+        }
+        if( name.equals("toString") ){
+            return "simulated micromanager";
+        }
+        if( name.equals("hashCode") ){
+            return System.identityHashCode(proxy);
+        }
+        if( name.equals("equals") ){
+            return proxy == args[0];
+        }
+
+        // everything else does nothing on the simulated rig
+        Class<?> type = method.getReturnType();
+        if( type == boolean.class ){
+            return false;
+        }
+        if( type == int.class || type == long.class || type == double.class || type == float.class || type == short.class ){
+            return 0;
+        }
+        return null;
+    }
+}
+
+// runs imaging jobs on a simulated rig with no microscope and no screen
+//
+// the real TrackStimController, Imager, Tracker and Stimulator drive a SimulatedCore: a camera
+// rendering crawling worms, a stage following the VECTOR commands with acceleration and serial
+// latency, and a stimulator decoding the serial bytes. the saved files are the same as on the rig,
+// and a summary of how well the stage kept the worm centered is printed at the end
+//
+// the frames normally come from the simulated camera, --frame-source synthetic takes them from a worm
+// the stage cannot move instead and --frame-source replay <run directory> from a recorded run, which
+// exercises imaging and tracking on images the stage has no effect on
+//
+//   java -Djava.awt.headless=true TrackStimSimulator [--frames 300] [--fps 10] [--output dir] [--tracking]
+//       [--multi-worm] [--worms 1] [--stimulate <pre ms> <duration ms> <cycle ms> <cycles>] [--strength 63]
+//       [--waveform "square|ramp|sine <hz>|chirp <hz> <hz>|file <path>"] [--second-waveform <spec>] [--frame-locked] [--on-device] [--closed-loop <rules>]
+//       [--threshold 1.5] [--speed 7] [--exposure 10] [--size 512] [--pixel-size 4] [--latency 5] [--calibrate] [--seed 1]
+//       [--frame-source camera|synthetic|replay <run directory>] [--jobs <job file>] [--continuous] [--pre-trigger <s before> <s after>] [--motion-gate <spec>]
+//       [--crop <spec>] [--compression <spec>] [--stripes <spec>] [--resume <run directory>]
+//
+// --jobs runs the jobs of a JobSpec file back to back with a JobRunner instead of the one job of the
+// other options, jobs without a save directory are saved in --output. --continuous runs them as one
+// continuous session, the camera streams on between the jobs. --pre-trigger keeps the frames around
+// every stimulation onset in trigger<i> directories of --output, --motion-gate saves only the frames a
+// RecordingGate spec lets through, --crop saves a WormCrop around the tracked worm, --compression
+// saves the frames compressed with a FrameWriter, e.g. --compression lzw or --compression "delta keyframe=26",
+// and --stripes spreads them over more directories with FrameStripes, e.g. --stripes "/mnt/a; /mnt/b".
+// --resume takes the rest of the frames of a run that was killed part way with the run's own settings,
+// see RunJournal, e.g. after timeout -s KILL 10 java ... TrackStimSimulator --frames 300
+class TrackStimSimulator {
+    static final long SAMPLE_INTERVAL_MS = 50; // how often the worm offset from the image center is measured
+
+    int numFrames = 300;
+    int framesPerSecond = 10;
+    String outputDirectory = "simulated-runs";
+    boolean tracking = false;
+    boolean multiWorm = false;
+    int numWorms = 1;
+    boolean stimulate = false;
+    int preStimMs = 0;
+    int stimDurationMs = 0;
+    int stimCycleMs = 0;
+    int numStimCycles = 0;
+    int stimStrength = Stimulator.ON_SIGNAL;
+    String stimWaveform = "square";
+    boolean stimFrameLocked = false;
+    boolean stimOnDevice = false;
+    String stimSecondWaveform = "";
+    String closedLoopRules = "";
+    double thresholdValue = 1.5;
+    int speedFactor = 7;
+    double exposureMs = SimulatedCamera.DEFAULT_EXPOSURE_MS;
+    int imageSize = SimulatedCamera.DEFAULT_WIDTH;
+    double pixelSizeUm = SimulatedCamera.DEFAULT_PIXEL_SIZE_UM;
+    double serialLatencyMs = SimulatedStage.DEFAULT_LATENCY_NANOS / 1.0e6;
+    boolean calibrate = false;
+    long seed = 1;
+    String frameSource = "camera";
+    String replayDirectory;
+    String jobsFile;
+    boolean continuous = false;
+    double preTriggerSeconds = 0;
+    double postTriggerSeconds = 0;
+    String motionGate = "";
+    String wormCrop = "";
+    String frameCompression = "";
+    String frameStripes = "";
+    String resumeDirectory;
+
+    public void run() throws java.lang.Exception {
+        SimulationClock clock = new SimulationClock();
+        SimulatedCore core = new SimulatedCore(clock, (long) (serialLatencyMs * 1.0e6), seed);
+        core.setExposure(exposureMs);
+        core.camera.width = imageSize;
+        core.camera.height = imageSize;
+        core.camera.pixelSizeUm = pixelSizeUm;
+
+        // worms start near the middle of the field of view, heading in different directions
+        for(int i = 0; i < numWorms; i++){
+            double angle = 2.0 * Math.PI * i / numWorms;
+            double offset = i == 0 ? 0.0 : 800.0;
+            core.camera.addWorm(new SimulatedWorm(offset * Math.cos(angle), offset * Math.sin(angle), angle + 0.5, seed + i));
+        }
+
+        SimulatedAppHandler appHandler = new SimulatedAppHandler(core);
+        ScriptInterface app = (ScriptInterface) Proxy.newProxyInstance(
+            ScriptInterface.class.getClassLoader(), new Class<?>[]{ ScriptInterface.class }, appHandler);
+        app.enableLiveMode(true);
+
+        TrackStimController controller = new TrackStimController(core, app);
+        if( frameSource.equals("synthetic") ){
+            controller.setFrameSource(new SyntheticFrameSource(imageSize, imageSize, pixelSizeUm, exposureMs, seed));
+        } else if( frameSource.equals("replay") ){
+            controller.setFrameSource(new TrackingReplay(replayDirectory).toFrameSource(true));
+        }
+        controller.thresholdValue = thresholdValue;
+        controller.trackerSpeedFactor = speedFactor;
+        controller.updateMultiWormTracking(multiWorm);
+        controller.updateOnDeviceStimulation(stimOnDevice);
+        controller.updateRecordingGate(motionGate);
+        controller.updateWormCrop(wormCrop);
+        controller.updateFrameCompression(frameCompression);
+        controller.updateFrameStripes(frameStripes);
+        new File(outputDirectory).mkdirs();
+        controller.updatePreTrigger(preTriggerSeconds, postTriggerSeconds, outputDirectory);
+
+        if( calibrate ){
+            new StageCalibrator(controller).run();
+        }
+
+        new File(outputDirectory).mkdirs();
+        JobRunner runner = null;
+        if( jobsFile != null ){
+            runner = new JobRunner(controller, JobSpec.parseFile(jobsFile), outputDirectory);
+            runner.setContinuousSession(continuous);
+            runner.start();
+        } else if( resumeDirectory != null ){
+            if( !controller.resumeImageAcquisition(resumeDirectory) ){
+                throw new Exception("could not resume " + resumeDirectory);
+            }
+        } else {
+            DiskPreflight preflight = controller.preflightJob(outputDirectory, numFrames, framesPerSecond);
+            if( preflight.status != DiskPreflight.OK ){
+                System.out.println("[WARNING] " + preflight.message);
+            }
+            controller.startImageAcquisition(
+                numFrames, framesPerSecond, outputDirectory + File.separator,
+                stimulate, preStimMs, stimStrength, stimDurationMs, stimCycleMs, numStimCycles,
+                stimWaveform, stimSecondWaveform, stimFrameLocked, closedLoopRules, Stimulator.OFF_SIGNAL, Stimulator.OFF_SIGNAL, stimStrength,
+                tracking
+            );
+        }
+
+        // follow the first worm while the job runs
+        SimulatedWorm worm = core.camera.getWorms().get(0);
+        long startNanos = clock.nanos();
+        double offsetSum = 0.0;
+        double maxOffset = 0.0;
+        int samples = 0;
+        int samplesInView = 0;
+        while( runner != null ? runner.isRunning() : controller.acquisitionRunning ){
+            Thread.sleep(SAMPLE_INTERVAL_MS);
+            double[] stagePos = core.stage.getPosition();
+            double[] p = core.camera.stageToImage(worm.x, worm.y, stagePos);
+            double offsetUm = Math.hypot(p[0] - core.camera.width / 2.0, p[1] - core.camera.height / 2.0) * core.camera.pixelSizeUm;
+            offsetSum += offsetUm;
+            maxOffset = Math.max(maxOffset, offsetUm);
+            samples++;
+            if( p[0] >= 0 && p[0] < core.camera.width && p[1] >= 0 && p[1] < core.camera.height ){
+                samplesInView++;
+            }
+        }
+        double runSeconds = (clock.nanos() - startNanos) / 1.0e9;
+
+        ArrayList<long[]> stimEvents = core.stimulator.getEvents();
+        StringBuilder s = new StringBuilder();
+        if( runner != null ){
+            s.append("simulated jobs:\n" + runner.describe());
+        } else {
+            s.append("simulated run saved in " + outputDirectory + File.separator + "temp" + String.valueOf(controller.currentJobId) + "\n");
+        }
+        s.append("run time (s): " + String.valueOf(Math.round(runSeconds * 100.0) / 100.0) + "\n");
+        s.append("frame source: " + controller.getFrameSource().getName() + "\n");
+        s.append("camera frames rendered: " + String.valueOf(core.camera.getFramesRendered()) + "\n");
+        s.append("stage commands received: " + String.valueOf(core.stage.getCommandsReceived()) + "\n");
+        s.append("stimulator bytes received: " + String.valueOf(stimEvents.size()) + "\n");
+        for(int i = 0; i < stimEvents.size(); i++){
+            long[] e = stimEvents.get(i);
+            s.append("  " + String.valueOf(e[0] / 1000000L) + " ms: " +
+                (e[2] < 0 ? "trigger setting " + String.valueOf(e[3]) : "channel " + String.valueOf(e[1]) + " level " + String.valueOf(e[2])) + "\n");
+        }
+        if( samples > 0 ){
+            s.append("worm offset from image center, mean (um): " + String.valueOf(Math.round(offsetSum / samples)) + "\n");
+            s.append("worm offset from image center, max (um): " + String.valueOf(Math.round(maxOffset)) + "\n");
+            s.append("worm in view (%): " + String.valueOf(Math.round(100.0 * samplesInView / samples)) + "\n");
+        }
+        System.out.print(s.toString());
+
+        controller.destroy();
+    }
+
+    public static void main(String[] args){
+        TrackStimSimulator sim = new TrackStimSimulator();
+        try {
+            for(int i = 0; i < args.length; i++){
+                String a = args[i];
+                if( a.equals("--frames") ){
+                    sim.numFrames = Integer.parseInt(args[++i]);
+                } else if( a.equals("--fps") ){
+                    sim.framesPerSecond = Integer.parseInt(args[++i]);
+                } else if( a.equals("--output") ){
+                    sim.outputDirectory = args[++i];
+                } else if( a.equals("--tracking") ){
+                    sim.tracking = true;
+                } else if( a.equals("--multi-worm") ){
+                    sim.multiWorm = true;
+                } else if( a.equals("--worms") ){
+                    sim.numWorms = Integer.parseInt(args[++i]);
+                } else if( a.equals("--stimulate") ){
+                    sim.stimulate = true;
+                    sim.preStimMs = Integer.parseInt(args[++i]);
+                    sim.stimDurationMs = Integer.parseInt(args[++i]);
+                    sim.stimCycleMs = Integer.parseInt(args[++i]);
+                    sim.numStimCycles = Integer.parseInt(args[++i]);
+                } else if( a.equals("--waveform") ){
+                    sim.stimWaveform = args[++i];
+                } else if( a.equals("--frame-locked") ){
+                    sim.stimFrameLocked = true;
+                } else if( a.equals("--second-waveform") ){
+                    sim.stimSecondWaveform = args[++i];
+                } else if( a.equals("--closed-loop") ){
+                    sim.closedLoopRules = args[++i];
+                } else if( a.equals("--on-device") ){
+                    sim.stimOnDevice = true;
+                } else if( a.equals("--strength") ){
+                    sim.stimStrength = Integer.parseInt(args[++i]);
+                } else if( a.equals("--threshold") ){
+                    sim.thresholdValue = Double.parseDouble(args[++i]);
+                } else if( a.equals("--speed") ){
+                    sim.speedFactor = Integer.parseInt(args[++i]);
+                } else if( a.equals("--exposure") ){
+                    sim.exposureMs = Double.parseDouble(args[++i]);
+                } else if( a.equals("--frame-source") ){
+                    sim.frameSource = args[++i];
+                    if( sim.frameSource.equals("replay") ){
+                        sim.replayDirectory = args[++i];
+                    } else if( !sim.frameSource.equals("camera") && !sim.frameSource.equals("synthetic") ){
+                        throw new IllegalArgumentException("unknown frame source " + sim.frameSource);
+                    }
+                } else if( a.equals("--size") ){
+                    sim.imageSize = Integer.parseInt(args[++i]);
+                } else if( a.equals("--pixel-size") ){
+                    sim.pixelSizeUm = Double.parseDouble(args[++i]);
+                } else if( a.equals("--latency") ){
+                    sim.serialLatencyMs = Double.parseDouble(args[++i]);
+                } else if( a.equals("--calibrate") ){
+                    sim.calibrate = true;
+                } else if( a.equals("--jobs") ){
+                    sim.jobsFile = args[++i];
+                } else if( a.equals("--pre-trigger") ){
+                    sim.preTriggerSeconds = Double.parseDouble(args[++i]);
+                    sim.postTriggerSeconds = Double.parseDouble(args[++i]);
+                } else if( a.equals("--motion-gate") ){
+                    sim.motionGate = args[++i];
+                } else if( a.equals("--crop") ){
+                    sim.wormCrop = args[++i];
+                } else if( a.equals("--compression") ){
+                    sim.frameCompression = args[++i];
+                } else if( a.equals("--stripes") ){
+                    sim.frameStripes = args[++i];
+                } else if( a.equals("--resume") ){
+                    sim.resumeDirectory = args[++i];
+                } else if( a.equals("--continuous") ){
+                    sim.continuous = true;
+                } else if( a.equals("--seed") ){
+                    sim.seed = Long.parseLong(args[++i]);
+                } else {
+                    System.out.println("unknown argument " + a);
+                    System.exit(1);
+                }
+            }
+        } catch (java.lang.RuntimeException e){
+            System.out.println("usage: java -Djava.awt.headless=true TrackStimSimulator [--frames 300] [--fps 10] [--output dir] [--tracking] " +
+                "[--multi-worm] [--worms 1] [--stimulate <pre ms> <duration ms> <cycle ms> <cycles>] [--strength 63] " +
+                "[--waveform \"square|ramp|sine <hz>|chirp <hz> <hz>|file <path>\"] [--second-waveform <spec>] [--frame-locked] [--on-device] [--closed-loop <rules>] " +
+                "[--threshold 1.5] [--speed 7] [--exposure 10] [--size 512] [--pixel-size 4] [--latency 5] [--calibrate] [--seed 1] " +
+                "[--frame-source camera|synthetic|replay <run directory>] [--jobs <job file>] [--continuous] [--pre-trigger <s before> <s after>] [--motion-gate <spec>] [--crop <spec>] [--compression <spec>] [--stripes <spec>] [--resume <run directory>]");
+            System.exit(1);
+        }
+
+        try {
+            sim.run();
+        } catch (java.lang.Exception e){
+            System.out.println("[ERROR] simulation failed: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        // imagej's awt threads keep the vm alive when it is not run headless
+        System.exit(0);
+    }
+}
@@ -1,22 +1,15 @@
 import ij.IJ;
 import ij.ImagePlus;
-import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
 import ij.process.ByteProcessor;
 import ij.gui.ImageWindow;
 import ij.gui.OvalRoi;
 
-import ij.plugin.filter.RankFilters;
-
 import ij.measure.Measurements;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 
-import java.awt.geom.Point2D;
-
-
 import mmcorej.CharVector;
-import mmcorej.CMMCore;
 
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledExecutorService;
@@ -25,131 +18,9 @@ import java.util.concurrent.TimeUnit;
 
 import org.micromanager.api.ScriptInterface;
 
-class TrackingTask implements Runnable {
-    TrackStimController controller;
-    String trackerXYStagePort;
-
-    TrackingTask(TrackStimController controller_, String port){
-        controller = controller_;
-        trackerXYStagePort = port;
-    }
-
-    // return an estimate of the worm position in a binarized image
-    // uses center of mass to detect position
-    public static double[] detectWormPosition(ImagePlus binarizedImage){
-        ImageStatistics stats = binarizedImage.getStatistics(Measurements.CENTROID + Measurements.CENTER_OF_MASS);
-
-        double[] position = { stats.xCenterOfMass, stats.yCenterOfMass };
-
-        return position;
-    }
-
-    // apply binarization to an image
-    public static ImagePlus binarizeImage(ImagePlus imp, double thresholdValue){
-        ImagePlus binarizedImage = imp.duplicate();
-        int width = binarizedImage.getWidth();
-        int height = binarizedImage.getHeight();
-
-        // invert the image
-        ImageProcessor ip = binarizedImage.getProcessor();
-        ip.invert();
-
-        // apply rank filtering (sort of like gaussian blur)
-        // the second arg put in the rank function is the radius
-        // the value is sort of arbitrary and just chosen via empirical
-        // observation
-        // https://en.wikipedia.org/wiki/Median_filter
-        RankFilters rf = new RankFilters();
-        rf.rank(ip, 5.0, RankFilters.MEDIAN);
-
-        // get the statistics and threshold according to the mean
-        // https://en.wikipedia.org/wiki/Thresholding_(image_processing)
-        ImageStatistics stats = binarizedImage.getStatistics();
-        ip.threshold( (int) (stats.mean * thresholdValue) );
-
-        binarizedImage.setProcessor(ip);
-
-        return binarizedImage;
-    }
-
-    private String translateWormPosToStageCommandVelocity(ImagePlus binarizedImage, double wormPosX, double wormPosY){
-        Double wPosX = new Double(wormPosX);
-        Double wPosY = new Double(wormPosY);
-
-        int width = binarizedImage.getWidth();
-        int height = binarizedImage.getHeight();
-
-        String stageVelocityCommand = null;
-
-        // sometimes a worm position is not able to be detected (it will be NaN)
-        if(!wPosX.isNaN() && !wPosY.isNaN()){
-            double xDistFromCenter = (width / 2) - wPosX;
-            double yDistFromCenter = (height / 2) - wPosY;
-
-            double distScalar = Math.sqrt((xDistFromCenter * xDistFromCenter) + (yDistFromCenter * yDistFromCenter));
-
-            // legacy calculation to caclulate a velocity for the stage
-            // dont know what 0.0018 is
-            // acceleration factor is injected from the controller, and modified via the UI
-            int accelerationFactor = controller.trackerSpeedFactor;
-            double xVelocity = Math.round(-xDistFromCenter * accelerationFactor * 0.0018 * 1000.0) / 1000.0;
-            double yVelocity = Math.round(yDistFromCenter * accelerationFactor * 0.0018 * 1000.0) / 1000.0;
-
-            stageVelocityCommand = "VECTOR X=" + String.valueOf(xVelocity) + " Y=" + String.valueOf(yVelocity);
-        } else {
-            IJ.log("[ERROR] could not find the worm position, releasing automated control of the stage until a position is found");
-            TrackingTask.stopAutoTracking(controller.core, trackerXYStagePort);
-        }
-
-        return stageVelocityCommand;
-    }
-
-    // accelerate to a specific velocity
-    // the stage will continue indefinitely unless it is stopped by another command
-    private void setXYStageVelocity(String velocityCommand){
-        try {
-            controller.core.setSerialPortCommand(trackerXYStagePort, velocityCommand, "\r");
-            Point2D pos = controller.core.getXYStagePosition();
-        } catch (java.lang.Exception e) {
-            IJ.log("[ERROR] could not send " + velocityCommand + " command to the stage port");
-            IJ.log(e.getMessage());
-        }
-    }
-
-    // because the stage will keep going after calls to setXYStageVelocity()
-    // we need to call this when we want the stage to stop
-    public static void stopAutoTracking(CMMCore mmc, String trackerPort){
-        String stopVelocitycommand = "VECTOR X=0 Y=0";
-        try {
-            mmc.setSerialPortCommand(trackerPort, stopVelocitycommand, "\r");
-        } catch (java.lang.Exception e) {
-            IJ.log("[ERROR] could not send " + stopVelocitycommand + " command to the stage port");
-            IJ.log(e.getMessage());
-        }
-    }
-
-    public void run(){
-        if (controller.app.isLiveModeOn()){
-            // get the image from micro manager live mode window
-            ImagePlus liveModeImage = controller.app.getSnapLiveWin().getImagePlus();
-
-            // binarize the image
-            ImagePlus binarized = binarizeImage(liveModeImage, controller.thresholdValue);
-
-            // get an estimate of the worm position from the binarized image
-            double[] wormPosition = detectWormPosition(binarized);
-
-
-            String stageCommand = translateWormPosToStageCommandVelocity(binarized, wormPosition[0], wormPosition[1]);
-
-            setXYStageVelocity(stageCommand);
-        }
-    }
-
-}
-
 class Tracker {
     TrackStimController controller;
+    FrameConsumer frames; // the tracker stage of the frame ring
 
     String trackerXYStagePort;
     boolean initialized = false;
@@ -157,12 +28,25 @@ class Tracker {
     private ArrayList<ScheduledFuture> trackerTasks;
     private ScheduledExecutorService trackingScheduler;
     private static final int DEFAULT_TRACKING_TASKS_PER_SECOND = 10;
+    static final String TRACKING_STATE_HEADER = "tracking task, timestamp(ms), state, confidence, x, y, area, orientation(deg), elongation, x lead, y lead, search radius, x velocity, y velocity";
+    static final String WORM_TRACKS_HEADER = "tracking task, timestamp(ms), worm id, x, y, area, orientation(deg), elongation, target";
+    static final double STAGE_RATE_PER_SPEED_STEP = 1.0; // 1/s of offset closed per step of the speed slider when calibrated
+
+    private TrackingPipeline pipeline;
+    private ArrayList<String> wormTrackData; // each tracking task appends one row per worm here
+    private String[] trackingStateData;      // each tracking task adds its state and measurement here
+    private long trackingStartTime;
+    private String trackingSaveDir;
 
     Tracker(TrackStimController controller_){
         controller = controller_;
         trackerXYStagePort = "";
 
         trackerTasks = new ArrayList<ScheduledFuture>();
+        pipeline = new TrackingPipeline();
+        frames = controller_.getFrameRing().addConsumer("tracker");
+        wormTrackData = new ArrayList<String>();
+        trackingStateData = new String[0];
     }
 
     // find and connect to the motorized xy stage (asi ms-2000)
@@ -187,13 +71,122 @@ class Tracker {
             trackerTasks.get(k).cancel(true);
         }
 
+        // nothing to stop if tracking was never started
+        if( trackingScheduler == null ){
+            return;
+        }
         trackingScheduler.shutdownNow();
 
         TrackingTask.stopAutoTracking(controller.core, trackerXYStagePort);
+        saveTrackingDataToFile();
+    }
+
+    // run a raw image through the tracking pipeline with the current ui settings and log the result
+    // timeNanos is when the image was taken
+    public TrackingResult processTrackingImage(ImagePlus image, long timeNanos, int trackingTaskIndex){
+        TrackingResult result = pipeline.process(image, trackingTaskIndex, timeNanos, null, controller.thresholdValue, controller.trackerSpeedFactor, controller.jobMultiWorm);
+
+        logTrackingResult(result);
+
+        // only log the transitions the user needs to act on, not every missed image
+        if( result.lostWorm() ){
+            IJ.log("[WARNING] lost the worm at tracking task " + String.valueOf(trackingTaskIndex) + ", stopping the stage until it is found again");
+        } else if( result.foundWorm() ){
+            IJ.log("[INFO] found the worm at tracking task " + String.valueOf(trackingTaskIndex));
+        }
+
+        return result;
+    }
+
+    // add the tracking state and the position of every worm at this tracking task to the data to save
+    private synchronized void logTrackingResult(TrackingResult result){
+        long currTime = System.nanoTime();
+        String prefix = String.valueOf(result.index) + ", " + String.valueOf(TimeUnit.NANOSECONDS.toMillis(currTime - trackingStartTime)) + ", ";
+
+        RunJournal journal = controller.getJournal();
+        if( result.index < trackingStateData.length ){
+            trackingStateData[result.index] = prefix + result.toCSV();
+            if( journal != null ){
+                journal.tracking(trackingStateData[result.index]);
+            }
+        }
+
+        if( result.wormTrackRows != null ){
+            for(int i = 0; i < result.wormTrackRows.length; i++){
+                wormTrackData.add(prefix + result.wormTrackRows[i]);
+                if( journal != null ){
+                    journal.wormTrack(prefix + result.wormTrackRows[i]);
+                }
+            }
+        }
+    }
+
+    // calibration used by the running job, null if the stage is not calibrated
+    public StageCalibration getCalibration(){
+        return pipeline.getCalibration();
+    }
+
+    // follow the worm closest to (x, y) in image coordinates when tracking several worms
+    public void selectTarget(double x, double y){
+        pipeline.selectTarget(x, y);
     }
 
-    public void scheduleTrackingTasks(int numFrames, int fps) throws java.lang.Exception {
-        trackingScheduler = Executors.newSingleThreadScheduledExecutor();
+    // take the tracking state and per worm positions of every tracking task and save them to files
+    private synchronized void saveTrackingDataToFile(){
+        if( trackingSaveDir == null ){
+            return;
+        }
+
+        PrintWriter p = null;
+        try {
+            p = new PrintWriter(trackingSaveDir + "/" + "temp" + String.valueOf(controller.currentJobId) + "_" + "tracking-state.csv");
+
+            p.println(TRACKING_STATE_HEADER);
+
+            for( int i = 0; i < trackingStateData.length; i++ ){
+                if( trackingStateData[i] != null ){
+                    p.println(trackingStateData[i]);
+                }
+            }
+        } catch (java.io.IOException e){
+            IJ.log("[ERROR] unable to write tracking state file");
+        } finally {
+            if( p != null ){
+                p.close();
+            }
+        }
+
+        if( !wormTrackData.isEmpty() ){
+            p = null;
+            try {
+                p = new PrintWriter(trackingSaveDir + "/" + "temp" + String.valueOf(controller.currentJobId) + "_" + "worm-tracks.csv");
+
+                p.println(WORM_TRACKS_HEADER);
+
+                for( int i = 0; i < wormTrackData.size(); i++ ){
+                    p.println(wormTrackData.get(i));
+                }
+            } catch (java.io.IOException e){
+                IJ.log("[ERROR] unable to write worm tracks file");
+            } finally {
+                if( p != null ){
+                    p.close();
+                }
+            }
+        }
+
+        // only save once per job, cancelling after the last task should not write again
+        trackingSaveDir = null;
+    }
+
+    public void scheduleTrackingTasks(int numFrames, int fps, String saveDirectory) throws java.lang.Exception {
+        scheduleTrackingTasks(numFrames, fps, saveDirectory, null);
+    }
+
+    // resume the tracking of a job that did not finish at the task due with its next frame, resumed is null for a new job
+    public void scheduleTrackingTasks(int numFrames, int fps, String saveDirectory, JournalState resumed) throws java.lang.Exception {
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        trackingScheduler = scheduler;
         ArrayList<ScheduledFuture> futureTasks = new ArrayList<ScheduledFuture>();
 
         if(!initialized){
@@ -208,10 +201,38 @@ class Tracker {
 
         int totalTrackingTasks = (int) (imagingTaskTimeNano / trackingCycleNano);
 
+        // the tasks before the frame the job is resumed at ran before it stopped
+        int firstTask = 0;
+        if( resumed != null ){
+            long resumeNano = (resumed.lastFrame + 1) * TimeUnit.MILLISECONDS.toNanos(1000 / fps);
+            firstTask = (int) Math.min(totalTrackingTasks, resumeNano / trackingCycleNano);
+        }
+
+        // the objective may have changed since the last job
+        StageCalibration calibration = StageCalibration.load(StageCalibration.getCurrentObjective(controller.core));
+        if( calibration == null ){
+            IJ.log("[WARNING] the stage is not calibrated for this objective, using the legacy tracking speed");
+        }
+
+        // start every job with no known worms, the target is picked again from the first image
+        pipeline.reset(calibration);
+        synchronized(this){
+            wormTrackData = new ArrayList<String>();
+            trackingStateData = new String[totalTrackingTasks];
+            if( resumed != null ){
+                for(int i = 0; i < firstTask; i++){
+                    trackingStateData[i] = resumed.trackingRows.get(i);
+                }
+                wormTrackData.addAll(resumed.wormTrackRows);
+            }
+        }
+        trackingSaveDir = saveDirectory;
+        trackingStartTime = System.nanoTime() - firstTask * trackingCycleNano;
+
         // schedule the tracking tasks at time intervals previously computed
-        for(int trackingTaskIndex = 0; trackingTaskIndex < totalTrackingTasks; trackingTaskIndex++){
-            long timePtNano = trackingTaskIndex * trackingCycleNano; // time when the tracking task will run
-            TrackingTask t = new TrackingTask(controller, trackerXYStagePort);
+        for(int trackingTaskIndex = firstTask; trackingTaskIndex < totalTrackingTasks; trackingTaskIndex++){
+            long timePtNano = (trackingTaskIndex - firstTask) * trackingCycleNano; // time when the tracking task will run
+            TrackingTask t = new TrackingTask(controller, this, trackingTaskIndex);
             ScheduledFuture trackingTask = trackingScheduler.schedule(t, timePtNano, TimeUnit.NANOSECONDS);
             futureTasks.add(trackingTask);
         }
@@ -220,9 +241,12 @@ class Tracker {
         ScheduledFuture lastTrackingTask = trackingScheduler.schedule(new Runnable() {
             @Override
             public void run(){
+                // let the thread go once this task is done, a queue of jobs would otherwise collect one per job
+                scheduler.shutdown();
                 TrackingTask.stopAutoTracking(controller.core, trackerXYStagePort);
+                saveTrackingDataToFile();
             }
-        }, (totalTrackingTasks - 1) * trackingCycleNano,  TimeUnit.NANOSECONDS);
+        }, (totalTrackingTasks - 1 - firstTask) * trackingCycleNano,  TimeUnit.NANOSECONDS);
         trackerTasks.add(lastTrackingTask);
 
         trackerTasks = futureTasks;
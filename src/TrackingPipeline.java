@@ -0,0 +1,206 @@
+import ij.ImagePlus;
+
+import java.util.ArrayList;
+
+// the per image part of auto tracking: binarize, find the worm, update the tracking state and work out
+// the stage command. nothing here touches micromanager, so the live tracker and TrackingReplay run
+// exactly the same steps, the live tracker on the live window and the replay on saved images
+class TrackingPipeline {
+    static final int MIN_WORM_AREA = 50; // blobs smaller than this many pixels are treated as noise
+    static final double BODY_AXIS_LEAD = 0.5; // fraction of the worm's last along-body displacement to lead it by
+
+    private StageCalibration calibration;      // pixel to stage transform, null if uncalibrated
+    private MultiWormTracker multiWormTracker;
+    private TrackingStateMachine stateMachine;
+    private boolean stateMachineNeedsReset;    // reset once the image size is known
+
+    // the last image with a worm in it, to tell how far the worm itself crawled since
+    private double lastX = Double.NaN;
+    private double lastY;
+    private long lastTimeNanos;
+    private double[] lastStagePosUm;           // null if the stage position is not known
+    private double[] commandedVelocity = new double[]{ 0.0, 0.0 }; // last stage command, controller axes mm/s
+
+    TrackingPipeline(){
+        multiWormTracker = new MultiWormTracker();
+        stateMachine = new TrackingStateMachine();
+        stateMachineNeedsReset = true;
+    }
+
+    // start over with no known worms, the target is picked again from the next image
+    public void reset(StageCalibration calibration_){
+        calibration = calibration_;
+        multiWormTracker.reset();
+        stateMachineNeedsReset = true;
+        lastX = Double.NaN;
+        commandedVelocity = new double[]{ 0.0, 0.0 };
+    }
+
+    public StageCalibration getCalibration(){
+        return calibration;
+    }
+
+    // follow the worm closest to (x, y) in image coordinates when tracking several worms
+    public void selectTarget(double x, double y){
+        multiWormTracker.selectTarget(x, y);
+    }
+
+    // run one raw image through every tracking stage
+    // timeNanos is when the image was taken, stagePosUm the stage position it was taken at or null if not known,
+    // then the stage is taken to have moved at the last velocity the pipeline asked for
+    public TrackingResult process(ImagePlus image, int index, long timeNanos, double[] stagePosUm, double thresholdValue, int speedFactor, boolean multiWorm){
+        TrackingResult result = new TrackingResult();
+        result.index = index;
+        result.timeNanos = timeNanos;
+
+        long startTime = System.nanoTime();
+        ImagePlus binarizedImage = TrackingTask.binarizeImage(image, thresholdValue);
+        long binarizedTime = System.nanoTime();
+
+        int width = binarizedImage.getWidth();
+        int height = binarizedImage.getHeight();
+        result.width = width;
+        result.height = height;
+
+        if( stateMachineNeedsReset ){
+            stateMachine.reset(width, height);
+            stateMachineNeedsReset = false;
+        }
+
+        // get an estimate of the worm position and shape from the binarized image
+        // with several worms on the plate, follow the selected worm instead of the center of mass of all of them
+        WormBlob measurement;
+        if( multiWorm ){
+            measurement = locateTargetWorm(binarizedImage, result);
+        } else {
+            measurement = locateWormInSearchWindow(binarizedImage);
+        }
+        long detectedTime = System.nanoTime();
+
+        double x = Double.NaN;
+        double y = Double.NaN;
+        double area = 0.0;
+        double[] measuredVelocity = new double[]{ 0.0, 0.0 };
+        double[] lead = new double[]{ 0.0, 0.0 };
+        if( measurement != null ){
+            x = measurement.x;
+            y = measurement.y;
+            area = measurement.area;
+            lead = computeBodyAxisLead(measurement, timeNanos, stagePosUm);
+            measuredVelocity = TrackingTask.computeStageVelocity(width, height, x + lead[0], y + lead[1], speedFactor, calibration);
+        }
+
+        result.previousState = stateMachine.getState();
+        result.state = stateMachine.update(x, y, area, measuredVelocity);
+        result.confidence = stateMachine.getConfidence();
+        result.measurement = measurement;
+        result.lead = lead;
+        result.searchRadius = stateMachine.getSearchRadius();
+        result.velocity = stateMachine.getVelocity();
+
+        // stop the stage once when the worm is lost, then leave it alone until the worm is found again
+        if( result.state != TrackingStateMachine.State.LOST ){
+            result.stageCommand = TrackingTask.formatStageVelocityCommand(result.velocity);
+            commandedVelocity = result.velocity;
+        } else if( result.lostWorm() ){
+            result.stageCommand = "VECTOR X=0 Y=0";
+            commandedVelocity = new double[]{ 0.0, 0.0 };
+        }
+
+        lastX = x;
+        lastY = y;
+        lastTimeNanos = timeNanos;
+        lastStagePosUm = stagePosUm;
+
+        long updatedTime = System.nanoTime();
+        result.binarizeNanos = binarizedTime - startTime;
+        result.detectNanos = detectedTime - binarizedTime;
+        result.updateNanos = updatedTime - detectedTime;
+
+        return result;
+    }
+
+    // worms crawl along their body axis, so lead the stage by the part of the worm's last displacement
+    // that is along the axis and ignore the sideways wobble of the centroid from body bends.
+    // the worm's own displacement is its shift in the image minus the shift the stage caused, which needs
+    // the calibration; the difference to the search center would also count the stage lag as crawling
+    private double[] computeBodyAxisLead(WormBlob measurement, long timeNanos, double[] stagePosUm){
+        if( stateMachine.getState() != TrackingStateMachine.State.LOCKED || !measurement.isWormShaped() ||
+            calibration == null || Double.isNaN(lastX) ){
+            return new double[]{ 0.0, 0.0 };
+        }
+
+        // how far the stage moved since the last image, in micromanager stage coordinates (microns)
+        double[] stageMoveUm;
+        if( stagePosUm != null && lastStagePosUm != null ){
+            stageMoveUm = new double[]{ stagePosUm[0] - lastStagePosUm[0], stagePosUm[1] - lastStagePosUm[1] };
+        } else {
+            double seconds = (timeNanos - lastTimeNanos) / 1.0e9;
+            stageMoveUm = new double[]{
+                calibration.nativeXSign * commandedVelocity[0] * 1000.0 * seconds,
+                calibration.nativeYSign * commandedVelocity[1] * 1000.0 * seconds
+            };
+        }
+        double[] stageShiftPx = calibration.micronsToPixels(stageMoveUm[0], stageMoveUm[1]);
+
+        double axisX = Math.cos(measurement.orientation);
+        double axisY = Math.sin(measurement.orientation);
+        double dx = measurement.x - lastX - stageShiftPx[0];
+        double dy = measurement.y - lastY - stageShiftPx[1];
+        double alongAxis = dx * axisX + dy * axisY;
+
+        return new double[]{ BODY_AXIS_LEAD * alongAxis * axisX, BODY_AXIS_LEAD * alongAxis * axisY };
+    }
+
+    // the blobs inside the state machine's search window taken as one region, null if there are none
+    // while the worm is lost the window covers the whole image, same as the legacy center of mass,
+    // but only worm shaped blobs are used to find it again
+    private WormBlob locateWormInSearchWindow(ImagePlus binarizedImage){
+        ArrayList<WormBlob> blobs = BlobDetector.detectBlobs(binarizedImage, MIN_WORM_AREA);
+        boolean reacquiring = stateMachine.getState() == TrackingStateMachine.State.LOST;
+
+        double cx = stateMachine.getSearchCenterX();
+        double cy = stateMachine.getSearchCenterY();
+        double radiusSq = stateMachine.getSearchRadius() * stateMachine.getSearchRadius();
+
+        ArrayList<WormBlob> inWindow = new ArrayList<WormBlob>();
+        for(int i = 0; i < blobs.size(); i++){
+            WormBlob b = blobs.get(i);
+            double dx = b.x - cx;
+            double dy = b.y - cy;
+            if( dx * dx + dy * dy <= radiusSq && (!reacquiring || b.isWormShaped()) ){
+                inWindow.add(b);
+            }
+        }
+
+        return WormBlob.combine(inWindow);
+    }
+
+    // match the blobs in the image to the known worms and return the blob of the selected worm
+    // returns null when the selected worm was not found in this image
+    private WormBlob locateTargetWorm(ImagePlus binarizedImage, TrackingResult result){
+        ArrayList<WormBlob> blobs = BlobDetector.detectBlobs(binarizedImage, MIN_WORM_AREA);
+        multiWormTracker.update(blobs, binarizedImage.getWidth(), binarizedImage.getHeight());
+
+        int targetId = multiWormTracker.getTargetId();
+        ArrayList<WormTrack> tracks = multiWormTracker.getTracks();
+        ArrayList<String> rows = new ArrayList<String>();
+        for(int i = 0; i < tracks.size(); i++){
+            WormTrack t = tracks.get(i);
+            // coasting tracks have no measured position this update
+            if( t.missedUpdates > 0 ){
+                continue;
+            }
+            rows.add(
+                String.valueOf(t.id) + ", " +
+                String.valueOf(t.x) + ", " + String.valueOf(t.y) + ", " + String.valueOf(t.area) + ", " +
+                String.valueOf(Math.round(Math.toDegrees(t.orientation) * 10.0) / 10.0) + ", " +
+                String.valueOf(Math.round(t.elongation * 100.0) / 100.0) + ", " +
+                String.valueOf(t.id == targetId)
+            );
+        }
+        result.wormTrackRows = rows.toArray(new String[rows.size()]);
+
+        return multiWormTracker.getTargetBlob();
+    }
+}
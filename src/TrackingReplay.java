@@ -0,0 +1,419 @@
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+// runs the tracking pipeline over the images of a recorded run (a temp<i> directory) without the microscope
+//
+// every saved frame goes through the same binarization, blob detection, state machine and stage velocity
+// steps as live tracking, either as fast as possible to benchmark throughput or at the pace the frames
+// were taken. the positions, stage commands and time spent in each step are written next to the run as
+//   temp<i>_replay.csv             one row per frame
+//   temp<i>_replay-worm-tracks.csv every worm per frame, multi-worm replays only
+//   temp<i>_replay-summary.txt     settings, throughput and tracking state counts
+//
+// from the command line (ij.jar and the micromanager jars on the classpath):
+//   java TrackingReplay <run directory> [--real-time] [--threshold 1.5] [--speed 7] [--multi-worm] [--tracking-rate 10]
+class TrackingReplay {
+    String runDirectory;
+    String runName;            // temp<i>, the prefix of every file in the run directory
+
+    boolean realTime = false;  // wait for each frame's original timestamp instead of going flat out
+    double thresholdValue;     // same meaning as TrackStimController.thresholdValue
+    int speedFactor;           // same meaning as TrackStimController.trackerSpeedFactor
+    boolean multiWorm;
+    double trackingRate = 0;   // tracking updates per second to replay, 0 replays every frame
+
+    private int[] frameNumbers;        // saved frames in acquisition order
+    private String[] framePaths;       // the tiff of each, in its stripe directory for a striped run
+    private double[] frameTimesMs;     // acquisition time of each saved frame
+    private double[][] stagePositions; // stage position of each saved frame, null if not recorded
+    private StageCalibration calibration;
+    private DeltaStackReader stack;    // temp<i>_frames.delta of a run saved as a delta stack, null for tiffs
+
+    TrackingReplay(String runDirectory_){
+        runDirectory = runDirectory_;
+        runName = new File(runDirectory_).getName();
+
+        // default to the settings the run was recorded with
+        thresholdValue = readJobArg("threshold", 1.0);
+        speedFactor = readJobArg("tracking speed", 7);
+        multiWorm = readJobArg("multi-worm tracking enabled", 0) == 1;
+    }
+
+    // read the frame list, timestamps and calibration of the run, run() does this itself
+    public void load() throws java.lang.Exception {
+        loadFrameList();
+        loadStagePositions();
+        loadCalibration();
+    }
+
+    // the saved frames as a frame source at their original pace, for feeding the frame ring with a recorded run
+    public FileReplayFrameSource toFrameSource(boolean loop) throws java.lang.Exception {
+        if( frameNumbers == null ){
+            load();
+        }
+        return new FileReplayFrameSource(runDirectory, stack, framePaths, frameNumbers, frameTimesMs, loop);
+    }
+
+    public void run() throws java.lang.Exception {
+        load();
+
+        TrackingPipeline pipeline = new TrackingPipeline();
+        pipeline.reset(calibration);
+
+        ArrayList<String> replayRows = new ArrayList<String>();
+        ArrayList<String> wormTrackRows = new ArrayList<String>();
+        ArrayList<Long> processingNanos = new ArrayList<Long>();
+        int[] stateCounts = new int[TrackingStateMachine.State.values().length];
+        long binarizeNanos = 0;
+        long detectNanos = 0;
+        long updateNanos = 0;
+        long loadNanos = 0;
+
+        IJ.log("[INFO] replaying " + String.valueOf(frameNumbers.length) + " frames of " + runDirectory);
+
+        double nextTrackingTimeMs = 0;
+        long startTime = System.nanoTime();
+        for(int i = 0; i < frameNumbers.length; i++){
+            // only use the frames the live tracker would have seen at the given tracking rate
+            if( trackingRate > 0 ){
+                if( frameTimesMs[i] < nextTrackingTimeMs ){
+                    continue;
+                }
+                nextTrackingTimeMs += 1000.0 / trackingRate;
+            }
+
+            if( realTime ){
+                long waitMs = Math.round(frameTimesMs[i]) - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+                if( waitMs > 0 ){
+                    Thread.sleep(waitMs);
+                }
+            }
+
+            long loadStartTime = System.nanoTime();
+            ImagePlus frame = DeltaStackReader.openFrame(stack, framePaths[i], frameNumbers[i]);
+            long frameLoadNanos = System.nanoTime() - loadStartTime;
+            if( frame == null ){
+                IJ.log("[WARNING] could not open frame " + String.valueOf(frameNumbers[i]) + ", skipping it");
+                continue;
+            }
+
+            TrackingResult result = pipeline.process(frame, frameNumbers[i], Math.round(frameTimesMs[i] * 1.0e6),
+                stagePositions != null ? stagePositions[i] : null, thresholdValue, speedFactor, multiWorm);
+
+            loadNanos += frameLoadNanos;
+            binarizeNanos += result.binarizeNanos;
+            detectNanos += result.detectNanos;
+            updateNanos += result.updateNanos;
+            processingNanos.add(result.totalNanos());
+            stateCounts[result.state.ordinal()]++;
+
+            String prefix = String.valueOf(frameNumbers[i]) + ", " + String.valueOf(Math.round(frameTimesMs[i])) + ", ";
+            replayRows.add(prefix + result.toCSV() + ", " +
+                (result.stageCommand != null ? result.stageCommand : "") + ", " +
+                formatStagePosition(result, frame, i) + ", " +
+                formatMs(frameLoadNanos) + ", " + formatMs(result.binarizeNanos) + ", " +
+                formatMs(result.detectNanos) + ", " + formatMs(result.updateNanos));
+
+            if( result.wormTrackRows != null ){
+                for(int k = 0; k < result.wormTrackRows.length; k++){
+                    wormTrackRows.add(prefix + result.wormTrackRows[k]);
+                }
+            }
+        }
+        long wallNanos = System.nanoTime() - startTime;
+
+        saveReplayRows(replayRows);
+        if( !wormTrackRows.isEmpty() ){
+            saveWormTrackRows(wormTrackRows);
+        }
+
+        String summary = summarize(processingNanos, stateCounts, wallNanos, loadNanos, binarizeNanos, detectNanos, updateNanos);
+        saveSummary(summary);
+        IJ.log(summary);
+    }
+
+    // the worm position in stage coordinates, needs both a calibration and the recorded stage position
+    private String formatStagePosition(TrackingResult result, ImagePlus frame, int i){
+        if( calibration == null || stagePositions == null || stagePositions[i] == null || result.measurement == null ){
+            return "NaN, NaN";
+        }
+        double[] pos = calibration.imageToStage(result.measurement.x, result.measurement.y, frame.getWidth(), frame.getHeight(), stagePositions[i]);
+        return String.valueOf(Math.round(pos[0] * 100.0) / 100.0) + ", " + String.valueOf(Math.round(pos[1] * 100.0) / 100.0);
+    }
+
+    // saved frames are named <frame>.tiff, sort them by frame number rather than by name
+    // a run saved as a delta stack has its frames in temp<i>_frames.delta, and may have tiffs of frames after it
+    // a striped run has the directory of every frame in temp<i>_stripes.csv
+    private void loadFrameList() throws java.lang.Exception {
+        String[] names = new File(runDirectory).list();
+        if( names == null ){
+            throw new Exception("replay directory " + runDirectory + " does not exist");
+        }
+
+        TreeSet<Integer> frames = new TreeSet<Integer>();
+        File stackFile = new File(runDirectory + "/" + runName + "_frames.delta");
+        if( stackFile.exists() ){
+            stack = new DeltaStackReader(stackFile.getPath());
+            if( !stack.isComplete() ){
+                IJ.log("[WARNING] " + stackFile.getName() + " was not closed, replaying the whole frames it has");
+            }
+            int[] stackFrames = stack.getFrames();
+            for(int i = 0; i < stackFrames.length; i++){
+                frames.add(stackFrames[i]);
+            }
+        }
+        for(int i = 0; i < names.length; i++){
+            if( names[i].matches("[0-9]+\\.tiff") ){
+                frames.add(Integer.valueOf(names[i].substring(0, names[i].length() - ".tiff".length())));
+            }
+        }
+        HashMap<Integer, String> stripes = FrameStripes.readIndex(runDirectory);
+        if( stripes != null ){
+            frames.addAll(stripes.keySet());
+        }
+        if( frames.isEmpty() ){
+            throw new Exception("no frames to replay in " + runDirectory);
+        }
+
+        // in order, each frame once
+        frameNumbers = new int[frames.size()];
+        framePaths = new String[frames.size()];
+        int k = 0;
+        for(Integer frame : frames){
+            frameNumbers[k] = frame;
+            framePaths[k] = FrameStripes.framePath(stripes, runDirectory, frame);
+            k++;
+        }
+
+        // without a stage position file, assume the frames were taken at the job's frame rate
+        int fps = readJobArg("frames per second", 1);
+        frameTimesMs = new double[frameNumbers.length];
+        for(int i = 0; i < frameNumbers.length; i++){
+            frameTimesMs[i] = frameNumbers[i] * 1000.0 / Math.max(fps, 1);
+        }
+    }
+
+    // frame timestamps and stage positions from temp<i>_stage-pos.csv ("frame, timestamp(ms), x, y, z")
+    private void loadStagePositions(){
+        File f = new File(runDirectory + "/" + runName + "_stage-pos.csv");
+        if( !f.exists() ){
+            IJ.log("[WARNING] no stage positions in " + runDirectory + ", using the job frame rate for timestamps");
+            return;
+        }
+
+        stagePositions = new double[frameNumbers.length][];
+        BufferedReader r = null;
+        try {
+            r = new BufferedReader(new FileReader(f));
+            String line = r.readLine(); // header
+            while( (line = r.readLine()) != null ){
+                String[] fields = line.split(",");
+                if( fields.length < 4 ){
+                    continue;
+                }
+                int i = Arrays.binarySearch(frameNumbers, Integer.parseInt(fields[0].trim()));
+                if( i < 0 ){
+                    continue;
+                }
+                frameTimesMs[i] = Double.parseDouble(fields[1].trim());
+                stagePositions[i] = new double[]{ Double.parseDouble(fields[2].trim()), Double.parseDouble(fields[3].trim()) };
+            }
+        } catch (java.lang.Exception e){
+            IJ.log("[WARNING] could not read stage positions, using the job frame rate for timestamps");
+            IJ.log(e.getMessage());
+            stagePositions = null;
+        } finally {
+            if( r != null ){
+                try { r.close(); } catch (java.io.IOException e){}
+            }
+        }
+    }
+
+    private void loadCalibration(){
+        File f = new File(runDirectory + "/" + runName + "_calibration.txt");
+        if( !f.exists() ){
+            IJ.log("[WARNING] run has no stage calibration, using the legacy tracking speed");
+            return;
+        }
+
+        try {
+            calibration = StageCalibration.readFromFile(f.getPath());
+        } catch (java.io.IOException e){
+            IJ.log("[WARNING] could not read the stage calibration, using the legacy tracking speed");
+        }
+    }
+
+    // an integer or boolean (as 0/1) value from temp<i>_job-args.txt, fallback if it is not there
+    private int readJobArg(String key, int fallback){
+        String value = readJobArg(key);
+        if( value == null ){
+            return fallback;
+        }
+        if( value.equals("true") || value.equals("false") ){
+            return value.equals("true") ? 1 : 0;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e){
+            return fallback;
+        }
+    }
+
+    // a number value from temp<i>_job-args.txt, fallback if it is not there
+    private double readJobArg(String key, double fallback){
+        String value = readJobArg(key);
+        if( value == null ){
+            return fallback;
+        }
+        try {
+            double d = Double.parseDouble(value);
+            return Double.isNaN(d) ? fallback : d;
+        } catch (NumberFormatException e){
+            return fallback;
+        }
+    }
+
+    // the value of a line of temp<i>_job-args.txt, null if the run has no such line
+    private String readJobArg(String key){
+        BufferedReader r = null;
+        try {
+            r = new BufferedReader(new FileReader(runDirectory + "/" + runName + "_job-args.txt"));
+            String line;
+            while( (line = r.readLine()) != null ){
+                if( line.startsWith(key + ": ") ){
+                    return line.substring(key.length() + 2).trim();
+                }
+            }
+        } catch (java.io.IOException e){
+            return null;
+        } finally {
+            if( r != null ){
+                try { r.close(); } catch (java.io.IOException e){}
+            }
+        }
+        return null;
+    }
+
+    private String summarize(ArrayList<Long> processingNanos, int[] stateCounts, long wallNanos, long loadNanos, long binarizeNanos, long detectNanos, long updateNanos){
+        int n = processingNanos.size();
+        long[] sorted = new long[n];
+        for(int i = 0; i < n; i++){
+            sorted[i] = processingNanos.get(i);
+        }
+        Arrays.sort(sorted);
+
+        StringBuilder s = new StringBuilder();
+        s.append("replay of " + runDirectory + "\n");
+        s.append("real time: " + String.valueOf(realTime) + "\n");
+        s.append("threshold: " + String.valueOf(thresholdValue) + "\n");
+        s.append("tracking speed: " + String.valueOf(speedFactor) + "\n");
+        s.append("multi-worm tracking enabled: " + String.valueOf(multiWorm) + "\n");
+        s.append("tracking rate: " + (trackingRate > 0 ? String.valueOf(trackingRate) : "every frame") + "\n");
+        s.append("stage calibration: " + (calibration != null ? calibration.describe() : "none (legacy speed)") + "\n");
+        s.append("frames processed: " + String.valueOf(n) + "\n");
+        s.append("wall time (s): " + String.valueOf(Math.round(wallNanos / 1.0e6) / 1000.0) + "\n");
+        if( n > 0 ){
+            s.append("throughput (frames/s): " + String.valueOf(Math.round(n * 1.0e10 / wallNanos) / 10.0) + "\n");
+            s.append("mean load (ms): " + formatMs(loadNanos / n) + "\n");
+            s.append("mean binarize (ms): " + formatMs(binarizeNanos / n) + "\n");
+            s.append("mean detect (ms): " + formatMs(detectNanos / n) + "\n");
+            s.append("mean update (ms): " + formatMs(updateNanos / n) + "\n");
+            s.append("processing median (ms): " + formatMs(sorted[n / 2]) + "\n");
+            s.append("processing 99th percentile (ms): " + formatMs(sorted[Math.min(n - 1, (int) (n * 0.99))]) + "\n");
+            s.append("processing max (ms): " + formatMs(sorted[n - 1]) + "\n");
+        }
+        TrackingStateMachine.State[] states = TrackingStateMachine.State.values();
+        for(int i = 0; i < states.length; i++){
+            s.append(states[i].name().toLowerCase() + " frames: " + String.valueOf(stateCounts[i]) + "\n");
+        }
+        return s.toString();
+    }
+
+    private void saveReplayRows(ArrayList<String> rows){
+        String header = "frame, timestamp(ms), state, confidence, x, y, area, orientation(deg), elongation, x lead, y lead, search radius, x velocity, y velocity, " +
+            "stage command, x stage (um), y stage (um), load (ms), binarize (ms), detect (ms), update (ms)";
+        saveRows(runName + "_replay.csv", header, rows);
+    }
+
+    private void saveWormTrackRows(ArrayList<String> rows){
+        String header = "frame, timestamp(ms), worm id, x, y, area, orientation(deg), elongation, target";
+        saveRows(runName + "_replay-worm-tracks.csv", header, rows);
+    }
+
+    private void saveRows(String fileName, String header, ArrayList<String> rows){
+        PrintWriter p = null;
+        try {
+            p = new PrintWriter(runDirectory + "/" + fileName);
+            p.println(header);
+            for(int i = 0; i < rows.size(); i++){
+                p.println(rows.get(i));
+            }
+        } catch (java.io.IOException e){
+            IJ.log("[ERROR] unable to write " + fileName);
+        } finally {
+            if( p != null ){
+                p.close();
+            }
+        }
+    }
+
+    private void saveSummary(String summary){
+        PrintWriter p = null;
+        try {
+            p = new PrintWriter(runDirectory + "/" + runName + "_replay-summary.txt");
+            p.print(summary);
+        } catch (java.io.IOException e){
+            IJ.log("[ERROR] unable to write replay summary");
+        } finally {
+            if( p != null ){
+                p.close();
+            }
+        }
+    }
+
+    private static String formatMs(long nanos){
+        return String.valueOf(Math.round(nanos / 1.0e4) / 100.0);
+    }
+
+    public static void main(String[] args){
+        if( args.length < 1 ){
+            System.out.println("usage: java TrackingReplay <run directory> [--real-time] [--threshold 1.5] [--speed 7] [--multi-worm] [--tracking-rate 10]");
+            System.exit(1);
+        }
+
+        TrackingReplay replay = new TrackingReplay(args[0]);
+        for(int i = 1; i < args.length; i++){
+            if( args[i].equals("--real-time") ){
+                replay.realTime = true;
+            } else if( args[i].equals("--multi-worm") ){
+                replay.multiWorm = true;
+            } else if( args[i].equals("--threshold") && i + 1 < args.length ){
+                replay.thresholdValue = Double.parseDouble(args[++i]);
+            } else if( args[i].equals("--speed") && i + 1 < args.length ){
+                replay.speedFactor = Integer.parseInt(args[++i]);
+            } else if( args[i].equals("--tracking-rate") && i + 1 < args.length ){
+                replay.trackingRate = Double.parseDouble(args[++i]);
+            } else {
+                System.out.println("unknown argument " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        try {
+            replay.run();
+        } catch (java.lang.Exception e){
+            System.out.println("[ERROR] replay failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+// what the tracking pipeline found in one image and what it wants the stage to do
+class TrackingResult {
+    int index;                                // tracking task (live) or frame (replay) the image belongs to
+    long timeNanos;                           // when the image was taken, System.nanoTime() live
+    int width;                                // of the image, the ring slot it came from may hold a newer frame by now
+    int height;
+    TrackingStateMachine.State state;
+    TrackingStateMachine.State previousState;
+    double confidence;
+    WormBlob measurement;                     // null if no worm was found
+    double[] lead;                            // body axis lead added to the measurement, pixels
+    double searchRadius;
+    double[] velocity;                        // stage velocity after this image, mm/s
+    String stageCommand;                      // null when the stage should keep doing what it was last told
+    String[] wormTrackRows;                   // "worm id, x, y, area, orientation(deg), elongation, target" per measured worm
+
+    // time spent in each stage of the pipeline
+    long binarizeNanos;
+    long detectNanos;
+    long updateNanos;
+
+    boolean lostWorm(){
+        return state == TrackingStateMachine.State.LOST && previousState != TrackingStateMachine.State.LOST;
+    }
+
+    boolean foundWorm(){
+        return state != TrackingStateMachine.State.LOST && previousState == TrackingStateMachine.State.LOST;
+    }
+
+    long totalNanos(){
+        return binarizeNanos + detectNanos + updateNanos;
+    }
+
+    // "state, confidence, x, y, area, orientation(deg), elongation, x lead, y lead, search radius, x velocity, y velocity"
+    String toCSV(){
+        String measurementCSV = "NaN, NaN, 0, NaN, NaN";
+        if( measurement != null ){
+            measurementCSV = String.valueOf(measurement.x) + ", " + String.valueOf(measurement.y) + ", " +
+                String.valueOf(measurement.area) + ", " + String.valueOf(measurement.orientationDegrees()) + ", " +
+                String.valueOf(measurement.roundedElongation());
+        }
+
+        return state.name() + ", " + String.valueOf(Math.round(confidence * 1000.0) / 1000.0) + ", " +
+            measurementCSV + ", " +
+            String.valueOf(Math.round(lead[0] * 100.0) / 100.0) + ", " + String.valueOf(Math.round(lead[1] * 100.0) / 100.0) + ", " +
+            String.valueOf(Math.round(searchRadius)) + ", " +
+            String.valueOf(velocity[0]) + ", " + String.valueOf(velocity[1]);
+    }
+}
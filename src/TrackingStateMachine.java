@@ -0,0 +1,137 @@
+// decides how much to trust each worm position measurement and what the stage should do when the worm
+// is not found, so a few bad images do not stop the stage
+//
+//   LOCKED    the worm was found where it was expected, follow it
+//   COASTING  the worm was missed for a few updates, keep moving at the last velocity
+//   SEARCHING the worm has been missing for a while, widen the search window and slow down
+//   LOST      give up, stop the stage and look for the worm anywhere in the image
+class TrackingStateMachine {
+    enum State { LOCKED, COASTING, SEARCHING, LOST }
+
+    static final double MIN_CONFIDENCE = 0.4;      // measurements below this count as a miss
+    static final int MAX_COASTING_UPDATES = 3;     // misses before searching
+    static final int MAX_SEARCHING_UPDATES = 15;   // misses (including coasting) before the worm is lost
+    static final double SEARCH_WINDOW_GROWTH = 1.3; // search radius growth per searching update
+    static final double SEARCH_VELOCITY_DECAY = 0.85; // stage velocity decay per searching update
+    static final double AREA_SMOOTHING = 0.2;      // weight of a new blob area in the reference area
+
+    private State state;
+    private double confidence;
+
+    private double lastX;          // last accepted position in pixels
+    private double lastY;
+    private double referenceArea;  // running average of the accepted blob areas, 0 if unknown
+    private double searchRadius;   // pixels around the last position a measurement is accepted from
+    private double lockedSearchRadius;
+    private double fullFrameRadius;
+    private int missedUpdates;
+
+    private double[] lastVelocity; // last stage velocity sent while locked
+    private double[] velocity;     // stage velocity for the current update
+
+    TrackingStateMachine(){
+        reset(0, 0);
+    }
+
+    // forget the worm, the next measurement anywhere in the image is accepted
+    public void reset(int width, int height){
+        state = State.LOST;
+        confidence = 0.0;
+        lastX = width / 2.0;
+        lastY = height / 2.0;
+        referenceArea = 0.0;
+        fullFrameRadius = Math.sqrt((double) width * width + (double) height * height);
+        lockedSearchRadius = Math.max(width, height) / 4.0;
+        searchRadius = fullFrameRadius;
+        missedUpdates = 0;
+        lastVelocity = new double[]{ 0.0, 0.0 };
+        velocity = new double[]{ 0.0, 0.0 };
+    }
+
+    public State getState(){
+        return state;
+    }
+
+    public double getConfidence(){
+        return confidence;
+    }
+
+    public double getSearchCenterX(){
+        return lastX;
+    }
+
+    public double getSearchCenterY(){
+        return lastY;
+    }
+
+    public double getSearchRadius(){
+        return searchRadius;
+    }
+
+    // velocity the stage should move at after the last update, only meaningful while not LOST
+    public double[] getVelocity(){
+        return velocity;
+    }
+
+    // confidence of a measurement from how close its area is to the usual worm area
+    // and how far it jumped from the last position relative to the search window
+    public double scoreMeasurement(double x, double y, double area){
+        if( Double.isNaN(x) || Double.isNaN(y) || area <= 0 ){
+            return 0.0;
+        }
+
+        double areaScore = 1.0;
+        if( referenceArea > 0 ){
+            areaScore = Math.min(area, referenceArea) / Math.max(area, referenceArea);
+        }
+
+        double continuityScore = 1.0;
+        if( state != State.LOST ){
+            double dx = x - lastX;
+            double dy = y - lastY;
+            continuityScore = Math.max(0.0, 1.0 - Math.sqrt(dx * dx + dy * dy) / searchRadius);
+        }
+
+        return Math.sqrt(areaScore * continuityScore);
+    }
+
+    // feed the measurement of this update (NaN position if nothing was found)
+    // and the stage velocity the measurement asks for, returns the new state
+    public State update(double x, double y, double area, double[] measuredVelocity){
+        confidence = scoreMeasurement(x, y, area);
+
+        if( confidence >= MIN_CONFIDENCE ){
+            state = State.LOCKED;
+            missedUpdates = 0;
+            lastX = x;
+            lastY = y;
+            referenceArea = referenceArea > 0 ? (1.0 - AREA_SMOOTHING) * referenceArea + AREA_SMOOTHING * area : area;
+            searchRadius = lockedSearchRadius;
+            lastVelocity = measuredVelocity;
+            velocity = measuredVelocity;
+            return state;
+        }
+
+        if( state == State.LOST ){
+            return state;
+        }
+
+        missedUpdates++;
+        if( missedUpdates <= MAX_COASTING_UPDATES ){
+            // most dropouts are a single blurry or badly thresholded image, carry on as before
+            state = State.COASTING;
+            velocity = lastVelocity;
+        } else if( missedUpdates <= MAX_SEARCHING_UPDATES ){
+            state = State.SEARCHING;
+            searchRadius = Math.min(searchRadius * SEARCH_WINDOW_GROWTH, fullFrameRadius);
+            velocity = new double[]{ velocity[0] * SEARCH_VELOCITY_DECAY, velocity[1] * SEARCH_VELOCITY_DECAY };
+        } else {
+            state = State.LOST;
+            searchRadius = fullFrameRadius;
+            referenceArea = 0.0;
+            velocity = new double[]{ 0.0, 0.0 };
+        }
+
+        return state;
+    }
+}
@@ -0,0 +1,137 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+
+import ij.plugin.filter.RankFilters;
+
+import java.awt.geom.Point2D;
+
+import mmcorej.CMMCore;
+
+class TrackingTask implements Runnable {
+    TrackStimController controller;
+    Tracker tracker;
+    String trackerXYStagePort;
+    int trackingTaskIndex;
+
+    TrackingTask(TrackStimController controller_, Tracker tracker_, int trackingTaskIndex_){
+        controller = controller_;
+        tracker = tracker_;
+        trackerXYStagePort = tracker_.trackerXYStagePort;
+        trackingTaskIndex = trackingTaskIndex_;
+    }
+
+    // return an estimate of the worm position in a binarized image
+    // uses center of mass to detect position, the major axis orientation (radians) and elongation
+    // come from the second order moments collected in the same pass
+    public static double[] detectWormPosition(ImagePlus binarizedImage){
+        WormBlob foreground = BlobDetector.measureForeground(binarizedImage);
+
+        if( foreground == null ){
+            return new double[]{ Double.NaN, Double.NaN, Double.NaN, Double.NaN };
+        }
+
+        double[] position = { foreground.x, foreground.y, foreground.orientation, foreground.elongation };
+
+        return position;
+    }
+
+    // apply binarization to an image
+    public static ImagePlus binarizeImage(ImagePlus imp, double thresholdValue){
+        ImagePlus binarizedImage = imp.duplicate();
+        int width = binarizedImage.getWidth();
+        int height = binarizedImage.getHeight();
+
+        // invert the image
+        ImageProcessor ip = binarizedImage.getProcessor();
+        ip.invert();
+
+        // apply rank filtering (sort of like gaussian blur)
+        // the second arg put in the rank function is the radius
+        // the value is sort of arbitrary and just chosen via empirical
+        // observation
+        // https://en.wikipedia.org/wiki/Median_filter
+        RankFilters rf = new RankFilters();
+        rf.rank(ip, 5.0, RankFilters.MEDIAN);
+
+        // get the statistics and threshold according to the mean
+        // https://en.wikipedia.org/wiki/Thresholding_(image_processing)
+        ImageStatistics stats = binarizedImage.getStatistics();
+        ip.threshold( (int) (stats.mean * thresholdValue) );
+
+        binarizedImage.setProcessor(ip);
+
+        return binarizedImage;
+    }
+
+    // calculate a velocity (mm/s) for the stage from the worm offset to the image center
+    // with a stage calibration the stage closes accelerationFactor * STAGE_RATE_PER_SPEED_STEP of the offset
+    // per second whatever the objective or rig, without one fall back to the legacy scaling
+    // acceleration factor is injected from the controller, and modified via the UI
+    public static double[] computeStageVelocity(int width, int height, double wormPosX, double wormPosY, int accelerationFactor, StageCalibration calibration){
+        if( calibration != null ){
+            return calibration.stageVelocityToCenter(wormPosX, wormPosY, width, height, accelerationFactor * Tracker.STAGE_RATE_PER_SPEED_STEP);
+        }
+
+        // legacy calculation, dont know what 0.0018 is
+        double xDistFromCenter = (width / 2) - wormPosX;
+        double yDistFromCenter = (height / 2) - wormPosY;
+
+        double xVelocity = Math.round(-xDistFromCenter * accelerationFactor * 0.0018 * 1000.0) / 1000.0;
+        double yVelocity = Math.round(yDistFromCenter * accelerationFactor * 0.0018 * 1000.0) / 1000.0;
+
+        return new double[]{ xVelocity, yVelocity };
+    }
+
+    public static String formatStageVelocityCommand(double[] velocity){
+        double xVelocity = Math.round(velocity[0] * 1000.0) / 1000.0;
+        double yVelocity = Math.round(velocity[1] * 1000.0) / 1000.0;
+        return "VECTOR X=" + String.valueOf(xVelocity) + " Y=" + String.valueOf(yVelocity);
+    }
+
+    // accelerate to a specific velocity
+    // the stage will continue indefinitely unless it is stopped by another command
+    private void setXYStageVelocity(String velocityCommand){
+        try {
+            controller.core.setSerialPortCommand(trackerXYStagePort, velocityCommand, "\r");
+            Point2D pos = controller.core.getXYStagePosition();
+        } catch (java.lang.Exception e) {
+            IJ.log("[ERROR] could not send " + velocityCommand + " command to the stage port");
+            IJ.log(e.getMessage());
+        }
+    }
+
+    // because the stage will keep going after calls to setXYStageVelocity()
+    // we need to call this when we want the stage to stop
+    public static void stopAutoTracking(CMMCore mmc, String trackerPort){
+        String stopVelocitycommand = "VECTOR X=0 Y=0";
+        try {
+            mmc.setSerialPortCommand(trackerPort, stopVelocitycommand, "\r");
+        } catch (java.lang.Exception e) {
+            IJ.log("[ERROR] could not send " + stopVelocitycommand + " command to the stage port");
+            IJ.log(e.getMessage());
+        }
+    }
+
+    public void run(){
+        if (controller.app.isLiveModeOn()){
+            // the newest frame from the frame ring, nothing to track if no frame came in since the last task
+            Frame frame = tracker.frames.latest(false);
+            if( frame == null ){
+                return;
+            }
+
+            // binarize the image, find the worm and decide what the stage should do
+            // no command means the stage should keep doing what it was last told
+            // the time is read before tracking, the ring may hand the slot to a newer frame while it runs
+            TrackingResult result = tracker.processTrackingImage(frame.toImagePlus(), frame.timestampNanos, trackingTaskIndex);
+            controller.onTrackingTaskDone(result, tracker.frames.stillValid(frame), tracker.getCalibration());
+
+            if( result.stageCommand != null ){
+                setXYStageVelocity(result.stageCommand);
+            }
+        }
+    }
+
+}
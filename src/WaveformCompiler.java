@@ -0,0 +1,134 @@
+// turns a stimulation waveform into the schedule of levels the stimulation timeline sends
+//
+// continuous shapes are sampled every sampleMs and rounded to the stimulator's 64 levels, and only
+// changes of level are kept, so a slow sine is a few bytes per cycle however finely it is sampled
+// and every protocol costs the timeline the same: one array lookup per level change
+//
+// the waveforms of both channels go into one schedule in time order, changes of both channels at
+// the same time end up next to each other so the timeline can send them in one write
+class WaveformCompiler {
+
+    public static StimulationSchedule compile(StimulationWaveform w){
+        return compile(new StimulationWaveform[]{ w });
+    }
+
+    public static StimulationSchedule compile(StimulationWaveform[] waveforms){
+        StimulationSchedule schedule = new StimulationSchedule();
+        for(StimulationWaveform w : waveforms){
+            compileInto(w, schedule);
+        }
+        schedule.sort();
+        return schedule;
+    }
+
+    private static void compileInto(StimulationWaveform w, StimulationSchedule schedule){
+        int[] last = new int[]{ -1 };
+
+        for(int i = 0; i < w.numCycles; i++){
+            double cycleStartMs = w.preStimMs + i * w.cycleMs;
+            compileShape(w, schedule, cycleStartMs, last);
+
+            // back to the base level until the next cycle
+            schedule.addMs(cycleStartMs + getOnMs(w), w.channel, w.base);
+            last[0] = w.base;
+        }
+    }
+
+    // the level changes of one cycle of each channel timed from its start, ending back at the base level
+    // for the stimulator firmware, which repeats the cycle itself
+    public static StimulationSchedule compileCycle(StimulationWaveform[] waveforms){
+        StimulationSchedule schedule = new StimulationSchedule();
+        for(StimulationWaveform w : waveforms){
+            compileShape(w, schedule, 0.0, new int[]{ -1 });
+            schedule.addMs(getOnMs(w), w.channel, w.base);
+        }
+        schedule.sort();
+        return schedule;
+    }
+
+    // how long the light is on each cycle, a file can run past the duration
+    private static double getOnMs(StimulationWaveform w){
+        if( w.shape == StimulationWaveform.Shape.FILE ){
+            return Math.max(w.durationMs, w.fileTimesMs[w.fileTimesMs.length - 1] + w.sampleMs);
+        }
+        return w.durationMs;
+    }
+
+    private static void compileShape(StimulationWaveform w, StimulationSchedule schedule, double cycleStartMs, int[] last){
+        switch( w.shape ){
+            case SQUARE:
+                compileSquare(w, schedule, cycleStartMs, last);
+                break;
+            case RAMP:
+                compileRamp(w, schedule, cycleStartMs, last);
+                break;
+            case SINE:
+            case CHIRP:
+                compileSine(w, schedule, cycleStartMs, last);
+                break;
+            case FILE:
+                compileFile(w, schedule, cycleStartMs, last);
+                break;
+        }
+    }
+
+    // a level the stimulator dac can make
+    public static int quantize(double level){
+        return (int) Math.max(0, Math.min(StimulationWaveform.MAX_LEVEL, Math.round(level)));
+    }
+
+    private static void addLevel(StimulationWaveform w, StimulationSchedule schedule, double timeMs, int level, int[] last){
+        if( level != last[0] ){
+            schedule.addMs(timeMs, w.channel, level);
+            last[0] = level;
+        }
+    }
+
+    private static void compileSquare(StimulationWaveform w, StimulationSchedule schedule, double startMs, int[] last){
+        if( w.frequencyHz <= 0 ){
+            addLevel(w, schedule, startMs, w.strength, last);
+            return;
+        }
+
+        double periodMs = 1000.0 / w.frequencyHz;
+        for(int k = 0; k * periodMs < w.durationMs; k++){
+            addLevel(w, schedule, startMs + k * periodMs, w.strength, last);
+            double offMs = k * periodMs + periodMs / 2.0;
+            if( offMs < w.durationMs ){
+                addLevel(w, schedule, startMs + offMs, w.base, last);
+            }
+        }
+    }
+
+    // every level from the start to the end is held for the same time, the last one until the duration is up
+    // steps are placed in double ms so long durations with many levels do not drift short
+    private static void compileRamp(StimulationWaveform w, StimulationSchedule schedule, double startMs, int[] last){
+        int delta = Math.abs(w.rampEnd - w.rampStart);
+        int sign = Integer.signum(w.rampEnd - w.rampStart);
+        double stepMs = w.durationMs / (delta + 1);
+        for(int j = 0; j <= delta; j++){
+            addLevel(w, schedule, startMs + j * stepMs, w.rampStart + j * sign, last);
+        }
+    }
+
+    // between the base and full strength, starting halfway up
+    private static void compileSine(StimulationWaveform w, StimulationSchedule schedule, double startMs, int[] last){
+        double middle = (w.base + w.strength) / 2.0;
+        double amplitude = (w.strength - w.base) / 2.0;
+        double durationS = w.durationMs / 1000.0;
+        double sweep = w.shape == StimulationWaveform.Shape.CHIRP ? w.endFrequencyHz - w.frequencyHz : 0.0;
+
+        for(double t = 0; t < w.durationMs; t += w.sampleMs){
+            double s = t / 1000.0;
+            // a linear chirp's phase is the integral of its frequency
+            double phase = 2.0 * Math.PI * (w.frequencyHz * s + (durationS > 0 ? sweep * s * s / (2.0 * durationS) : 0.0));
+            addLevel(w, schedule, startMs + t, quantize(middle + amplitude * Math.sin(phase)), last);
+        }
+    }
+
+    private static void compileFile(StimulationWaveform w, StimulationSchedule schedule, double startMs, int[] last){
+        for(int k = 0; k < w.fileLevels.length; k++){
+            addLevel(w, schedule, startMs + w.fileTimesMs[k], w.fileLevels[k], last);
+        }
+    }
+}
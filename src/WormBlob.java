@@ -0,0 +1,93 @@
+import java.util.List;
+
+// a connected region of foreground pixels in a binarized image
+// shape is described by the image moments collected while the region is labelled:
+//   centroid from the first order moments
+//   orientation and elongation from the second order central moments
+class WormBlob {
+    static final double MIN_WORM_ELONGATION = 1.5; // rounder blobs are debris, bubbles or eggs, not worms
+
+    int area;            // number of foreground pixels
+    double x;            // sub-pixel centroid
+    double y;
+    double orientation;  // angle of the major axis in radians, (-pi/2, pi/2], image y axis points down
+    double elongation;   // major axis length / minor axis length, 1 for a disc
+    double majorAxis;    // length of the major axis of the ellipse with the same moments, in pixels
+    double minorAxis;
+
+    // raw moments, kept so blobs can be combined without going back to the image
+    private double sumX;
+    private double sumY;
+    private double sumXX;
+    private double sumYY;
+    private double sumXY;
+
+    // build a blob from its raw moments: pixel count, sum of x, y, x*x, y*y and x*y over its pixels
+    WormBlob(int area_, double sumX_, double sumY_, double sumXX_, double sumYY_, double sumXY_){
+        area = area_;
+        sumX = sumX_;
+        sumY = sumY_;
+        sumXX = sumXX_;
+        sumYY = sumYY_;
+        sumXY = sumXY_;
+
+        double meanX = sumX / area;
+        double meanY = sumY / area;
+
+        // central moments normalized by area, 1/12 is the variance of a single pixel (a unit square)
+        // which keeps the moments of thin or single pixel blobs from being 0
+        double mu20 = sumXX / area - meanX * meanX + 1.0 / 12.0;
+        double mu02 = sumYY / area - meanY * meanY + 1.0 / 12.0;
+        double mu11 = sumXY / area - meanX * meanY;
+
+        // eigenvalues of the covariance matrix are the variances along the major and minor axes
+        double halfTrace = (mu20 + mu02) / 2.0;
+        double root = Math.sqrt(((mu20 - mu02) / 2.0) * ((mu20 - mu02) / 2.0) + mu11 * mu11);
+        double majorVariance = halfTrace + root;
+        double minorVariance = Math.max(halfTrace - root, 1.0 / 12.0);
+
+        // + 0.5 so the centroid is the pixel center, same convention as imagej's center of mass
+        x = meanX + 0.5;
+        y = meanY + 0.5;
+        orientation = 0.5 * Math.atan2(2.0 * mu11, mu20 - mu02);
+        elongation = Math.sqrt(majorVariance / minorVariance);
+        majorAxis = 4.0 * Math.sqrt(majorVariance);
+        minorAxis = 4.0 * Math.sqrt(minorVariance);
+    }
+
+    // a single region made of all the given blobs, null if there are none
+    static WormBlob combine(List<WormBlob> blobs){
+        if( blobs.isEmpty() ){
+            return null;
+        }
+        if( blobs.size() == 1 ){
+            return blobs.get(0);
+        }
+
+        int area = 0;
+        double sumX = 0, sumY = 0, sumXX = 0, sumYY = 0, sumXY = 0;
+        for(int i = 0; i < blobs.size(); i++){
+            WormBlob b = blobs.get(i);
+            area += b.area;
+            sumX += b.sumX;
+            sumY += b.sumY;
+            sumXX += b.sumXX;
+            sumYY += b.sumYY;
+            sumXY += b.sumXY;
+        }
+        return new WormBlob(area, sumX, sumY, sumXX, sumYY, sumXY);
+    }
+
+    boolean isWormShaped(){
+        return elongation >= MIN_WORM_ELONGATION;
+    }
+
+    // orientation in degrees, for the csv logs
+    double orientationDegrees(){
+        return Math.round(Math.toDegrees(orientation) * 10.0) / 10.0;
+    }
+
+    double roundedElongation(){
+        return Math.round(elongation * 100.0) / 100.0;
+    }
+}
@@ -0,0 +1,215 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.io.PrintWriter;
+
+// worm centered crop: while auto-tracking, saves a fixed size square around the tracked worm instead of
+// the whole sensor, the bytes written per frame go down by the area ratio
+//
+// written as the crop size in pixels followed by any of these options, "" saves the whole frame
+//   full=<n>   every n-th frame is saved whole for context, 0 saves none (default 260, 10 s at 26 fps)
+// e.g. "256 full=100"
+//
+// the crop is centered on the worm of the last tracking task, moved along by the stage displacement
+// since the frame it was found in, so a worm the stage is catching up with stays inside. without a
+// worm found in the last MAX_TARGET_AGE_MS, or with one moved out of view, the frame is saved whole.
+// the origin of every crop is saved to crop.csv in pixels of the full frame and in stage microns,
+// which puts the cropped pixels back in plate coordinates
+class WormCrop {
+    static final long MAX_TARGET_AGE_MS = 1000;
+    static final int STAGE_HISTORY = 64;         // stage positions of the last frames, to correct the target with
+
+    String spec;
+    int size;
+    int fullEvery = 260;
+
+    private double targetX;                      // worm in the tracking frame, pixels, NaN when lost
+    private double targetY;
+    private long targetNanos;                    // timestamp of the tracking frame
+    private StageCalibration calibration;        // of the tracker, null before the first tracking task
+    private StageCalibration pixelSizeCalibration;  // micromanager's pixel size, image aligned with the stage
+
+    private long[] stageNanos;                   // frame timestamp and stage position of the last frames saved
+    private double[][] stagePositions;
+    private int stageCount;
+
+    private String[] cropData;                   // one row per frame
+    private int cropped;
+    private int whole;
+
+    // null for "", throws IllegalArgumentException if the spec cannot be understood
+    public static WormCrop parse(String spec){
+        String[] words = spec.trim().split("\\s+");
+        if( words[0].isEmpty() ){
+            return null;
+        }
+
+        WormCrop crop = new WormCrop();
+        crop.spec = spec.trim();
+        try {
+            crop.size = Integer.parseInt(words[0]);
+        } catch (NumberFormatException e){
+            throw new IllegalArgumentException("crop size is not a whole number: " + words[0]);
+        }
+        if( crop.size <= 0 ){
+            throw new IllegalArgumentException("crop size must be greater than 0");
+        }
+        for(int i = 1; i < words.length; i++){
+            String[] option = words[i].split("=", 2);
+            if( option.length < 2 ){
+                throw new IllegalArgumentException("expected name=value, got " + words[i]);
+            }
+            if( !option[0].equals("full") ){
+                throw new IllegalArgumentException("unknown option " + option[0]);
+            }
+            try {
+                crop.fullEvery = Integer.parseInt(option[1]);
+            } catch (NumberFormatException e){
+                throw new IllegalArgumentException(option[0] + " is not a whole number: " + option[1]);
+            }
+            if( crop.fullEvery < 0 ){
+                throw new IllegalArgumentException(option[0] + " must be non-negative");
+            }
+        }
+        return crop;
+    }
+
+    // forget the last job, pixelSizeUm is micromanager's pixel size, used until the tracker has a calibration
+    public synchronized void start(int numFrames, double pixelSizeUm){
+        targetX = Double.NaN;
+        targetY = Double.NaN;
+        targetNanos = 0;
+        calibration = null;
+        double pixelSize = pixelSizeUm > 0 ? pixelSizeUm : 1.0;
+        pixelSizeCalibration = new StageCalibration("", pixelSize, 0, 0, pixelSize, 0);
+        stageNanos = new long[STAGE_HISTORY];
+        stagePositions = new double[STAGE_HISTORY][];
+        stageCount = 0;
+        cropData = new String[numFrames];
+        cropped = 0;
+        whole = 0;
+    }
+
+    // the worm found by the last tracking task, on the tracking thread
+    public synchronized void updateTracking(TrackingResult result, StageCalibration calibration_){
+        calibration = calibration_;
+        if( result.measurement == null ){
+            targetX = Double.NaN;
+            targetY = Double.NaN;
+            return;
+        }
+        targetX = result.measurement.x;
+        targetY = result.measurement.y;
+        targetNanos = result.timeNanos;
+    }
+
+    // the image to save for this frame of the job, the crop around the worm or the whole frame
+    // stagePos is the stage position read for the frame
+    public synchronized ImagePlus crop(int frameIndex, Frame frame, double[] stagePos, String timeStamp){
+        StageCalibration transform = calibration != null ? calibration : pixelSizeCalibration;
+        double[] wormPosition = predictTarget(frame, stagePos, transform);
+        rememberStagePosition(frame.timestampNanos, stagePos);
+
+        int width = Math.min(size, frame.width);
+        int height = Math.min(size, frame.height);
+        boolean full = wormPosition == null || (fullEvery > 0 && frameIndex % fullEvery == 0) || (width == frame.width && height == frame.height);
+
+        int x = 0;
+        int y = 0;
+        if( full ){
+            width = frame.width;
+            height = frame.height;
+            whole++;
+        } else {
+            // keep the whole crop on the sensor, the worm is off center near the edges
+            x = Math.max(0, Math.min(frame.width - width, (int) Math.round(wormPosition[0] - width / 2.0)));
+            y = Math.max(0, Math.min(frame.height - height, (int) Math.round(wormPosition[1] - height / 2.0)));
+            cropped++;
+        }
+
+        double[] originUm = transform.imageToStage(x, y, frame.width, frame.height, stagePos);
+        if( frameIndex >= 0 && frameIndex < cropData.length ){
+            cropData[frameIndex] = String.valueOf(frameIndex) + ", " + timeStamp + ", " +
+                String.valueOf(x) + ", " + String.valueOf(y) + ", " + String.valueOf(width) + ", " + String.valueOf(height) + ", " +
+                String.valueOf(Math.round(originUm[0] * 100.0) / 100.0) + ", " + String.valueOf(Math.round(originUm[1] * 100.0) / 100.0) + ", " +
+                (wormPosition == null ? "NaN, NaN" : String.valueOf(Math.round(wormPosition[0] * 10.0) / 10.0) + ", " + String.valueOf(Math.round(wormPosition[1] * 10.0) / 10.0)) + ", " +
+                (full ? "full" : "crop");
+        }
+
+        if( full ){
+            return frame.toImagePlus();
+        }
+        ImageProcessor ip = frame.getProcessor();
+        ip.setRoi(x, y, width, height);
+        return new ImagePlus("Frame " + String.valueOf(frame.sequence), ip.crop());
+    }
+
+    // where the tracked worm is in this frame, null without a recent one
+    // the stage moved since the tracking frame, which moves the worm in the image by the same displacement
+    private double[] predictTarget(Frame frame, double[] stagePos, StageCalibration transform){
+        if( Double.isNaN(targetX) || frame.timestampNanos - targetNanos > MAX_TARGET_AGE_MS * 1000000L ){
+            return null;
+        }
+
+        // the stage of the frame saved closest to the tracking frame
+        double[] trackedStagePos = null;
+        long closest = Long.MAX_VALUE;
+        for(int i = 0; i < Math.min(stageCount, STAGE_HISTORY); i++){
+            long distance = Math.abs(stageNanos[i] - targetNanos);
+            if( distance < closest ){
+                closest = distance;
+                trackedStagePos = stagePositions[i];
+            }
+        }
+        if( trackedStagePos == null ){
+            return new double[]{ targetX, targetY };
+        }
+        double[] shift = transform.micronsToPixels(stagePos[0] - trackedStagePos[0], stagePos[1] - trackedStagePos[1]);
+        double x = targetX + shift[0];
+        double y = targetY + shift[1];
+        // moved out of view, the whole frame shows more than a crop at the edge would
+        if( x < 0 || y < 0 || x >= frame.width || y >= frame.height ){
+            return null;
+        }
+        return new double[]{ x, y };
+    }
+
+    private void rememberStagePosition(long nanos, double[] stagePos){
+        int i = stageCount % STAGE_HISTORY;
+        stageNanos[i] = nanos;
+        stagePositions[i] = stagePos;
+        stageCount++;
+    }
+
+    // e.g. "worm crop \"256\", frames saved: 2900 cropped, 100 whole"
+    public synchronized String describe(){
+        return "worm crop \"" + spec + "\", frames saved: " + String.valueOf(cropped) + " cropped, " + String.valueOf(whole) + " whole";
+    }
+
+    // save the crop of every frame to <directory>/temp<job>_crop.csv
+    public synchronized void save(String directory, int jobId){
+        if( cropData == null ){
+            return;
+        }
+        IJ.log("[INFO] " + describe());
+
+        PrintWriter p = null;
+        try {
+            p = new PrintWriter(directory + "/" + "temp" + String.valueOf(jobId) + "_" + "crop.csv");
+            p.println("frame, timestamp(ms), crop x, crop y, width, height, crop x (um), crop y (um), worm x, worm y, saved");
+            for(int i = 0; i < cropData.length; i++){
+                if( cropData[i] != null ){
+                    p.println(cropData[i]);
+                }
+            }
+        } catch (java.io.IOException e){
+            IJ.log("[ERROR] unable to write crop file");
+        } finally {
+            if( p != null ){
+                p.close();
+            }
+        }
+        cropData = null;
+    }
+}
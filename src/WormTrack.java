@@ -0,0 +1,38 @@
+// a worm that keeps the same id from one tracking update to the next
+class WormTrack {
+    int id;
+    double x;             // last known (or predicted) position in pixels
+    double y;
+    double vx;            // smoothed displacement per update in pixels
+    double vy;
+    int area;
+    double orientation;   // major axis angle and elongation of the last matched blob
+    double elongation;
+    int missedUpdates;    // consecutive updates without a matching blob
+    WormBlob lastBlob;    // blob matched in the last update, null if it was missed
+
+    WormTrack(int id_, WormBlob blob){
+        id = id_;
+        x = blob.x;
+        y = blob.y;
+        vx = 0.0;
+        vy = 0.0;
+        missedUpdates = 0;
+        setShape(blob);
+    }
+
+    void setShape(WormBlob blob){
+        lastBlob = blob;
+        area = blob.area;
+        orientation = blob.orientation;
+        elongation = blob.elongation;
+    }
+
+    double predictedX(){
+        return x + vx;
+    }
+
+    double predictedY(){
+        return y + vy;
+    }
+}